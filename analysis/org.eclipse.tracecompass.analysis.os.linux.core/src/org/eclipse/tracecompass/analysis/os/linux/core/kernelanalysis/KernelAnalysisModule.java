@@ -71,6 +71,21 @@ public class KernelAnalysisModule extends TmfStateSystemAnalysisModule {
             // LttngStrings.SYSCALL_PREFIX
             // );
 
+    /**
+     * System property giving the number of shards in which to split the trace
+     * to build the history in parallel. Without it, the history is built
+     * sequentially: the warm-up of each shard reads part of the trace again,
+     * which is only worth it with enough processors and a large enough trace.
+     */
+    private static final String SHARDS_PROPERTY = "org.eclipse.tracecompass.analysis.os.linux.kernel.shards"; //$NON-NLS-1$
+
+    /**
+     * How long before its shard the state provider of a shard starts, when the
+     * history is built in parallel. Most CPUs and threads change state many
+     * times in that time.
+     */
+    private static final long SHARD_WARMUP = 1000000000L;
+
     /** The requirements as an immutable set */
     private static final Set<TmfAnalysisRequirement> REQUIREMENTS;
 
@@ -101,6 +116,26 @@ public class KernelAnalysisModule extends TmfStateSystemAnalysisModule {
         return new KernelStateProvider(trace, layout);
     }
 
+    @Override
+    protected int getNbShards() {
+        /*
+         * The kernel state provider keeps all its state in the state system, so
+         * it can be sharded, but only when asked to.
+         */
+        return Math.max(1, Integer.getInteger(SHARDS_PROPERTY, 1));
+    }
+
+    @Override
+    protected long getShardWarmup() {
+        return SHARD_WARMUP;
+    }
+
+    @Override
+    protected boolean canResumeHistory() {
+        /* Same as for the shards, all the state is in the state system */
+        return true;
+    }
+
     @Override
     @NonNull
     protected String getSsFileName() {
@@ -70,6 +70,19 @@ public class KernelStateProvider extends AbstractTmfStateProvider {
     private static final int SCHED_WAKEUP_INDEX = 11;
     private static final int SCHED_PI_SETPRIO_INDEX = 12;
 
+    /**
+     * Sub-attributes of the thread scheduled in by a sched_switch, resolved in
+     * one call. The order is the order in which they are created.
+     */
+    private static final String[][] SCHED_SWITCH_THREAD_ATTRIBUTES = {
+            { Attributes.EXEC_NAME },
+            { Attributes.PRIO },
+            { Attributes.SYSTEM_CALL },
+            { Attributes.PPID }
+    };
+    private static final int SCHED_SWITCH_EXEC_NAME = 0;
+    private static final int SCHED_SWITCH_PRIO = 1;
+    private static final int SCHED_SWITCH_SYSTEM_CALL = 2;
 
     // ------------------------------------------------------------------------
     // Fields
@@ -301,19 +314,19 @@ public class KernelStateProvider extends AbstractTmfStateProvider {
                 /* Set the status of the new scheduled process */
                 setProcessToRunning(ss, ts, newCurrentThreadNode);
 
+                /*
+                 * Get the sub-attributes of the new process, which makes sure
+                 * the PPID and system_call sub-attributes exist
+                 */
+                int[] threadQuarks = ss.getQuarksRelativeAndAdd(newCurrentThreadNode, SCHED_SWITCH_THREAD_ATTRIBUTES);
+
                 /* Set the exec name of the new process */
-                quark = ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.EXEC_NAME);
                 value = TmfStateValue.newValueString(nextProcessName);
-                ss.modifyAttribute(ts, value, quark);
+                ss.modifyAttribute(ts, value, threadQuarks[SCHED_SWITCH_EXEC_NAME]);
 
                 /* Set the current prio for the new process */
-                quark = ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.PRIO);
                 value = TmfStateValue.newValueInt(nextPrio);
-                ss.modifyAttribute(ts, value, quark);
-
-                /* Make sure the PPID and system_call sub-attributes exist */
-                ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.SYSTEM_CALL);
-                ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.PPID);
+                ss.modifyAttribute(ts, value, threadQuarks[SCHED_SWITCH_PRIO]);
 
                 /* Set the current scheduled process on the relevant CPU */
                 quark = ss.getQuarkRelativeAndAdd(currentCPUNode, Attributes.CURRENT_THREAD);
@@ -323,8 +336,7 @@ public class KernelStateProvider extends AbstractTmfStateProvider {
                 /* Set the status of the CPU itself */
                 if (nextTid > 0) {
                     /* Check if the entering process is in kernel or user mode */
-                    quark = ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.SYSTEM_CALL);
-                    if (ss.queryOngoingState(quark).isNull()) {
+                    if (ss.queryOngoingState(threadQuarks[SCHED_SWITCH_SYSTEM_CALL]).isNull()) {
                         value = StateValues.CPU_STATUS_RUN_USERMODE_VALUE;
                     } else {
                         value = StateValues.CPU_STATUS_RUN_SYSCALL_VALUE;
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.common.core.tests.collect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.common.core.collect.LoserTree;
+import org.junit.Test;
+
+/**
+ * Test suite for the {@link LoserTree}
+ */
+public class LoserTreeTest {
+
+    /**
+     * Test an empty tree, and a tree whose sources are all absent
+     */
+    @Test
+    public void testEmpty() {
+        LoserTree tree = new LoserTree(0);
+        assertTrue(tree.isEmpty());
+        assertEquals(-1, tree.getWinner());
+
+        tree = new LoserTree(3);
+        assertEquals(3, tree.getNbSources());
+        assertEquals(-1, tree.getWinner());
+        tree.set(1, 10);
+        assertEquals(1, tree.getWinner());
+        tree.remove(1);
+        assertTrue(tree.isEmpty());
+        assertEquals(-1, tree.getWinner());
+    }
+
+    /**
+     * Test that ties are won by the source with the lowest index
+     */
+    @Test
+    public void testTies() {
+        LoserTree tree = new LoserTree(5);
+        for (int i = 4; i >= 0; i--) {
+            tree.set(i, 7);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, tree.getWinner());
+            tree.set(i, 8);
+        }
+        assertEquals(0, tree.getWinner());
+        assertEquals(8, tree.getKey(0));
+    }
+
+    /**
+     * Merge sorted lists, for several numbers of sources, and check the
+     * result against a sorted copy
+     */
+    @Test
+    public void testMerge() {
+        Random random = new Random(42);
+        for (int nbSources = 1; nbSources <= 33; nbSources++) {
+            List<long[]> sources = new ArrayList<>();
+            List<Long> expected = new ArrayList<>();
+            for (int i = 0; i < nbSources; i++) {
+                long[] values = new long[random.nextInt(50)];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = random.nextInt(1000) - 500;
+                    expected.add(values[j]);
+                }
+                Arrays.sort(values);
+                sources.add(values);
+            }
+            Collections.sort(expected);
+
+            LoserTree tree = new LoserTree(nbSources);
+            int[] positions = new int[nbSources];
+            for (int i = 0; i < nbSources; i++) {
+                if (sources.get(i).length > 0) {
+                    tree.set(i, sources.get(i)[0]);
+                }
+            }
+            List<Long> actual = new ArrayList<>();
+            int lastSource = -1;
+            for (int winner = tree.getWinner(); winner != -1; winner = tree.getWinner()) {
+                long key = tree.getKey(winner);
+                if (!actual.isEmpty() && actual.get(actual.size() - 1) == key) {
+                    /* Equal keys come from sources in increasing order */
+                    assertTrue(winner >= lastSource);
+                }
+                actual.add(key);
+                lastSource = winner;
+                long[] values = sources.get(winner);
+                positions[winner]++;
+                if (positions[winner] < values.length) {
+                    tree.set(winner, values[positions[winner]]);
+                } else {
+                    tree.remove(winner);
+                }
+            }
+            assertEquals(expected, actual);
+            assertTrue(tree.isEmpty());
+        }
+    }
+
+    /**
+     * Change sources other than the winner, and check the winner against a
+     * linear scan
+     */
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(7);
+        int nbSources = 13;
+        LoserTree tree = new LoserTree(nbSources);
+        Long[] keys = new Long[nbSources];
+        for (int n = 0; n < 10000; n++) {
+            int source = random.nextInt(nbSources);
+            if (random.nextInt(4) == 0) {
+                tree.remove(source);
+                keys[source] = null;
+            } else {
+                long key = random.nextInt(20);
+                tree.set(source, key);
+                keys[source] = key;
+            }
+            int expected = -1;
+            for (int i = 0; i < nbSources; i++) {
+                if (keys[i] != null && (expected == -1 || keys[i] < keys[expected])) {
+                    expected = i;
+                }
+            }
+            assertEquals(expected, tree.getWinner());
+            assertEquals(expected == -1, tree.isEmpty());
+            assertFalse(expected != -1 && !tree.contains(expected));
+        }
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertEquals(-1, tree.getWinner());
+    }
+}
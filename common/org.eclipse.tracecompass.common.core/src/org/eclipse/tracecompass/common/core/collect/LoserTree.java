@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.common.core.collect;
+
+import java.util.Arrays;
+
+/**
+ * Tournament tree (loser tree) used to merge several sorted sources, for
+ * example the streams of a trace or the traces of an experiment, by a
+ * primitive long key such as a timestamp.
+ * <p>
+ * Each source is identified by its index, and is either present, with the key
+ * of its next element, or absent when it has no more elements. The winner is
+ * the present source with the smallest key, the source with the lowest index
+ * winning in case of a tie.
+ * <p>
+ * Every node of the tree keeps the loser of the match between its two
+ * subtrees. Changing the key of the winner, or removing it, only replays the
+ * matches on its path to the root: one key comparison per level, without
+ * moving elements around like a heap does. Changing any other source
+ * rebuilds the tree the next time the winner is requested, which is meant for
+ * occasional changes like seeks.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @since 1.1
+ */
+public class LoserTree {
+
+    private static final int NONE = -1;
+
+    private final int fNbSources;
+    private final long[] fKeys;
+    private final boolean[] fPresent;
+    /* Loser of each internal node, the leaf of source i being node fNbSources + i */
+    private final int[] fLosers;
+    private int fWinner = NONE;
+    private int fSize = 0;
+    private boolean fDirty = false;
+
+    /**
+     * Constructor, all the sources are initially absent
+     *
+     * @param nbSources
+     *            The number of sources to merge
+     */
+    public LoserTree(int nbSources) {
+        if (nbSources < 0) {
+            throw new IllegalArgumentException("Negative number of sources: " + nbSources); //$NON-NLS-1$
+        }
+        fNbSources = nbSources;
+        fKeys = new long[nbSources];
+        fPresent = new boolean[nbSources];
+        fLosers = new int[Math.max(nbSources, 1)];
+        Arrays.fill(fLosers, NONE);
+    }
+
+    /**
+     * Get the number of sources, present or not
+     *
+     * @return The number of sources
+     */
+    public int getNbSources() {
+        return fNbSources;
+    }
+
+    /**
+     * Get the number of present sources
+     *
+     * @return The number of sources which have a key
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * Check if all the sources are absent
+     *
+     * @return true if no source has a key
+     */
+    public boolean isEmpty() {
+        return (fSize == 0);
+    }
+
+    /**
+     * Check if a source is present
+     *
+     * @param source
+     *            The index of the source
+     * @return true if the source has a key
+     */
+    public boolean contains(int source) {
+        return fPresent[source];
+    }
+
+    /**
+     * Get the key of a present source
+     *
+     * @param source
+     *            The index of the source
+     * @return The key of the source
+     * @throws IllegalStateException
+     *             If the source is absent
+     */
+    public long getKey(int source) {
+        if (!fPresent[source]) {
+            throw new IllegalStateException("Source " + source + " is absent"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return fKeys[source];
+    }
+
+    /**
+     * Set the key of a source, making it present if it was not
+     *
+     * @param source
+     *            The index of the source
+     * @param key
+     *            The new key of the source
+     */
+    public void set(int source, long key) {
+        if (!fPresent[source]) {
+            fPresent[source] = true;
+            fSize++;
+        }
+        fKeys[source] = key;
+        sourceChanged(source);
+    }
+
+    /**
+     * Remove a source, it will not be the winner until it is set again
+     *
+     * @param source
+     *            The index of the source
+     */
+    public void remove(int source) {
+        if (fPresent[source]) {
+            fPresent[source] = false;
+            fSize--;
+            sourceChanged(source);
+        }
+    }
+
+    /**
+     * Remove all the sources
+     */
+    public void clear() {
+        Arrays.fill(fPresent, false);
+        fSize = 0;
+        fWinner = NONE;
+        fDirty = false;
+        Arrays.fill(fLosers, NONE);
+    }
+
+    /**
+     * Get the winner, the present source with the smallest key
+     *
+     * @return The index of the winner, or -1 if all the sources are absent
+     */
+    public int getWinner() {
+        if (fDirty) {
+            rebuild();
+        }
+        return (fSize == 0 ? NONE : fWinner);
+    }
+
+    // ------------------------------------------------------------------------
+    // Tree operations
+    // ------------------------------------------------------------------------
+
+    private void sourceChanged(int source) {
+        if (fDirty) {
+            return;
+        }
+        if (source == fWinner) {
+            replay(source);
+        } else {
+            fDirty = true;
+        }
+    }
+
+    /*
+     * Does source a win against source b? An index of NONE stands for an empty
+     * subtree, and loses against everything.
+     */
+    private boolean beats(int a, int b) {
+        if (a == NONE || !fPresent[a]) {
+            return false;
+        }
+        if (b == NONE || !fPresent[b]) {
+            return true;
+        }
+        long ka = fKeys[a];
+        long kb = fKeys[b];
+        return (ka < kb || (ka == kb && a < b));
+    }
+
+    /*
+     * Replay the matches of a source which was the winner, from its leaf to
+     * the root. The other matches still hold.
+     */
+    private void replay(int source) {
+        int winner = source;
+        for (int node = (fNbSources + source) >>> 1; node > 0; node >>>= 1) {
+            int loser = fLosers[node];
+            if (beats(loser, winner)) {
+                fLosers[node] = winner;
+                winner = loser;
+            }
+        }
+        fWinner = winner;
+    }
+
+    private void rebuild() {
+        fDirty = false;
+        if (fNbSources == 0) {
+            fWinner = NONE;
+            return;
+        }
+        /* Winners of the subtrees, the leaves are at the end */
+        int[] winners = new int[2 * fNbSources];
+        for (int i = 0; i < fNbSources; i++) {
+            winners[fNbSources + i] = i;
+        }
+        for (int node = fNbSources - 1; node > 0; node--) {
+            int left = winners[2 * node];
+            int right = winners[2 * node + 1];
+            if (beats(right, left)) {
+                winners[node] = right;
+                fLosers[node] = left;
+            } else {
+                winners[node] = left;
+                fLosers[node] = right;
+            }
+        }
+        fWinner = (fNbSources == 1 ? 0 : winners[1]);
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.tests.synthetictraces.LttngKernelTraceGenerator;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTrace;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTraceReader;
+import org.eclipse.tracecompass.internal.ctf.core.trace.PacketIndexFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the packet index saved outside of the trace directory
+ */
+public class CTFTracePacketIndexTest {
+
+    private File fTraceDir;
+    private File fIndexDir;
+    private File fIndexFile;
+
+    /**
+     * Generate a small trace
+     *
+     * @throws IOException
+     *             If the directories cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fTraceDir = Files.createTempDirectory("packet-index").toFile();
+        new LttngKernelTraceGenerator(100000000L, 20000, 4).writeTrace(fTraceDir);
+        /* Created when the index is saved */
+        fIndexDir = new File(Files.createTempDirectory("packet-index-suppl").toFile(), "trace");
+        fIndexFile = new File(fIndexDir, PacketIndexFile.FILE_NAME);
+    }
+
+    /**
+     * Delete the trace and its index
+     */
+    @After
+    public void cleanup() {
+        deleteDirectory(fTraceDir);
+        deleteDirectory(fIndexDir);
+        fIndexDir.getParentFile().delete();
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private List<Long> readTimestamps() throws CTFException {
+        return readTimestamps(true, fIndexDir);
+    }
+
+    private List<Long> readTimestamps(boolean indexPackets, File indexDir) throws CTFException {
+        List<Long> timestamps = new ArrayList<>();
+        CTFTrace trace = new CTFTrace(fTraceDir);
+        if (indexPackets) {
+            trace.indexPackets(indexDir);
+        }
+        try (CTFTraceReader reader = new CTFTraceReader(trace)) {
+            while (reader.hasMoreEvents()) {
+                timestamps.add(reader.getCurrentEventDef().getTimestamp());
+                reader.advance();
+            }
+        }
+        return timestamps;
+    }
+
+    /**
+     * Test that the index is saved when the packets are indexed, and that
+     * reading the trace with it gives the same events.
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testSavedIndex() throws CTFException {
+        assertFalse(fIndexFile.exists());
+        List<Long> expected = readTimestamps();
+        assertTrue(fIndexFile.exists());
+        /* Nothing is written in the trace directory */
+        assertFalse(new File(fTraceDir, PacketIndexFile.FILE_NAME).exists());
+        long lastModified = fIndexFile.lastModified();
+
+        assertEquals(expected, readTimestamps());
+        /* The index was complete, it is not saved again */
+        assertEquals(lastModified, fIndexFile.lastModified());
+    }
+
+    /**
+     * Test that an invalid saved index is ignored and replaced.
+     *
+     * @throws CTFException
+     *             Should not happen
+     * @throws IOException
+     *             If the index cannot be overwritten
+     */
+    @Test
+    public void testInvalidIndex() throws CTFException, IOException {
+        List<Long> expected = readTimestamps();
+        try (FileOutputStream out = new FileOutputStream(fIndexFile)) {
+            out.write(new byte[] { 1, 2, 3, 4 });
+        }
+        assertEquals(expected, readTimestamps());
+        assertTrue(fIndexFile.length() > 4);
+    }
+
+    /**
+     * Test that opening and reading a trace without indexing all its packets
+     * first, like when validating it, does not save an index.
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testNotIndexed() throws CTFException {
+        List<Long> expected = readTimestamps(false, fIndexDir);
+        assertFalse(fIndexFile.exists());
+        assertEquals(expected, readTimestamps());
+        assertTrue(fIndexFile.exists());
+    }
+
+    /**
+     * Test indexing the packets without a directory to save the index in.
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testNoIndexDirectory() throws CTFException {
+        List<Long> expected = readTimestamps(false, null);
+        assertEquals(expected, readTimestamps(true, null));
+        assertFalse(fIndexDir.exists());
+        assertFalse(new File(fTraceDir, PacketIndexFile.FILE_NAME).exists());
+    }
+
+    /**
+     * Test that an error while indexing the packets is reported, and that no
+     * index is saved then.
+     *
+     * @throws IOException
+     *             If the stream file cannot be modified
+     */
+    @Test
+    public void testIndexError() throws IOException {
+        File[] files = fTraceDir.listFiles();
+        assertTrue(files != null && files.length > 0);
+        for (File file : files) {
+            if (file.getName().startsWith("channel")) {
+                /* Not a packet header */
+                try (FileOutputStream out = new FileOutputStream(file, true)) {
+                    out.write(new byte[4096]);
+                }
+                break;
+            }
+        }
+        try {
+            CTFTrace trace = new CTFTrace(fTraceDir);
+            trace.indexPackets(fIndexDir);
+            fail();
+        } catch (CTFException e) {
+            /* Expected */
+        }
+        assertFalse(fIndexFile.exists());
+    }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.EventDefinition;
+import org.eclipse.tracecompass.ctf.core.tests.synthetictraces.LttngKernelTraceGenerator;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTrace;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTraceReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for reading a trace with the events of its streams decoded ahead
+ */
+public class CTFTraceReaderPipelinedTest {
+
+    private File fTraceDir;
+    private CTFTrace fTrace;
+
+    /**
+     * Generate a trace with several streams
+     *
+     * @throws IOException
+     *             If the directory cannot be created
+     * @throws CTFException
+     *             If the trace cannot be opened
+     */
+    @Before
+    public void setup() throws IOException, CTFException {
+        fTraceDir = Files.createTempDirectory("pipelined").toFile();
+        new LttngKernelTraceGenerator(100000000L, 20000, 8).writeTrace(fTraceDir);
+        fTrace = new CTFTrace(fTraceDir);
+    }
+
+    /**
+     * Delete the trace
+     */
+    @After
+    public void cleanup() {
+        deleteTrace(fTraceDir);
+    }
+
+    private static void deleteTrace(File traceDir) {
+        File[] files = traceDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        traceDir.delete();
+    }
+
+    private static List<String> readEvents(CTFTraceReader reader, int max) throws CTFException {
+        List<String> events = new ArrayList<>();
+        while (reader.hasMoreEvents() && events.size() < max) {
+            EventDefinition event = reader.getCurrentEventDef();
+            events.add(event.getTimestamp() + " " + event.getCPU() + " " + event.getDeclaration().getName());
+            reader.advance();
+        }
+        return events;
+    }
+
+    /**
+     * Test that the pipelined reader returns the same events as the serial
+     * one, in the same order
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testReadAll() throws CTFException {
+        List<String> expected;
+        try (CTFTraceReader reader = new CTFTraceReader(fTrace)) {
+            expected = readEvents(reader, Integer.MAX_VALUE);
+        }
+        try (CTFTraceReader reader = new CTFTraceReader(fTrace)) {
+            reader.setPipelined(true);
+            assertTrue(reader.isPipelined());
+            assertEquals(expected, readEvents(reader, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Test seeking, and switching the mode, while reading
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testSeekAndSwitch() throws CTFException {
+        List<String> expected;
+        try (CTFTraceReader reader = new CTFTraceReader(fTrace)) {
+            expected = readEvents(reader, Integer.MAX_VALUE);
+        }
+        try (CTFTraceReader reader = new CTFTraceReader(fTrace)) {
+            reader.setPipelined(true);
+            List<String> actual = readEvents(reader, 1000);
+            reader.setPipelined(false);
+            actual.addAll(readEvents(reader, 1000));
+            reader.setPipelined(true);
+            actual.addAll(readEvents(reader, Integer.MAX_VALUE));
+            assertEquals(expected, actual);
+
+            reader.seek(0);
+            assertEquals(expected, readEvents(reader, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Test a live trace whose end is reached, so that the decoding stops and
+     * starts again each time the reader asks for more events
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test(timeout = 60000)
+    public void testLiveEnd() throws Exception {
+        /* A single stream, the end of a stream blocks the others */
+        File traceDir = Files.createTempDirectory("pipelined-live").toFile();
+        try {
+            new LttngKernelTraceGenerator(100000000L, 5000, 1).writeTrace(traceDir);
+            CTFTrace trace = new CTFTrace(traceDir);
+            List<String> expected;
+            try (CTFTraceReader reader = new CTFTraceReader(trace)) {
+                expected = readEvents(reader, Integer.MAX_VALUE);
+            }
+            try (CTFTraceReader reader = new CTFTraceReader(trace)) {
+                reader.setLive(true);
+                reader.setPipelined(true);
+                assertEquals(expected, readEvents(reader, expected.size()));
+                /* Nothing more to read, but the trace could still grow */
+                for (int i = 0; i < 100000; i++) {
+                    reader.advance();
+                    assertTrue(reader.hasMoreEvents());
+                    assertNull(reader.getCurrentEventDef());
+                }
+            }
+        } finally {
+            deleteTrace(traceDir);
+        }
+    }
+}
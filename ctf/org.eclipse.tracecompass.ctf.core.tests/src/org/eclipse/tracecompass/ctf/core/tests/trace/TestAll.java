@@ -25,8 +25,10 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     CTFTraceReaderTest.class,
+    CTFTraceReaderPipelinedTest.class,
     CTFTraceTest.class,
     CTFTraceGrowingTest.class,
+    CTFTracePacketIndexTest.class,
     IOstructgenTest.class,
     MetadataTest.class,
     MetadataPrevalidationTests.class,
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.types;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
+import org.eclipse.tracecompass.ctf.core.event.types.Definition;
+import org.eclipse.tracecompass.ctf.core.event.types.Encoding;
+import org.eclipse.tracecompass.ctf.core.event.types.EnumDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.EnumDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.FloatDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IntegerDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.StringDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.ArrayDeclaration;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.FlyweightStructDefinition;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.StructDecoder;
+import org.junit.Test;
+
+/**
+ * Tests for the flyweight definition of the fields of an event
+ */
+public class FlyweightStructDefinitionTest {
+
+    static IntegerDeclaration integer(int length, boolean signed, ByteOrder order, long alignment) {
+        return IntegerDeclaration.createDeclaration(length, signed, 10, order, Encoding.NONE, "", alignment);
+    }
+
+    static StructDeclaration createBitFields() {
+        StructDeclaration struct = new StructDeclaration(1);
+        struct.addField("a", integer(3, true, ByteOrder.BIG_ENDIAN, 1));
+        struct.addField("b", integer(13, false, ByteOrder.LITTLE_ENDIAN, 1));
+        struct.addField("c", integer(33, true, ByteOrder.LITTLE_ENDIAN, 1));
+        struct.addField("d", integer(41, false, ByteOrder.BIG_ENDIAN, 1));
+        EnumDeclaration enumDec = new EnumDeclaration(integer(5, false, ByteOrder.BIG_ENDIAN, 1));
+        enumDec.add(0, 15, "low");
+        enumDec.add(16, 31, "high");
+        struct.addField("e", enumDec);
+        struct.addField("f", integer(7, true, ByteOrder.LITTLE_ENDIAN, 1));
+        return struct;
+    }
+
+    static StructDeclaration createAlignedFields() {
+        StructDeclaration struct = new StructDeclaration(8);
+        struct.addField("a", IntegerDeclaration.UINT_8_DECL);
+        struct.addField("b", IntegerDeclaration.INT_32L_DECL);
+        struct.addField("c", IntegerDeclaration.UINT_16B_DECL);
+        struct.addField("d", IntegerDeclaration.INT_64B_DECL);
+        struct.addField("e", IntegerDeclaration.UINT_64L_DECL);
+        struct.addField("f", integer(12, true, ByteOrder.BIG_ENDIAN, 1));
+        return struct;
+    }
+
+    static StructDeclaration createCompositeFields() {
+        StructDeclaration inner = new StructDeclaration(1);
+        inner.addField("x", integer(12, false, ByteOrder.LITTLE_ENDIAN, 8));
+        inner.addField("y", IntegerDeclaration.UINT_5B_DECL);
+        StructDeclaration struct = new StructDeclaration(8);
+        struct.addField("comm", new ArrayDeclaration(16, IntegerDeclaration.createDeclaration(8, true, 10, ByteOrder.LITTLE_ENDIAN, Encoding.UTF8, "", 8)));
+        struct.addField("tid", IntegerDeclaration.INT_32L_DECL);
+        struct.addField("inner", inner);
+        struct.addField("bits", new ArrayDeclaration(3, integer(12, false, ByteOrder.BIG_ENDIAN, 8)));
+        struct.addField("load", new FloatDeclaration(11, 53, ByteOrder.LITTLE_ENDIAN, 8));
+        struct.addField("prio", IntegerDeclaration.INT_8_DECL);
+        return struct;
+    }
+
+    /**
+     * Decode a struct field by field, the way the declarations of the fields
+     * decode them, as a reference for the decoder
+     */
+    static Definition[] decodeFields(StructDeclaration struct, BitBuffer input) throws CTFException {
+        long mask = struct.getAlignment() - 1;
+        input.position((input.position() + mask) & ~mask);
+        Definition[] definitions = new Definition[struct.getFields().size()];
+        int i = 0;
+        for (Entry<String, IDeclaration> field : struct.getFields().entrySet()) {
+            definitions[i++] = field.getValue().createDefinition(null, field.getKey(), input);
+        }
+        return definitions;
+    }
+
+    static long getValue(Definition definition) {
+        if (definition instanceof EnumDefinition) {
+            return ((EnumDefinition) definition).getIntegerValue();
+        }
+        return ((IntegerDefinition) definition).getValue();
+    }
+
+    private static void checkStruct(StructDeclaration struct) throws CTFException {
+        StructDecoder decoder = StructDecoder.compile(struct);
+        assertTrue(FlyweightStructDefinition.canRead(decoder));
+        Random random = new Random(17);
+        byte[] bytes = new byte[128];
+        for (int n = 0; n < 100; n++) {
+            random.nextBytes(bytes);
+            long start = random.nextInt(64);
+
+            BitBuffer input = new BitBuffer(ByteBuffer.wrap(bytes));
+            input.position(start);
+            Definition[] expected = decodeFields(struct, input);
+            long end = input.position();
+
+            input = new BitBuffer(ByteBuffer.wrap(bytes));
+            input.position(start);
+            FlyweightStructDefinition flyweight = FlyweightStructDefinition.create(decoder, null, null, input);
+            assertEquals(end, input.position());
+
+            for (int i = 0; i < expected.length; i++) {
+                String name = flyweight.getFieldNames().get(i);
+                if (flyweight.isIntegerField(i)) {
+                    assertEquals(name, getValue(expected[i]), flyweight.getIntegerValue(name));
+                }
+                /* The decoded fields are the same */
+                assertEquals(name, expected[i].toString(), flyweight.getDefinition(name).toString());
+            }
+        }
+    }
+
+    /**
+     * Test reading fields which are not aligned on bytes, in both byte orders
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testBitFields() throws CTFException {
+        checkStruct(createBitFields());
+    }
+
+    /**
+     * Test reading aligned fields
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testAlignedFields() throws CTFException {
+        checkStruct(createAlignedFields());
+    }
+
+    /**
+     * Test reading arrays, nested structs and floats, which have a fixed size
+     * but are not read directly
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testCompositeFields() throws CTFException {
+        checkStruct(createCompositeFields());
+    }
+
+    /**
+     * Test that the fields of variable size, or with a timestamp, cannot be
+     * read as a flyweight
+     */
+    @Test
+    public void testCannotRead() {
+        StructDeclaration struct = createAlignedFields();
+        struct.addField("s", StringDeclaration.getStringDeclaration(Encoding.UTF8));
+        assertFalse(FlyweightStructDefinition.canRead(StructDecoder.compile(struct)));
+
+        struct = createAlignedFields();
+        struct.addField("timestamp", IntegerDeclaration.UINT_64L_DECL);
+        assertFalse(FlyweightStructDefinition.canRead(StructDecoder.compile(struct)));
+    }
+}
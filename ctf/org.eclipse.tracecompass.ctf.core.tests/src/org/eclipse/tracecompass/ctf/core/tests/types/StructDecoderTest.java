@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.types;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
+import org.eclipse.tracecompass.ctf.core.event.types.Definition;
+import org.eclipse.tracecompass.ctf.core.event.types.Encoding;
+import org.eclipse.tracecompass.ctf.core.event.types.FloatDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IntegerDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.StringDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.ArrayDeclaration;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.StructDecoder;
+import org.junit.Test;
+
+/**
+ * Tests for the decoding plan of the structs
+ */
+public class StructDecoderTest {
+
+    private static StructDeclaration createMixedFields() {
+        StructDeclaration struct = new StructDeclaration(8);
+        struct.addField("a", IntegerDeclaration.INT_32L_DECL);
+        struct.addField("b", FlyweightStructDefinitionTest.integer(3, false, ByteOrder.BIG_ENDIAN, 1));
+        struct.addField("c", new ArrayDeclaration(2, IntegerDeclaration.UINT_16B_DECL));
+        struct.addField("s", StringDeclaration.getStringDeclaration(Encoding.UTF8));
+        struct.addField("d", IntegerDeclaration.UINT_8_DECL);
+        struct.addField("e", IntegerDeclaration.INT_64B_DECL);
+        return struct;
+    }
+
+    /**
+     * Decode structs with the plan and field by field, and compare
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testDecode() throws CTFException {
+        StructDeclaration[] structs = {
+                createMixedFields(),
+                FlyweightStructDefinitionTest.createBitFields(),
+                FlyweightStructDefinitionTest.createAlignedFields(),
+                FlyweightStructDefinitionTest.createCompositeFields()
+        };
+        Random random = new Random(23);
+        byte[] bytes = new byte[256];
+        for (StructDeclaration struct : structs) {
+            for (int n = 0; n < 100; n++) {
+                random.nextBytes(bytes);
+                /* Strings end somewhere in the buffer */
+                bytes[random.nextInt(16) + 24] = 0;
+                long start = random.nextInt(64);
+
+                BitBuffer input = new BitBuffer(ByteBuffer.wrap(bytes));
+                input.position(start);
+                Definition[] expected = FlyweightStructDefinitionTest.decodeFields(struct, input);
+                long end = input.position();
+
+                input = new BitBuffer(ByteBuffer.wrap(bytes));
+                input.position(start);
+                StructDefinition definition = struct.createDefinition(null, "s", input);
+                assertEquals(end, input.position());
+                for (int i = 0; i < expected.length; i++) {
+                    String name = definition.getFieldNames().get(i);
+                    assertEquals(name, expected[i].toString(), definition.getDefinition(name).toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test the fixed prefix of a struct whose size varies
+     */
+    @Test
+    public void testFixedPrefix() {
+        StructDecoder decoder = StructDecoder.compile(createMixedFields());
+        assertFalse(decoder.isFixedSize());
+        assertEquals(-1, decoder.getFixedSize());
+        assertTrue(decoder.isFixedInteger(0));
+        assertTrue(decoder.isFixedInteger(1));
+        assertFalse(decoder.isFixedInteger(2));
+        assertFalse(decoder.isFixedInteger(3));
+        /* After the string */
+        assertFalse(decoder.isFixedInteger(4));
+    }
+
+    /**
+     * Test the sizes of the declarations
+     */
+    @Test
+    public void testFixedSize() {
+        assertEquals(32, StructDecoder.getFixedSize(IntegerDeclaration.INT_32L_DECL));
+        assertEquals(64, StructDecoder.getFixedSize(new FloatDeclaration(11, 53, ByteOrder.LITTLE_ENDIAN, 8)));
+        assertEquals(-1, StructDecoder.getFixedSize(StringDeclaration.getStringDeclaration(Encoding.UTF8)));
+        /* The last element is not padded */
+        assertEquals(28, StructDecoder.getFixedSize(new ArrayDeclaration(2, FlyweightStructDefinitionTest.integer(12, false, ByteOrder.BIG_ENDIAN, 16))));
+        assertEquals(0, StructDecoder.getFixedSize(new ArrayDeclaration(0, IntegerDeclaration.INT_32L_DECL)));
+        assertEquals(304, StructDecoder.getFixedSize(FlyweightStructDefinitionTest.createCompositeFields()));
+        assertEquals(-1, StructDecoder.getFixedSize(createMixedFields()));
+    }
+
+    /**
+     * Test that the plan follows a field replaced in the declaration, like
+     * the metadata parser does to change the byte order of a field
+     *
+     * @throws CTFException
+     *             Should not happen
+     */
+    @Test
+    public void testReplacedField() throws CTFException {
+        StructDeclaration struct = new StructDeclaration(8);
+        struct.addField("a", IntegerDeclaration.INT_32B_DECL);
+        byte[] bytes = { 1, 0, 0, 0 };
+        StructDefinition definition = struct.createDefinition(null, "s", new BitBuffer(ByteBuffer.wrap(bytes)));
+        assertEquals("16777216", definition.getDefinition("a").toString());
+        StructDecoder decoder = StructDecoder.compile(struct);
+        assertTrue(decoder.isCompiledFrom(struct));
+
+        struct.getFields().put("a", IntegerDeclaration.INT_32L_DECL);
+        assertFalse(decoder.isCompiledFrom(struct));
+        definition = struct.createDefinition(null, "s", new BitBuffer(ByteBuffer.wrap(bytes)));
+        assertEquals("1", definition.getDefinition("a").toString());
+    }
+}
@@ -33,6 +33,7 @@ import org.junit.runners.Suite;
     EventHeaderDeclarationTest.class,
     FloatDeclarationTest.class,
     FloatDefinitionTest.class,
+    FlyweightStructDefinitionTest.class,
     IntegerDeclarationTest.class,
     IntegerDefinitionTest.class,
     IntegerEndiannessTest.class,
@@ -40,6 +41,7 @@ import org.junit.runners.Suite;
     SequenceDefinition2Test.class,
     StringDeclarationTest.class,
     StringDefinitionTest.class,
+    StructDecoderTest.class,
     StructDeclarationTest.class,
     StructDefinitionTest.class,
     VariantDeclarationTest.class,
@@ -15,7 +15,6 @@ package org.eclipse.tracecompass.ctf.core.event.types;
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +27,7 @@ import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
 import org.eclipse.tracecompass.ctf.core.event.scope.IDefinitionScope;
 import org.eclipse.tracecompass.ctf.core.event.scope.ILexicalScope;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.StructDecoder;
 
 /**
  * A CTF structure declaration.
@@ -52,6 +52,9 @@ public class StructDeclaration extends Declaration {
     /** maximum bit alignment */
     private long fMaxAlign;
 
+    /** decoding plan, compiled when the first struct is read */
+    private volatile StructDecoder fDecoder = null;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -199,13 +202,12 @@ public class StructDeclaration extends Declaration {
     }
 
     private void fillStruct(@NonNull BitBuffer input, final Definition[] myFields, StructDefinition structDefinition) throws CTFException {
-        Iterator<Map.Entry<String, IDeclaration>> iter = fFieldMap.entrySet().iterator();
-        for (int i = 0; i < fFieldMap.size(); i++) {
-            Map.Entry<String, IDeclaration> entry = iter.next();
-            /* We should not have inserted null keys... */
-            String key = checkNotNull(entry.getKey());
-            myFields[i] = entry.getValue().createDefinition(structDefinition, key, input);
+        StructDecoder decoder = fDecoder;
+        if (decoder == null || !decoder.isCompiledFrom(this)) {
+            decoder = StructDecoder.compile(this);
+            fDecoder = decoder;
         }
+        decoder.decode(input, myFields, structDefinition);
     }
 
     /**
@@ -12,12 +12,14 @@
 
 package org.eclipse.tracecompass.ctf.core.trace;
 
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 import java.util.UUID;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -32,7 +34,6 @@ import org.eclipse.tracecompass.ctf.core.event.types.Definition;
 import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
-import org.eclipse.tracecompass.internal.ctf.core.SafeMappedByteBuffer;
 import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputPacketIndex;
 import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputPacketIndexEntry;
 import org.eclipse.tracecompass.internal.ctf.core.trace.Utils;
@@ -49,7 +50,7 @@ public class CTFStreamInput implements IDefinitionScope {
     // Attributes
     // ------------------------------------------------------------------------
 
-    private static final int MAP_SIZE = 4096;
+    private static final int MAX_HEADER_SIZE = 4096;
 
     /**
      * The associated Stream
@@ -214,56 +215,113 @@ public class CTFStreamInput implements IDefinitionScope {
      *             If there was a problem reading the packed header
      */
     public boolean addPacketHeaderIndex() throws CTFException {
-        long currentPosBits = 0L;
-        if (!fIndex.isEmpty()) {
-            ICTFPacketDescriptor pos = fIndex.lastElement();
-            if (pos == null) {
-                throw new IllegalStateException("Index contains null packet entries"); //$NON-NLS-1$
-            }
-            currentPosBits = pos.getOffsetBits() + pos.getPacketSizeBits();
-        }
+        long currentPosBits = getIndexedSizeBits();
         if (currentPosBits < getStreamSizeBits()) {
-            fIndex.append(createPacketIndexEntry(currentPosBits));
+            try (FileChannel fc = FileChannel.open(fFile.toPath(), StandardOpenOption.READ)) {
+                if (fc == null) {
+                    throw new IOException("Failed to create FileChannel"); //$NON-NLS-1$
+                }
+                fIndex.append(createPacketIndexEntry(fc, currentPosBits));
+            } catch (IOException e) {
+                throw new CTFException("Failed to create packet index entry", e); //$NON-NLS-1$
+            }
             return true;
         }
         return false;
     }
 
-    private long getStreamSizeBits() {
-        return fFile.length() * Byte.SIZE;
-    }
-
-    private ICTFPacketDescriptor createPacketIndexEntry(long dataOffsetbits)
-            throws CTFException {
-
+    /**
+     * Adds the index entries of all the packets which are not indexed yet,
+     * reading their headers through a single file channel.
+     *
+     * @return The number of packets which were added
+     * @throws CTFException
+     *             If there was a problem reading a packet header. The packets
+     *             before it remain indexed.
+     */
+    int addAllPacketHeaderIndexes() throws CTFException {
+        int count = 0;
         try (FileChannel fc = FileChannel.open(fFile.toPath(), StandardOpenOption.READ)) {
             if (fc == null) {
                 throw new IOException("Failed to create FileChannel"); //$NON-NLS-1$
             }
-            BitBuffer bitBuffer = createBitBufferForPacketHeader(fc, dataOffsetbits);
-            /*
-             * Read the trace packet header if it exists.
-             */
-            parseTracePacketHeader(bitBuffer);
-
-            /*
-             * Read the stream packet context if it exists.
-             */
-            long size = fc.size();
-            ICTFPacketDescriptor packetIndex = parsePacketContext(dataOffsetbits, size, bitBuffer);
-
-            /* Basic validation */
-            if (packetIndex.getContentSizeBits() > packetIndex.getPacketSizeBits()) {
-                throw new CTFException("Content size > packet size"); //$NON-NLS-1$
-            }
-
-            if (packetIndex.getPacketSizeBits() > ((size * Byte.SIZE - packetIndex.getOffsetBits()))) {
-                throw new CTFException("Not enough data remaining in the file for the size of this packet"); //$NON-NLS-1$
+            long currentPosBits = getIndexedSizeBits();
+            long sizeBits = fc.size() * Byte.SIZE;
+            while (currentPosBits < sizeBits) {
+                ICTFPacketDescriptor entry = createPacketIndexEntry(fc, currentPosBits);
+                fIndex.append(entry);
+                count++;
+                currentPosBits = entry.getOffsetBits() + entry.getPacketSizeBits();
             }
-            return packetIndex;
         } catch (IOException e) {
             throw new CTFException("Failed to create packet index entry", e); //$NON-NLS-1$
         }
+        return count;
+    }
+
+    /**
+     * Fill the empty index with entries which were read before, for example
+     * from a saved index.
+     *
+     * @param entries
+     *            The entries of the first packets of the stream input, in
+     *            order
+     * @throws CTFException
+     *             If the entries are not in order
+     */
+    void loadIndex(Collection<ICTFPacketDescriptor> entries) throws CTFException {
+        if (!fIndex.isEmpty()) {
+            throw new IllegalStateException("The index is already filled"); //$NON-NLS-1$
+        }
+        fIndex.appendAll(entries);
+        for (ICTFPacketDescriptor entry : entries) {
+            fLostSoFar += entry.getLostEvents();
+            setTimestampEnd(entry.getTimestampEnd());
+        }
+    }
+
+    /*
+     * Position of the end of the last indexed packet
+     */
+    private long getIndexedSizeBits() {
+        if (fIndex.isEmpty()) {
+            return 0L;
+        }
+        ICTFPacketDescriptor pos = fIndex.lastElement();
+        if (pos == null) {
+            throw new IllegalStateException("Index contains null packet entries"); //$NON-NLS-1$
+        }
+        return pos.getOffsetBits() + pos.getPacketSizeBits();
+    }
+
+    private long getStreamSizeBits() {
+        return fFile.length() * Byte.SIZE;
+    }
+
+    private ICTFPacketDescriptor createPacketIndexEntry(FileChannel fc, long dataOffsetbits)
+            throws CTFException, IOException {
+
+        BitBuffer bitBuffer = createBitBufferForPacketHeader(fc, dataOffsetbits);
+        /*
+         * Read the trace packet header if it exists.
+         */
+        parseTracePacketHeader(bitBuffer);
+
+        /*
+         * Read the stream packet context if it exists.
+         */
+        long size = fc.size();
+        ICTFPacketDescriptor packetIndex = parsePacketContext(dataOffsetbits, size, bitBuffer);
+
+        /* Basic validation */
+        if (packetIndex.getContentSizeBits() > packetIndex.getPacketSizeBits()) {
+            throw new CTFException("Content size > packet size"); //$NON-NLS-1$
+        }
+
+        if (packetIndex.getPacketSizeBits() > ((size * Byte.SIZE - packetIndex.getOffsetBits()))) {
+            throw new CTFException("Not enough data remaining in the file for the size of this packet"); //$NON-NLS-1$
+        }
+        return packetIndex;
     }
 
     private BitBuffer createBitBufferForPacketHeader(FileChannel fc, long dataOffsetbits) throws CTFException, IOException {
@@ -276,38 +334,36 @@ public class CTFStreamInput implements IDefinitionScope {
         return bitBuffer;
     }
 
-    private static ByteBuffer getByteBufferAt(FileChannel fc, long position, long size) throws CTFException, IOException {
-        ByteBuffer map = SafeMappedByteBuffer.map(fc, MapMode.READ_ONLY, position, size);
-        if (map == null) {
-            throw new CTFException("Failed to allocate mapped byte buffer"); //$NON-NLS-1$
-        }
-        return map;
-    }
-
     private static ByteBuffer createPacketBitBuffer(FileChannel fc,
             long packetOffsetBytes, long maxSize) throws CTFException, IOException {
         /*
-         * If there is less data remaining than what we want to map, reduce the
-         * map size.
+         * If there is less data remaining than what we want to read, reduce the
+         * read size.
          */
         long remain = fc.size() - packetOffsetBytes;
         /*
          * Initial size, it is the minimum of the the file size and the maximum
          * possible size of the
          */
-        long mapSize = Math.min(remain, MAP_SIZE);
-        if (maxSize < mapSize) {
-            mapSize = maxSize;
+        long readSize = Math.min(remain, MAX_HEADER_SIZE);
+        if (maxSize < readSize) {
+            readSize = maxSize;
+        }
+        if (readSize < 0) {
+            throw new CTFException("Packet offset is after the end of the file"); //$NON-NLS-1$
         }
 
         /*
-         * Map the packet.
+         * Read the headers, the buffer is too small to be worth mapping.
          */
-        try {
-            return getByteBufferAt(fc, packetOffsetBytes, mapSize);
-        } catch (IllegalArgumentException | IOException e) {
-            throw new CTFException(e);
+        ByteBuffer buffer = checkNotNull(ByteBuffer.allocate((int) readSize));
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, packetOffsetBytes + buffer.position()) < 0) {
+                throw new CTFException("Unexpected end of file while reading a packet header"); //$NON-NLS-1$
+            }
         }
+        buffer.clear();
+        return buffer;
     }
 
     private StructDefinition parseTracePacketHeader(
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.trace;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.EventDefinition;
+
+/**
+ * Decodes the events of a stream input reader ahead of its consumer, on a
+ * thread pool shared by all the readers.
+ *
+ * The decoded events are handed to the consumer in batches, through a
+ * bounded queue. When the queue is full, the decoding task ends and frees
+ * its thread for another stream. It is scheduled again when the consumer
+ * takes a batch. Only one task decodes the events of a stream at a time, so
+ * the state of the stream input reader is never shared between threads.
+ */
+final class CTFStreamInputPrefetcher {
+
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_SIZE = 4;
+
+    /**
+     * Lazily created pool of decoding threads
+     */
+    private static final class PoolHolder {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CTF stream decoder"); //$NON-NLS-1$
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Events decoded in one go. The last batch of the stream, or before the
+     * stream waits for more data, has an end response or an error.
+     */
+    private static final class Batch {
+        final EventDefinition[] fEvents = new EventDefinition[BATCH_SIZE];
+        final int[] fCpus = new int[BATCH_SIZE];
+        int fSize = 0;
+        CTFResponse fEnd = null;
+        Exception fError = null;
+    }
+
+    private final CTFStreamInputReader fReader;
+    private final BlockingQueue<Batch> fQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Lock fDecodeLock = new ReentrantLock();
+    private final AtomicBoolean fScheduled = new AtomicBoolean(false);
+    private final Runnable fTask = new Runnable() {
+        @Override
+        public void run() {
+            decode();
+        }
+    };
+
+    private volatile boolean fStopped = true;
+    private volatile boolean fEnded = false;
+    /* If the consumer is waiting for a batch to be queued */
+    private volatile boolean fWaiting = false;
+
+    /* Only used by the consumer */
+    private Batch fCurrentBatch = null;
+    private int fPosition = 0;
+    private int fCurrentCpu;
+
+    /**
+     * Constructor
+     *
+     * @param reader
+     *            The reader whose events are decoded. Its next events are
+     *            decoded from the current state of its packet reader.
+     */
+    CTFStreamInputPrefetcher(CTFStreamInputReader reader) {
+        fReader = reader;
+        /* The packet reader is still on the packet of the current event */
+        fCurrentCpu = reader.getPacketReader().getCPU();
+    }
+
+    /**
+     * Start, or resume, decoding events ahead
+     */
+    void start() {
+        fStopped = false;
+        schedule();
+    }
+
+    /**
+     * Stop decoding events ahead, waiting for the decoding in progress to be
+     * done. The events which were already decoded can still be read.
+     */
+    void stop() {
+        fStopped = true;
+        fDecodeLock.lock();
+        fDecodeLock.unlock();
+    }
+
+    /**
+     * Get the CPU of the packet of the last event returned by
+     * {@link #readNextEvent()}
+     *
+     * @return The CPU id
+     */
+    int getCurrentCpu() {
+        return fCurrentCpu;
+    }
+
+    /**
+     * Read the next decoded event in the current event of the reader, waiting
+     * for it to be decoded if needed.
+     *
+     * @return The response of the reader, or null if the prefetcher is stopped
+     *         and all the events it decoded were read
+     * @throws CTFException
+     *             If decoding the event failed
+     */
+    CTFResponse readNextEvent() throws CTFException {
+        while (true) {
+            Batch batch = fCurrentBatch;
+            if (batch != null) {
+                if (fPosition < batch.fSize) {
+                    EventDefinition event = batch.fEvents[fPosition];
+                    batch.fEvents[fPosition] = null;
+                    fCurrentCpu = batch.fCpus[fPosition];
+                    fPosition++;
+                    fReader.setCurrentEvent(event);
+                    return CTFResponse.OK;
+                }
+                Exception error = batch.fError;
+                if (error instanceof CTFException) {
+                    throw (CTFException) error;
+                } else if (error != null) {
+                    throw (RuntimeException) error;
+                }
+                if (batch.fEnd == CTFResponse.FINISH) {
+                    fReader.setCurrentEvent(null);
+                    return CTFResponse.FINISH;
+                }
+                fCurrentBatch = null;
+                if (batch.fEnd == CTFResponse.WAIT) {
+                    fReader.setCurrentEvent(null);
+                    return CTFResponse.WAIT;
+                }
+            }
+            Batch next = fQueue.poll();
+            if (next == null) {
+                if (fStopped) {
+                    return null;
+                }
+                fWaiting = true;
+                try {
+                    schedule();
+                    next = fQueue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CTFException("Interrupted while waiting for events to be decoded", e); //$NON-NLS-1$
+                } finally {
+                    fWaiting = false;
+                }
+            }
+            fCurrentBatch = next;
+            fPosition = 0;
+            /* Decode the next batches while this one is read */
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (!fStopped && !fEnded && fScheduled.compareAndSet(false, true)) {
+            PoolHolder.POOL.execute(fTask);
+        }
+    }
+
+    private void decode() {
+        boolean paused = false;
+        fDecodeLock.lock();
+        try {
+            while (!fStopped && !fEnded && fQueue.remainingCapacity() > 0) {
+                Batch batch = decodeBatch();
+                if (batch.fEnd != CTFResponse.WAIT && (batch.fEnd != null || batch.fError != null)) {
+                    fEnded = true;
+                }
+                fQueue.add(batch);
+                if (batch.fEnd == CTFResponse.WAIT) {
+                    /* Live trace, decode again when the consumer asks for it */
+                    paused = true;
+                    break;
+                }
+            }
+        } finally {
+            fDecodeLock.unlock();
+            fScheduled.set(false);
+        }
+        /*
+         * The consumer may have emptied the queue before the flag was reset,
+         * without being able to schedule another task. When paused, it may
+         * already have read the end of the live stream and be waiting for
+         * more.
+         */
+        if ((!paused || fWaiting) && fQueue.remainingCapacity() > 0) {
+            schedule();
+        }
+    }
+
+    private Batch decodeBatch() {
+        Batch batch = new Batch();
+        try {
+            while (batch.fSize < BATCH_SIZE) {
+                EventDefinition event = fReader.decodeNextEvent();
+                if (event == null) {
+                    batch.fEnd = fReader.isLive() ? CTFResponse.WAIT : CTFResponse.FINISH;
+                    break;
+                }
+                batch.fEvents[batch.fSize] = event;
+                batch.fCpus[batch.fSize] = fReader.getPacketReader().getCPU();
+                batch.fSize++;
+            }
+        } catch (CTFException | RuntimeException e) {
+            batch.fError = e;
+        }
+        return batch;
+    }
+}
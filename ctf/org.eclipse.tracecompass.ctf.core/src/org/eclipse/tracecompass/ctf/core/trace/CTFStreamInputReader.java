@@ -71,7 +71,13 @@ public class CTFStreamInputReader implements AutoCloseable {
     /**
      * Live trace reading
      */
-    private boolean fLive = false;
+    private volatile boolean fLive = false;
+
+    /**
+     * Decodes the events ahead on other threads, null when they are decoded
+     * when they are read
+     */
+    private CTFStreamInputPrefetcher fPrefetcher = null;
 
     // ------------------------------------------------------------------------
     // Constructors
@@ -98,9 +104,10 @@ public class CTFStreamInputReader implements AutoCloseable {
         try {
             fPacketReader = new CTFStreamInputPacketReader(this);
             /*
-             * Get the iterator on the packet index.
+             * Get the iterator on the packet index, before its first packet
+             * since the index may already contain several packets.
              */
-            fPacketIndex = 0;
+            fPacketIndex = -1;
             /*
              * Make first packet the current one.
              */
@@ -124,6 +131,7 @@ public class CTFStreamInputReader implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        discardPrefetchedEvents();
         if (fFileChannel != null) {
             fFileChannel.close();
         }
@@ -181,6 +189,10 @@ public class CTFStreamInputReader implements AutoCloseable {
      * @return The CPU id (a number)
      */
     public int getCPU() {
+        CTFStreamInputPrefetcher prefetcher = fPrefetcher;
+        if (prefetcher != null) {
+            return prefetcher.getCurrentCpu();
+        }
         return fPacketReader.getCPU();
     }
 
@@ -248,7 +260,32 @@ public class CTFStreamInputReader implements AutoCloseable {
      *             if an error occurs
      */
     public CTFResponse readNextEvent() throws CTFException {
+        CTFStreamInputPrefetcher prefetcher = fPrefetcher;
+        if (prefetcher != null) {
+            CTFResponse response = prefetcher.readNextEvent();
+            if (response != null) {
+                return response;
+            }
+            /* Decoding ahead was stopped and all its events were read */
+            fPrefetcher = null;
+        }
+        EventDefinition event = decodeNextEvent();
+        setCurrentEvent(event);
+        if (event != null) {
+            return CTFResponse.OK;
+        }
+        return fLive ? CTFResponse.WAIT : CTFResponse.FINISH;
+    }
 
+    /**
+     * Decode the next event of the stream, after the last one decoded. When
+     * events are decoded ahead, this is called by the decoding thread.
+     *
+     * @return The event, or null if there are no more events for now
+     * @throws CTFException
+     *             if an error occurs
+     */
+    EventDefinition decodeNextEvent() throws CTFException {
         /*
          * Change packet if needed
          */
@@ -265,11 +302,46 @@ public class CTFStreamInputReader implements AutoCloseable {
          * If an event is available, read it.
          */
         if (fPacketReader.hasMoreEvents()) {
-            setCurrentEvent(fPacketReader.readNextEvent());
-            return CTFResponse.OK;
+            return fPacketReader.readNextEvent();
         }
-        this.setCurrentEvent(null);
-        return fLive ? CTFResponse.WAIT : CTFResponse.FINISH;
+        return null;
+    }
+
+    /**
+     * Set whether the next events are decoded ahead on a pool of worker
+     * threads, while the current ones are read. When it is disabled, the
+     * events which were already decoded are read first.
+     *
+     * @param prefetch
+     *            true to decode the events ahead, false to decode them when
+     *            they are read
+     */
+    void setPrefetch(boolean prefetch) {
+        CTFStreamInputPrefetcher prefetcher = fPrefetcher;
+        if (prefetch) {
+            if (prefetcher == null) {
+                prefetcher = new CTFStreamInputPrefetcher(this);
+                fPrefetcher = prefetcher;
+            }
+            prefetcher.start();
+        } else if (prefetcher != null) {
+            prefetcher.stop();
+        }
+    }
+
+    /*
+     * Stop decoding events ahead and forget the events which were decoded, as
+     * the reader is about to change position. Returns if events were decoded
+     * ahead.
+     */
+    private boolean discardPrefetchedEvents() {
+        CTFStreamInputPrefetcher prefetcher = fPrefetcher;
+        if (prefetcher == null) {
+            return false;
+        }
+        prefetcher.stop();
+        fPrefetcher = null;
+        return true;
     }
 
     /**
@@ -313,6 +385,17 @@ public class CTFStreamInputReader implements AutoCloseable {
      *             if an error occurs
      */
     public long seek(long timestamp) throws CTFException {
+        boolean prefetch = discardPrefetchedEvents();
+        try {
+            return seekEvent(timestamp);
+        } finally {
+            if (prefetch) {
+                setPrefetch(true);
+            }
+        }
+    }
+
+    private long seekEvent(long timestamp) throws CTFException {
         long offset = 0;
 
         gotoPacket(timestamp);
@@ -375,6 +458,17 @@ public class CTFStreamInputReader implements AutoCloseable {
      *             if an error occurs
      */
     public void goToLastEvent() throws CTFException {
+        boolean prefetch = discardPrefetchedEvents();
+        try {
+            goToLastEventOfStream();
+        } finally {
+            if (prefetch) {
+                setPrefetch(true);
+            }
+        }
+    }
+
+    private void goToLastEventOfStream() throws CTFException {
 
         /*
          * Go to the beginning of the trace
@@ -477,6 +571,9 @@ public class CTFStreamInputReader implements AutoCloseable {
     }
 
     /**
+     * Get the packet reader. When the events are decoded ahead, it may already
+     * be past the current event.
+     *
      * @return the packetReader
      */
     public CTFStreamInputPacketReader getPacketReader() {
@@ -23,15 +23,22 @@ import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.CTFStrings;
@@ -52,6 +59,8 @@ import org.eclipse.tracecompass.internal.ctf.core.SafeMappedByteBuffer;
 import org.eclipse.tracecompass.internal.ctf.core.event.CTFCallsiteComparator;
 import org.eclipse.tracecompass.internal.ctf.core.event.metadata.MetadataStrings;
 import org.eclipse.tracecompass.internal.ctf.core.event.metadata.exceptions.ParseException;
+import org.eclipse.tracecompass.internal.ctf.core.trace.PacketIndexFile;
+import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputPacketIndex;
 import org.eclipse.tracecompass.internal.ctf.core.trace.Utils;
 
 /**
@@ -148,6 +157,9 @@ public class CTFTrace implements IDefinitionScope {
 
     private final DeclarationScope fScope = new DeclarationScope(null, MetadataStrings.TRACE);
 
+    /** If {@link #indexPackets} was called */
+    private boolean fPacketsIndexed = false;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -220,6 +232,91 @@ public class CTFTrace implements IDefinitionScope {
         }
     }
 
+    /**
+     * Index the packets of all the stream inputs, starting from the index
+     * saved the last time the trace was opened. The files are indexed in
+     * parallel, then the index is saved again if it changed.
+     *
+     * This is only worth it for a trace which will be read, and must be done
+     * before it is. Otherwise, the packets are indexed as they are read. Only
+     * the first call does something.
+     *
+     * @param indexDirectory
+     *            The directory in which the index is saved, and read back the
+     *            next time, or null to not save it. It should not be the trace
+     *            directory, which may be read-only or shared.
+     * @throws CTFException
+     *             If the packets of a file could not all be indexed. The
+     *             index is not saved then.
+     * @since 1.1
+     */
+    public synchronized void indexPackets(File indexDirectory) throws CTFException {
+        if (fPacketsIndexed) {
+            return;
+        }
+        fPacketsIndexed = true;
+
+        final List<CTFStreamInput> inputs = new ArrayList<>();
+        for (CTFStream stream : getStreams()) {
+            inputs.addAll(stream.getStreamInputs());
+        }
+        /* Streamed traces have no directory */
+        if (inputs.isEmpty() || fPath == null) {
+            return;
+        }
+
+        Map<String, List<ICTFPacketDescriptor>> savedIndex = (indexDirectory == null ?
+                Collections.<String, List<ICTFPacketDescriptor>> emptyMap() :
+                PacketIndexFile.read(indexDirectory, fPath, fUuid));
+        for (CTFStreamInput input : inputs) {
+            List<ICTFPacketDescriptor> entries = savedIndex.get(input.getFilename());
+            if (entries != null) {
+                input.loadIndex(entries);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(inputs.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<Integer>> results = new ArrayList<>();
+        for (final CTFStreamInput input : inputs) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws CTFException {
+                    return input.addAllPacketHeaderIndexes();
+                }
+            }));
+        }
+        executor.shutdown();
+
+        /* Wait for all the files, even after an error */
+        boolean changed = (savedIndex.size() != inputs.size());
+        CTFException error = null;
+        for (int i = 0; i < inputs.size(); i++) {
+            try {
+                changed |= (results.get(i).get() > 0);
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    Throwable cause = e.getCause();
+                    error = (cause instanceof CTFException ? (CTFException) cause :
+                        new CTFException("Could not index the packets of " + inputs.get(i).getFilename(), cause)); //$NON-NLS-1$
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CTFException("Interrupted while indexing the packets", e); //$NON-NLS-1$
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+
+        if (changed && indexDirectory != null) {
+            Map<String, StreamInputPacketIndex> indexes = new HashMap<>();
+            for (CTFStreamInput input : inputs) {
+                indexes.put(input.getFilename(), input.getIndex());
+            }
+            PacketIndexFile.write(indexDirectory, fUuid, indexes);
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Getters/Setters/Predicates
     // ------------------------------------------------------------------------
@@ -942,6 +1039,9 @@ class MetadataFileFilter implements FileFilter {
         if (pathname.getName().equals("metadata")) { //$NON-NLS-1$
             return false;
         }
+        if (pathname.getName().startsWith(PacketIndexFile.FILE_NAME)) {
+            return false;
+        }
         return true;
     }
 
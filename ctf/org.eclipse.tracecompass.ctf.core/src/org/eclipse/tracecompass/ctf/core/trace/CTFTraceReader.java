@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
 
+import org.eclipse.tracecompass.common.core.collect.LoserTree;
 import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.event.EventDefinition;
 import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
@@ -59,9 +60,10 @@ public class CTFTraceReader implements AutoCloseable {
             Collections.synchronizedList(new ArrayList<CTFStreamInputReader>());
 
     /**
-     * Priority queue to order the trace file readers by timestamp.
+     * Tournament tree choosing the trace file reader with the next event, by
+     * the position of the readers in fStreamInputReaders.
      */
-    private PriorityQueue<CTFStreamInputReader> fPrio;
+    private LoserTree fMerger;
 
     /**
      * Array to count the number of event per trace file.
@@ -83,6 +85,11 @@ public class CTFTraceReader implements AutoCloseable {
      */
     private boolean fClosed = false;
 
+    /**
+     * Whether the events of the streams are decoded ahead by worker threads
+     */
+    private boolean fPipelined = false;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -133,6 +140,7 @@ public class CTFTraceReader implements AutoCloseable {
         newReader = new CTFTraceReader(fTrace);
         newReader.fStartTime = fStartTime;
         newReader.setEndTime(fEndTime);
+        newReader.setPipelined(fPipelined);
         return newReader;
     }
 
@@ -153,7 +161,7 @@ public class CTFTraceReader implements AutoCloseable {
             }
             fStreamInputReaders.clear();
         }
-        fPrio.clear();
+        fMerger.clear();
         fClosed = true;
     }
 
@@ -183,10 +191,41 @@ public class CTFTraceReader implements AutoCloseable {
     /**
      * Get the priority queue of this trace reader.
      *
-     * @return The priority queue of input readers
+     * @return A new priority queue of the input readers which have events.
+     *         Changing it has no effect on this reader.
+     * @deprecated The readers are not ordered by a priority queue anymore,
+     *             use {@link #getTopStream()} to get the reader with the next
+     *             event.
      */
+    @Deprecated
     protected PriorityQueue<CTFStreamInputReader> getPrio() {
-        return fPrio;
+        PriorityQueue<CTFStreamInputReader> prio = new PriorityQueue<>(
+                Math.max(fMerger.size(), MIN_PRIO_SIZE),
+                new StreamInputReaderTimestampComparator());
+        prio.addAll(getReadersWithEvents());
+        return prio;
+    }
+
+    /*
+     * Readers which are in the merge, in the order of fStreamInputReaders
+     */
+    private List<CTFStreamInputReader> getReadersWithEvents() {
+        List<CTFStreamInputReader> readers = new ArrayList<>(fMerger.size());
+        for (int i = 0; i < fMerger.getNbSources(); i++) {
+            if (fMerger.contains(i)) {
+                readers.add(fStreamInputReaders.get(i));
+            }
+        }
+        return readers;
+    }
+
+    /*
+     * Key of a reader in the merge. The timestamps are compared as unsigned
+     * values, flipping the sign bit makes them sort as signed ones.
+     */
+    private static long mergeKey(CTFStreamInputReader reader) {
+        EventDefinition event = reader.getCurrentEvent();
+        return (event == null ? 0L : event.getTimestamp()) ^ Long.MIN_VALUE;
     }
 
     // ------------------------------------------------------------------------
@@ -224,6 +263,41 @@ public class CTFTraceReader implements AutoCloseable {
         fEventCountPerTraceFile = new long[fStreamInputReaders.size()];
     }
 
+    /**
+     * Set whether the events of each stream are decoded ahead, on a pool of
+     * worker threads shared by all the readers, while the events are read.
+     * The events are still merged in time order when they are read, so this
+     * only changes which thread decodes them. It is worth it when the trace
+     * has several streams, the decoding can then use several processors.
+     *
+     * The packet readers of the stream input readers are then ahead of their
+     * current events.
+     *
+     * @param pipelined
+     *            true to decode the events ahead, false to decode them when
+     *            they are read
+     * @since 1.1
+     */
+    public void setPipelined(boolean pipelined) {
+        fPipelined = pipelined;
+        synchronized (fStreamInputReaders) {
+            for (CTFStreamInputReader reader : fStreamInputReaders) {
+                reader.setPrefetch(pipelined);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the events of each stream are decoded ahead by worker
+     * threads
+     *
+     * @return true if the events are decoded ahead
+     * @since 1.1
+     */
+    public boolean isPipelined() {
+        return fPipelined;
+    }
+
     /**
      * Returns whether or not this CTFTraceReader has been closed
      *
@@ -256,6 +330,7 @@ public class CTFTraceReader implements AutoCloseable {
                  */
                 if (!fStreamInputReaders.contains(streamInputReader)) {
                     streamInputReader.readNextEvent();
+                    streamInputReader.setPrefetch(fPipelined);
                     fStreamInputReaders.add(streamInputReader);
                     readers.add(streamInputReader);
                 }
@@ -263,9 +338,16 @@ public class CTFTraceReader implements AutoCloseable {
         }
         long[] temp = fEventCountPerTraceFile;
         fEventCountPerTraceFile = new long[readers.size() + temp.length];
-        for (CTFStreamInputReader reader : readers) {
-            fPrio.add(reader);
+        LoserTree merger = new LoserTree(fStreamInputReaders.size());
+        for (int i = 0; i < merger.getNbSources(); i++) {
+            if (i >= fMerger.getNbSources()) {
+                /* The new readers are at the end of the list */
+                merger.set(i, mergeKey(fStreamInputReaders.get(i)));
+            } else if (fMerger.contains(i)) {
+                merger.set(i, fMerger.getKey(i));
+            }
         }
+        fMerger = merger;
         for (int i = 0; i < temp.length; i++) {
             fEventCountPerTraceFile[i] = temp[i];
         }
@@ -285,38 +367,27 @@ public class CTFTraceReader implements AutoCloseable {
     }
 
     /**
-     * Initializes the priority queue used to choose the trace file with the
+     * Initializes the tournament tree used to choose the trace file with the
      * lower next event timestamp.
      *
      * @throws CTFException
      *             if an error occurs
      */
     private void populateStreamInputReaderHeap() throws CTFException {
-        if (fStreamInputReaders.isEmpty()) {
-            fPrio = new PriorityQueue<>(MIN_PRIO_SIZE,
-                    new StreamInputReaderTimestampComparator());
-            return;
-        }
-
-        /*
-         * Create the priority queue with a size twice as bigger as the number
-         * of reader in order to avoid constant resizing.
-         */
-        fPrio = new PriorityQueue<>(
-                Math.max(fStreamInputReaders.size() * 2, MIN_PRIO_SIZE),
-                new StreamInputReaderTimestampComparator());
+        fMerger = new LoserTree(fStreamInputReaders.size());
 
         int pos = 0;
 
-        for (CTFStreamInputReader reader : fStreamInputReaders) {
+        for (int i = 0; i < fStreamInputReaders.size(); i++) {
+            CTFStreamInputReader reader = fStreamInputReaders.get(i);
             /*
-             * Add each trace file reader in the priority queue, if we are able
-             * to read an event from it.
+             * Add each trace file reader in the merge, if we are able to read
+             * an event from it.
              */
             reader.setParent(this);
             CTFResponse readNextEvent = reader.readNextEvent();
             if (readNextEvent == CTFResponse.OK || readNextEvent == CTFResponse.WAIT) {
-                fPrio.add(reader);
+                fMerger.set(i, mergeKey(reader));
 
                 fEventCountPerTraceFile[pos] = 0;
                 reader.setName(pos);
@@ -347,25 +418,26 @@ public class CTFTraceReader implements AutoCloseable {
      */
     public boolean advance() throws CTFException {
         /*
-         * Remove the reader from the top of the priority queue.
+         * Get the reader with the current event.
          */
-        CTFStreamInputReader top = fPrio.poll();
+        int winner = fMerger.getWinner();
 
         /*
-         * If the queue was empty.
+         * If there are no more events.
          */
-        if (top == null) {
+        if (winner < 0) {
             return false;
         }
+        CTFStreamInputReader top = fStreamInputReaders.get(winner);
         /*
          * Read the next event of this reader.
          */
         switch (top.readNextEvent()) {
         case OK: {
             /*
-             * Add it back in the queue.
+             * Replay its matches with its new event.
              */
-            fPrio.add(top);
+            fMerger.set(winner, mergeKey(top));
             final long topEnd = fTrace.timestampCyclesToNanos(top.getCurrentEvent().getTimestamp());
             setEndTime(Math.max(topEnd, getEndTime()));
             fEventCountPerTraceFile[top.getName()]++;
@@ -377,14 +449,19 @@ public class CTFTraceReader implements AutoCloseable {
             break;
         }
         case WAIT: {
-            fPrio.add(top);
+            /*
+             * Keep the key of its last event, its next event cannot be
+             * before it.
+             */
             break;
         }
         case FINISH:
+            fMerger.remove(winner);
             break;
         case ERROR:
         default:
             // something bad happend
+            fMerger.remove(winner);
         }
         /*
          * If there is no reader in the queue, it means the trace reader reached
@@ -401,7 +478,7 @@ public class CTFTraceReader implements AutoCloseable {
      */
     public void goToLastEvent() throws CTFException {
         seek(getEndTime());
-        while (fPrio.size() > 1) {
+        while (fMerger.size() > 1) {
             advance();
         }
     }
@@ -422,20 +499,21 @@ public class CTFTraceReader implements AutoCloseable {
      */
     public boolean seek(long timestamp) throws CTFException {
         /*
-         * Remove all the trace readers from the priority queue
+         * Remove all the trace readers from the merge
          */
-        fPrio.clear();
-        for (CTFStreamInputReader streamInputReader : fStreamInputReaders) {
+        fMerger.clear();
+        for (int i = 0; i < fStreamInputReaders.size(); i++) {
+            CTFStreamInputReader streamInputReader = fStreamInputReaders.get(i);
             /*
              * Seek the trace reader.
              */
             streamInputReader.seek(timestamp);
 
             /*
-             * Add it to the priority queue if there is a current event.
+             * Add it to the merge if there is a current event.
              */
             if (streamInputReader.getCurrentEvent() != null) {
-                fPrio.add(streamInputReader);
+                fMerger.set(i, mergeKey(streamInputReader));
             }
         }
         return hasMoreEvents();
@@ -447,7 +525,8 @@ public class CTFTraceReader implements AutoCloseable {
      * @return the stream with the oldest event
      */
     public CTFStreamInputReader getTopStream() {
-        return fPrio.peek();
+        int winner = fMerger.getWinner();
+        return (winner < 0 ? null : fStreamInputReaders.get(winner));
     }
 
     /**
@@ -456,7 +535,7 @@ public class CTFTraceReader implements AutoCloseable {
      * @return true if yes.
      */
     public final boolean hasMoreEvents() {
-        return fPrio.size() > 0;
+        return !fMerger.isEmpty();
     }
 
     /**
@@ -521,7 +600,7 @@ public class CTFTraceReader implements AutoCloseable {
      *            whether the trace is live
      */
     public void setLive(boolean live) {
-        for (CTFStreamInputReader s : fPrio) {
+        for (CTFStreamInputReader s : getReadersWithEvents()) {
             s.setLive(live);
         }
     }
@@ -596,7 +675,7 @@ public class CTFTraceReader implements AutoCloseable {
      * @since 1.0
      */
     public void populateIndex() throws CTFException {
-        for (CTFStreamInputReader sir : fPrio) {
+        for (CTFStreamInputReader sir : getReadersWithEvents()) {
             sir.goToLastEvent();
         }
         seek(0);
@@ -32,6 +32,8 @@ import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
 import org.eclipse.tracecompass.ctf.core.trace.CTFIOException;
 import org.eclipse.tracecompass.ctf.core.trace.CTFStream;
 import org.eclipse.tracecompass.ctf.core.trace.CTFStreamInputReader;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.FlyweightStructDefinition;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.StructDecoder;
 import org.eclipse.tracecompass.internal.ctf.core.event.types.composite.EventHeaderDefinition;
 
 /**
@@ -59,6 +61,13 @@ public class EventDeclaration implements IEventDeclaration {
      */
     private StructDeclaration fFields = null;
 
+    /**
+     * Decoder of the fields, compiled when the first event is read, and
+     * whether the fields can be read as a flyweight with it
+     */
+    private volatile StructDecoder fFieldsDecoder = null;
+    private volatile boolean fFlyweightFields = false;
+
     /**
      * Stream to which belongs this event.
      */
@@ -106,8 +115,17 @@ public class EventDeclaration implements IEventDeclaration {
         StructDefinition streamEventContext = streamEventContextDecl != null ? streamEventContextDecl.createDefinition(fStream.getTrace(), ILexicalScope.STREAM_EVENT_CONTEXT, input) : null;
         ICompositeDefinition packetContext = streamInputReader.getPacketReader().getCurrentPacketEventHeader();
         StructDefinition eventContext = fContext != null ? fContext.createFieldDefinition(eventHeaderDef, fStream.getTrace(), ILexicalScope.CONTEXT, input) : null;
-        StructDefinition eventPayload = fFields != null ? fFields.createFieldDefinition(eventHeaderDef, fStream.getTrace(), ILexicalScope.FIELDS, input) : null;
-        long timestamp = calculateTimestamp(eventHeaderDef, prevTimestamp, eventPayload, eventContext);
+        ICompositeDefinition eventPayload = null;
+        StructDefinition decodedPayload = null;
+        StructDecoder flyweightDecoder = getFlyweightDecoder();
+        if (flyweightDecoder != null) {
+            /* Only skip the fields, they are decoded if someone asks for them */
+            eventPayload = FlyweightStructDefinition.create(flyweightDecoder, eventHeaderDef, fStream.getTrace(), input);
+        } else if (fFields != null) {
+            decodedPayload = fFields.createFieldDefinition(eventHeaderDef, fStream.getTrace(), ILexicalScope.FIELDS, input);
+            eventPayload = decodedPayload;
+        }
+        long timestamp = calculateTimestamp(eventHeaderDef, prevTimestamp, decodedPayload, eventContext);
 
         return new EventDefinition(
                 this,
@@ -120,6 +138,20 @@ public class EventDeclaration implements IEventDeclaration {
                 eventPayload);
     }
 
+    private StructDecoder getFlyweightDecoder() {
+        StructDeclaration fields = fFields;
+        if (fields == null) {
+            return null;
+        }
+        StructDecoder decoder = fFieldsDecoder;
+        if (decoder == null || !decoder.isCompiledFrom(fields)) {
+            decoder = StructDecoder.compile(fields);
+            fFlyweightFields = FlyweightStructDefinition.canRead(decoder);
+            fFieldsDecoder = decoder;
+        }
+        return (fFlyweightFields ? decoder : null);
+    }
+
     private static long calculateTimestamp(@Nullable ICompositeDefinition eventHeaderDef, long prevTimestamp, StructDefinition eventPayload, StructDefinition eventContext) throws CTFIOException {
         long timestamp = 0;
         Definition def = null;
@@ -203,6 +235,7 @@ public class EventDeclaration implements IEventDeclaration {
      */
     public void setFields(StructDeclaration fields) {
         fFields = fields;
+        fFieldsDecoder = null;
     }
 
     @Override
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.ctf.core.event.types;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.CTFStrings;
+import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
+import org.eclipse.tracecompass.ctf.core.event.scope.IDefinitionScope;
+import org.eclipse.tracecompass.ctf.core.event.scope.ILexicalScope;
+import org.eclipse.tracecompass.ctf.core.event.types.Definition;
+import org.eclipse.tracecompass.ctf.core.event.types.ICompositeDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.IDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
+
+/**
+ * Flyweight definition of the fields of an event, for the events whose fields
+ * all have a fixed size: integers, enumerations, floats, and arrays or structs
+ * of those.
+ *
+ * The fields are not decoded when the event is read, only skipped. The values
+ * of the integer and enumeration fields are read straight from the packet
+ * buffer, at the offsets computed by the {@link StructDecoder} of the fields,
+ * when they are requested. The {@link Definition} objects of the fields are
+ * only created if they are asked for, through {@link #getDefinition(String)}
+ * for example.
+ */
+public final class FlyweightStructDefinition implements ICompositeDefinition {
+
+    private final StructDecoder fDecoder;
+    private final @Nullable ICompositeDefinition fEventHeaderDef;
+    private final IDefinitionScope fDefinitionScope;
+    private final ByteBuffer fBuffer;
+    private final long fStart;
+
+    private @Nullable StructDefinition fDefinition = null;
+
+    private FlyweightStructDefinition(StructDecoder decoder, @Nullable ICompositeDefinition eventHeaderDef,
+            IDefinitionScope definitionScope, ByteBuffer buffer, long start) {
+        fDecoder = decoder;
+        fEventHeaderDef = eventHeaderDef;
+        fDefinitionScope = definitionScope;
+        fBuffer = buffer;
+        fStart = start;
+    }
+
+    /**
+     * Check if the fields of an event can be read as a flyweight
+     *
+     * @param decoder
+     *            The decoder of the fields of the event
+     * @return true if the fields have a fixed size, and the timestamp of the
+     *         event is not one of them
+     */
+    public static boolean canRead(StructDecoder decoder) {
+        List<String> fieldNames = decoder.getFieldNames();
+        return decoder.isFixedSize() &&
+                !fieldNames.contains(CTFStrings.TIMESTAMP) &&
+                !fieldNames.contains('_' + CTFStrings.TIMESTAMP);
+    }
+
+    /**
+     * Create a flyweight definition of the fields at the current position of
+     * a bit buffer, and skip them.
+     *
+     * @param decoder
+     *            The decoder of the fields, see {@link #canRead(StructDecoder)}
+     * @param eventHeaderDef
+     *            The event header definition, which the fields may refer to
+     * @param definitionScope
+     *            The definition scope of the fields
+     * @param input
+     *            The packet buffer
+     * @return The flyweight definition
+     * @throws CTFException
+     *             If the fields go beyond the end of the buffer
+     */
+    public static FlyweightStructDefinition create(StructDecoder decoder, @Nullable ICompositeDefinition eventHeaderDef,
+            IDefinitionScope definitionScope, @NonNull BitBuffer input) throws CTFException {
+        long mask = decoder.getDeclaration().getAlignment() - 1;
+        long start = (input.position() + mask) & ~mask;
+        input.position(start + decoder.getFixedSize());
+        return new FlyweightStructDefinition(decoder, eventHeaderDef, definitionScope, input.getByteBuffer(), start);
+    }
+
+    // ------------------------------------------------------------------------
+    // Flyweight accessors
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the index of a field
+     *
+     * @param fieldName
+     *            The name of the field
+     * @return The index of the field, or -1 if there is no such field
+     */
+    public int getFieldIndex(String fieldName) {
+        return fDecoder.getFieldNames().indexOf(fieldName);
+    }
+
+    /**
+     * Get the declaration of a field
+     *
+     * @param index
+     *            The index of the field
+     * @return The declaration of the field
+     */
+    public IDeclaration getFieldDeclaration(int index) {
+        return fDecoder.getFieldDeclaration(index);
+    }
+
+    /**
+     * Check if a field is an integer or an enumeration, whose value can be
+     * read with {@link #getIntegerValue(int)}
+     *
+     * @param index
+     *            The index of the field
+     * @return true if the field is an integer or an enumeration
+     */
+    public boolean isIntegerField(int index) {
+        return fDecoder.isFixedInteger(index);
+    }
+
+    /**
+     * Read the value of an integer or enumeration field, without creating its
+     * definition
+     *
+     * @param index
+     *            The index of the field
+     * @return The value of the field, sign-extended if it is signed
+     * @throws IllegalArgumentException
+     *             If the field is not an integer or an enumeration
+     */
+    public long getIntegerValue(int index) {
+        if (!fDecoder.isFixedInteger(index)) {
+            throw new IllegalArgumentException("Not an integer field: " + fDecoder.getFieldNames().get(index)); //$NON-NLS-1$
+        }
+        /* Only absolute gets, the buffer can be shared with the packet reader */
+        return fDecoder.readInteger(fBuffer, fStart, index);
+    }
+
+    /**
+     * Read the value of an integer or enumeration field, without creating its
+     * definition
+     *
+     * @param fieldName
+     *            The name of the field
+     * @return The value of the field, sign-extended if it is signed
+     * @throws IllegalArgumentException
+     *             If there is no such field, or if it is not an integer or an
+     *             enumeration
+     */
+    public long getIntegerValue(String fieldName) {
+        int index = getFieldIndex(fieldName);
+        if (index < 0) {
+            throw new IllegalArgumentException("No field named " + fieldName); //$NON-NLS-1$
+        }
+        return getIntegerValue(index);
+    }
+
+    // ------------------------------------------------------------------------
+    // Materialized definition
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the regular definition of the fields, decoding them the first time
+     *
+     * @return The struct definition
+     * @throws IllegalStateException
+     *             If the fields cannot be decoded
+     */
+    public synchronized StructDefinition getStructDefinition() {
+        StructDefinition definition = fDefinition;
+        if (definition == null) {
+            /* Another buffer on the same data, not to change the state of the packet's */
+            ByteBuffer buffer = checkNotNull(fBuffer.duplicate());
+            buffer.clear();
+            BitBuffer input = new BitBuffer(buffer);
+            try {
+                input.position(fStart);
+                definition = fDecoder.getDeclaration().createFieldDefinition(fEventHeaderDef, fDefinitionScope, ILexicalScope.FIELDS, input);
+            } catch (CTFException e) {
+                throw new IllegalStateException("Cannot decode the fields of the event", e); //$NON-NLS-1$
+            }
+            fDefinition = definition;
+        }
+        return definition;
+    }
+
+    @Override
+    public Definition getDefinition(String fieldName) {
+        return getStructDefinition().getDefinition(fieldName);
+    }
+
+    @Override
+    public List<String> getFieldNames() {
+        return fDecoder.getFieldNames();
+    }
+
+    @Override
+    public ILexicalScope getScopePath() {
+        return ILexicalScope.FIELDS;
+    }
+
+    @Override
+    public IDeclaration getDeclaration() {
+        return fDecoder.getDeclaration();
+    }
+
+    @Override
+    public String toString() {
+        return getStructDefinition().toString();
+    }
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.ctf.core.event.types;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
+import org.eclipse.tracecompass.ctf.core.event.scope.IDefinitionScope;
+import org.eclipse.tracecompass.ctf.core.event.types.Definition;
+import org.eclipse.tracecompass.ctf.core.event.types.EnumDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.EnumDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.FloatDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IntegerDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Decoding plan of a struct declaration, compiled once from the declaration.
+ *
+ * The fields before the first field of variable size (a string, a sequence or
+ * a variant) are at fixed offsets from the start of the struct, since the
+ * struct is aligned on the largest alignment of its fields. Those offsets are
+ * computed when the plan is compiled. The integer and enumeration fields at a
+ * fixed offset are then read straight from the buffer, without aligning the
+ * position or switching the byte order of the buffer for each field. The other
+ * fields are decoded by their declaration, as usual.
+ */
+public final class StructDecoder {
+
+    private static final int BITS_PER_BYTE = Byte.SIZE;
+    private static final int BYTE_MASK = 0xff;
+
+    private static final int KIND_INTEGER = 0;
+    private static final int KIND_ENUM = 1;
+    private static final int KIND_OTHER = 2;
+
+    private final StructDeclaration fDeclaration;
+    private final @NonNull List<String> fFieldNames;
+    private final IDeclaration[] fFieldDeclarations;
+    private final int[] fKinds;
+    /* The offsets, lengths and orders are only set for the fixed fields */
+    private final long[] fOffsets;
+    private final int[] fLengths;
+    private final boolean[] fSigned;
+    private final boolean[] fLittleEndian;
+    private final int fNbFixedFields;
+    /* End of the last fixed field, relative to the start of the struct */
+    private final long fFixedEnd;
+    private final long fFixedSize;
+
+    private StructDecoder(StructDeclaration declaration) {
+        fDeclaration = declaration;
+        Map<String, IDeclaration> fields = declaration.getFields();
+        int nbFields = fields.size();
+        fFieldNames = checkNotNull(ImmutableList.copyOf(fields.keySet()));
+        fFieldDeclarations = new IDeclaration[nbFields];
+        fKinds = new int[nbFields];
+        fOffsets = new long[nbFields];
+        fLengths = new int[nbFields];
+        fSigned = new boolean[nbFields];
+        fLittleEndian = new boolean[nbFields];
+
+        long offset = 0;
+        int nbFixedFields = 0;
+        boolean fixed = true;
+        int i = 0;
+        for (IDeclaration field : fields.values()) {
+            fFieldDeclarations[i] = field;
+            IntegerDeclaration integer = null;
+            if (field instanceof IntegerDeclaration) {
+                fKinds[i] = KIND_INTEGER;
+                integer = (IntegerDeclaration) field;
+            } else if (field instanceof EnumDeclaration) {
+                fKinds[i] = KIND_ENUM;
+                integer = ((EnumDeclaration) field).getContainerType();
+            } else {
+                fKinds[i] = KIND_OTHER;
+            }
+            long size = getFixedSize(field);
+            if (fixed && (size < 0 || field.getAlignment() > declaration.getAlignment())) {
+                /* The offset of the next fields depends on this one, or on where the struct starts */
+                fixed = false;
+            }
+            if (fixed) {
+                offset = align(offset, field.getAlignment());
+                fOffsets[i] = offset;
+                offset += size;
+                nbFixedFields++;
+                if (integer != null) {
+                    fLengths[i] = integer.getLength();
+                    fSigned[i] = integer.isSigned();
+                    fLittleEndian[i] = (integer.getByteOrder() == ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            i++;
+        }
+        fNbFixedFields = nbFixedFields;
+        fFixedEnd = offset;
+        fFixedSize = (fixed ? offset : -1);
+    }
+
+    /**
+     * Compile the decoding plan of a struct declaration
+     *
+     * @param declaration
+     *            The struct declaration
+     * @return The decoding plan
+     */
+    public static StructDecoder compile(StructDeclaration declaration) {
+        return new StructDecoder(declaration);
+    }
+
+    /**
+     * Check if this plan was compiled from the current fields of a struct
+     * declaration. The fields of a declaration can be replaced while the
+     * metadata is parsed, to change their byte order for example.
+     *
+     * @param declaration
+     *            The struct declaration
+     * @return true if the plan can decode the declaration
+     */
+    public boolean isCompiledFrom(StructDeclaration declaration) {
+        if (declaration != fDeclaration) {
+            return false;
+        }
+        Map<String, IDeclaration> fields = declaration.getFields();
+        if (fields.size() != fFieldDeclarations.length) {
+            return false;
+        }
+        int i = 0;
+        for (Entry<String, IDeclaration> field : fields.entrySet()) {
+            if (field.getValue() != fFieldDeclarations[i] || !field.getKey().equals(fFieldNames.get(i))) {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    // Layout
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the size of a declaration, if all its definitions have the same
+     * size, when they start at a position aligned for the declaration.
+     *
+     * @param declaration
+     *            The declaration
+     * @return The size in bits, or -1 if the size varies
+     */
+    public static long getFixedSize(IDeclaration declaration) {
+        if (declaration instanceof IntegerDeclaration) {
+            int length = ((IntegerDeclaration) declaration).getLength();
+            /* Longer integers cannot be read */
+            return (length <= Long.SIZE ? length : -1);
+        } else if (declaration instanceof EnumDeclaration) {
+            return getFixedSize(((EnumDeclaration) declaration).getContainerType());
+        } else if (declaration instanceof FloatDeclaration) {
+            FloatDeclaration floatDeclaration = (FloatDeclaration) declaration;
+            int length = floatDeclaration.getExponent() + floatDeclaration.getMantissa();
+            /* Other sizes are not read at all */
+            return ((length == Integer.SIZE || length == Long.SIZE) ? length : -1);
+        } else if (declaration instanceof ArrayDeclaration) {
+            ArrayDeclaration array = (ArrayDeclaration) declaration;
+            IDeclaration elementType = array.getElementType();
+            long elementSize = getFixedSize(elementType);
+            if (elementSize < 0) {
+                return -1;
+            }
+            if (array.getLength() == 0) {
+                return 0;
+            }
+            /* Each element is aligned after the previous one */
+            return (array.getLength() - 1) * align(elementSize, elementType.getAlignment()) + elementSize;
+        } else if (declaration instanceof StructDeclaration) {
+            long offset = 0;
+            StructDeclaration struct = (StructDeclaration) declaration;
+            for (IDeclaration field : struct.getFields().values()) {
+                long size = getFixedSize(field);
+                if (size < 0 || field.getAlignment() > struct.getAlignment()) {
+                    return -1;
+                }
+                offset = align(offset, field.getAlignment()) + size;
+            }
+            return offset;
+        }
+        /* Strings, sequences, variants... */
+        return -1;
+    }
+
+    private static long align(long position, long alignment) {
+        long mask = alignment - 1;
+        return (position + mask) & ~mask;
+    }
+
+    /**
+     * Get the declaration this plan was compiled from
+     *
+     * @return The struct declaration
+     */
+    public StructDeclaration getDeclaration() {
+        return fDeclaration;
+    }
+
+    /**
+     * Get the names of the fields, in order
+     *
+     * @return The field names
+     */
+    public @NonNull List<String> getFieldNames() {
+        return fFieldNames;
+    }
+
+    /**
+     * Get the declaration of a field
+     *
+     * @param index
+     *            The index of the field
+     * @return The declaration of the field
+     */
+    public IDeclaration getFieldDeclaration(int index) {
+        return fFieldDeclarations[index];
+    }
+
+    /**
+     * Check if all the fields are at a fixed offset, in which case the struct
+     * has a fixed size
+     *
+     * @return true if all the fields are at fixed offsets
+     */
+    public boolean isFixedSize() {
+        return (fFixedSize >= 0);
+    }
+
+    /**
+     * Get the size of the struct, if it is fixed
+     *
+     * @return The size in bits, or -1 if the size varies
+     */
+    public long getFixedSize() {
+        return fFixedSize;
+    }
+
+    /**
+     * Check if a field is an integer or an enumeration at a fixed offset,
+     * whose value can be read with {@link #readInteger}
+     *
+     * @param index
+     *            The index of the field
+     * @return true if the value of the field can be read directly
+     */
+    public boolean isFixedInteger(int index) {
+        return (index < fNbFixedFields && fKinds[index] != KIND_OTHER);
+    }
+
+    // ------------------------------------------------------------------------
+    // Decoding
+    // ------------------------------------------------------------------------
+
+    /**
+     * Decode the fields of a struct
+     *
+     * @param input
+     *            The buffer, at the start of the struct, already aligned
+     * @param definitions
+     *            The array to fill with the definitions of the fields
+     * @param definitionScope
+     *            The definition of the struct, scope of its fields
+     * @throws CTFException
+     *             If the struct goes beyond the end of the buffer, or a field
+     *             cannot be read
+     */
+    public void decode(@NonNull BitBuffer input, Definition[] definitions, IDefinitionScope definitionScope) throws CTFException {
+        long start = input.position();
+        if (fNbFixedFields > 0) {
+            long fixedEnd = start + fFixedEnd;
+            /* Check the bounds of all the fixed fields at once */
+            input.position(fixedEnd);
+            ByteBuffer buffer = input.getByteBuffer();
+            for (int i = 0; i < fNbFixedFields; i++) {
+                String fieldName = checkNotNull(fFieldNames.get(i));
+                switch (fKinds[i]) {
+                case KIND_INTEGER:
+                    definitions[i] = new IntegerDefinition((IntegerDeclaration) fFieldDeclarations[i],
+                            definitionScope, fieldName, readInteger(buffer, start, i));
+                    break;
+                case KIND_ENUM:
+                    EnumDeclaration enumDeclaration = (EnumDeclaration) fFieldDeclarations[i];
+                    IntegerDefinition value = new IntegerDefinition(enumDeclaration.getContainerType(),
+                            definitionScope, fieldName, readInteger(buffer, start, i));
+                    definitions[i] = new EnumDefinition(enumDeclaration, definitionScope, fieldName, value);
+                    break;
+                default:
+                    input.position(start + fOffsets[i]);
+                    definitions[i] = fFieldDeclarations[i].createDefinition(definitionScope, fieldName, input);
+                    break;
+                }
+            }
+            input.position(fixedEnd);
+        }
+        for (int i = fNbFixedFields; i < fFieldDeclarations.length; i++) {
+            definitions[i] = fFieldDeclarations[i].createDefinition(definitionScope, checkNotNull(fFieldNames.get(i)), input);
+        }
+    }
+
+    /**
+     * Read the value of an integer or enumeration field at a fixed offset.
+     * The buffer is only read with absolute gets, so it can be shared with
+     * other readers, even from other threads.
+     *
+     * @param buffer
+     *            The buffer containing the struct
+     * @param start
+     *            The position of the struct in the buffer, in bits
+     * @param index
+     *            The index of the field, see {@link #isFixedInteger(int)}
+     * @return The value of the field, sign-extended if it is signed
+     */
+    public long readInteger(ByteBuffer buffer, long start, int index) {
+        long position = start + fOffsets[index];
+        int length = fLengths[index];
+        long value = fLittleEndian[index] ? readLE(buffer, position, length) : readBE(buffer, position, length);
+        if (fSigned[index] && length < Long.SIZE && length > 0) {
+            int shift = Long.SIZE - length;
+            value = (value << shift) >> shift;
+        }
+        return value;
+    }
+
+    private static long readLE(ByteBuffer buffer, long position, int length) {
+        long value = 0;
+        long bit = position;
+        int shift = 0;
+        while (shift < length) {
+            int bitInByte = (int) (bit % BITS_PER_BYTE);
+            int bits = Math.min(BITS_PER_BYTE - bitInByte, length - shift);
+            long chunk = ((buffer.get((int) (bit / BITS_PER_BYTE)) & BYTE_MASK) >>> bitInByte) & ((1 << bits) - 1);
+            value |= chunk << shift;
+            shift += bits;
+            bit += bits;
+        }
+        return value;
+    }
+
+    private static long readBE(ByteBuffer buffer, long position, int length) {
+        long value = 0;
+        long bit = position;
+        int remaining = length;
+        while (remaining > 0) {
+            int bitInByte = (int) (bit % BITS_PER_BYTE);
+            int bits = Math.min(BITS_PER_BYTE - bitInByte, remaining);
+            long chunk = ((buffer.get((int) (bit / BITS_PER_BYTE)) & BYTE_MASK) >>> (BITS_PER_BYTE - bitInByte - bits)) & ((1 << bits) - 1);
+            value = (value << bits) | chunk;
+            remaining -= bits;
+            bit += bits;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.ctf.core.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.tracecompass.ctf.core.trace.ICTFPacketDescriptor;
+import org.eclipse.tracecompass.internal.ctf.core.Activator;
+
+/**
+ * Packet index of all the stream files of a trace, saved in a hidden file
+ * outside of the trace directory, which may be read-only or shared, so that
+ * the packets do not have to be indexed again the next time the trace is
+ * opened.
+ *
+ * For each stream file, the file stores the entries of its index, which start
+ * at the beginning of the file and follow each other. When the index is read
+ * back, the entries of a stream file are only used if the file is at least as
+ * long as when it was indexed. If it is longer, the packets after the saved
+ * ones still have to be indexed.
+ *
+ * The attributes of the packet contexts are saved too. Their names are only
+ * written once per stream file.
+ */
+public final class PacketIndexFile {
+
+    /** Name of the index file in its directory */
+    public static final String FILE_NAME = ".packet_index"; //$NON-NLS-1$
+
+    private static final int MAGIC = 0x7ACE1D58;
+    private static final int VERSION = 1;
+
+    /* Types of the attribute values */
+    private static final byte ABSENT = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte STRING = 3;
+
+    private PacketIndexFile() {
+    }
+
+    /**
+     * Read the saved index of a trace.
+     *
+     * @param indexDirectory
+     *            The directory in which the index was saved
+     * @param traceDirectory
+     *            The directory of the trace
+     * @param uuid
+     *            The UUID of the trace, the saved index is only used if it is
+     *            the same. Can be null if the trace has none.
+     * @return The saved index entries, by stream file name, for the stream
+     *         files which can still use them. It is empty if there is no
+     *         usable index.
+     */
+    public static Map<String, List<ICTFPacketDescriptor>> read(File indexDirectory, File traceDirectory, UUID uuid) {
+        File file = new File(indexDirectory, FILE_NAME);
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<ICTFPacketDescriptor>> index = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !readUuid(in, uuid)) {
+                return Collections.emptyMap();
+            }
+            int nbFiles = in.readInt();
+            for (int i = 0; i < nbFiles; i++) {
+                String name = in.readUTF();
+                List<ICTFPacketDescriptor> entries = readEntries(in);
+                if (entries == null) {
+                    Activator.log("Invalid packet index for " + name + ", ignoring the saved index"); //$NON-NLS-1$ //$NON-NLS-2$
+                    return Collections.emptyMap();
+                }
+                ICTFPacketDescriptor last = entries.get(entries.size() - 1);
+                long indexedBytes = (last.getOffsetBits() + last.getPacketSizeBits()) / Byte.SIZE;
+                if (new File(traceDirectory, name).length() >= indexedBytes) {
+                    index.put(name, entries);
+                }
+            }
+        } catch (IOException e) {
+            Activator.log("Could not read the packet index of " + traceDirectory, e); //$NON-NLS-1$
+            return Collections.emptyMap();
+        }
+        return index;
+    }
+
+    private static boolean readUuid(DataInputStream in, UUID uuid) throws IOException {
+        if (!in.readBoolean()) {
+            return (uuid == null);
+        }
+        UUID savedUuid = new UUID(in.readLong(), in.readLong());
+        return savedUuid.equals(uuid);
+    }
+
+    /*
+     * Read the entries of a stream file, checking that they follow each other
+     * from the beginning of the file. Returns null if they do not.
+     */
+    private static List<ICTFPacketDescriptor> readEntries(DataInputStream in) throws IOException {
+        int nbAttributes = in.readInt();
+        String[] names = new String[nbAttributes];
+        for (int i = 0; i < nbAttributes; i++) {
+            names[i] = in.readUTF();
+        }
+        int nbEntries = in.readInt();
+        if (nbEntries <= 0) {
+            return null;
+        }
+        List<ICTFPacketDescriptor> entries = new ArrayList<>(nbEntries);
+        long expectedOffsetBits = 0;
+        long lastTimestampBegin = Long.MIN_VALUE;
+        for (int i = 0; i < nbEntries; i++) {
+            long offsetBits = in.readLong();
+            long packetSizeBits = in.readLong();
+            long contentSizeBits = in.readLong();
+            long timestampBegin = in.readLong();
+            long timestampEnd = in.readLong();
+            long lostEvents = in.readLong();
+            String target = in.readBoolean() ? in.readUTF() : null;
+            long targetId = in.readLong();
+            Map<String, Object> attributes = new HashMap<>();
+            for (int j = 0; j < nbAttributes; j++) {
+                Object value = readValue(in);
+                if (value != null) {
+                    attributes.put(names[j], value);
+                }
+            }
+            if (offsetBits != expectedOffsetBits || packetSizeBits <= 0 ||
+                    timestampBegin > timestampEnd || timestampBegin < lastTimestampBegin) {
+                return null;
+            }
+            expectedOffsetBits = offsetBits + packetSizeBits;
+            lastTimestampBegin = timestampBegin;
+            entries.add(new StreamInputPacketIndexEntry(offsetBits, packetSizeBits, contentSizeBits,
+                    timestampBegin, timestampEnd, lostEvents, target, targetId, attributes));
+        }
+        return entries;
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case ABSENT:
+            return null;
+        case LONG:
+            return in.readLong();
+        case DOUBLE:
+            return in.readDouble();
+        case STRING:
+            return in.readUTF();
+        default:
+            throw new IOException("Unknown attribute type " + type); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Save the index of a trace. The file is replaced atomically, so that a
+     * trace opened at the same time never reads a partial index.
+     *
+     * @param indexDirectory
+     *            The directory in which to save the index. It is created if
+     *            needed.
+     * @param uuid
+     *            The UUID of the trace, can be null if the trace has none
+     * @param indexes
+     *            The index of each stream file, by file name
+     */
+    public static void write(File indexDirectory, UUID uuid, Map<String, StreamInputPacketIndex> indexes) {
+        File tempFile = null;
+        try {
+            indexDirectory.mkdirs();
+            tempFile = File.createTempFile(FILE_NAME, ".tmp", indexDirectory); //$NON-NLS-1$
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(uuid != null);
+                if (uuid != null) {
+                    out.writeLong(uuid.getMostSignificantBits());
+                    out.writeLong(uuid.getLeastSignificantBits());
+                }
+                List<Map.Entry<String, StreamInputPacketIndex>> saved = new ArrayList<>();
+                for (Map.Entry<String, StreamInputPacketIndex> entry : indexes.entrySet()) {
+                    if (canSave(entry.getValue())) {
+                        saved.add(entry);
+                    }
+                }
+                out.writeInt(saved.size());
+                for (Map.Entry<String, StreamInputPacketIndex> entry : saved) {
+                    out.writeUTF(entry.getKey());
+                    writeEntries(out, entry.getValue());
+                }
+            }
+            Files.move(tempFile.toPath(), new File(indexDirectory, FILE_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            /* The index will be built again next time */
+            Activator.log("Could not save the packet index in " + indexDirectory, e); //$NON-NLS-1$
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static boolean canSave(StreamInputPacketIndex index) {
+        if (index.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < index.size(); i++) {
+            if (!(index.getElement(i) instanceof StreamInputPacketIndexEntry)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeEntries(DataOutputStream out, StreamInputPacketIndex index) throws IOException {
+        Set<String> nameSet = new LinkedHashSet<>();
+        for (int i = 0; i < index.size(); i++) {
+            nameSet.addAll(((StreamInputPacketIndexEntry) index.getElement(i)).getAttributes().keySet());
+        }
+        List<String> names = new ArrayList<>(nameSet);
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+        out.writeInt(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            StreamInputPacketIndexEntry entry = (StreamInputPacketIndexEntry) index.getElement(i);
+            out.writeLong(entry.getOffsetBits());
+            out.writeLong(entry.getPacketSizeBits());
+            out.writeLong(entry.getContentSizeBits());
+            out.writeLong(entry.getTimestampBegin());
+            out.writeLong(entry.getTimestampEnd());
+            out.writeLong(entry.getLostEvents());
+            String target = entry.getTarget();
+            out.writeBoolean(target != null);
+            if (target != null) {
+                out.writeUTF(target);
+            }
+            out.writeLong(entry.getTargetId());
+            Map<String, Object> attributes = entry.getAttributes();
+            for (String name : names) {
+                writeValue(out, attributes.get(name));
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else {
+            /* Only the types read from packet contexts are saved */
+            out.writeByte(ABSENT);
+        }
+    }
+}
@@ -12,6 +12,7 @@
 
 package org.eclipse.tracecompass.internal.ctf.core.trace;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -113,6 +114,44 @@ public class StreamInputPacketIndexEntry implements ICTFPacketDescriptor {
         fTimestampEnd = Long.MAX_VALUE;
     }
 
+    /**
+     * Constructor from values which were read before, for example from a
+     * saved index
+     *
+     * @param dataOffsetBits
+     *            offset in the file for the start of data in bits
+     * @param packetSizeBits
+     *            size of the packet in bits
+     * @param contentSizeBits
+     *            size of the content of the packet in bits
+     * @param timestampBegin
+     *            begin timestamp of the packet
+     * @param timestampEnd
+     *            end timestamp of the packet
+     * @param lostEvents
+     *            number of events lost in this packet
+     * @param target
+     *            the traced target, can be null
+     * @param targetId
+     *            the ID of the traced target
+     * @param attributes
+     *            the attributes of the packet context
+     */
+    public StreamInputPacketIndexEntry(long dataOffsetBits, long packetSizeBits, long contentSizeBits,
+            long timestampBegin, long timestampEnd, long lostEvents, String target, long targetId,
+            Map<String, Object> attributes) {
+        fOffsetBits = dataOffsetBits;
+        fOffsetBytes = dataOffsetBits / Byte.SIZE;
+        fPacketSizeBits = packetSizeBits;
+        fContentSizeBits = contentSizeBits;
+        fTimestampBegin = timestampBegin;
+        fTimestampEnd = timestampEnd;
+        fLostEvents = lostEvents;
+        fTarget = target;
+        fTargetID = targetId;
+        fAttributes.putAll(attributes);
+    }
+
     /**
      * full Constructor
      *
@@ -299,6 +338,15 @@ public class StreamInputPacketIndexEntry implements ICTFPacketDescriptor {
         return fAttributes.get(field);
     }
 
+    /**
+     * Get all the attributes of this index entry
+     *
+     * @return The attributes, by name
+     */
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(fAttributes);
+    }
+
     @Override
     public String getTarget() {
         return fTarget;
@@ -17,6 +17,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -45,6 +46,8 @@ public class CtfTmfTraceValidateTest {
 
     private static final Path BASE_PATH = Paths.get("../org.eclipse.tracecompass.ctf.core.tests", "traces");
     private static final Path CTF_SUITE_BASE_PATH = Paths.get("../org.eclipse.tracecompass.ctf.core.tests", "traces", "ctf-testsuite", "tests", "1.8");
+    /* Packet index, which must not be saved in the directory of the trace */
+    private static final String PACKET_INDEX_FILE = ".packet_index";
 
     private String fTrace;
     private int fServerity;
@@ -105,9 +108,13 @@ public class CtfTmfTraceValidateTest {
      */
     @Test
     public void testValidate() {
+        File packetIndex = new File(fTrace, PACKET_INDEX_FILE);
+        long lastModified = packetIndex.lastModified();
         try (CtfTmfTrace trace = new CtfTmfTrace();) {
             IStatus status = trace.validate(null, fTrace);
             assertEquals(toString(), fServerity, status.getSeverity());
+            /* Validating does not index the packets, nor write in the trace */
+            assertEquals(toString(), lastModified, packetIndex.lastModified());
 
             if (fHasException) {
                 assertNotNull(toString(), status.getException());
@@ -42,6 +42,13 @@ public class CtfIterator extends CTFTraceReader
     /** An invalid location */
     public static final CtfLocation NULL_LOCATION = new CtfLocation(CtfLocation.INVALID_LOCATION);
 
+    /**
+     * Number of events read in a row after which the events start being
+     * decoded ahead. Short reads after a seek, like the ones of the views,
+     * then do not decode events which will not be read.
+     */
+    private static final long PIPELINE_THRESHOLD = 5000;
+
     private final CtfTmfTrace fTrace;
 
     private CtfLocation fCurLocation;
@@ -50,6 +57,9 @@ public class CtfIterator extends CTFTraceReader
     private CtfLocation fPreviousLocation;
     private CtfTmfEvent fPreviousEvent;
 
+    /* Events read since the last seek */
+    private long fNbAdvances = 0;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -141,7 +151,7 @@ public class CtfIterator extends CTFTraceReader
      * @return CtfTmfEvent The current event
      */
     public synchronized CtfTmfEvent getCurrentEvent() {
-        final CTFStreamInputReader top = super.getPrio().peek();
+        final CTFStreamInputReader top = super.getTopStream();
         if (top != null) {
             if (!fCurLocation.equals(fPreviousLocation)) {
                 fPreviousLocation = fCurLocation;
@@ -160,7 +170,7 @@ public class CtfIterator extends CTFTraceReader
      * @return long The current timestamp location
      */
     public synchronized long getCurrentTimestamp() {
-        final CTFStreamInputReader top = super.getPrio().peek();
+        final CTFStreamInputReader top = super.getTopStream();
         if (top != null) {
             long ts = top.getCurrentEvent().getTimestamp();
             return fTrace.timestampCyclesToNanos(ts);
@@ -189,6 +199,10 @@ public class CtfIterator extends CTFTraceReader
         /* Adjust the timestamp depending on the trace's offset */
         long currTimestamp = ctfLocationData.getTimestamp();
         final long offsetTimestamp = this.getCtfTmfTrace().timestampNanoToCycles(currTimestamp);
+        fNbAdvances = 0;
+        if (isPipelined()) {
+            setPipelined(false);
+        }
         try {
             if (offsetTimestamp < 0) {
                 ret = super.seek(0L);
@@ -248,6 +262,11 @@ public class CtfIterator extends CTFTraceReader
         }
 
         if (ret) {
+            fNbAdvances++;
+            if (fNbAdvances == PIPELINE_THRESHOLD && !isPipelined()) {
+                /* A long sequential read, like indexing or an analysis */
+                setPipelined(true);
+            }
             long timestamp = fCurLocation.getLocationInfo().getTimestamp();
             final long timestampValue = getCurrentTimestamp();
             if (timestamp == timestampValue) {
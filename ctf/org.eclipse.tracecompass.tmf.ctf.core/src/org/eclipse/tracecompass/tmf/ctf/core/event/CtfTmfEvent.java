@@ -25,6 +25,7 @@ import org.eclipse.tracecompass.ctf.core.event.EventDefinition;
 import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.ICompositeDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.IDefinition;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.FlyweightStructDefinition;
 import org.eclipse.tracecompass.tmf.core.event.ITmfCustomAttributes;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEventField;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEventType;
@@ -257,7 +258,19 @@ public class CtfTmfEvent extends TmfEvent
         List<CtfTmfEventField> fields = new ArrayList<>();
 
         ICompositeDefinition structFields = eventDef.getFields();
-        if (structFields != null) {
+        if (structFields instanceof FlyweightStructDefinition) {
+            /* Read the integers straight from the trace, skip their CTF definitions */
+            FlyweightStructDefinition flyweightFields = (FlyweightStructDefinition) structFields;
+            List<String> fieldNames = flyweightFields.getFieldNames();
+            for (int i = 0; i < fieldNames.size(); i++) {
+                String fn = checkNotNull(fieldNames.get(i));
+                if (flyweightFields.isIntegerField(i)) {
+                    fields.add(CtfTmfEventField.parseField(flyweightFields, i, fn));
+                } else {
+                    fields.add(CtfTmfEventField.parseField((IDefinition) flyweightFields.getDefinition(fn), fn));
+                }
+            }
+        } else if (structFields != null) {
             if (structFields.getFieldNames() != null) {
                 for (String curFieldName : structFields.getFieldNames()) {
                     String fn = checkNotNull(curFieldName);
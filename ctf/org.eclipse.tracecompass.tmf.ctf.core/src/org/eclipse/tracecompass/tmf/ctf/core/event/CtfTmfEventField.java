@@ -28,6 +28,7 @@ import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.ctf.core.event.types.AbstractArrayDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.CompoundDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.Definition;
+import org.eclipse.tracecompass.ctf.core.event.types.EnumDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.EnumDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.FloatDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.ICompositeDefinition;
@@ -37,6 +38,7 @@ import org.eclipse.tracecompass.ctf.core.event.types.IntegerDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.StringDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.VariantDefinition;
+import org.eclipse.tracecompass.internal.ctf.core.event.types.FlyweightStructDefinition;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEventField;
 import org.eclipse.tracecompass.tmf.core.event.TmfEventField;
 import org.eclipse.tracecompass.tmf.ctf.core.CtfEnumPair;
@@ -205,6 +207,31 @@ public abstract class CtfTmfEventField extends TmfEventField {
         return field;
     }
 
+    /**
+     * Factory method for an integer or enumeration field of an event whose
+     * fields were not decoded. The value is read from the trace without
+     * creating a CTF Definition.
+     *
+     * @param fields
+     *            The flyweight fields of the event
+     * @param index
+     *            The index of the field, see
+     *            {@link FlyweightStructDefinition#isIntegerField(int)}
+     * @param fieldName
+     *            String The name to assign to this field
+     * @return The resulting CtfTmfEventField object
+     */
+    static CtfTmfEventField parseField(FlyweightStructDefinition fields, int index,
+            @NonNull String fieldName) {
+        IDeclaration decl = fields.getFieldDeclaration(index);
+        long value = fields.getIntegerValue(index);
+        if (decl instanceof EnumDeclaration) {
+            return new CTFEnumField(fieldName, new CtfEnumPair(((EnumDeclaration) decl).query(value), value));
+        }
+        IntegerDeclaration intDecl = (IntegerDeclaration) decl;
+        return new CTFIntegerField(fieldName, value, intDecl.getBase(), intDecl.isSigned());
+    }
+
     @Override
     public String toString() {
         return getName() + '=' + getFormattedValue();
@@ -17,6 +17,9 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+        org.eclipse.tracecompass.segmentstore.core.tests.bulk.AllTests.class,
+        org.eclipse.tracecompass.segmentstore.core.tests.intervaltree.AllTests.class,
+        org.eclipse.tracecompass.segmentstore.core.tests.mapped.AllTests.class,
         org.eclipse.tracecompass.segmentstore.core.tests.treemap.AllTests.class
 })
 public class AllTests {
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.common.core.NonNullUtils;
+import org.eclipse.tracecompass.segmentstore.core.BasicSegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.bulk.BulkLoadSegmentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for the BulkLoadSegmentStore
+ */
+public class BulkLoadSegmentStoreTest {
+
+    private BulkLoadSegmentStore<ISegment> fSegmentStore;
+
+    private static final ISegment SEGMENT_2_4 = new BasicSegment(2, 4);
+    private static final ISegment SEGMENT_6_8 = new BasicSegment(6, 8);
+    private static final ISegment SEGMENT_10_14 = new BasicSegment(10, 14);
+    private static final ISegment SEGMENT_1_20 = new BasicSegment(1, 20);
+
+    /* Not inserted in start time order */
+    private static final List<ISegment> SEGMENTS = ImmutableList.of(SEGMENT_6_8, SEGMENT_10_14, SEGMENT_1_20, SEGMENT_2_4);
+
+    /**
+     * Initialize data (test vector) that will be tested
+     */
+    @Before
+    public void setup() {
+        fSegmentStore = new BulkLoadSegmentStore<>();
+        for (int i = 0; i < SEGMENTS.size(); i++) {
+            fSegmentStore.addElement(NonNullUtils.checkNotNull(SEGMENTS.get(i)));
+        }
+        fSegmentStore.finishBuilding();
+    }
+
+    /**
+     * Dispose of the segment store
+     */
+    @After
+    public void teardown() {
+        fSegmentStore.dispose();
+    }
+
+    /**
+     * Testing method getNbElements
+     */
+    @Test
+    public void testGetNbElements() {
+        assertEquals(SEGMENTS.size(), fSegmentStore.getNbElements());
+    }
+
+    /**
+     * Testing method getElementAtIndex, which uses the start time order
+     */
+    @Test
+    public void testGetElementAtIndex() {
+        assertEquals(SEGMENT_1_20, fSegmentStore.getElementAtIndex(0));
+        assertEquals(SEGMENT_2_4, fSegmentStore.getElementAtIndex(1));
+        assertEquals(SEGMENT_6_8, fSegmentStore.getElementAtIndex(2));
+        assertEquals(SEGMENT_10_14, fSegmentStore.getElementAtIndex(3));
+    }
+
+    /**
+     * Testing method getIntersectingElements(long start, long end)
+     */
+    @Test
+    public void testGetIntersectingElementsRange() {
+        assertEquals(ImmutableList.of(SEGMENT_1_20), Lists.newArrayList(fSegmentStore.getIntersectingElements(16, 20)));
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(21, 30)));
+        assertEquals(SEGMENTS.size(), Iterables.size(fSegmentStore.getIntersectingElements(1, 15)));
+        assertEquals(ImmutableList.of(SEGMENT_1_20, SEGMENT_10_14), Lists.newArrayList(fSegmentStore.getIntersectingElements(11, 13)));
+        assertEquals(ImmutableList.of(SEGMENT_1_20, SEGMENT_6_8), Lists.newArrayList(fSegmentStore.getIntersectingElements(6, 8)));
+        assertEquals(ImmutableList.of(SEGMENT_1_20, SEGMENT_2_4), Lists.newArrayList(fSegmentStore.getIntersectingElements(4)));
+    }
+
+    /**
+     * The queries are not allowed before the store is built, and segments
+     * cannot be added after
+     */
+    @Test
+    public void testBuildingPhases() {
+        BulkLoadSegmentStore<ISegment> store = new BulkLoadSegmentStore<>();
+        store.addElement(SEGMENT_2_4);
+        assertEquals(1, store.getNbElements());
+        try {
+            store.getIntersectingElements(3);
+            assertTrue(false);
+        } catch (IllegalStateException e) {
+            /* Expected */
+        }
+        store.finishBuilding();
+        assertTrue(store.isBuilt());
+        assertEquals(SEGMENT_2_4, store.getElementAtIndex(0));
+        try {
+            store.addElement(SEGMENT_6_8);
+            assertTrue(false);
+        } catch (IllegalStateException e) {
+            /* Expected */
+        }
+        store.dispose();
+    }
+
+    /**
+     * Add many random segments from several threads, enough to sort them in
+     * parallel, and compare the queries with a linear search
+     *
+     * @throws InterruptedException
+     *             If a thread is interrupted
+     */
+    @Test
+    public void testParallelBuild() throws InterruptedException {
+        final BulkLoadSegmentStore<ISegment> store = new BulkLoadSegmentStore<>();
+        final List<List<ISegment>> added = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            final List<ISegment> segments = new ArrayList<>();
+            added.add(segments);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50000; i++) {
+                        long start = random.nextInt(1000000);
+                        ISegment segment = new BasicSegment(start, start + random.nextInt(i % 100 == 0 ? 100000 : 100));
+                        segments.add(segment);
+                        store.addElement(segment);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        store.finishBuilding();
+
+        List<ISegment> all = new ArrayList<>();
+        for (List<ISegment> segments : added) {
+            all.addAll(segments);
+        }
+        assertEquals(all.size(), store.getNbElements());
+
+        List<Long> starts = new ArrayList<>();
+        for (ISegment segment : all) {
+            starts.add(segment.getStart());
+        }
+        Collections.sort(starts);
+        int i = 0;
+        for (ISegment segment : store) {
+            assertEquals(starts.get(i).longValue(), segment.getStart());
+            assertEquals(segment, store.getElementAtIndex(i));
+            i++;
+        }
+        assertEquals(all.size(), i);
+
+        Random random = new Random(42);
+        for (int q = 0; q < 100; q++) {
+            long start = random.nextInt(1100000) - 50000;
+            long end = start + random.nextInt(q % 2 == 0 ? 10 : 10000);
+            List<ISegment> expected = new ArrayList<>();
+            for (ISegment segment : all) {
+                if (segment.getEnd() >= start && segment.getStart() <= end) {
+                    expected.add(segment);
+                }
+            }
+            List<ISegment> actual = Lists.newArrayList(store.getIntersectingElements(start, end));
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+        }
+        store.dispose();
+    }
+}
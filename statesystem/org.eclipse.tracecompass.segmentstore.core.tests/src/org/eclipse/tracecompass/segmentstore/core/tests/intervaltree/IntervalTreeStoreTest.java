@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.intervaltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.common.core.NonNullUtils;
+import org.eclipse.tracecompass.segmentstore.core.BasicSegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.intervaltree.IntervalTreeStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for the IntervalTreeStore
+ */
+public class IntervalTreeStoreTest {
+
+    private IntervalTreeStore<ISegment> fSegmentStore;
+
+    private static final ISegment SEGMENT_2_4 = new BasicSegment(2, 4);
+    private static final ISegment SEGMENT_6_8 = new BasicSegment(6, 8);
+    private static final ISegment SEGMENT_10_14 = new BasicSegment(10, 14);
+    private static final ISegment SEGMENT_1_20 = new BasicSegment(1, 20);
+
+    /* Not inserted in start time order */
+    private static final List<ISegment> SEGMENTS = ImmutableList.of(SEGMENT_6_8, SEGMENT_10_14, SEGMENT_2_4);
+
+    private static final Comparator<ISegment> START_COMPARATOR = new Comparator<ISegment>() {
+        @Override
+        public int compare(@Nullable ISegment o1, @Nullable ISegment o2) {
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException();
+            }
+            return Long.compare(o1.getStart(), o2.getStart());
+        }
+    };
+
+    /**
+     * Initialize data (test vector) that will be tested
+     */
+    @Before
+    public void setup() {
+        fSegmentStore = new IntervalTreeStore<>();
+        for (int i = 0; i < SEGMENTS.size(); i++) {
+            fSegmentStore.addElement(NonNullUtils.checkNotNull(SEGMENTS.get(i)));
+        }
+    }
+
+    /**
+     * Dispose of the segment store
+     */
+    @After
+    public void teardown() {
+        fSegmentStore.dispose();
+    }
+
+    /**
+     * Testing method getNbElements
+     */
+    @Test
+    public void testGetNbElements() {
+        assertEquals(SEGMENTS.size(), fSegmentStore.getNbElements());
+    }
+
+    /**
+     * Testing method getElementAtIndex, which uses the start time order
+     */
+    @Test
+    public void testGetElementAtIndex() {
+        assertEquals(SEGMENT_2_4, fSegmentStore.getElementAtIndex(0));
+        assertEquals(SEGMENT_6_8, fSegmentStore.getElementAtIndex(1));
+        assertEquals(SEGMENT_10_14, fSegmentStore.getElementAtIndex(2));
+    }
+
+    /**
+     * Testing method getIntersectingElements(long start, long end)
+     */
+    @Test
+    public void testGetIntersectingElementsRange() {
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(16, 20)));
+        assertEquals(ImmutableList.of(SEGMENT_2_4, SEGMENT_6_8, SEGMENT_10_14),
+                Lists.newArrayList(fSegmentStore.getIntersectingElements(1, 15)));
+        assertEquals(3, Iterables.size(fSegmentStore.getIntersectingElements(2, 14)));
+        assertEquals(ImmutableList.of(SEGMENT_10_14), Lists.newArrayList(fSegmentStore.getIntersectingElements(11, 13)));
+        assertEquals(ImmutableList.of(SEGMENT_6_8), Lists.newArrayList(fSegmentStore.getIntersectingElements(6, 8)));
+        assertEquals(ImmutableList.of(SEGMENT_10_14), Lists.newArrayList(fSegmentStore.getIntersectingElements(14, 18)));
+        assertEquals(ImmutableList.of(SEGMENT_2_4), Lists.newArrayList(fSegmentStore.getIntersectingElements(1, 2)));
+    }
+
+    /**
+     * Testing method getIntersectingElements(long position)
+     */
+    @Test
+    public void testGetIntersectingElementsTime() {
+        assertEquals(ImmutableList.of(SEGMENT_2_4), Lists.newArrayList(fSegmentStore.getIntersectingElements(3)));
+        assertEquals(ImmutableList.of(SEGMENT_2_4), Lists.newArrayList(fSegmentStore.getIntersectingElements(2)));
+        assertEquals(ImmutableList.of(SEGMENT_2_4), Lists.newArrayList(fSegmentStore.getIntersectingElements(4)));
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(1)));
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(15)));
+
+        /* A long segment starting first is found after the others */
+        fSegmentStore.addElement(SEGMENT_1_20);
+        assertEquals(ImmutableList.of(SEGMENT_1_20, SEGMENT_10_14), Lists.newArrayList(fSegmentStore.getIntersectingElements(12)));
+    }
+
+    /**
+     * An iterator keeps seeing the segments that were there when it was
+     * created
+     */
+    @Test
+    public void testIterateWhileAdding() {
+        Iterator<ISegment> iterator = fSegmentStore.iterator();
+        fSegmentStore.addElement(SEGMENT_1_20);
+        assertEquals(ImmutableList.of(SEGMENT_2_4, SEGMENT_6_8, SEGMENT_10_14), Lists.newArrayList(iterator));
+        assertEquals(ImmutableList.of(SEGMENT_1_20, SEGMENT_2_4, SEGMENT_6_8, SEGMENT_10_14), Lists.newArrayList(fSegmentStore));
+    }
+
+    /**
+     * Compare the queries on many random segments, some of them identical,
+     * with a linear search
+     */
+    @Test
+    public void testRandomSegments() {
+        IntervalTreeStore<ISegment> store = new IntervalTreeStore<>();
+        List<ISegment> segments = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            long start = random.nextInt(10000);
+            ISegment segment = new BasicSegment(start, start + random.nextInt(i % 10 == 0 ? 5000 : 50));
+            segments.add(segment);
+            store.addElement(segment);
+            if (i % 100 == 0) {
+                /* The same segment again */
+                segments.add(segment);
+                store.addElement(segment);
+            }
+        }
+        assertEquals(segments.size(), store.getNbElements());
+
+        /* The sort is stable, the store keeps the insertion order of equal starts */
+        List<ISegment> sorted = new ArrayList<>(segments);
+        Collections.sort(sorted, START_COMPARATOR);
+        List<ISegment> all = Lists.newArrayList(store);
+        assertEquals(sorted.size(), all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(sorted.get(i).getStart(), all.get(i).getStart());
+            assertEquals(all.get(i), store.getElementAtIndex(i));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            long start = random.nextInt(12000) - 1000;
+            long end = start + random.nextInt(i % 2 == 0 ? 10 : 2000);
+            List<ISegment> expected = new ArrayList<>();
+            for (ISegment segment : segments) {
+                if (segment.getEnd() >= start && segment.getStart() <= end) {
+                    expected.add(segment);
+                }
+            }
+            List<ISegment> actual = Lists.newArrayList(store.getIntersectingElements(start, end));
+            assertEquals(expected.size(), actual.size());
+            for (int j = 1; j < actual.size(); j++) {
+                assertTrue(actual.get(j - 1).getStart() <= actual.get(j).getStart());
+            }
+            assertTrue(actual.containsAll(expected));
+        }
+    }
+
+    /**
+     * Testing method dispose
+     */
+    @Test
+    public void testDispose() {
+        IntervalTreeStore<ISegment> store = new IntervalTreeStore<>();
+        store.addElement(NonNullUtils.checkNotNull(SEGMENT_2_4));
+        store.dispose();
+        assertEquals(0, store.getNbElements());
+    }
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.mapped;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.segmentstore.core.BasicSegment;
+import org.eclipse.tracecompass.segmentstore.core.mapped.BasicSegmentCodec;
+import org.eclipse.tracecompass.segmentstore.core.mapped.MappedFileSegmentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for the MappedFileSegmentStore
+ */
+public class MappedFileSegmentStoreTest {
+
+    /* Small blocks, so that the segments are written and merged */
+    private static final int BLOCK_SIZE = 3;
+
+    private static final BasicSegment SEGMENT_2_4 = new BasicSegment(2, 4);
+    private static final BasicSegment SEGMENT_6_8 = new BasicSegment(6, 8);
+    private static final BasicSegment SEGMENT_10_14 = new BasicSegment(10, 14);
+    private static final BasicSegment SEGMENT_1_20 = new BasicSegment(1, 20);
+
+    /* Not inserted in start time order */
+    private static final List<BasicSegment> SEGMENTS = ImmutableList.of(SEGMENT_6_8, SEGMENT_10_14, SEGMENT_2_4);
+
+    private File fDirectory;
+    private MappedFileSegmentStore<BasicSegment> fSegmentStore;
+
+    /**
+     * Initialize data (test vector) that will be tested
+     *
+     * @throws IOException
+     *             If the directory cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fDirectory = Files.createTempDirectory("segments").toFile();
+        fSegmentStore = new MappedFileSegmentStore<>(fDirectory, new BasicSegmentCodec(), BLOCK_SIZE);
+        for (BasicSegment segment : SEGMENTS) {
+            fSegmentStore.addElement(segment);
+        }
+    }
+
+    /**
+     * Dispose of the segment store
+     */
+    @After
+    public void teardown() {
+        fSegmentStore.dispose();
+        fDirectory.delete();
+    }
+
+    /**
+     * Testing method getNbElements
+     */
+    @Test
+    public void testGetNbElements() {
+        assertEquals(SEGMENTS.size(), fSegmentStore.getNbElements());
+    }
+
+    /**
+     * Testing method getElementAtIndex, which uses the start time order
+     */
+    @Test
+    public void testGetElementAtIndex() {
+        assertEquals(SEGMENT_2_4.toString(), fSegmentStore.getElementAtIndex(0).toString());
+        assertEquals(SEGMENT_6_8.toString(), fSegmentStore.getElementAtIndex(1).toString());
+        assertEquals(SEGMENT_10_14.toString(), fSegmentStore.getElementAtIndex(2).toString());
+    }
+
+    /**
+     * Testing method getIntersectingElements(long start, long end), on
+     * segments read back from the disk and from memory
+     */
+    @Test
+    public void testGetIntersectingElementsRange() {
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(16, 20)));
+        assertEquals("[[2, 4], [6, 8], [10, 14]]", toString(fSegmentStore.getIntersectingElements(1, 15)));
+        assertEquals("[[10, 14]]", toString(fSegmentStore.getIntersectingElements(11, 13)));
+        assertEquals("[[6, 8]]", toString(fSegmentStore.getIntersectingElements(6, 8)));
+        assertEquals("[[10, 14]]", toString(fSegmentStore.getIntersectingElements(14, 18)));
+
+        fSegmentStore.addElement(SEGMENT_1_20);
+        assertEquals("[[1, 20], [2, 4], [6, 8], [10, 14]]", toString(fSegmentStore.getIntersectingElements(1, 15)));
+        assertEquals("[[1, 20], [10, 14]]", toString(fSegmentStore.getIntersectingElements(12)));
+        assertEquals("[[1, 20]]", toString(fSegmentStore.getIntersectingElements(16, 25)));
+    }
+
+    /**
+     * An iterator keeps seeing the segments that were there when it was
+     * created
+     */
+    @Test
+    public void testIterateWhileAdding() {
+        Iterator<BasicSegment> iterator = fSegmentStore.iterator();
+        fSegmentStore.addElement(SEGMENT_1_20);
+        assertEquals("[[2, 4], [6, 8], [10, 14]]", toString(Lists.newArrayList(iterator)));
+        assertEquals("[[1, 20], [2, 4], [6, 8], [10, 14]]", toString(fSegmentStore));
+    }
+
+    /**
+     * Compare the queries on many random segments, some of them identical,
+     * with a linear search. The segments go through several levels of merged
+     * runs.
+     */
+    @Test
+    public void testRandomSegments() {
+        MappedFileSegmentStore<BasicSegment> store = new MappedFileSegmentStore<>(fDirectory, new BasicSegmentCodec(), 100);
+        try {
+            List<BasicSegment> segments = new ArrayList<>();
+            Random random = new Random(42);
+            for (int i = 0; i < 20000; i++) {
+                long start = random.nextInt(100000);
+                BasicSegment segment = new BasicSegment(start, start + random.nextInt(i % 100 == 0 ? 50000 : 50));
+                segments.add(segment);
+                store.addElement(segment);
+                if (i % 1000 == 0) {
+                    segments.add(segment);
+                    store.addElement(segment);
+                }
+            }
+            assertEquals(segments.size(), store.getNbElements());
+
+            List<BasicSegment> all = Lists.newArrayList(store);
+            assertEquals(segments.size(), all.size());
+            for (int i = 0; i < all.size(); i++) {
+                if (i > 0) {
+                    assertTrue(all.get(i - 1).getStart() <= all.get(i).getStart());
+                }
+                if (i % 7 == 0) {
+                    assertEquals(all.get(i).toString(), store.getElementAtIndex(i).toString());
+                }
+            }
+
+            for (int i = 0; i < 200; i++) {
+                long start = random.nextInt(120000) - 10000;
+                long end = start + random.nextInt(i % 2 == 0 ? 10 : 5000);
+                List<String> expected = new ArrayList<>();
+                for (BasicSegment segment : segments) {
+                    if (segment.getEnd() >= start && segment.getStart() <= end) {
+                        expected.add(segment.toString());
+                    }
+                }
+                List<String> actual = new ArrayList<>();
+                for (BasicSegment segment : store.getIntersectingElements(start, end)) {
+                    actual.add(segment.toString());
+                }
+                assertEquals(expected.size(), actual.size());
+                assertTrue(actual.containsAll(expected));
+            }
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * Testing method dispose, which deletes the files
+     */
+    @Test
+    public void testDispose() {
+        fSegmentStore.addElement(SEGMENT_1_20);
+        assertTrue(fDirectory.list().length > 0);
+        fSegmentStore.dispose();
+        assertEquals(0, fSegmentStore.getNbElements());
+        assertEquals(0, Iterables.size(fSegmentStore));
+        assertEquals(0, fDirectory.list().length);
+    }
+
+    private static String toString(Iterable<BasicSegment> segments) {
+        return Iterables.toString(segments);
+    }
+}
@@ -0,0 +1,449 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.bulk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Implementation of a {@link ISegmentStore} which is built in two phases, for
+ * analyses which produce many segments before querying them.
+ *
+ * While the store is being built, each thread adds its segments to its own
+ * buffer, without any locking or sorting. {@link #finishBuilding()} then sorts
+ * all the segments at once, in parallel, in a single array, and computes the
+ * greatest end time of each subtree of the implicit binary tree over this
+ * array. After that, no segment can be added, and the queries can be used:
+ * intersection queries only visit the subtrees which may contain a matching
+ * segment, and {@link #getElementAtIndex} is a simple array access.
+ *
+ * The queries cannot be used before the store is built.
+ *
+ * @param <T>
+ *            The type of segment held in this store
+ * @since 1.1
+ */
+public class BulkLoadSegmentStore<T extends ISegment> implements ISegmentStore<T> {
+
+    /* Below this number of segments, the work is not split anymore */
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 13;
+
+    private static final Comparator<ISegment> SEGMENT_COMPARATOR = new Comparator<ISegment>() {
+        @Override
+        public int compare(@Nullable ISegment o1, @Nullable ISegment o2) {
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException();
+            }
+            int res = Long.compare(o1.getStart(), o2.getStart());
+            if (res != 0) {
+                return res;
+            }
+            return Long.compare(o1.getEnd(), o2.getEnd());
+        }
+    };
+
+    /* The buffers of all the threads which added segments */
+    private final List<ArrayList<T>> fBuffers = new ArrayList<>();
+
+    private final ThreadLocal<ArrayList<T>> fLocalBuffer = new ThreadLocal<ArrayList<T>>() {
+        @Override
+        protected ArrayList<T> initialValue() {
+            ArrayList<T> buffer = new ArrayList<>();
+            synchronized (BulkLoadSegmentStore.this) {
+                fBuffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    private volatile boolean fBuilt = false;
+
+    /* The segments in start time order, then the greatest end time of the subtree of each */
+    private ISegment[] fSegments = new ISegment[0];
+    private long[] fMaxEnd = new long[0];
+
+    /**
+     * Constructor
+     */
+    public BulkLoadSegmentStore() {
+    }
+
+    /**
+     * Sort the segments and build the index. All the threads which added
+     * segments must be done adding them. Calling it again has no effect.
+     */
+    public synchronized void finishBuilding() {
+        if (fBuilt) {
+            return;
+        }
+        int size = 0;
+        for (List<T> buffer : fBuffers) {
+            size += buffer.size();
+        }
+        ISegment[] segments = new ISegment[size];
+        int pos = 0;
+        for (ArrayList<T> buffer : fBuffers) {
+            for (T segment : buffer) {
+                segments[pos++] = segment;
+            }
+            /* The thread-local references remain, release what they hold */
+            buffer.clear();
+            buffer.trimToSize();
+        }
+        fBuffers.clear();
+
+        long[] maxEnd = new long[size];
+        if (size <= SEQUENTIAL_THRESHOLD) {
+            Arrays.sort(segments, SEGMENT_COMPARATOR);
+            buildIndex(segments, maxEnd, 0, size);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(new SortTask(segments, new ISegment[size], 0, size));
+                pool.invoke(new IndexTask(segments, maxEnd, 0, size));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        fSegments = segments;
+        fMaxEnd = maxEnd;
+        fBuilt = true;
+    }
+
+    /**
+     * Check if {@link #finishBuilding()} was called
+     *
+     * @return If the store is built and can be queried
+     */
+    public boolean isBuilt() {
+        return fBuilt;
+    }
+
+    private void checkBuilt() {
+        if (!fBuilt) {
+            throw new IllegalStateException("The segment store is not built yet"); //$NON-NLS-1$
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends ISegment> T get(ISegment[] segments, int index) {
+        return (T) segments[index];
+    }
+
+    // ------------------------------------------------------------------------
+    // ISegmentStore
+    // ------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     *
+     * The segment is added to the buffer of the calling thread.
+     *
+     * @throws IllegalStateException
+     *             If the store is already built
+     */
+    @Override
+    public void addElement(T elem) {
+        if (fBuilt) {
+            throw new IllegalStateException("Cannot add segments to a built segment store"); //$NON-NLS-1$
+        }
+        fLocalBuffer.get().add(elem);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * While the store is being built, the segments being added by other
+     * threads may not be counted yet.
+     */
+    @Override
+    public long getNbElements() {
+        if (fBuilt) {
+            return fSegments.length;
+        }
+        long size = 0;
+        synchronized (this) {
+            for (List<T> buffer : fBuffers) {
+                size += buffer.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The index is the position of the element in start time order.
+     *
+     * @throws IllegalStateException
+     *             If the store is not built yet
+     */
+    @Override
+    public T getElementAtIndex(long index) {
+        checkBuilt();
+        if (index < 0 || index >= fSegments.length) {
+            throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+        }
+        return get(fSegments, (int) index);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are iterated in start time order.
+     *
+     * @throws IllegalStateException
+     *             If the store is not built yet
+     */
+    @Override
+    public Iterator<T> iterator() {
+        checkBuilt();
+        return new IntersectionIterator<>(fSegments, fMaxEnd, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are returned lazily, in start time order.
+     *
+     * @throws IllegalStateException
+     *             If the store is not built yet
+     */
+    @Override
+    public Iterable<T> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are returned lazily, in start time order.
+     *
+     * @throws IllegalStateException
+     *             If the store is not built yet
+     */
+    @Override
+    public Iterable<T> getIntersectingElements(final long start, final long end) {
+        checkBuilt();
+        final ISegment[] segments = fSegments;
+        final long[] maxEnd = fMaxEnd;
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new IntersectionIterator<>(segments, maxEnd, start, end);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void dispose() {
+        for (List<T> buffer : fBuffers) {
+            buffer.clear();
+        }
+        fSegments = new ISegment[0];
+        fMaxEnd = new long[0];
+    }
+
+    // ------------------------------------------------------------------------
+    // Building
+    // ------------------------------------------------------------------------
+
+    /*
+     * The root of the subtree of a range of the array is its middle element.
+     * Store the greatest end time of the subtree there, and return it.
+     */
+    private static long buildIndex(ISegment[] segments, long[] maxEnd, int lo, int hi) {
+        if (lo >= hi) {
+            return Long.MIN_VALUE;
+        }
+        int mid = (lo + hi) >>> 1;
+        long max = Math.max(segments[mid].getEnd(),
+                Math.max(buildIndex(segments, maxEnd, lo, mid), buildIndex(segments, maxEnd, mid + 1, hi)));
+        maxEnd[mid] = max;
+        return max;
+    }
+
+    /**
+     * Merge sort, where the small ranges are sorted sequentially
+     */
+    private static final class SortTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -6418212370367473593L;
+
+        private final ISegment[] fArray;
+        private final ISegment[] fTemp;
+        private final int fLo;
+        private final int fHi;
+
+        public SortTask(ISegment[] array, ISegment[] temp, int lo, int hi) {
+            fArray = array;
+            fTemp = temp;
+            fLo = lo;
+            fHi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (fHi - fLo <= SEQUENTIAL_THRESHOLD) {
+                Arrays.sort(fArray, fLo, fHi, SEGMENT_COMPARATOR);
+                return;
+            }
+            int mid = (fLo + fHi) >>> 1;
+            invokeAll(new SortTask(fArray, fTemp, fLo, mid), new SortTask(fArray, fTemp, mid, fHi));
+            if (SEGMENT_COMPARATOR.compare(fArray[mid - 1], fArray[mid]) <= 0) {
+                /* Already in order, which is common since segments are mostly added in order */
+                return;
+            }
+            int left = fLo;
+            int right = mid;
+            for (int i = fLo; i < fHi; i++) {
+                if (right >= fHi || (left < mid && SEGMENT_COMPARATOR.compare(fArray[left], fArray[right]) <= 0)) {
+                    fTemp[i] = fArray[left++];
+                } else {
+                    fTemp[i] = fArray[right++];
+                }
+            }
+            System.arraycopy(fTemp, fLo, fArray, fLo, fHi - fLo);
+        }
+    }
+
+    /**
+     * Parallel version of {@link BulkLoadSegmentStore#buildIndex}
+     */
+    private static final class IndexTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 3279406815716390155L;
+
+        private final ISegment[] fArray;
+        private final long[] fMaxEnd;
+        private final int fLo;
+        private final int fHi;
+
+        public IndexTask(ISegment[] array, long[] maxEnd, int lo, int hi) {
+            fArray = array;
+            fMaxEnd = maxEnd;
+            fLo = lo;
+            fHi = hi;
+        }
+
+        @Override
+        protected Long compute() {
+            if (fHi - fLo <= SEQUENTIAL_THRESHOLD) {
+                return buildIndex(fArray, fMaxEnd, fLo, fHi);
+            }
+            int mid = (fLo + fHi) >>> 1;
+            IndexTask left = new IndexTask(fArray, fMaxEnd, fLo, mid);
+            left.fork();
+            long max = Math.max(fArray[mid].getEnd(), new IndexTask(fArray, fMaxEnd, mid + 1, fHi).compute());
+            max = Math.max(max, left.join());
+            fMaxEnd[mid] = max;
+            return max;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Iteration
+    // ------------------------------------------------------------------------
+
+    /**
+     * In-order traversal of the implicit tree, skipping the subtrees whose
+     * segments all end before the range, and stopping at the first segment
+     * starting after it.
+     */
+    private static final class IntersectionIterator<T extends ISegment> implements Iterator<T> {
+
+        /* Deeper than any tree over an array */
+        private static final int MAX_DEPTH = 64;
+
+        private final ISegment[] fSegments;
+        private final long[] fMaxEnd;
+        private final long fStart;
+        private final long fEnd;
+
+        /* Ranges of the subtrees whose root is not visited yet */
+        private final int[] fStackLo = new int[MAX_DEPTH];
+        private final int[] fStackHi = new int[MAX_DEPTH];
+        private int fDepth = 0;
+
+        private int fNext;
+
+        public IntersectionIterator(ISegment[] segments, long[] maxEnd, long start, long end) {
+            fSegments = segments;
+            fMaxEnd = maxEnd;
+            fStart = start;
+            fEnd = end;
+            pushLeft(0, segments.length);
+            fNext = advance();
+        }
+
+        private void pushLeft(int lo, int hi) {
+            int subHi = hi;
+            while (lo < subHi) {
+                int mid = (lo + subHi) >>> 1;
+                if (fMaxEnd[mid] < fStart) {
+                    return;
+                }
+                fStackLo[fDepth] = lo;
+                fStackHi[fDepth] = subHi;
+                fDepth++;
+                subHi = mid;
+            }
+        }
+
+        private int advance() {
+            while (fDepth > 0) {
+                fDepth--;
+                int mid = (fStackLo[fDepth] + fStackHi[fDepth]) >>> 1;
+                ISegment segment = fSegments[mid];
+                if (segment.getStart() > fEnd) {
+                    /* All the following segments start after the range */
+                    fDepth = 0;
+                    return -1;
+                }
+                pushLeft(mid + 1, fStackHi[fDepth]);
+                if (segment.getEnd() >= fStart) {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (fNext >= 0);
+        }
+
+        @Override
+        public T next() {
+            if (fNext < 0) {
+                throw new NoSuchElementException();
+            }
+            T next = get(fSegments, fNext);
+            fNext = advance();
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.intervaltree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Implementation of a {@link ISegmentStore} using an augmented interval tree.
+ *
+ * The segments are kept in a balanced binary search tree (a treap), ordered by
+ * start time, then by end time, then by insertion order. Every node also holds
+ * the size of its subtree and the greatest end time in it, so that:
+ * <ul>
+ * <li>intersection queries only visit the subtrees which may contain a
+ * matching segment, and return the segments lazily, in start time order,
+ * without copying them;</li>
+ * <li>{@link #getElementAtIndex} finds the n-th segment, in start time order,
+ * in logarithmic time.</li>
+ * </ul>
+ *
+ * The nodes are immutable: adding a segment copies the nodes on its path from
+ * the root, and then publishes the new root. Queries and iterators work on the
+ * tree as it was when they started, without locking, so they can be used
+ * while segments are still being added.
+ *
+ * @param <T>
+ *            The type of segment held in this store
+ * @since 1.1
+ */
+public class IntervalTreeStore<T extends ISegment> implements ISegmentStore<T> {
+
+    private static final class Node<T extends ISegment> {
+        final T fSegment;
+        final int fPriority;
+        final @Nullable Node<T> fLeft;
+        final @Nullable Node<T> fRight;
+        final long fMaxEnd;
+        final int fSize;
+
+        Node(T segment, int priority, @Nullable Node<T> left, @Nullable Node<T> right) {
+            fSegment = segment;
+            fPriority = priority;
+            fLeft = left;
+            fRight = right;
+            long maxEnd = segment.getEnd();
+            int size = 1;
+            if (left != null) {
+                maxEnd = Math.max(maxEnd, left.fMaxEnd);
+                size += left.fSize;
+            }
+            if (right != null) {
+                maxEnd = Math.max(maxEnd, right.fMaxEnd);
+                size += right.fSize;
+            }
+            fMaxEnd = maxEnd;
+            fSize = size;
+        }
+    }
+
+    private volatile @Nullable Node<T> fRoot = null;
+
+    /* State of the priority generator, only used with the store's lock held */
+    private int fSeed = 0x2545F491;
+
+    /**
+     * Constructor
+     */
+    public IntervalTreeStore() {
+    }
+
+    // ------------------------------------------------------------------------
+    // ISegmentStore
+    // ------------------------------------------------------------------------
+
+    @Override
+    public synchronized void addElement(T elem) {
+        fRoot = insert(fRoot, elem, nextPriority());
+    }
+
+    @Override
+    public long getNbElements() {
+        Node<T> root = fRoot;
+        return (root == null ? 0 : root.fSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The index is the position of the element in start time order.
+     */
+    @Override
+    public T getElementAtIndex(long index) {
+        Node<T> node = fRoot;
+        long remaining = index;
+        while (node != null) {
+            Node<T> left = node.fLeft;
+            long leftSize = (left == null ? 0 : left.fSize);
+            if (remaining < leftSize) {
+                node = left;
+            } else if (remaining == leftSize) {
+                return node.fSegment;
+            } else {
+                remaining -= leftSize + 1;
+                node = node.fRight;
+            }
+        }
+        throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are iterated in start time order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new IntersectionIterator<>(fRoot, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are returned lazily, in start time order.
+     */
+    @Override
+    public Iterable<T> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are returned lazily, in start time order. Each iterator of
+     * the returned iterable sees the elements that were in the store when it
+     * was created.
+     */
+    @Override
+    public Iterable<T> getIntersectingElements(final long start, final long end) {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new IntersectionIterator<>(fRoot, start, end);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void dispose() {
+        fRoot = null;
+    }
+
+    // ------------------------------------------------------------------------
+    // Tree operations
+    // ------------------------------------------------------------------------
+
+    /*
+     * Xorshift generator, the priorities only need to be spread evenly to
+     * keep the tree balanced.
+     */
+    private int nextPriority() {
+        int x = fSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        fSeed = x;
+        return x;
+    }
+
+    /*
+     * Insert a segment in the subtree, returning the new subtree. Only the
+     * nodes on the path of the segment are copied. A segment equal to existing
+     * ones goes after them.
+     */
+    private static <T extends ISegment> Node<T> insert(@Nullable Node<T> node, T segment, int priority) {
+        if (node == null) {
+            return new Node<>(segment, priority, null, null);
+        }
+        if (compare(segment, node.fSegment) < 0) {
+            Node<T> left = insert(node.fLeft, segment, priority);
+            if (left.fPriority > node.fPriority) {
+                /* Rotate right */
+                return new Node<>(left.fSegment, left.fPriority, left.fLeft,
+                        new Node<>(node.fSegment, node.fPriority, left.fRight, node.fRight));
+            }
+            return new Node<>(node.fSegment, node.fPriority, left, node.fRight);
+        }
+        Node<T> right = insert(node.fRight, segment, priority);
+        if (right.fPriority > node.fPriority) {
+            /* Rotate left */
+            return new Node<>(right.fSegment, right.fPriority,
+                    new Node<>(node.fSegment, node.fPriority, node.fLeft, right.fLeft), right.fRight);
+        }
+        return new Node<>(node.fSegment, node.fPriority, node.fLeft, right);
+    }
+
+    private static int compare(ISegment s1, ISegment s2) {
+        int res = Long.compare(s1.getStart(), s2.getStart());
+        if (res != 0) {
+            return res;
+        }
+        return Long.compare(s1.getEnd(), s2.getEnd());
+    }
+
+    /**
+     * In-order traversal of the nodes intersecting a range. Subtrees whose
+     * segments all end before the range are skipped, and the traversal stops
+     * at the first segment starting after it.
+     */
+    private static final class IntersectionIterator<T extends ISegment> implements Iterator<T> {
+
+        private final long fStart;
+        private final long fEnd;
+        private final Deque<Node<T>> fStack = new ArrayDeque<>();
+        private @Nullable T fNext;
+
+        public IntersectionIterator(@Nullable Node<T> root, long start, long end) {
+            fStart = start;
+            fEnd = end;
+            pushLeft(root);
+            fNext = advance();
+        }
+
+        private void pushLeft(@Nullable Node<T> subtree) {
+            Node<T> node = subtree;
+            while (node != null && node.fMaxEnd >= fStart) {
+                fStack.push(node);
+                node = node.fLeft;
+            }
+        }
+
+        private @Nullable T advance() {
+            while (!fStack.isEmpty()) {
+                Node<T> node = fStack.pop();
+                if (node.fSegment.getStart() > fEnd) {
+                    /* All the following segments start after the range */
+                    fStack.clear();
+                    return null;
+                }
+                pushLeft(node.fRight);
+                if (node.fSegment.getEnd() >= fStart) {
+                    return node.fSegment;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (fNext != null);
+        }
+
+        @Override
+        public T next() {
+            T next = fNext;
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            fNext = advance();
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.mapped;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.tracecompass.segmentstore.core.BasicSegment;
+
+/**
+ * Codec for {@link BasicSegment}, which have no data other than their start
+ * and end times.
+ *
+ * @since 1.1
+ */
+public class BasicSegmentCodec implements ISegmentCodec<BasicSegment> {
+
+    @Override
+    public int getSize() {
+        return 0;
+    }
+
+    @Override
+    public void write(BasicSegment segment, ByteBuffer buffer) {
+        /* Nothing more to write */
+    }
+
+    @Override
+    public BasicSegment read(long start, long end, ByteBuffer buffer) {
+        return new BasicSegment(start, end);
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.mapped;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+
+/**
+ * Writes segments to, and reads them from, the fixed-width records of a
+ * {@link MappedFileSegmentStore}.
+ *
+ * The store itself writes the start and end times of the segments. The codec
+ * only handles the rest of their data, which must always take the same number
+ * of bytes.
+ *
+ * @param <T>
+ *            The type of segment
+ * @since 1.1
+ */
+public interface ISegmentCodec<T extends ISegment> {
+
+    /**
+     * Get the size of the data of a segment, other than its start and end
+     * times.
+     *
+     * @return The size, in bytes
+     */
+    int getSize();
+
+    /**
+     * Write the data of a segment, other than its start and end times. Exactly
+     * {@link #getSize()} bytes should be written, at the position of the
+     * buffer.
+     *
+     * @param segment
+     *            The segment to write
+     * @param buffer
+     *            The buffer in which to write
+     */
+    void write(T segment, ByteBuffer buffer);
+
+    /**
+     * Read a segment written by {@link #write}, from the position of the
+     * buffer.
+     *
+     * @param start
+     *            The start time of the segment
+     * @param end
+     *            The end time of the segment
+     * @param buffer
+     *            The buffer from which to read the rest of the segment
+     * @return The segment
+     */
+    T read(long start, long end, ByteBuffer buffer);
+}
@@ -0,0 +1,753 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.segmentstore.core.Activator;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Implementation of a {@link ISegmentStore} which keeps the segments on disk,
+ * for segment sets that would not fit in memory.
+ *
+ * The segments are added to an in-memory block. When it is full, the block is
+ * sorted by start time and written to its own file (a run), as fixed-width
+ * records whose format is given by a {@link ISegmentCodec}. The runs are
+ * memory-mapped and read directly from the mapping. When enough runs of the
+ * same size exist, they are merged into a bigger one, so there are only a few
+ * runs to look at for each query.
+ *
+ * For each run, only a small index is kept in memory: the greatest end time of
+ * every {@value #CHUNK_SIZE} segments. Intersection queries use it to skip the
+ * parts of the runs which end before the range, and binary searches on the
+ * start times to stop after it. The segments are decoded only when they are
+ * returned.
+ *
+ * Queries and iterators work on the runs as they were when they started, and
+ * can be used while segments are still being added.
+ *
+ * @param <T>
+ *            The type of segment held in this store
+ * @since 1.1
+ */
+public class MappedFileSegmentStore<T extends ISegment> implements ISegmentStore<T> {
+
+    /* Default number of segments of the in-memory block */
+    private static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    /* Number of runs of the same level which are merged together */
+    private static final int MERGE_FANOUT = 8;
+
+    /* Number of segments covered by an entry of the in-memory index */
+    private static final int CHUNK_SIZE = 1024;
+
+    /* Start and end times */
+    private static final int HEADER_SIZE = 2 * Long.SIZE / Byte.SIZE;
+
+    /* Size of the buffer used to write the runs */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final Comparator<ISegment> SEGMENT_COMPARATOR = new Comparator<ISegment>() {
+        @Override
+        public int compare(@Nullable ISegment o1, @Nullable ISegment o2) {
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException();
+            }
+            int res = Long.compare(o1.getStart(), o2.getStart());
+            if (res != 0) {
+                return res;
+            }
+            return Long.compare(o1.getEnd(), o2.getEnd());
+        }
+    };
+
+    private final File fDirectory;
+    private final ISegmentCodec<T> fCodec;
+    private final int fRecordSize;
+    private final int fBlockSize;
+
+    /* The runs on disk, oldest first. The list is replaced, never modified. */
+    private volatile List<MappedRun<T>> fRuns = Collections.emptyList();
+
+    /* The segments which are not written yet */
+    private final List<T> fBlock = new ArrayList<>();
+
+    /* Sorted copy of the block, for queries, or null if it changed since */
+    private @Nullable HeapRun<T> fSortedBlock = null;
+
+    private volatile long fSize = 0;
+
+    /* If the runs could not be written, the segments stay in memory */
+    private boolean fInMemory = false;
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            The directory in which to write the runs
+     * @param codec
+     *            The codec of the segments
+     */
+    public MappedFileSegmentStore(File directory, ISegmentCodec<T> codec) {
+        this(directory, codec, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            The directory in which to write the runs
+     * @param codec
+     *            The codec of the segments
+     * @param blockSize
+     *            The number of segments kept in memory before they are
+     *            written to disk
+     */
+    public MappedFileSegmentStore(File directory, ISegmentCodec<T> codec, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        fDirectory = directory;
+        fCodec = codec;
+        fRecordSize = HEADER_SIZE + codec.getSize();
+        fBlockSize = blockSize;
+    }
+
+    // ------------------------------------------------------------------------
+    // ISegmentStore
+    // ------------------------------------------------------------------------
+
+    @Override
+    public synchronized void addElement(T elem) {
+        fBlock.add(elem);
+        fSortedBlock = null;
+        fSize++;
+        if (fBlock.size() >= fBlockSize && !fInMemory) {
+            flushBlock();
+        }
+    }
+
+    @Override
+    public long getNbElements() {
+        return fSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The index is the position of the element in start time order.
+     */
+    @Override
+    public T getElementAtIndex(long index) {
+        List<Run<T>> runs = getRuns();
+        long total = 0;
+        long lo = Long.MAX_VALUE;
+        long hi = Long.MIN_VALUE;
+        for (Run<T> run : runs) {
+            total += run.size();
+            lo = Math.min(lo, run.getStart(0));
+            hi = Math.max(hi, run.getStart(run.size() - 1));
+        }
+        if (index < 0 || index >= total) {
+            throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+        }
+
+        /* Find the start time of the element: the first one with more elements up to it than the index */
+        while (lo < hi) {
+            long mid = lo + ((hi - lo) >>> 1);
+            long count = 0;
+            for (Run<T> run : runs) {
+                count += run.upperBound(mid);
+            }
+            if (count > index) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+
+        /* Elements with the same start time are ordered by run, like in the iterators */
+        long offset = index;
+        for (Run<T> run : runs) {
+            offset -= run.lowerBound(lo);
+        }
+        for (Run<T> run : runs) {
+            long first = run.lowerBound(lo);
+            long count = run.upperBound(lo) - first;
+            if (offset < count) {
+                return run.get(first + offset);
+            }
+            offset -= count;
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are iterated in start time order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new IntersectionIterator<>(getRuns(), Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are returned lazily, in start time order.
+     */
+    @Override
+    public Iterable<T> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The elements are returned lazily, in start time order. Each iterator of
+     * the returned iterable sees the elements that were in the store when it
+     * was created.
+     */
+    @Override
+    public Iterable<T> getIntersectingElements(final long start, final long end) {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new IntersectionIterator<>(getRuns(), start, end);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The files of the runs are deleted.
+     */
+    @Override
+    public synchronized void dispose() {
+        for (MappedRun<T> run : fRuns) {
+            run.delete();
+        }
+        fRuns = Collections.emptyList();
+        fBlock.clear();
+        fSortedBlock = null;
+        fSize = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // Runs management
+    // ------------------------------------------------------------------------
+
+    /*
+     * Get the runs to query, including the current block, which is sorted if
+     * needed.
+     */
+    private synchronized List<Run<T>> getRuns() {
+        List<Run<T>> runs = new ArrayList<Run<T>>(fRuns);
+        if (!fBlock.isEmpty()) {
+            HeapRun<T> sortedBlock = fSortedBlock;
+            if (sortedBlock == null) {
+                sortedBlock = HeapRun.sort(fBlock);
+                fSortedBlock = sortedBlock;
+            }
+            runs.add(sortedBlock);
+        }
+        return runs;
+    }
+
+    private void flushBlock() {
+        List<MappedRun<T>> runs = new ArrayList<>(fRuns);
+        HeapRun<T> block = fSortedBlock;
+        if (block == null) {
+            block = HeapRun.sort(fBlock);
+        }
+        RunWriter writer = null;
+        try {
+            writer = new RunWriter(block.size());
+            for (int i = 0; i < block.size(); i++) {
+                writer.append(block.get(i));
+            }
+            runs.add(writer.finish(0));
+        } catch (IOException e) {
+            Activator.instance().logError("Could not write the segments to disk, keeping them in memory", e); //$NON-NLS-1$
+            if (writer != null) {
+                writer.abort();
+            }
+            fInMemory = true;
+            return;
+        }
+        fBlock.clear();
+        fSortedBlock = null;
+
+        /* Merge the last runs while there are enough of the same level */
+        while (runs.size() >= MERGE_FANOUT) {
+            List<MappedRun<T>> last = runs.subList(runs.size() - MERGE_FANOUT, runs.size());
+            int level = last.get(0).fLevel;
+            if (last.get(last.size() - 1).fLevel != level) {
+                break;
+            }
+            try {
+                MappedRun<T> merged = merge(last, level + 1);
+                for (MappedRun<T> run : last) {
+                    run.delete();
+                }
+                last.clear();
+                runs.add(merged);
+            } catch (IOException e) {
+                /* The runs are still usable, only slower to query */
+                Activator.instance().logError("Could not merge the segment runs", e); //$NON-NLS-1$
+                break;
+            }
+        }
+        fRuns = Collections.unmodifiableList(runs);
+    }
+
+    private MappedRun<T> merge(List<MappedRun<T>> runs, int level) throws IOException {
+        long total = 0;
+        PriorityQueue<RunCursor<T>> queue = new PriorityQueue<>(runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            MappedRun<T> run = runs.get(i);
+            total += run.size();
+            RunCursor<T> cursor = new RunCursor<T>(run, i, 0, run.size(), Long.MIN_VALUE);
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+        RunWriter writer = new RunWriter(total);
+        try {
+            while (!queue.isEmpty()) {
+                RunCursor<T> cursor = queue.poll();
+                writer.copy((MappedRun<T>) cursor.fRun, cursor.fPos);
+                cursor.fPos++;
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            return writer.finish(level);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a run to a new file, then maps it
+     */
+    private final class RunWriter {
+
+        private final File fFile;
+        private final RandomAccessFile fRaf;
+        private final FileChannel fChannel;
+        private final ByteBuffer fBuffer;
+        private final long fSize;
+        private final long[] fChunkMaxEnd;
+        private long fCount = 0;
+
+        public RunWriter(long size) throws IOException {
+            fFile = File.createTempFile("segments", ".run", fDirectory); //$NON-NLS-1$ //$NON-NLS-2$
+            fRaf = new RandomAccessFile(fFile, "rw"); //$NON-NLS-1$
+            fChannel = fRaf.getChannel();
+            fBuffer = ByteBuffer.allocate(Math.max(1, WRITE_BUFFER_SIZE / fRecordSize) * fRecordSize);
+            fSize = size;
+            fChunkMaxEnd = new long[Run.nbChunks(size)];
+            Arrays.fill(fChunkMaxEnd, Long.MIN_VALUE);
+        }
+
+        public void append(T segment) throws IOException {
+            prepareRecord(segment.getEnd());
+            int position = fBuffer.position();
+            fBuffer.putLong(segment.getStart());
+            fBuffer.putLong(segment.getEnd());
+            fCodec.write(segment, fBuffer);
+            if (fBuffer.position() != position + fRecordSize) {
+                throw new IllegalStateException("Wrong size of segment record: " + (fBuffer.position() - position)); //$NON-NLS-1$
+            }
+        }
+
+        public void copy(MappedRun<T> run, long index) throws IOException {
+            prepareRecord(run.getEnd(index));
+            fBuffer.put(run.getRecord(index));
+        }
+
+        private void prepareRecord(long end) throws IOException {
+            if (fBuffer.remaining() < fRecordSize) {
+                flush();
+            }
+            int chunk = (int) (fCount / CHUNK_SIZE);
+            fChunkMaxEnd[chunk] = Math.max(fChunkMaxEnd[chunk], end);
+            fCount++;
+        }
+
+        private void flush() throws IOException {
+            fBuffer.flip();
+            while (fBuffer.hasRemaining()) {
+                fChannel.write(fBuffer);
+            }
+            fBuffer.clear();
+        }
+
+        public MappedRun<T> finish(int level) throws IOException {
+            if (fCount != fSize) {
+                throw new IllegalStateException("Expected " + fSize + " segments, got " + fCount); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            flush();
+
+            /* A mapping cannot be bigger than 2 GB */
+            int recordsPerBuffer = Integer.MAX_VALUE / fRecordSize;
+            int nbBuffers = (int) ((fSize + recordsPerBuffer - 1) / recordsPerBuffer);
+            MappedByteBuffer[] buffers = new MappedByteBuffer[nbBuffers];
+            for (int i = 0; i < nbBuffers; i++) {
+                long first = (long) i * recordsPerBuffer;
+                long count = Math.min(recordsPerBuffer, fSize - first);
+                buffers[i] = fChannel.map(MapMode.READ_ONLY, first * fRecordSize, count * fRecordSize);
+            }
+            /* The mappings stay valid after the file is closed */
+            fRaf.close();
+            return new MappedRun<>(fFile, buffers, recordsPerBuffer, fRecordSize, fSize, fChunkMaxEnd, fCodec, level);
+        }
+
+        public void abort() {
+            try {
+                fRaf.close();
+            } catch (IOException e) {
+                Activator.instance().logError(e.getMessage(), e);
+            }
+            fFile.delete();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Runs
+    // ------------------------------------------------------------------------
+
+    /**
+     * A sequence of segments sorted by start time, with the greatest end time
+     * of each chunk of segments.
+     */
+    private abstract static class Run<T extends ISegment> {
+
+        private final long[] fChunkMaxEnd;
+        /* Greatest end time up to the end of each chunk, increasing */
+        private final long[] fPrefixMaxEnd;
+
+        protected Run(long[] chunkMaxEnd) {
+            fChunkMaxEnd = chunkMaxEnd;
+            fPrefixMaxEnd = new long[chunkMaxEnd.length];
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < chunkMaxEnd.length; i++) {
+                max = Math.max(max, chunkMaxEnd[i]);
+                fPrefixMaxEnd[i] = max;
+            }
+        }
+
+        public static int nbChunks(long size) {
+            return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+
+        public abstract long size();
+
+        public abstract long getStart(long index);
+
+        public abstract long getEnd(long index);
+
+        public abstract T get(long index);
+
+        /* Index of the first segment starting at or after the time */
+        public long lowerBound(long time) {
+            long lo = 0;
+            long hi = size();
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (getStart(mid) < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /* Index of the first segment starting after the time */
+        public long upperBound(long time) {
+            long lo = 0;
+            long hi = size();
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (getStart(mid) <= time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /* Index of the first chunk that has a segment ending at or after the time */
+        public long firstCandidate(long time) {
+            int lo = 0;
+            int hi = fPrefixMaxEnd.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (fPrefixMaxEnd[mid] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return (long) lo * CHUNK_SIZE;
+        }
+
+        /* If all the segments of the chunk of this index end before the time */
+        public boolean chunkEndsBefore(long index, long time) {
+            return fChunkMaxEnd[(int) (index / CHUNK_SIZE)] < time;
+        }
+    }
+
+    /**
+     * Run of the segments which are not written yet
+     */
+    private static final class HeapRun<T extends ISegment> extends Run<T> {
+
+        private final List<T> fSegments;
+
+        private HeapRun(List<T> sorted, long[] chunkMaxEnd) {
+            super(chunkMaxEnd);
+            fSegments = sorted;
+        }
+
+        public static <T extends ISegment> HeapRun<T> sort(List<T> block) {
+            List<T> sorted = new ArrayList<>(block);
+            Collections.sort(sorted, SEGMENT_COMPARATOR);
+            return new HeapRun<>(sorted, chunkMaxEnd(sorted));
+        }
+
+        private static long[] chunkMaxEnd(List<? extends ISegment> sorted) {
+            long[] chunkMaxEnd = new long[nbChunks(sorted.size())];
+            Arrays.fill(chunkMaxEnd, Long.MIN_VALUE);
+            for (int i = 0; i < sorted.size(); i++) {
+                int chunk = i / CHUNK_SIZE;
+                chunkMaxEnd[chunk] = Math.max(chunkMaxEnd[chunk], sorted.get(i).getEnd());
+            }
+            return chunkMaxEnd;
+        }
+
+        @Override
+        public long size() {
+            return fSegments.size();
+        }
+
+        @Override
+        public long getStart(long index) {
+            return fSegments.get((int) index).getStart();
+        }
+
+        @Override
+        public long getEnd(long index) {
+            return fSegments.get((int) index).getEnd();
+        }
+
+        @Override
+        public T get(long index) {
+            return fSegments.get((int) index);
+        }
+    }
+
+    /**
+     * Run written to a file, read from its mappings
+     */
+    private static final class MappedRun<T extends ISegment> extends Run<T> {
+
+        private final File fFile;
+        private final ByteBuffer[] fBuffers;
+        private final int fRecordsPerBuffer;
+        private final int fRecordSize;
+        private final long fSize;
+        private final ISegmentCodec<T> fCodec;
+        private final int fLevel;
+
+        public MappedRun(File file, ByteBuffer[] buffers, int recordsPerBuffer, int recordSize,
+                long size, long[] chunkMaxEnd, ISegmentCodec<T> codec, int level) {
+            super(chunkMaxEnd);
+            fFile = file;
+            fBuffers = buffers;
+            fRecordsPerBuffer = recordsPerBuffer;
+            fRecordSize = recordSize;
+            fSize = size;
+            fCodec = codec;
+            fLevel = level;
+        }
+
+        @Override
+        public long size() {
+            return fSize;
+        }
+
+        private ByteBuffer getBuffer(long index) {
+            return fBuffers[(int) (index / fRecordsPerBuffer)];
+        }
+
+        private int getOffset(long index) {
+            return (int) (index % fRecordsPerBuffer) * fRecordSize;
+        }
+
+        @Override
+        public long getStart(long index) {
+            return getBuffer(index).getLong(getOffset(index));
+        }
+
+        @Override
+        public long getEnd(long index) {
+            return getBuffer(index).getLong(getOffset(index) + HEADER_SIZE / 2);
+        }
+
+        @Override
+        public T get(long index) {
+            ByteBuffer record = getRecord(index);
+            long start = record.getLong();
+            long end = record.getLong();
+            return fCodec.read(start, end, record);
+        }
+
+        /* The buffers are shared, each reader works on its own view */
+        public ByteBuffer getRecord(long index) {
+            ByteBuffer record = getBuffer(index).duplicate();
+            int offset = getOffset(index);
+            record.limit(offset + fRecordSize);
+            record.position(offset);
+            return record;
+        }
+
+        public void delete() {
+            /*
+             * Iterators may still be reading the mappings. They remain valid
+             * where the file can be deleted while it is mapped.
+             */
+            if (!fFile.delete()) {
+                fFile.deleteOnExit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Iteration
+    // ------------------------------------------------------------------------
+
+    /**
+     * Position in a run, moving through the segments which may intersect a
+     * range
+     */
+    private static final class RunCursor<T extends ISegment> implements Comparable<RunCursor<T>> {
+
+        private final Run<T> fRun;
+        private final int fOrder;
+        private final long fLimit;
+        private final long fTime;
+        private long fPos;
+        private long fCurrentStart;
+
+        public RunCursor(Run<T> run, int order, long first, long limit, long time) {
+            fRun = run;
+            fOrder = order;
+            fPos = first;
+            fLimit = limit;
+            fTime = time;
+        }
+
+        /* Move to the next segment ending at or after the time, starting from the current one */
+        public boolean advance() {
+            while (fPos < fLimit) {
+                if (fPos % CHUNK_SIZE == 0 && fRun.chunkEndsBefore(fPos, fTime)) {
+                    fPos += CHUNK_SIZE;
+                    continue;
+                }
+                if (fRun.getEnd(fPos) >= fTime) {
+                    fCurrentStart = fRun.getStart(fPos);
+                    return true;
+                }
+                fPos++;
+            }
+            return false;
+        }
+
+        @Override
+        public int compareTo(@Nullable RunCursor<T> o) {
+            if (o == null) {
+                throw new IllegalArgumentException();
+            }
+            int res = Long.compare(fCurrentStart, o.fCurrentStart);
+            if (res != 0) {
+                return res;
+            }
+            return Integer.compare(fOrder, o.fOrder);
+        }
+    }
+
+    /**
+     * Merges the segments of the runs intersecting a range, in start time
+     * order
+     */
+    private static final class IntersectionIterator<T extends ISegment> implements Iterator<T> {
+
+        private final PriorityQueue<RunCursor<T>> fQueue;
+
+        public IntersectionIterator(List<Run<T>> runs, long start, long end) {
+            fQueue = new PriorityQueue<>(Math.max(1, runs.size()));
+            for (int i = 0; i < runs.size(); i++) {
+                Run<T> run = runs.get(i);
+                RunCursor<T> cursor = new RunCursor<>(run, i, run.firstCandidate(start), run.upperBound(end), start);
+                if (cursor.advance()) {
+                    fQueue.add(cursor);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !fQueue.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            RunCursor<T> cursor = fQueue.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            T next = cursor.fRun.get(cursor.fPos);
+            cursor.fPos++;
+            if (cursor.advance()) {
+                fQueue.add(cursor);
+            }
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
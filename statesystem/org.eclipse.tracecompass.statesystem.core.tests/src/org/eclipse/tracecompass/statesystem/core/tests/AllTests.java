@@ -21,8 +21,11 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+        AttributeTreeTest.class,
         StateSystemPushPopTest.class,
+        StateSystemQuery2DTest.class,
         StateSystemUtilsTest.class,
+        TransientStateTest.class,
         org.eclipse.tracecompass.statesystem.core.tests.backend.AllTests.class,
         org.eclipse.tracecompass.statesystem.core.tests.statevalue.AllTests.class
 })
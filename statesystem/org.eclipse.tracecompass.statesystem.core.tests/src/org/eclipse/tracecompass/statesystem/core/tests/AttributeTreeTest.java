@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the resolution of the attribute paths through the index of the
+ * attribute tree
+ */
+public class AttributeTreeTest {
+
+    private static final @NonNull String SSID = "test-ss";
+    private static final int NB_THREADS = 2000;
+
+    private ITmfStateSystemBuilder fSs;
+
+    /**
+     * Create the state system
+     */
+    @Before
+    public void setup() {
+        fSs = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createNullBackend(SSID));
+    }
+
+    /**
+     * Dispose the state system
+     */
+    @After
+    public void cleanup() {
+        fSs.dispose();
+    }
+
+    private static String[] threadPath(int tid, String attribute) {
+        return new String[] { "Threads", String.valueOf(tid), attribute };
+    }
+
+    /**
+     * Test many attributes, more than the initial size of the index, and that
+     * absolute and relative paths resolve to the same quarks
+     *
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    @Test
+    public void testManyAttributes() throws AttributeNotFoundException {
+        int[] quarks = new int[NB_THREADS];
+        for (int tid = 0; tid < NB_THREADS; tid++) {
+            quarks[tid] = fSs.getQuarkAbsoluteAndAdd(threadPath(tid, "Status"));
+            fSs.getQuarkAbsoluteAndAdd(threadPath(tid, "Exec_name"));
+        }
+        /* "Threads", the thread attributes and their two sub-attributes */
+        assertEquals(1 + NB_THREADS * 3, fSs.getNbAttributes());
+
+        int threadsQuark = fSs.getQuarkAbsolute("Threads");
+        for (int tid = 0; tid < NB_THREADS; tid++) {
+            assertEquals(quarks[tid], fSs.getQuarkAbsolute(threadPath(tid, "Status")));
+            assertEquals(quarks[tid], fSs.getQuarkAbsoluteAndAdd(threadPath(tid, "Status")));
+            assertEquals(quarks[tid], fSs.getQuarkRelative(threadsQuark, String.valueOf(tid), "Status"));
+            int threadQuark = fSs.getParentAttributeQuark(quarks[tid]);
+            assertEquals(quarks[tid], fSs.getQuarkRelative(threadQuark, "Status"));
+            assertArrayEquals(threadPath(tid, "Status"), fSs.getFullAttributePathArray(quarks[tid]));
+        }
+        /* Nothing was added by the lookups */
+        assertEquals(1 + NB_THREADS * 3, fSs.getNbAttributes());
+    }
+
+    /**
+     * Test paths with the same characters split differently, and names whose
+     * hash codes are the same
+     *
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    @Test
+    public void testSimilarPaths() throws AttributeNotFoundException {
+        String[][] paths = {
+                { "abc" }, { "ab", "c" }, { "a", "bc" }, { "a", "b", "c" },
+                /* "Aa" and "BB" have the same hash code */
+                { "Aa" }, { "BB" }, { "Aa", "BB" }, { "BB", "Aa" },
+                { "" }, { "", "" }
+        };
+        List<Integer> quarks = new ArrayList<>();
+        for (String[] path : paths) {
+            int quark = fSs.getQuarkAbsoluteAndAdd(path);
+            assertFalse(quarks.contains(quark));
+            quarks.add(quark);
+        }
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals((int) quarks.get(i), fSs.getQuarkAbsolute(paths[i]));
+            assertArrayEquals(paths[i], fSs.getFullAttributePathArray(quarks.get(i)));
+        }
+        int quark = fSs.getQuarkAbsolute("a");
+        assertEquals(fSs.getQuarkAbsolute("a", "b", "c"), fSs.getQuarkRelative(quark, "b", "c"));
+        assertNotEquals(fSs.getQuarkAbsolute("ab", "c"), fSs.getQuarkRelative(quark, "b", "c"));
+    }
+
+    /**
+     * Test looking up paths which do not exist
+     */
+    @Test
+    public void testMissingPaths() {
+        fSs.getQuarkAbsoluteAndAdd("Threads", "1", "Status");
+        int quark = fSs.getQuarkAbsoluteAndAdd("CPUs", "1");
+        String[][] missing = {
+                { "Threads", "2" }, { "Threads", "1", "Status", "Sub" }, { "Status" }, { "1", "Status" }
+        };
+        for (String[] path : missing) {
+            try {
+                fSs.getQuarkAbsolute(path);
+                fail();
+            } catch (AttributeNotFoundException e) {
+                /* Expected */
+            }
+        }
+        /* A path which exists, but not under this attribute */
+        try {
+            fSs.getQuarkRelative(quark, "Status");
+            fail();
+        } catch (AttributeNotFoundException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test resolving several paths below the same attribute, some of which
+     * exist already
+     *
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    @Test
+    public void testQuarksRelativeAndAdd() throws AttributeNotFoundException {
+        int threadQuark = fSs.getQuarkAbsoluteAndAdd("Threads", "1");
+        int statusQuark = fSs.getQuarkRelativeAndAdd(threadQuark, "Status");
+        int nbAttributes = fSs.getNbAttributes();
+
+        int[] quarks = fSs.getQuarksRelativeAndAdd(threadQuark,
+                new String[] { "Exec_name" },
+                new String[] { "Status" },
+                new String[] { "System_call", "Name" },
+                new String[] { "Exec_name" });
+        assertEquals(4, quarks.length);
+        assertEquals(statusQuark, quarks[1]);
+        assertEquals(quarks[0], quarks[3]);
+        assertEquals(quarks[0], fSs.getQuarkRelative(threadQuark, "Exec_name"));
+        assertEquals(quarks[2], fSs.getQuarkRelative(threadQuark, "System_call", "Name"));
+        /* The new attributes are created in order, like one path at a time */
+        assertEquals(nbAttributes, quarks[0]);
+        assertEquals(nbAttributes + 2, quarks[2]);
+        assertEquals(nbAttributes + 3, fSs.getNbAttributes());
+    }
+
+    /**
+     * Test looking up attributes from other threads while new ones are added
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final int[] quarks = new int[NB_THREADS];
+        for (int tid = 0; tid < NB_THREADS / 2; tid++) {
+            quarks[tid] = fSs.getQuarkAbsoluteAndAdd(threadPath(tid, "Status"));
+        }
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Random random = new Random(i);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < 100000; n++) {
+                            int tid = random.nextInt(NB_THREADS / 2);
+                            assertEquals(quarks[tid], fSs.getQuarkAbsolute(threadPath(tid, "Status")));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        /* The index and the attribute array grow while being read */
+        for (int tid = NB_THREADS / 2; tid < NB_THREADS; tid++) {
+            quarks[tid] = fSs.getQuarkAbsoluteAndAdd(threadPath(tid, "Status"));
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        for (int tid = 0; tid < NB_THREADS; tid++) {
+            assertEquals(quarks[tid], fSs.getQuarkAbsolute(threadPath(tid, "Status")));
+        }
+    }
+}
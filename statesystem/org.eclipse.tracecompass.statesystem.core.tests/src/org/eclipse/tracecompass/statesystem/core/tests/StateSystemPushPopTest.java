@@ -16,11 +16,13 @@ package org.eclipse.tracecompass.statesystem.core.tests;
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
@@ -298,4 +300,37 @@ public class StateSystemPushPopTest {
             fail(errMsg + e.toString());
         }
     }
+
+    /**
+     * Test full-queries reusing the same list
+     */
+    @Test
+    public void testFullQueriesReuse() {
+        try {
+            final int subAttrib1 = ss.getQuarkRelative(attribute, "1");
+            final int nbAttributes = ss.getNbAttributes();
+
+            /* Start with a list that is too big, it should be trimmed */
+            List<ITmfStateInterval> reuse = new ArrayList<>();
+            for (int i = 0; i < nbAttributes + 5; i++) {
+                reuse.add(null);
+            }
+
+            List<ITmfStateInterval> state = ss.queryFullState(10, reuse);
+            assertSame(reuse, state);
+            assertEquals(nbAttributes, state.size());
+            assertEquals(5, state.get(attribute).getStateValue().unboxInt());
+            assertEquals(value1, state.get(subAttrib1).getStateValue());
+
+            state = ss.queryFullState(18, reuse);
+            assertSame(reuse, state);
+            assertEquals(nbAttributes, state.size());
+            assertTrue(state.get(attribute).getStateValue().isNull());
+            assertTrue(state.get(subAttrib1).getStateValue().isNull());
+            assertEquals(ss.queryFullState(18), state);
+
+        } catch (AttributeNotFoundException | TimeRangeException | StateSystemDisposedException e) {
+            fail(errMsg + e.toString());
+        }
+    }
 }
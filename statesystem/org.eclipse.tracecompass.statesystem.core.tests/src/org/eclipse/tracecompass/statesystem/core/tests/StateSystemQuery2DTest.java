@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.tests.backend.HistoryTreeQuery2DTest;
+import org.junit.Test;
+
+/**
+ * Test the two-dimensional queries of the state system, on backends which
+ * cannot do them and while intervals are being committed
+ */
+public class StateSystemQuery2DTest {
+
+    private static final @NonNull String SSID = "test-ss";
+    private static final long END_TIME = 5000;
+
+    /**
+     * Backend which only forwards the calls to another one
+     */
+    private static class ForwardingBackend implements IStateHistoryBackend {
+
+        protected final IStateHistoryBackend fBackend;
+
+        public ForwardingBackend(IStateHistoryBackend backend) {
+            fBackend = backend;
+        }
+
+        @Override
+        public String getSSID() {
+            return fBackend.getSSID();
+        }
+
+        @Override
+        public long getStartTime() {
+            return fBackend.getStartTime();
+        }
+
+        @Override
+        public long getEndTime() {
+            return fBackend.getEndTime();
+        }
+
+        @Override
+        public void insertPastState(long stateStartTime, long stateEndTime, int quark, ITmfStateValue value) throws TimeRangeException {
+            fBackend.insertPastState(stateStartTime, stateEndTime, quark, value);
+        }
+
+        @Override
+        public void finishedBuilding(long endTime) throws TimeRangeException {
+            fBackend.finishedBuilding(endTime);
+        }
+
+        @Override
+        public FileInputStream supplyAttributeTreeReader() {
+            return fBackend.supplyAttributeTreeReader();
+        }
+
+        @Override
+        public File supplyAttributeTreeWriterFile() {
+            return fBackend.supplyAttributeTreeWriterFile();
+        }
+
+        @Override
+        public long supplyAttributeTreeWriterFilePosition() {
+            return fBackend.supplyAttributeTreeWriterFilePosition();
+        }
+
+        @Override
+        public void removeFiles() {
+            fBackend.removeFiles();
+        }
+
+        @Override
+        public void dispose() {
+            fBackend.dispose();
+        }
+
+        @Override
+        public void doQuery(List<ITmfStateInterval> currentStateInfo, long t) throws TimeRangeException, StateSystemDisposedException {
+            fBackend.doQuery(currentStateInfo, t);
+        }
+
+        @Override
+        public ITmfStateInterval doSingularQuery(long t, int attributeQuark) throws TimeRangeException, AttributeNotFoundException, StateSystemDisposedException {
+            return fBackend.doSingularQuery(t, attributeQuark);
+        }
+
+        @Override
+        public void debugPrint(PrintWriter writer) {
+            fBackend.debugPrint(writer);
+        }
+    }
+
+    /**
+     * Backend which commits the ongoing states of the state system when a
+     * two-dimensional query starts, like the state provider could do from
+     * another thread
+     */
+    private static class CommittingBackend extends ForwardingBackend implements IStateHistoryBackend2D {
+
+        private ITmfStateSystemBuilder fStateSystem = null;
+        private long fCommitTime;
+
+        public CommittingBackend(IStateHistoryBackend backend) {
+            super(backend);
+        }
+
+        public void commitOnNextQuery(ITmfStateSystemBuilder ss, long time) {
+            fStateSystem = ss;
+            fCommitTime = time;
+        }
+
+        @Override
+        public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2) throws TimeRangeException, StateSystemDisposedException {
+            return doQuery2D(quarks, t1, t2, 1);
+        }
+
+        @Override
+        public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2, long resolution)
+                throws TimeRangeException, StateSystemDisposedException {
+            ITmfStateSystemBuilder ss = fStateSystem;
+            if (ss != null) {
+                fStateSystem = null;
+                try {
+                    for (Integer quark : quarks) {
+                        ss.modifyAttribute(fCommitTime, TmfStateValue.newValueLong(-1), quark);
+                    }
+                } catch (AttributeNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return ((IStateHistoryBackend2D) fBackend).doQuery2D(quarks, t1, t2, resolution);
+        }
+    }
+
+    /**
+     * Test the queries on a backend which can only do singular queries
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testSingularQueryBackend() throws Exception {
+        IStateHistoryBackend backend = new ForwardingBackend(StateHistoryBackendFactory.createInMemoryBackend(SSID, 0));
+        assertFalse(backend instanceof IStateHistoryBackend2D);
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend);
+        List<Integer> quarks = HistoryTreeQuery2DTest.insertStates(ss, 0, END_TIME / 2);
+
+        /* While building, the ongoing states come from the transient state */
+        HistoryTreeQuery2DTest.checkQuery2D(ss, quarks, 0, END_TIME / 2, 1);
+        HistoryTreeQuery2DTest.checkQuery2D(ss, quarks, 100, END_TIME / 2, 37);
+
+        HistoryTreeQuery2DTest.insertStates(ss, END_TIME / 2 + 1, END_TIME);
+        ss.closeHistory(END_TIME);
+        HistoryTreeQuery2DTest.checkQuery2D(ss, quarks, 0, END_TIME, 1);
+        HistoryTreeQuery2DTest.checkQuery2D(ss, quarks, 1000, 1000, 1);
+        HistoryTreeQuery2DTest.checkQuery2D(ss, quarks, 10, END_TIME - 10, 101);
+        ss.dispose();
+    }
+
+    /**
+     * Test that an ongoing state committed to the backend during a query is
+     * only returned once
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testCommittedDuringQuery() throws Exception {
+        CommittingBackend backend = new CommittingBackend(StateHistoryBackendFactory.createInMemoryBackend(SSID, 0));
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend);
+        List<Integer> quarks = HistoryTreeQuery2DTest.insertStates(ss, 0, END_TIME);
+
+        backend.commitOnNextQuery(ss, END_TIME + 1);
+        Set<String> starts = new HashSet<>();
+        int nbCommitted = 0;
+        for (ITmfStateInterval interval : ss.query2D(quarks, END_TIME - 100, END_TIME)) {
+            assertTrue(starts.add(interval.getAttribute() + ":" + interval.getStartTime()));
+            if (interval.getEndTime() == END_TIME) {
+                nbCommitted++;
+            }
+        }
+        /* Some intervals were committed during the query, and returned once */
+        assertTrue(nbCommitted > 0);
+        ss.dispose();
+    }
+}
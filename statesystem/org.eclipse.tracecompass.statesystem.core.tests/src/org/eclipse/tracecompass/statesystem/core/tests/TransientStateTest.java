@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.TransientState;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the transient state, which is modified by the thread building the
+ * state system while other threads query it without any lock
+ */
+public class TransientStateTest {
+
+    private static final @NonNull String SSID = "test-ss";
+    private static final int NB_ATTRIBUTES = 8;
+    private static final int NB_CHANGES = 200000;
+    private static final int NB_READERS = 4;
+
+    private TransientState fTransientState;
+
+    /**
+     * Reader thread, which checks every interval it reads until the writer is
+     * done
+     */
+    private abstract class Reader extends Thread {
+
+        private final AtomicBoolean fDone;
+        private final AtomicReference<Throwable> fError;
+        protected final Random fRandom;
+
+        public Reader(int seed, AtomicBoolean done, AtomicReference<Throwable> error) {
+            fRandom = new Random(seed);
+            fDone = done;
+            fError = error;
+        }
+
+        @Override
+        public void run() {
+            try {
+                /* Read at least once after the writer is done */
+                boolean done;
+                do {
+                    done = fDone.get();
+                    read();
+                } while (!done);
+            } catch (Throwable e) {
+                fError.compareAndSet(null, e);
+            }
+        }
+
+        protected abstract void read() throws AttributeNotFoundException;
+    }
+
+    /**
+     * Create the transient state
+     */
+    @Before
+    public void setup() {
+        fTransientState = new TransientState(StateHistoryBackendFactory.createNullBackend(SSID));
+    }
+
+    /*
+     * The states written by the tests have their start time as value, so a
+     * torn read, of which the start time and the value come from different
+     * writes, does not match. The initial null states start at 0.
+     */
+    private static void checkInterval(ITmfStateInterval interval, int quark) {
+        assertEquals(quark, interval.getAttribute());
+        ITmfStateValue value = interval.getStateValue();
+        if (value.isNull()) {
+            assertEquals(0, interval.getStartTime());
+        } else {
+            assertEquals(interval.getStartTime(), value.unboxLong());
+        }
+    }
+
+    private static void runReaders(List<Reader> readers, AtomicBoolean done, AtomicReference<Throwable> error,
+            Runnable writer) throws InterruptedException {
+        for (Reader reader : readers) {
+            reader.start();
+        }
+        try {
+            writer.run();
+        } finally {
+            done.set(true);
+            for (Reader reader : readers) {
+                reader.join();
+            }
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    private static List<ITmfStateInterval> newStateInfo(int size) {
+        List<ITmfStateInterval> stateInfo = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stateInfo.add(null);
+        }
+        return stateInfo;
+    }
+
+    /**
+     * Test that readers never see a start time and a value from different
+     * writes, while the writer modifies the ongoing states
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentReads() throws Exception {
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            fTransientState.addEmptyEntry();
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Reader> readers = new ArrayList<>();
+        for (int i = 0; i < NB_READERS; i++) {
+            readers.add(new Reader(i, done, error) {
+                private final long[] fLastStarts = new long[NB_ATTRIBUTES];
+
+                @Override
+                protected void read() throws AttributeNotFoundException {
+                    List<ITmfStateInterval> stateInfo = newStateInfo(NB_ATTRIBUTES);
+                    fTransientState.doQuery(stateInfo, Long.MAX_VALUE);
+                    for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                        checkStart(stateInfo.get(quark), quark);
+                    }
+                    int quark = fRandom.nextInt(NB_ATTRIBUTES);
+                    checkStart(fTransientState.getOngoingInterval(quark), quark);
+                }
+
+                /* The states of an attribute are only read forward */
+                private void checkStart(ITmfStateInterval interval, int quark) {
+                    checkInterval(interval, quark);
+                    assertTrue(interval.getStartTime() >= fLastStarts[quark]);
+                    fLastStarts[quark] = interval.getStartTime();
+                }
+            });
+        }
+
+        runReaders(readers, done, error, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < NB_CHANGES; i++) {
+                        long t = i + 1;
+                        fTransientState.processStateChange(t, TmfStateValue.newValueLong(t), i % NB_ATTRIBUTES);
+                    }
+                } catch (AttributeNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+            ITmfStateInterval interval = fTransientState.getOngoingInterval(quark);
+            assertEquals(NB_CHANGES - NB_ATTRIBUTES + quark + 1, interval.getStartTime());
+            checkInterval(interval, quark);
+        }
+    }
+
+    /**
+     * Test reading the attributes while new ones are added, which replaces
+     * the arrays of ongoing states
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentGrowth() throws Exception {
+        final int nbAttributes = NB_CHANGES / 20;
+        final AtomicInteger nbAdded = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Reader> readers = new ArrayList<>();
+        for (int i = 0; i < NB_READERS; i++) {
+            readers.add(new Reader(i, done, error) {
+                @Override
+                protected void read() throws AttributeNotFoundException {
+                    int size = nbAdded.get();
+                    if (size == 0) {
+                        return;
+                    }
+                    int quark = fRandom.nextInt(size);
+                    checkInterval(fTransientState.getOngoingInterval(quark), quark);
+                    ITmfStateInterval interval = fTransientState.getIntervalAt(Long.MAX_VALUE, quark);
+                    if (interval == null) {
+                        fail();
+                    }
+                    checkInterval(interval, quark);
+                    List<ITmfStateInterval> stateInfo = newStateInfo(size);
+                    fTransientState.doQuery(stateInfo, Long.MAX_VALUE);
+                    for (int i = 0; i < size; i++) {
+                        checkInterval(stateInfo.get(i), i);
+                    }
+                }
+            });
+        }
+
+        runReaders(readers, done, error, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int quark = 0; quark < nbAttributes; quark++) {
+                        fTransientState.addEmptyEntry();
+                        nbAdded.incrementAndGet();
+                        long t = quark + 1;
+                        fTransientState.processStateChange(t, TmfStateValue.newValueLong(t), quark);
+                    }
+                } catch (AttributeNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            ITmfStateInterval interval = fTransientState.getOngoingInterval(quark);
+            assertEquals(quark + 1, interval.getStartTime());
+            checkInterval(interval, quark);
+        }
+    }
+
+    /**
+     * Test the reads and the writes after the ongoing states are replaced
+     *
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    @Test
+    public void testReplaceOngoingState() throws AttributeNotFoundException {
+        for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+            fTransientState.addEmptyEntry();
+            fTransientState.processStateChange(quark + 1, TmfStateValue.newValueLong(quark + 1), quark);
+        }
+
+        /* Fewer attributes, of another type for the first one */
+        int size = NB_ATTRIBUTES / 2;
+        List<ITmfStateInterval> replacement = new ArrayList<>();
+        replacement.add(new TmfStateInterval(100, 100, 0, TmfStateValue.newValueString("a")));
+        for (int quark = 1; quark < size; quark++) {
+            replacement.add(new TmfStateInterval(100 + quark, 100 + quark, quark, TmfStateValue.newValueLong(100 + quark)));
+        }
+        fTransientState.replaceOngoingState(replacement);
+
+        assertEquals(TmfStateValue.newValueString("a"), fTransientState.getOngoingStateValue(0));
+        assertEquals(100, fTransientState.getOngoingStartTime(0));
+        for (int quark = 1; quark < size; quark++) {
+            assertEquals(100 + quark, fTransientState.getOngoingStartTime(quark));
+            checkInterval(fTransientState.getOngoingInterval(quark), quark);
+            assertNull(fTransientState.getIntervalAt(99 + quark, quark));
+            ITmfStateInterval interval = fTransientState.getIntervalAt(100 + quark, quark);
+            if (interval == null) {
+                fail();
+            }
+            checkInterval(interval, quark);
+        }
+        List<ITmfStateInterval> stateInfo = newStateInfo(size);
+        fTransientState.doQuery(stateInfo, 1000);
+        assertEquals(TmfStateValue.newValueString("a"), stateInfo.get(0).getStateValue());
+        for (int quark = 1; quark < size; quark++) {
+            checkInterval(stateInfo.get(quark), quark);
+        }
+
+        /* The attributes that were not in the replacement are gone */
+        assertNull(fTransientState.getIntervalAt(1000, size));
+        try {
+            fTransientState.getOngoingInterval(size);
+            fail();
+        } catch (AttributeNotFoundException e) {
+            /* Expected */
+        }
+
+        /* The types come from the replacement too */
+        try {
+            fTransientState.processStateChange(1000, TmfStateValue.newValueLong(1000), 0);
+            fail();
+        } catch (StateValueTypeException e) {
+            /* Expected */
+        }
+        fTransientState.processStateChange(1000, TmfStateValue.newValueLong(1000), 1);
+        checkInterval(fTransientState.getOngoingInterval(1), 1);
+        assertEquals(1000, fTransientState.getOngoingStartTime(1));
+
+        /* New attributes are added after the replaced ones */
+        fTransientState.addEmptyEntry();
+        checkInterval(fTransientState.getOngoingInterval(size), size);
+    }
+}
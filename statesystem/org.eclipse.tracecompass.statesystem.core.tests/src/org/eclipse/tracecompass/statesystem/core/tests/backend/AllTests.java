@@ -20,7 +20,18 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    InMemoryBackendTest.class
+    HistoryTreeMappedReadTest.class,
+    HistoryTreeQuery2DTest.class,
+    HTIntervalColumnsTest.class,
+    HTIntervalTest.class,
+    HTNodeCacheTest.class,
+    HTNodeTest.class,
+    HTQuarkFilterTest.class,
+    HTStringTableTest.class,
+    HTNodeWriterTest.class,
+    HistoryTreeResumeTest.class,
+    InMemoryBackendTest.class,
+    OffHeapInMemoryBackendTest.class
 })
 public class AllTests {
 
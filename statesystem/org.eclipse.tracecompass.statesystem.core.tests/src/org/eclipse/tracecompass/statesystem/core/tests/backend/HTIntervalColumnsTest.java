@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTIntervalColumns;
+import org.junit.Test;
+
+/**
+ * Test the columns storing the intervals of the closed history tree nodes
+ */
+public class HTIntervalColumnsTest {
+
+    private static final long NODE_START = 1000000;
+
+    private static List<HTInterval> createSortedIntervals() {
+        List<HTInterval> intervals = HTIntervalTest.createIntervals(500, 11, false);
+        /* The intervals of a node are sorted by end time */
+        Collections.sort(intervals);
+        return intervals;
+    }
+
+    private static void checkColumns(List<HTInterval> intervals, HTIntervalColumns columns) {
+        assertEquals(intervals.size(), columns.size());
+        for (int i = 0; i < intervals.size(); i++) {
+            HTInterval interval = intervals.get(i);
+            assertEquals(interval.getStartTime(), columns.getStart(i));
+            assertEquals(interval.getEndTime(), columns.getEnd(i));
+            assertEquals(interval.getAttribute(), columns.getQuark(i));
+            HTIntervalTest.assertIntervalEquals(interval, columns.getInterval(i));
+        }
+    }
+
+    /**
+     * Test copying intervals to columns
+     */
+    @Test
+    public void testCopyOf() {
+        List<HTInterval> intervals = createSortedIntervals();
+        checkColumns(intervals, HTIntervalColumns.copyOf(intervals));
+    }
+
+    /**
+     * Test writing intervals in the compact encoding and reading them back in
+     * columns, the way the nodes are read
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testReadCompact() throws IOException {
+        List<HTInterval> intervals = createSortedIntervals();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (HTInterval interval : intervals) {
+            interval.writeCompact(buffer, NODE_START, null);
+        }
+        buffer.flip();
+        HTIntervalColumns columns = new HTIntervalColumns(intervals.size());
+        for (int i = 0; i < intervals.size(); i++) {
+            HTInterval.readCompactInto(buffer, NODE_START, null, columns);
+        }
+        checkColumns(intervals, columns);
+    }
+
+    /**
+     * Test finding the first interval ending at or after a time
+     */
+    @Test
+    public void testGetStartIndexFor() {
+        List<HTInterval> intervals = createSortedIntervals();
+        HTIntervalColumns columns = HTIntervalColumns.copyOf(intervals);
+        for (int i = 0; i < intervals.size(); i++) {
+            long end = intervals.get(i).getEndTime();
+            for (long t : new long[] { end - 1, end, end + 1 }) {
+                int index = columns.getStartIndexFor(t);
+                /* Everything before the index ends before t, not the index */
+                assertTrue(index == columns.size() || columns.getEnd(index) >= t);
+                assertTrue(index == 0 || columns.getEnd(index - 1) < t);
+            }
+        }
+        assertEquals(0, columns.getStartIndexFor(Long.MIN_VALUE));
+        assertEquals(columns.size(), columns.getStartIndexFor(Long.MAX_VALUE));
+        assertEquals(0, new HTIntervalColumns(0).getStartIndexFor(NODE_START));
+    }
+}
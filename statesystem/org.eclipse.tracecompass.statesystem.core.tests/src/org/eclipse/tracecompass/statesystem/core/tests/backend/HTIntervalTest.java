@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTIntervalColumns;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Test;
+
+/**
+ * Test the encodings of the history tree intervals
+ */
+public class HTIntervalTest {
+
+    private static final long NODE_START = 1000000;
+
+    /**
+     * Create intervals of all the value types, with values and times of all
+     * sizes
+     *
+     * @param nb
+     *            The number of intervals
+     * @param seed
+     *            The seed of the random values
+     * @param ascii
+     *            If the strings should only use ASCII characters
+     * @return The intervals
+     */
+    static List<HTInterval> createIntervals(int nb, long seed, boolean ascii) {
+        Random random = new Random(seed);
+        List<HTInterval> intervals = new ArrayList<>();
+        String[] strings = { "", "running", ascii ? "ete" : "été", "a much longer string, to use more than one byte" };
+        for (int i = 0; i < nb; i++) {
+            /* Intervals can start before their node */
+            long start = NODE_START + random.nextInt(100000) - 1000;
+            long end = start + (random.nextBoolean() ? random.nextInt(10) : Math.abs(random.nextLong() >> (random.nextInt(40) + 2)));
+            int quark = (random.nextBoolean() ? random.nextInt(100) : random.nextInt(Integer.MAX_VALUE));
+            TmfStateValue value;
+            switch (i % 5) {
+            case 0:
+                value = TmfStateValue.nullValue();
+                break;
+            case 1:
+                value = TmfStateValue.newValueInt(random.nextBoolean() ? random.nextInt(200) - 100 : random.nextInt());
+                break;
+            case 2:
+                value = TmfStateValue.newValueLong(random.nextLong() >> random.nextInt(64));
+                break;
+            case 3:
+                value = TmfStateValue.newValueDouble(random.nextDouble() * random.nextInt());
+                break;
+            default:
+                value = TmfStateValue.newValueString(strings[random.nextInt(strings.length)]);
+                break;
+            }
+            intervals.add(new HTInterval(start, end, quark, value));
+        }
+        return intervals;
+    }
+
+    /**
+     * Check that two intervals are the same
+     *
+     * @param expected
+     *            The expected interval
+     * @param actual
+     *            The actual interval
+     */
+    static void assertIntervalEquals(ITmfStateInterval expected, ITmfStateInterval actual) {
+        assertEquals(expected.toString(), expected.getStartTime(), actual.getStartTime());
+        assertEquals(expected.toString(), expected.getEndTime(), actual.getEndTime());
+        assertEquals(expected.toString(), expected.getAttribute(), actual.getAttribute());
+        assertEquals(expected.toString(), expected.getStateValue(), actual.getStateValue());
+    }
+
+    /**
+     * Test writing intervals in the compact encoding and reading them back
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testCompactEncoding() throws IOException {
+        List<HTInterval> intervals = createIntervals(1000, 3, false);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (HTInterval interval : intervals) {
+            int position = buffer.position();
+            interval.writeCompact(buffer, NODE_START, null);
+            /* The size is known before writing */
+            assertEquals(interval.getCompactSize(NODE_START, null), buffer.position() - position);
+        }
+        buffer.flip();
+
+        HTIntervalColumns columns = new HTIntervalColumns(intervals.size());
+        for (int i = 0; i < intervals.size(); i++) {
+            HTInterval.readCompactInto(buffer, NODE_START, null, columns);
+        }
+        assertEquals(0, buffer.remaining());
+        assertEquals(intervals.size(), columns.size());
+        for (int i = 0; i < intervals.size(); i++) {
+            assertIntervalEquals(intervals.get(i), columns.getInterval(i));
+        }
+    }
+
+    /**
+     * Test writing intervals in the legacy encoding, with the values in a
+     * Strings section at the end of the buffer, and reading them back
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testLegacyEncoding() throws IOException {
+        /* The legacy encoding uses the default charset */
+        List<HTInterval> intervals = createIntervals(1000, 5, true);
+        ByteBuffer buffer = ByteBuffer.allocate(128 * 1024);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int stringsEnd = buffer.capacity();
+        for (HTInterval interval : intervals) {
+            stringsEnd -= interval.writeInterval(buffer, stringsEnd);
+        }
+        /* The offsets of the values are from the start of the buffer */
+        buffer.position(0);
+
+        for (HTInterval interval : intervals) {
+            assertIntervalEquals(interval, HTInterval.readFrom(buffer));
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNodeCache;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.LeafNode;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the striped LRU cache of the history tree nodes
+ */
+public class HTNodeCacheTest {
+
+    /* The maximum number of stripes of the cache */
+    private static final int NB_STRIPES = 16;
+
+    private File fFile;
+    private HTConfig fConfig;
+
+    /**
+     * Create the configuration of the nodes
+     *
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fFile = File.createTempFile("cache", ".ht");
+        fConfig = new HTConfig(fFile, 4096, 3, 1, 0);
+    }
+
+    /**
+     * Delete the history file
+     */
+    @After
+    public void cleanup() {
+        fFile.delete();
+    }
+
+    private HTNode createNode(int seqNumber) {
+        return new LeafNode(fConfig, seqNumber, -1, seqNumber * 10);
+    }
+
+    /**
+     * Test that each stripe evicts its own least recently used node, which
+     * depends on the order of the lookups and not only on the insertions
+     */
+    @Test
+    public void testEviction() {
+        /* Two nodes per stripe */
+        HTNodeCache cache = new HTNodeCache(NB_STRIPES * 2);
+        HTNode node0 = createNode(0);
+        HTNode node16 = createNode(16);
+        cache.put(node0);
+        cache.put(node16);
+        /* Node 0 is now more recently used than node 16 */
+        assertSame(node0, cache.get(0));
+        cache.put(createNode(32));
+        assertEquals(1, cache.getEvictions());
+        assertSame(node0, cache.get(0));
+        assertNull(cache.get(16));
+        assertNotNull(cache.get(32));
+
+        /* Without the lookup, the oldest insertion is evicted */
+        cache.put(createNode(1));
+        cache.put(createNode(17));
+        cache.put(createNode(33));
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(17));
+        assertNotNull(cache.get(33));
+    }
+
+    /**
+     * Test that the nodes go to the stripe of their sequence number, so a full
+     * stripe does not evict the nodes of the others
+     */
+    @Test
+    public void testStripes() {
+        /* One node per stripe */
+        HTNodeCache cache = new HTNodeCache(NB_STRIPES);
+        for (int i = 0; i < NB_STRIPES; i++) {
+            cache.put(createNode(i));
+        }
+        assertEquals(0, cache.getEvictions());
+        for (int i = 0; i < NB_STRIPES; i++) {
+            assertEquals(i, cache.get(i).getSequenceNumber());
+        }
+
+        /* Same stripe as node 3 */
+        cache.put(createNode(3 + NB_STRIPES));
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(3));
+        for (int i = 0; i < NB_STRIPES; i++) {
+            if (i != 3) {
+                assertNotNull(cache.get(i));
+            }
+        }
+        assertNotNull(cache.get(3 + NB_STRIPES));
+    }
+
+    /**
+     * Test a cache smaller than the number of stripes, which uses fewer
+     * stripes, and one whose capacity is not a multiple of it
+     */
+    @Test
+    public void testSmallCapacity() {
+        /* 4 stripes, the first one with 2 nodes */
+        HTNodeCache cache = new HTNodeCache(5);
+        assertEquals(5, cache.getCapacity());
+        for (int i = 0; i < 5; i++) {
+            cache.put(createNode(i));
+        }
+        assertEquals(0, cache.getEvictions());
+        cache.put(createNode(5));
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(1));
+        cache.put(createNode(8));
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get(0));
+        assertNotNull(cache.get(4));
+
+        /* A single stripe */
+        cache = new HTNodeCache(1);
+        cache.put(createNode(0));
+        cache.put(createNode(1));
+        assertNull(cache.get(0));
+        assertNotNull(cache.get(1));
+    }
+
+    /**
+     * Test the hit and miss counters, which are kept when the cache is
+     * cleared
+     */
+    @Test
+    public void testCounters() {
+        HTNodeCache cache = new HTNodeCache(64);
+        assertNull(cache.get(0));
+        cache.put(createNode(0));
+        cache.put(createNode(1));
+        cache.get(0);
+        cache.get(0);
+        cache.get(1);
+        cache.get(2);
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+
+        cache.clear();
+        assertNull(cache.get(0));
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    /**
+     * Test that the capacity must be positive
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new HTNodeCache(0);
+    }
+
+    /**
+     * Test that a node read again from a history tree comes from the cache
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testTreeReads() throws IOException {
+        HistoryTree tree = new HistoryTree(fConfig);
+        for (int i = 0; i < 10000; i++) {
+            tree.insertInterval(new HTInterval(i * 10L, i * 10L + 9, i % 5, TmfStateValue.newValueLong(i)));
+        }
+        tree.closeTree(100000);
+        tree.closeFile();
+
+        /* Two stripes of one node */
+        HistoryTree openedTree = new HistoryTree(fFile, 1, 2);
+        /* Not a node of the latest branch, which is always in memory */
+        HTNode node = openedTree.readNode(0);
+        long hits = openedTree.getNodeCacheHits();
+        long misses = openedTree.getNodeCacheMisses();
+        assertSame(node, openedTree.readNode(0));
+        assertEquals(hits + 1, openedTree.getNodeCacheHits());
+        assertEquals(misses, openedTree.getNodeCacheMisses());
+
+        /* Node 1 goes to the other stripe, node 2 evicts node 0 */
+        openedTree.readNode(1);
+        long evictions = openedTree.getNodeCacheEvictions();
+        openedTree.readNode(2);
+        assertEquals(misses + 2, openedTree.getNodeCacheMisses());
+        assertEquals(evictions + 1, openedTree.getNodeCacheEvictions());
+        openedTree.readNode(1);
+        assertEquals(hits + 2, openedTree.getNodeCacheHits());
+        openedTree.readNode(0);
+        assertEquals(misses + 3, openedTree.getNodeCacheMisses());
+        openedTree.closeFile();
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.LeafNode;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Test;
+
+/**
+ * Test writing history tree nodes to a block and reading them back, in each
+ * version of the file format
+ */
+public class HTNodeTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final long NODE_START = 1000;
+    private static final int NB_QUARKS = 20;
+    /* Version 5 stores the values in a Strings section */
+    private static final int LEGACY_FILE_VERSION = 5;
+    /* Version 6 has the compact encoding, the quark filter and string table */
+    private static final int FILE_VERSION = 6;
+
+    private static TmfStateValue createValue(int quark, long t) {
+        switch (quark % 5) {
+        case 0:
+            return TmfStateValue.nullValue();
+        case 1:
+            return TmfStateValue.newValueInt((int) t * quark);
+        case 2:
+            return TmfStateValue.newValueLong(t << 32);
+        case 3:
+            return TmfStateValue.newValueDouble(t / 3.0);
+        default:
+            /* A few strings used many times */
+            return TmfStateValue.newValueString("state" + (t % 7));
+        }
+    }
+
+    /**
+     * Fill a node with consecutive intervals for each quark, until it is full
+     */
+    private static List<HTInterval> fillNode(HTNode node) {
+        List<HTInterval> intervals = new ArrayList<>();
+        long[] ends = new long[NB_QUARKS];
+        for (int quark = 0; quark < NB_QUARKS; quark++) {
+            ends[quark] = NODE_START - 1;
+        }
+        for (int i = 0;; i++) {
+            int quark = i % NB_QUARKS;
+            long start = ends[quark] + 1;
+            long end = start + (quark * 7 + i) % 13;
+            HTInterval interval = new HTInterval(start, end, quark, createValue(quark, start));
+            if (node.getSizeInNode(interval) > node.getNodeFreeSpace()) {
+                return intervals;
+            }
+            node.addInterval(interval);
+            intervals.add(interval);
+            ends[quark] = end;
+        }
+    }
+
+    private static void testRoundTrip(int fileVersion) throws IOException {
+        HTConfig config = new HTConfig(new File("test.ht"), BLOCK_SIZE, 3, 1, 0, 10, fileVersion);
+        HTNode node = new LeafNode(config, 7, 3, NODE_START);
+        List<HTInterval> intervals = fillNode(node);
+        assertTrue(intervals.size() > 10);
+        long end = 0;
+        for (HTInterval interval : intervals) {
+            end = Math.max(end, interval.getEndTime());
+        }
+        node.closeThisNode(end);
+
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        node.serialize(buffer);
+        buffer.clear();
+        HTNode readNode = HTNode.readNode(config, buffer);
+
+        assertEquals(node.getNodeType(), readNode.getNodeType());
+        assertEquals(7, readNode.getSequenceNumber());
+        assertEquals(3, readNode.getParentSequenceNumber());
+        assertEquals(NODE_START, readNode.getNodeStart());
+        assertEquals(end, readNode.getNodeEnd());
+        assertEquals(intervals.size(), readNode.getNbIntervals());
+        for (HTInterval interval : intervals) {
+            HTIntervalTest.assertIntervalEquals(interval, readNode.getRelevantInterval(interval.getAttribute(), interval.getStartTime()));
+            HTIntervalTest.assertIntervalEquals(interval, readNode.getRelevantInterval(interval.getAttribute(), interval.getEndTime()));
+        }
+        /* An attribute which has no interval in the node */
+        assertNull(readNode.getRelevantInterval(NB_QUARKS, NODE_START));
+    }
+
+    /**
+     * Test a node of the legacy file format
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testLegacyFormat() throws IOException {
+        testRoundTrip(LEGACY_FILE_VERSION);
+    }
+
+    /**
+     * Test a node of the current file format
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testCurrentFormat() throws IOException {
+        testRoundTrip(FILE_VERSION);
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNodeWriter;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.LeafNode;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the thread writing the nodes of a new history tree
+ */
+public class HTNodeWriterTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int NB_NODES = 1000;
+
+    private File fFile;
+    private HTConfig fConfig;
+
+    /**
+     * Create the history file
+     *
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fFile = File.createTempFile("writer", ".ht");
+        fConfig = new HTConfig(fFile, BLOCK_SIZE, 3, 1, 0);
+    }
+
+    /**
+     * Delete the history file
+     */
+    @After
+    public void cleanup() {
+        fFile.delete();
+    }
+
+    private HTNode createNode(int seqNumber) {
+        HTNode node = new LeafNode(fConfig, seqNumber, -1, seqNumber * 10);
+        node.addInterval(new HTInterval(seqNumber * 10, seqNumber * 10 + 9, 0, TmfStateValue.newValueInt(seqNumber)));
+        node.closeThisNode(seqNumber * 10 + 9);
+        return node;
+    }
+
+    /**
+     * Test that all the queued nodes are in the file once the writer is
+     * finished
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testWrite() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(fFile);) {
+            HTNodeWriter writer = new HTNodeWriter(fConfig, fos.getChannel());
+            for (int i = 0; i < NB_NODES; i++) {
+                HTNode node = createNode(i);
+                writer.writeNode(node);
+                HTNode pending = writer.getPendingNode(i);
+                assertTrue(pending == null || pending == node);
+            }
+            writer.finish();
+            for (int i = 0; i < NB_NODES; i++) {
+                assertNull(writer.getPendingNode(i));
+            }
+        }
+
+        try (FileInputStream fis = new FileInputStream(fFile);) {
+            FileChannel fc = fis.getChannel();
+            for (int i = 0; i < NB_NODES; i++) {
+                fc.position(HistoryTree.TREE_HEADER_SIZE + (long) i * BLOCK_SIZE);
+                HTNode node = HTNode.readNode(fConfig, fc);
+                assertEquals(i, node.getSequenceNumber());
+                assertEquals(i * 10, node.getNodeStart());
+                assertEquals(i * 10 + 9, node.getNodeEnd());
+                assertEquals(i, node.getRelevantInterval(0, i * 10 + 5).getStateValue().unboxInt());
+            }
+        }
+    }
+
+    /**
+     * Test that a node which cannot be written is reported to the thread
+     * building the tree, and stays available in memory
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test(timeout = 10000)
+    public void testWriteError() throws IOException {
+        FileOutputStream fos = new FileOutputStream(fFile);
+        FileChannel fc = fos.getChannel();
+        fos.close();
+
+        HTNodeWriter writer = new HTNodeWriter(fConfig, fc);
+        HTNode node = createNode(0);
+        try {
+            /* Keep writing until the first error comes back */
+            for (int i = 0; i < NB_NODES; i++) {
+                writer.writeNode(i == 0 ? node : createNode(i));
+            }
+            writer.finish();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertSame(node, writer.getPendingNode(0));
+
+        /* The error is also thrown to the next writes */
+        try {
+            writer.writeNode(createNode(NB_NODES));
+            fail();
+        } catch (IllegalStateException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test that a node written after the writer is finished is rejected,
+     * instead of waiting for a thread which is stopped
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test(timeout = 10000)
+    public void testWriteAfterFinish() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(fFile);) {
+            HTNodeWriter writer = new HTNodeWriter(fConfig, fos.getChannel());
+            writer.writeNode(createNode(0));
+            writer.finish();
+            /* More nodes than the queue can hold */
+            for (int i = 1; i < NB_NODES; i++) {
+                try {
+                    writer.writeNode(createNode(i));
+                    fail();
+                } catch (IllegalStateException e) {
+                    /* Expected */
+                }
+            }
+            /* Finishing again does nothing */
+            writer.finish();
+        }
+    }
+
+    /**
+     * Test that the writer thread does not keep the application alive
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testDaemon() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(fFile);) {
+            HTNodeWriter writer = new HTNodeWriter(fConfig, fos.getChannel());
+            boolean found = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("History Tree Writer Thread") && thread.isAlive()) {
+                    assertTrue(thread.isDaemon());
+                    found = true;
+                }
+            }
+            writer.finish();
+            assertTrue(found);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTQuarkFilter;
+import org.junit.Test;
+
+/**
+ * Test the filter of the quarks in the history tree node headers
+ */
+public class HTQuarkFilterTest {
+
+    private static final int NB_QUARKS = 100000;
+
+    private static HTConfig createConfig(int blockSize) {
+        return new HTConfig(new File("test.ht"), blockSize, 3, 1, 0);
+    }
+
+    /**
+     * Test that the filter never rejects a quark that was added, before and
+     * after being written and read back, and that it rejects most of the
+     * others
+     */
+    @Test
+    public void testRoundTrip() {
+        for (int blockSize : new int[] { 4096, 64 * 1024 }) {
+            HTConfig config = createConfig(blockSize);
+            HTQuarkFilter filter = new HTQuarkFilter(config);
+            Random random = new Random(blockSize);
+            BitSet added = new BitSet();
+            /* Consecutive quarks, like the attributes of a thread, and random ones */
+            for (int quark = 500; quark < 520; quark++) {
+                filter.add(quark);
+                added.set(quark);
+            }
+            for (int i = 0; i < 80; i++) {
+                int quark = random.nextInt(NB_QUARKS);
+                filter.add(quark);
+                added.set(quark);
+            }
+
+            int size = HTQuarkFilter.getSize(config);
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            filter.writeTo(buffer);
+            assertEquals(size, buffer.position());
+            buffer.flip();
+            HTQuarkFilter readFilter = HTQuarkFilter.readFrom(config, buffer);
+
+            int nbFalsePositives = 0;
+            for (int quark = 0; quark < NB_QUARKS; quark++) {
+                boolean mightContain = filter.mightContain(quark);
+                assertEquals(mightContain, readFilter.mightContain(quark));
+                if (added.get(quark)) {
+                    /* No false negatives */
+                    assertTrue(mightContain);
+                } else if (mightContain) {
+                    nbFalsePositives++;
+                }
+            }
+            assertTrue(nbFalsePositives < NB_QUARKS / 10);
+        }
+    }
+
+    /**
+     * Test the size of the filters in the node headers
+     */
+    @Test
+    public void testSize() {
+        assertEquals(128, HTQuarkFilter.getSize(createConfig(4096)));
+        assertEquals(8, HTQuarkFilter.getSize(createConfig(64)));
+        assertEquals(0, HTQuarkFilter.getSize(createConfig(1000)) % 8);
+    }
+
+    /**
+     * Test checking a set of quarks at once
+     */
+    @Test
+    public void testMightContainAny() {
+        HTQuarkFilter filter = new HTQuarkFilter(createConfig(4096));
+        BitSet quarks = new BitSet();
+        quarks.set(3);
+        quarks.set(1000);
+        /* An empty filter rejects everything */
+        assertFalse(filter.mightContainAny(quarks));
+        assertFalse(filter.mightContain(3));
+
+        filter.add(1000);
+        assertTrue(filter.mightContainAny(quarks));
+        assertFalse(filter.mightContainAny(new BitSet()));
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTIntervalColumns;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTStringTable;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Test;
+
+/**
+ * Test the string tables of the history tree nodes
+ */
+public class HTStringTableTest {
+
+    private static final long NODE_START = 1000000;
+
+    private static final String[] STRINGS = {
+            "", "running", "running", "été", "日本語", "😀", "running",
+            "a much longer string, to use more than one byte for its length: 0123456789012345678901234567890123456789012345678901234567890123456789"
+    };
+
+    private static ByteBuffer createBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static int getWrittenSize(HTStringTable table) {
+        ByteBuffer buffer = createBuffer();
+        table.writeTo(buffer);
+        return buffer.position();
+    }
+
+    /**
+     * Test that each string is added once, and that the size of a reference
+     * counts the string only when it is new
+     */
+    @Test
+    public void testAdd() {
+        HTStringTable table = new HTStringTable();
+        for (String str : STRINGS) {
+            int index = table.indexOf(str);
+            int sizeBefore = getWrittenSize(table);
+            int referenceSize = table.getReferenceSize(str);
+            int newIndex = table.add(str);
+            int indexSize = (newIndex < 0x80 ? 1 : 2);
+            if (index >= 0) {
+                assertEquals(index, newIndex);
+                assertEquals(indexSize, referenceSize);
+            } else {
+                assertEquals(table.size() - 1, newIndex);
+            }
+            assertEquals(referenceSize, getWrittenSize(table) - sizeBefore + indexSize);
+            assertEquals(newIndex, table.indexOf(str));
+        }
+        assertEquals(6, table.size());
+        assertEquals(-1, table.indexOf("sleeping"));
+    }
+
+    /**
+     * Test the size of strings which cannot be encoded as is
+     */
+    @Test
+    public void testLoneSurrogate() {
+        HTStringTable table = new HTStringTable();
+        String str = "a\uD800b";
+        int referenceSize = table.getReferenceSize(str);
+        int sizeBefore = getWrittenSize(table);
+        table.add(str);
+        assertEquals(referenceSize, getWrittenSize(table) - sizeBefore + 1);
+    }
+
+    /**
+     * Test writing a table and reading it back
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        HTStringTable table = new HTStringTable();
+        for (String str : STRINGS) {
+            table.add(str);
+        }
+        ByteBuffer buffer = createBuffer();
+        table.writeTo(buffer);
+        buffer.flip();
+        HTStringTable readTable = HTStringTable.readFrom(buffer, buffer.getInt());
+        assertEquals(0, buffer.remaining());
+
+        assertEquals(table.size(), readTable.size());
+        for (String str : STRINGS) {
+            int index = table.indexOf(str);
+            assertEquals(index, readTable.indexOf(str));
+            assertEquals(TmfStateValue.newValueString(str), readTable.getValue(index));
+            /* The intervals of a node share the same value */
+            assertSame(readTable.getValue(index), readTable.getValue(index));
+        }
+        try {
+            readTable.getValue(table.size());
+            fail();
+        } catch (IOException e) {
+            /* Expected */
+        }
+
+        /* The index of a read table is built when it is first used */
+        assertEquals(table.indexOf(STRINGS[0]), readTable.add(STRINGS[0]));
+        assertEquals(table.size(), readTable.add("new string"));
+        assertEquals(table.size() + 1, readTable.size());
+    }
+
+    /**
+     * Test reading a table with an invalid size
+     */
+    @Test
+    public void testInvalidSize() {
+        ByteBuffer buffer = createBuffer();
+        buffer.put((byte) 100);
+        buffer.flip();
+        try {
+            HTStringTable.readFrom(buffer, 1);
+            fail();
+        } catch (IOException e) {
+            /* Expected, the string is longer than the buffer */
+        }
+        buffer.position(0);
+        try {
+            HTStringTable.readFrom(buffer, -1);
+            fail();
+        } catch (IOException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test the compact encoding of intervals whose string values are in the
+     * table of their node
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testCompactEncoding() throws IOException {
+        List<HTInterval> intervals = HTIntervalTest.createIntervals(1000, 7, false);
+        HTStringTable table = new HTStringTable();
+        ByteBuffer buffer = createBuffer();
+        for (HTInterval interval : intervals) {
+            int size = interval.getCompactSize(NODE_START, table);
+            int sizeBefore = getWrittenSize(table);
+            if (interval.getStateValue().getType() == TmfStateValue.Type.STRING) {
+                table.add(interval.getStateValue().unboxStr());
+            }
+            int position = buffer.position();
+            interval.writeCompact(buffer, NODE_START, table);
+            /* The size includes the new entry of the table, if any */
+            assertEquals(size, buffer.position() - position + getWrittenSize(table) - sizeBefore);
+        }
+        buffer.flip();
+
+        ByteBuffer tableBuffer = createBuffer();
+        table.writeTo(tableBuffer);
+        tableBuffer.flip();
+        HTStringTable readTable = HTStringTable.readFrom(tableBuffer, tableBuffer.getInt());
+
+        HTIntervalColumns columns = new HTIntervalColumns(intervals.size());
+        for (int i = 0; i < intervals.size(); i++) {
+            HTInterval.readCompactInto(buffer, NODE_START, readTable, columns);
+        }
+        assertEquals(0, buffer.remaining());
+        for (int i = 0; i < intervals.size(); i++) {
+            HTIntervalTest.assertIntervalEquals(intervals.get(i), columns.getInterval(i));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the nodes of a history tree read from a memory mapping of its
+ * file are the same as the ones read through a file channel
+ */
+public class HistoryTreeMappedReadTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+    private static final int PROVIDER_VERSION = 1;
+    private static final int NB_INTERVALS = 20000;
+    private static final long END_TIME = NB_INTERVALS * 10L;
+    /* Each node read but the last one goes to the file */
+    private static final int NODE_CACHE_SIZE = 1;
+
+    private File fFile;
+    private HTConfig fConfig;
+
+    /**
+     * Create the history file
+     *
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fFile = File.createTempFile("mapped", ".ht");
+        fConfig = new HTConfig(fFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, NODE_CACHE_SIZE);
+    }
+
+    /**
+     * Delete the history file
+     */
+    @After
+    public void cleanup() {
+        fFile.delete();
+    }
+
+    private static HistoryTree buildTree(HTConfig config) throws IOException {
+        HistoryTree tree = new HistoryTree(config);
+        for (int i = 0; i < NB_INTERVALS; i++) {
+            tree.insertInterval(new HTInterval(i * 10L, i * 10L + 9, i % 5, TmfStateValue.newValueLong(i)));
+        }
+        return tree;
+    }
+
+    private static byte[] serialize(HTNode node) {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        node.serialize(buffer);
+        return buffer.array();
+    }
+
+    /* Read all the nodes of the complete file through a file channel */
+    private List<byte[]> readFromChannel() throws IOException {
+        List<byte[]> nodes = new ArrayList<>();
+        try (FileInputStream fis = new FileInputStream(fFile);) {
+            FileChannel fc = fis.getChannel();
+            long nbNodes = (fc.size() - HistoryTree.TREE_HEADER_SIZE) / BLOCK_SIZE;
+            for (int i = 0; i < nbNodes; i++) {
+                fc.position(HistoryTree.TREE_HEADER_SIZE + (long) i * BLOCK_SIZE);
+                HTNode node = HTNode.readNode(fConfig, fc);
+                assertEquals(i, node.getSequenceNumber());
+                nodes.add(serialize(node));
+            }
+        }
+        return nodes;
+    }
+
+    private static void checkNodes(HistoryTree tree, List<byte[]> expected) throws IOException {
+        assertTrue(tree.isMapped());
+        assertEquals(expected.size(), tree.getNodeCount());
+        for (int i = 0; i < expected.size(); i++) {
+            HTNode node = tree.readNode(i);
+            assertNotNull(node);
+            assertArrayEquals(expected.get(i), serialize(node));
+        }
+    }
+
+    /**
+     * Test reading the nodes of a tree while it is built, which cannot use the
+     * mapping yet, then once it is closed
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testBuiltTree() throws IOException {
+        HistoryTree tree = buildTree(fConfig);
+        assertFalse(tree.isMapped());
+
+        /* Only the nodes that are closed cannot change anymore */
+        Map<Integer, byte[]> builtNodes = new HashMap<>();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            HTNode node = tree.readNode(i);
+            if (node.isOnDisk()) {
+                builtNodes.put(i, serialize(node));
+            }
+        }
+        assertFalse(builtNodes.isEmpty());
+        assertFalse(tree.isMapped());
+
+        tree.closeTree(END_TIME);
+        List<byte[]> expected = readFromChannel();
+        for (Map.Entry<Integer, byte[]> entry : builtNodes.entrySet()) {
+            assertArrayEquals(expected.get(entry.getKey()), entry.getValue());
+        }
+        checkNodes(tree, expected);
+        tree.closeFile();
+    }
+
+    /**
+     * Test reading the nodes of an existing file, opened with the reader
+     * constructor
+     *
+     * @throws IOException
+     *             Should not happen
+     */
+    @Test
+    public void testOpenedTree() throws IOException {
+        HistoryTree tree = buildTree(fConfig);
+        tree.closeTree(END_TIME);
+        tree.closeFile();
+        List<byte[]> expected = readFromChannel();
+
+        HistoryTree openedTree = new HistoryTree(fFile, PROVIDER_VERSION, NODE_CACHE_SIZE);
+        checkNodes(openedTree, expected);
+        assertEquals(END_TIME, openedTree.getTreeEnd());
+        openedTree.closeFile();
+
+        /* A tree reopened to append to it is not complete */
+        HistoryTree appendedTree = new HistoryTree(fFile, PROVIDER_VERSION, NODE_CACHE_SIZE, true);
+        assertFalse(appendedTree.isMapped());
+        appendedTree.closeFile();
+    }
+
+    /**
+     * Test reading the nodes from the mapping in several threads at once
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testConcurrentReads() throws Exception {
+        HistoryTree tree = buildTree(fConfig);
+        tree.closeTree(END_TIME);
+        final List<byte[]> expected = readFromChannel();
+        final HistoryTree openedTree = new HistoryTree(fFile, PROVIDER_VERSION, NODE_CACHE_SIZE);
+        assertTrue(openedTree.isMapped());
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Random random = new Random(i);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < 2000; n++) {
+                            int seqNumber = random.nextInt(expected.size());
+                            assertArrayEquals(expected.get(seqNumber), serialize(openedTree.readNode(seqNumber)));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        openedTree.closeFile();
+        tree.closeFile();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+}
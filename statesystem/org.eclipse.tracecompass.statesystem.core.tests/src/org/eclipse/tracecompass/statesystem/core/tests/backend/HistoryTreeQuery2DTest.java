@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ResolutionGrid;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.CoreNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the two-dimensional queries of the history tree backends, which walk
+ * the tree breadth-first, against singular queries
+ */
+public class HistoryTreeQuery2DTest {
+
+    private static final String SSID = "test-ss";
+    private static final long END_TIME = 20000;
+    private static final int NB_ATTRIBUTES = 10;
+    /* Small blocks and few children, for a deep tree */
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+    private static final int QUEUE_SIZE = 100;
+
+    private File fFile;
+
+    /**
+     * Create the history file
+     *
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fFile = File.createTempFile("query2d", ".ht");
+    }
+
+    /**
+     * Delete the history file
+     */
+    @After
+    public void cleanup() {
+        fFile.delete();
+    }
+
+    /**
+     * Insert state changes of varying lengths for all the attributes
+     *
+     * @param ss
+     *            The state system
+     * @param start
+     *            The time of the first change
+     * @param end
+     *            The time of the last change
+     * @return The quarks of the attributes
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    public static List<Integer> insertStates(ITmfStateSystemBuilder ss, long start, long end) throws AttributeNotFoundException {
+        List<Integer> quarks = new ArrayList<>();
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            quarks.add(ss.getQuarkAbsoluteAndAdd("attribute" + i));
+        }
+        for (long t = start; t <= end; t++) {
+            for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                /* Attribute i changes every (i * i + 1) units of time */
+                if (t % (i * i + 1) == 0) {
+                    ss.modifyAttribute(t, TmfStateValue.newValueLong(t / (i + 1)), quarks.get(i));
+                }
+            }
+        }
+        return quarks;
+    }
+
+    static String key(ITmfStateInterval interval) {
+        return interval.getAttribute() + ":" + interval.getStartTime() + "-" + interval.getEndTime() + "=" + interval.getStateValue();
+    }
+
+    /**
+     * Get the intervals containing the sampling points start, start +
+     * resolution, ..., end with singular queries, one per interval
+     */
+    static Set<String> querySingleStates(ITmfStateSystem ss, List<Integer> quarks, long start, long end, long resolution)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        Set<String> intervals = new HashSet<>();
+        for (Integer quark : quarks) {
+            long t = start;
+            while (t <= end) {
+                ITmfStateInterval interval = ss.querySingleState(t, quark);
+                intervals.add(key(interval));
+                if (interval.getEndTime() >= end) {
+                    break;
+                }
+                /* The next sampling point after the interval, end included */
+                long next = interval.getEndTime() + 1;
+                long index = (next - start + resolution - 1) / resolution;
+                t = Math.min(start + index * resolution, end);
+            }
+        }
+        return intervals;
+    }
+
+    /**
+     * Check a two-dimensional query against singular queries at the same
+     * sampling points, and that each interval is returned once
+     *
+     * @param ss
+     *            The state system
+     * @param quarks
+     *            The attributes to query
+     * @param start
+     *            The start of the time range
+     * @param end
+     *            The end of the time range
+     * @param resolution
+     *            The distance between two sampling points
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     * @throws StateSystemDisposedException
+     *             Should not happen
+     */
+    public static void checkQuery2D(ITmfStateSystem ss, List<Integer> quarks, long start, long end, long resolution)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        checkQuery2D(ss, ss, quarks, start, end, resolution);
+    }
+
+    /*
+     * Same, with the singular queries done on another state system with the
+     * same states
+     */
+    private static void checkQuery2D(ITmfStateSystem ss, ITmfStateSystem reference, List<Integer> quarks, long start, long end, long resolution)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        Set<String> actual = new HashSet<>();
+        for (ITmfStateInterval interval : ss.query2D(quarks, start, end, resolution)) {
+            /* Each interval is returned once */
+            assertTrue(key(interval), actual.add(key(interval)));
+        }
+        /* The end of the query is clamped to the current end time */
+        long queryEnd = Math.min(end, ss.getCurrentEndTime());
+        assertEquals(querySingleStates(reference, quarks, start, queryEnd, resolution), actual);
+    }
+
+    private static void checkRanges(ITmfStateSystem ss, ITmfStateSystem reference, List<Integer> quarks, long end)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        checkQuery2D(ss, reference, quarks, 0, end, 1);
+        checkQuery2D(ss, reference, quarks, 1234, 1300, 1);
+        checkQuery2D(ss, reference, quarks, end / 2, end / 2, 1);
+        checkQuery2D(ss, reference, quarks.subList(3, 6), end / 3, end - 17, 1);
+    }
+
+    /**
+     * Test the queries on a complete history
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testHistoryTree() throws Exception {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                new HistoryTreeBackend(SSID, fFile, 1, 0, BLOCK_SIZE, MAX_CHILDREN));
+        List<Integer> quarks = insertStates(ss, 0, END_TIME);
+        ss.closeHistory(END_TIME);
+        checkRanges(ss, ss, quarks, END_TIME);
+        ss.dispose();
+    }
+
+    /**
+     * Test the queries while the history is being built, when the intervals
+     * are in the insertion queue and the transient state too
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testThreadedHistoryTree() throws Exception {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                new ThreadedHistoryTreeBackend(SSID, fFile, 1, 0, QUEUE_SIZE, BLOCK_SIZE, MAX_CHILDREN));
+        List<Integer> quarks = insertStates(ss, 0, END_TIME / 2);
+        /*
+         * Singular queries on the threaded backend may miss the intervals
+         * moving from the queue to the tree, use an in-memory history instead
+         */
+        ITmfStateSystemBuilder reference = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, 0));
+        insertStates(reference, 0, END_TIME / 2);
+        checkRanges(ss, reference, quarks, END_TIME / 2);
+        reference.dispose();
+
+        insertStates(ss, END_TIME / 2 + 1, END_TIME);
+        ss.closeHistory(END_TIME);
+        checkRanges(ss, ss, quarks, END_TIME);
+        ss.dispose();
+    }
+
+    /**
+     * Test the queries at a resolution, with sampling points further apart
+     * than the intervals and the end of the range not on the grid
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testResolution() throws Exception {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                new HistoryTreeBackend(SSID, fFile, 1, 0, BLOCK_SIZE, MAX_CHILDREN));
+        List<Integer> quarks = insertStates(ss, 0, END_TIME);
+        ss.closeHistory(END_TIME);
+        checkQuery2D(ss, quarks, 0, END_TIME, 2);
+        checkQuery2D(ss, quarks, 0, END_TIME, 37);
+        checkQuery2D(ss, quarks, 5, END_TIME - 3, 1000);
+        checkQuery2D(ss, quarks, 123, 15000, 10000);
+        ss.dispose();
+    }
+
+    /**
+     * Test that the children of a core node in between two sampling points
+     * are skipped, and that the child containing the end of the grid is
+     * always selected
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testSelectNextChildren() throws Exception {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                new HistoryTreeBackend(SSID, fFile, 1, 0, BLOCK_SIZE, MAX_CHILDREN));
+        insertStates(ss, 0, END_TIME);
+        ss.closeHistory(END_TIME);
+        ss.dispose();
+
+        HistoryTree tree = new HistoryTree(fFile, 1);
+        try {
+            /* A core node with all its children */
+            CoreNode node = null;
+            for (int i = 0; i < tree.getNodeCount() && node == null; i++) {
+                HTNode candidate = tree.readNode(i);
+                if (candidate instanceof CoreNode && ((CoreNode) candidate).getNbChildren() == MAX_CHILDREN) {
+                    node = (CoreNode) candidate;
+                }
+            }
+            assertNotNull(node);
+            long start = node.getChildStart(0);
+            long secondStart = node.getChildStart(1);
+            long lastStart = node.getChildStart(MAX_CHILDREN - 1);
+
+            /* Points in the first child, then the end of the grid in the last child */
+            ResolutionGrid grid = new ResolutionGrid(start, lastStart, lastStart - start);
+            List<HTNode> children = tree.selectNextChildren(node, grid);
+            assertEquals(2, children.size());
+            assertEquals(node.getChild(0), children.get(0).getSequenceNumber());
+            assertEquals(node.getChild(MAX_CHILDREN - 1), children.get(1).getSequenceNumber());
+
+            /* The end of the grid is not on the step, but is still a point */
+            grid = new ResolutionGrid(start, secondStart, secondStart - start + 1);
+            children = tree.selectNextChildren(node, grid);
+            assertEquals(2, children.size());
+            assertEquals(node.getChild(0), children.get(0).getSequenceNumber());
+            assertEquals(node.getChild(1), children.get(1).getSequenceNumber());
+
+            /* A point in every child */
+            grid = new ResolutionGrid(start, lastStart, 1);
+            assertEquals(MAX_CHILDREN, tree.selectNextChildren(node, grid).size());
+        } finally {
+            tree.closeFile();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for resuming the building of a history tree, compared to a
+ * history built in one go
+ */
+public class HistoryTreeResumeTest {
+
+    private static final String SSID = "test-ss";
+    private static final long END_TIME = 100000;
+    private static final int QUEUE_SIZE = 1000;
+
+    private File fFullFile;
+    private File fResumedFile;
+
+    /**
+     * Create the history files
+     *
+     * @throws IOException
+     *             If the files cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fFullFile = File.createTempFile("full", ".ht");
+        fResumedFile = File.createTempFile("resumed", ".ht");
+    }
+
+    /**
+     * Delete the history files
+     */
+    @After
+    public void cleanup() {
+        fFullFile.delete();
+        fResumedFile.delete();
+    }
+
+    /*
+     * Insert the state changes between the two times. The changes at a given
+     * time do not depend on where the insertion started.
+     */
+    private static void insertStates(ITmfStateSystemBuilder ss, long start, long end) throws AttributeNotFoundException {
+        for (long t = start; t <= end; t++) {
+            if (t % 3 != 0) {
+                continue;
+            }
+            int quark = ss.getQuarkAbsoluteAndAdd("cpu" + (t % 7), "value");
+            ITmfStateValue value;
+            if (t % 11 == 0) {
+                value = TmfStateValue.nullValue();
+            } else {
+                value = TmfStateValue.newValueLong(t % 13);
+            }
+            ss.modifyAttribute(t, value, quark);
+            if (t % 5 == 0) {
+                int stringQuark = ss.getQuarkAbsoluteAndAdd("name" + (t % 4));
+                ss.modifyAttribute(t, TmfStateValue.newValueString("name" + (t % 9)), stringQuark);
+            }
+        }
+    }
+
+    /**
+     * Build a history in several steps, closing and resuming it each time,
+     * and check that it has the same states as a history built in one go.
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testResume() throws Exception {
+        ITmfStateSystemBuilder full = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createHistoryTreeBackendNewFile(SSID, fFullFile, 1, 0, QUEUE_SIZE));
+        insertStates(full, 1, END_TIME);
+        full.closeHistory(END_TIME);
+        full.dispose();
+
+        ITmfStateSystemBuilder resumed = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createHistoryTreeBackendNewFile(SSID, fResumedFile, 1, 0, QUEUE_SIZE));
+        long[] closeTimes = { 10000, 10001, 55555, END_TIME };
+        long start = 1;
+        for (int i = 0; i < closeTimes.length; i++) {
+            insertStates(resumed, start, closeTimes[i]);
+            resumed.closeHistory(closeTimes[i]);
+            resumed.dispose();
+            start = closeTimes[i] + 1;
+            if (i < closeTimes.length - 1) {
+                resumed = StateSystemFactory.resumeStateSystem(
+                        StateHistoryBackendFactory.createHistoryTreeBackendResumeFile(SSID, fResumedFile, 1, QUEUE_SIZE));
+                assertEquals(closeTimes[i], resumed.getCurrentEndTime());
+            }
+        }
+
+        ITmfStateSystem expected = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(SSID, fFullFile, 1), false);
+        ITmfStateSystem actual = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(SSID, fResumedFile, 1), false);
+        try {
+            assertEquals(expected.getNbAttributes(), actual.getNbAttributes());
+            assertEquals(END_TIME, actual.getCurrentEndTime());
+            for (long t = 0; t <= END_TIME; t += 997) {
+                compareStates(expected, actual, t);
+            }
+            for (long t : closeTimes) {
+                compareStates(expected, actual, t);
+                compareStates(expected, actual, t - 1);
+            }
+        } finally {
+            expected.dispose();
+            actual.dispose();
+        }
+    }
+
+    private static void compareStates(ITmfStateSystem expected, ITmfStateSystem actual, long t)
+            throws StateSystemDisposedException, AttributeNotFoundException {
+        List<ITmfStateInterval> expectedStates = expected.queryFullState(t);
+        List<ITmfStateInterval> actualStates = actual.queryFullState(t);
+        for (int quark = 0; quark < expected.getNbAttributes(); quark++) {
+            int actualQuark = actual.getQuarkAbsolute(expected.getFullAttributePathArray(quark));
+            assertEquals("at " + t, expectedStates.get(quark).getStateValue(), actualStates.get(actualQuark).getStateValue());
+        }
+    }
+}
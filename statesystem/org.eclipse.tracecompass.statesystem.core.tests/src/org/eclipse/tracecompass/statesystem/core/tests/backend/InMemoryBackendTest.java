@@ -15,9 +15,10 @@ package org.eclipse.tracecompass.statesystem.core.tests.backend;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
 import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
@@ -37,14 +38,14 @@ import org.junit.Test;
 public class InMemoryBackendTest {
 
     private static final int NUMBER_OF_ATTRIBUTES = 10;
-    private static IStateHistoryBackend fixture;
+    private static IStateHistoryBackend2D fixture;
 
     /**
      * Test setup. make a state system that is moderately large
      */
     @BeforeClass
     public static void init() {
-        fixture = StateHistoryBackendFactory.createInMemoryBackend("test-ss", 0);
+        fixture = (IStateHistoryBackend2D) StateHistoryBackendFactory.createInMemoryBackend("test-ss", 0);
         for (int attribute = 0; attribute < NUMBER_OF_ATTRIBUTES; attribute++) {
             for (int timeStart = 0; timeStart < 1000; timeStart++) {
                 try {
@@ -156,6 +157,56 @@ public class InMemoryBackendTest {
         }
     }
 
+    /**
+     * Test a range query over several attributes
+     */
+    @Test
+    public void testQuery2D() {
+        try {
+            List<Integer> quarks = Arrays.asList(0, 3);
+            int count = 0;
+            for (ITmfStateInterval interval : fixture.doQuery2D(quarks, 950, 1150)) {
+                assertTrue(quarks.contains(interval.getAttribute()));
+                assertTrue(interval.getStartTime() <= 1150);
+                assertTrue(interval.getEndTime() >= 950);
+                count++;
+            }
+            /* 3 valued intervals and 2 null intervals for each attribute */
+            assertEquals(10, count);
+
+        } catch (TimeRangeException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test a range query over several attributes, sampled at a resolution
+     * coarser than the intervals
+     */
+    @Test
+    public void testQuery2DResolution() {
+        try {
+            List<Integer> quarks = Arrays.asList(0, 3);
+            int count = 0;
+            for (ITmfStateInterval interval : fixture.doQuery2D(quarks, 0, 1000, 100)) {
+                if (interval.getAttribute() == 0) {
+                    /* Sampling points 0, 100, ..., 1000 are all in valued intervals */
+                    assertEquals(0, interval.getStartTime() % 100);
+                    assertFalse(interval.getStateValue().isNull());
+                } else {
+                    /* Sampling points 100, ..., 1000 are all in null intervals */
+                    assertEquals(3, interval.getAttribute());
+                    assertTrue(interval.getStateValue().isNull());
+                }
+                count++;
+            }
+            assertEquals(21, count);
+
+        } catch (TimeRangeException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * Test single attribute that should not exist
      */
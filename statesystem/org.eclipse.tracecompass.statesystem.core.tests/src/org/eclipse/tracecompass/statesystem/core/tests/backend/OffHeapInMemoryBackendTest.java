@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test cases for the off-heap in-memory backend
+ */
+public class OffHeapInMemoryBackendTest {
+
+    private static final int NUMBER_OF_ATTRIBUTES = 10;
+    private static final int STRING_QUARK = NUMBER_OF_ATTRIBUTES;
+    private static IStateHistoryBackend2D fixture;
+
+    /**
+     * Test setup. Use the same intervals as {@link InMemoryBackendTest}, plus
+     * an attribute with string and double values.
+     */
+    @BeforeClass
+    public static void init() {
+        fixture = (IStateHistoryBackend2D) StateHistoryBackendFactory.createOffHeapInMemoryBackend("test-ss", 0);
+        try {
+            for (int attribute = 0; attribute < NUMBER_OF_ATTRIBUTES; attribute++) {
+                for (int timeStart = 0; timeStart < 1000; timeStart++) {
+                    final int stateEndTime = (timeStart * 100) + 90 + attribute;
+                    final int stateStartTime = timeStart * 100 + attribute;
+                    fixture.insertPastState(stateStartTime, stateEndTime, attribute, TmfStateValue.newValueInt(timeStart % 100));
+                    if (timeStart != 999) {
+                        fixture.insertPastState(stateEndTime + 1, stateEndTime + 9, attribute, TmfStateValue.nullValue());
+                    }
+                }
+            }
+            fixture.insertPastState(0, 499, STRING_QUARK, TmfStateValue.newValueString("first"));
+            fixture.insertPastState(500, 999, STRING_QUARK, TmfStateValue.newValueDouble(1.5));
+            fixture.insertPastState(1000, 1499, STRING_QUARK, TmfStateValue.newValueString("first"));
+            fixture.insertPastState(1500, 1999, STRING_QUARK, TmfStateValue.newValueLong(1L << 40));
+        } catch (TimeRangeException e) {
+            /* Should not happen here */
+            throw new IllegalStateException();
+        }
+    }
+
+    private static void testInterval(ITmfStateInterval interval, int startTime,
+            int endTime, int value) {
+        assertNotNull(interval);
+        assertEquals(startTime, interval.getStartTime());
+        assertEquals(endTime, interval.getEndTime());
+        assertEquals(value, interval.getStateValue().unboxInt());
+    }
+
+    /**
+     * Query the state system
+     */
+    @Test
+    public void testDoQuery() {
+        List<ITmfStateInterval> interval = new ArrayList<>(NUMBER_OF_ATTRIBUTES);
+        for (int i = 0; i < NUMBER_OF_ATTRIBUTES; i++) {
+            interval.add(null);
+        }
+        try {
+            fixture.doQuery(interval, 950);
+        } catch (TimeRangeException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+
+        assertEquals(NUMBER_OF_ATTRIBUTES, interval.size());
+        for (int i = 0; i < NUMBER_OF_ATTRIBUTES; i++) {
+            testInterval(interval.get(i), 900 + i, 990 + i, 9);
+        }
+    }
+
+    /**
+     * Test single queries at the start, the end and in the middle of the
+     * history
+     */
+    @Test
+    public void testSingularQuery() {
+        try {
+            testInterval(fixture.doSingularQuery(0, 0), 0, 90, 0);
+            testInterval(fixture.doSingularQuery(99998, 9), 99909, 99999, 99);
+            testInterval(fixture.doSingularQuery(50050, 5), 50005, 50095, 0);
+
+            ITmfStateInterval interval = fixture.doSingularQuery(50097, 5);
+            assertEquals(50096, interval.getStartTime());
+            assertEquals(50104, interval.getEndTime());
+            assertTrue(interval.getStateValue().isNull());
+
+        } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test that values of every type are stored and read back correctly
+     */
+    @Test
+    public void testValueTypes() {
+        try {
+            assertEquals("first", fixture.doSingularQuery(250, STRING_QUARK).getStateValue().unboxStr());
+            assertEquals(1.5, fixture.doSingularQuery(750, STRING_QUARK).getStateValue().unboxDouble(), 0.0);
+            assertEquals("first", fixture.doSingularQuery(1250, STRING_QUARK).getStateValue().unboxStr());
+            assertEquals(1L << 40, fixture.doSingularQuery(1750, STRING_QUARK).getStateValue().unboxLong());
+
+        } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test a range query over several attributes, at full and at coarse
+     * resolution
+     */
+    @Test
+    public void testQuery2D() {
+        try {
+            List<Integer> quarks = Arrays.asList(0, 3);
+            int count = 0;
+            for (ITmfStateInterval interval : fixture.doQuery2D(quarks, 950, 1150)) {
+                assertTrue(quarks.contains(interval.getAttribute()));
+                assertTrue(interval.getStartTime() <= 1150);
+                assertTrue(interval.getEndTime() >= 950);
+                count++;
+            }
+            assertEquals(10, count);
+
+            count = 0;
+            for (ITmfStateInterval interval : fixture.doQuery2D(quarks, 0, 1000, 100)) {
+                if (interval.getAttribute() == 0) {
+                    assertFalse(interval.getStateValue().isNull());
+                } else {
+                    assertTrue(interval.getStateValue().isNull());
+                }
+                count++;
+            }
+            assertEquals(21, count);
+
+        } catch (TimeRangeException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test intervals that are not inserted in time order
+     */
+    @Test
+    public void testUnorderedInsertion() {
+        IStateHistoryBackend2D backend = (IStateHistoryBackend2D) StateHistoryBackendFactory.createOffHeapInMemoryBackend("test-unordered", 0);
+        try {
+            backend.insertPastState(20, 29, 0, TmfStateValue.newValueInt(2));
+            backend.insertPastState(0, 9, 0, TmfStateValue.newValueInt(0));
+            backend.insertPastState(10, 19, 0, TmfStateValue.newValueInt(1));
+
+            testInterval(backend.doSingularQuery(5, 0), 0, 9, 0);
+            testInterval(backend.doSingularQuery(15, 0), 10, 19, 1);
+            testInterval(backend.doSingularQuery(25, 0), 20, 29, 2);
+
+            int count = 0;
+            for (ITmfStateInterval interval : backend.doQuery2D(Arrays.asList(0), 0, 29)) {
+                assertEquals(0, interval.getAttribute());
+                count++;
+            }
+            assertEquals(3, count);
+
+        } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test querying an attribute that has no intervals
+     *
+     * @throws AttributeNotFoundException
+     *             Expected
+     */
+    @Test(expected = AttributeNotFoundException.class)
+    public void testMissingAttribute() throws AttributeNotFoundException {
+        try {
+            fixture.doSingularQuery(50, STRING_QUARK + 1);
+        } catch (TimeRangeException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test out of range query
+     *
+     * @throws TimeRangeException
+     *             Expected
+     */
+    @Test(expected = TimeRangeException.class)
+    public void testOutOfRange() throws TimeRangeException {
+        try {
+            fixture.doSingularQuery(100000, 0);
+        } catch (AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -42,6 +42,9 @@ public final class Attribute {
     private final @NonNull String name;
     private final int quark;
 
+    /** Hash of the full path of this attribute, see {@link #getPathHash()} */
+    private final int pathHash;
+
     /** The sub-attributes (<basename, attribute>) of this attribute */
     private final Map<String, Attribute> subAttributes;
 
@@ -60,6 +63,7 @@ public final class Attribute {
         this.parent = parent;
         this.quark = quark;
         this.name = name;
+        this.pathHash = (parent == null ? 0 : extendPathHash(parent.pathHash, name));
         this.subAttributes = Collections.synchronizedMap(new LinkedHashMap<String, Attribute>());
     }
 
@@ -85,6 +89,31 @@ public final class Attribute {
         return name;
     }
 
+    /**
+     * Get the hash of the full path of this attribute. It is computed from the
+     * hash of the parent's path, so the hash of a path relative to this
+     * attribute can be computed with {@link #extendPathHash} without building
+     * the full path.
+     *
+     * @return The hash of the full path
+     */
+    public int getPathHash() {
+        return pathHash;
+    }
+
+    /**
+     * Compute the hash of a path made of a parent path and one more element.
+     *
+     * @param parentHash
+     *            The hash of the parent path
+     * @param name
+     *            The name of the path element to add
+     * @return The hash of the resulting path
+     */
+    public static int extendPathHash(int parentHash, String name) {
+        return 31 * parentHash + name.hashCode();
+    }
+
     /**
      * Get the list of child attributes below this one.
      *
@@ -18,6 +18,7 @@ package org.eclipse.tracecompass.internal.statesystem.core;
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -28,17 +29,32 @@ import java.io.PrintWriter;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
 /**
  * The Attribute Tree is the /proc-like filesystem used to organize attributes.
  * Each node of this tree is both like a file and a directory in the
  * "file system".
  *
+ * Paths are resolved through an index from the hash of the full path of every
+ * attribute to its quark, instead of walking down the tree one path element at
+ * a time. The hash of a relative path is computed from the hash of the path of
+ * the starting attribute, so no full path has to be built.
+ *
+ * Reading the tree does not take any lock. Attributes are only added under
+ * the monitor of the tree, and published by incrementing the number of
+ * attributes, after the attribute array and the index are updated. Readers
+ * ignore any quark greater than the number of attributes they read first.
+ *
  * @author alexmont
  *
  */
@@ -47,10 +63,28 @@ public final class AttributeTree {
     /* "Magic number" for attribute tree files or file sections */
     private static final int ATTRIB_TREE_MAGIC_NUMBER = 0x06EC3671;
 
+    /* "Magic number" of the ongoing state, optionally saved after the tree */
+    private static final int ONGOING_STATE_MAGIC_NUMBER = 0x06EC3672;
+
+    private static final int INITIAL_CAPACITY = 64;
+
     private final StateSystem ss;
-    private final List<Attribute> attributeList;
     private final Attribute attributeTreeRoot;
 
+    /* Attributes indexed by quark, replaced by a bigger copy when full */
+    private volatile Attribute[] attributes;
+    private volatile int nbAttributes;
+
+    /*
+     * Open-addressing hash table from the path hash of the attributes to their
+     * quark + 1 (0 is an empty slot). It is kept at most half full, and
+     * rebuilt bigger when needed.
+     */
+    private volatile int[] pathIndex;
+
+    /* Ongoing state saved with the tree, if it was read from a file */
+    private @Nullable List<ITmfStateInterval> savedOngoingState = null;
+
     /**
      * Standard constructor, create a new empty Attribute Tree
      *
@@ -59,8 +93,10 @@ public final class AttributeTree {
      */
     public AttributeTree(StateSystem ss) {
         this.ss = ss;
-        this.attributeList = Collections.synchronizedList(new ArrayList<Attribute>());
         this.attributeTreeRoot = new Attribute(null, "root", -1); //$NON-NLS-1$
+        this.attributes = new Attribute[INITIAL_CAPACITY];
+        this.pathIndex = new int[INITIAL_CAPACITY * 2];
+        this.nbAttributes = 0;
     }
 
     /**
@@ -102,6 +138,17 @@ public final class AttributeTree {
         for (String[] attrib : attribList) {
             this.getQuarkAndAdd(-1, attrib);
         }
+
+        /* Histories written by older versions do not have the ongoing state */
+        try {
+            res = ois.readInt();
+        } catch (EOFException e) {
+            return;
+        }
+        if (res != ONGOING_STATE_MAGIC_NUMBER) {
+            throw new IOException("The ongoing state section is either invalid or corrupted."); //$NON-NLS-1$
+        }
+        savedOngoingState = readOngoingState(ois);
     }
 
     /**
@@ -113,6 +160,23 @@ public final class AttributeTree {
      *            The position (in bytes) in the file where to write
      */
     public void writeSelf(File file, long pos) {
+        writeSelf(file, pos, null);
+    }
+
+    /**
+     * Tell the Attribute Tree to write itself somewhere in a file, followed by
+     * the ongoing state of the state system, so that the history can be
+     * resumed when it is opened again.
+     *
+     * @param file
+     *            The file to write to
+     * @param pos
+     *            The position (in bytes) in the file where to write
+     * @param ongoingState
+     *            The ongoing intervals, indexed by quark, or null to only
+     *            write the attribute tree
+     */
+    public void writeSelf(File file, long pos, @Nullable List<ITmfStateInterval> ongoingState) {
         try (FileOutputStream fos = new FileOutputStream(file, true);
                 FileChannel fc = fos.getChannel();) {
             fc.position(pos);
@@ -122,11 +186,18 @@ public final class AttributeTree {
                 oos.writeInt(ATTRIB_TREE_MAGIC_NUMBER);
 
                 /* Compute the serialized list of attributes and write it */
-                List<String[]> list = new ArrayList<>(attributeList.size());
-                for (Attribute entry : this.attributeList) {
-                    list.add(entry.getFullAttribute());
+                final int nb = nbAttributes;
+                Attribute[] array = attributes;
+                List<String[]> list = new ArrayList<>(nb);
+                for (int i = 0; i < nb; i++) {
+                    list.add(array[i].getFullAttribute());
                 }
                 oos.writeObject(list);
+
+                if (ongoingState != null) {
+                    oos.writeInt(ONGOING_STATE_MAGIC_NUMBER);
+                    writeOngoingState(oos, ongoingState);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -134,6 +205,79 @@ public final class AttributeTree {
 
     }
 
+    /**
+     * Get the ongoing state that was saved after the attribute tree, when it
+     * was read from a file.
+     *
+     * @return The ongoing intervals, indexed by quark, or null if the file did
+     *         not have it
+     */
+    public @Nullable List<ITmfStateInterval> getSavedOngoingState() {
+        return savedOngoingState;
+    }
+
+    private static void writeOngoingState(ObjectOutputStream oos, List<ITmfStateInterval> ongoingState)
+            throws IOException {
+        oos.writeInt(ongoingState.size());
+        for (ITmfStateInterval interval : ongoingState) {
+            ITmfStateValue value = interval.getStateValue();
+            oos.writeLong(interval.getStartTime());
+            oos.writeLong(interval.getEndTime());
+            oos.writeByte(value.getType().ordinal());
+            switch (value.getType()) {
+            case INTEGER:
+                oos.writeInt(value.unboxInt());
+                break;
+            case LONG:
+                oos.writeLong(value.unboxLong());
+                break;
+            case DOUBLE:
+                oos.writeDouble(value.unboxDouble());
+                break;
+            case STRING:
+                /* Not writeUTF(), which is limited to 64 KB */
+                oos.writeObject(value.unboxStr());
+                break;
+            case NULL:
+            default:
+                break;
+            }
+        }
+    }
+
+    private static List<ITmfStateInterval> readOngoingState(ObjectInputStream ois) throws IOException {
+        int size = ois.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid ongoing state size " + size); //$NON-NLS-1$
+        }
+        List<ITmfStateInterval> ongoingState = new ArrayList<>(size);
+        for (int quark = 0; quark < size; quark++) {
+            long start = ois.readLong();
+            long end = ois.readLong();
+            int type = ois.readByte();
+            ITmfStateValue value;
+            if (type == Type.INTEGER.ordinal()) {
+                value = TmfStateValue.newValueInt(ois.readInt());
+            } else if (type == Type.LONG.ordinal()) {
+                value = TmfStateValue.newValueLong(ois.readLong());
+            } else if (type == Type.DOUBLE.ordinal()) {
+                value = TmfStateValue.newValueDouble(ois.readDouble());
+            } else if (type == Type.STRING.ordinal()) {
+                try {
+                    value = TmfStateValue.newValueString((String) ois.readObject());
+                } catch (ClassNotFoundException | ClassCastException e) {
+                    throw new IOException("Invalid string value in the ongoing state", e); //$NON-NLS-1$
+                }
+            } else if (type == Type.NULL.ordinal()) {
+                value = TmfStateValue.nullValue();
+            } else {
+                throw new IOException("Invalid value type in the ongoing state: " + type); //$NON-NLS-1$
+            }
+            ongoingState.add(new TmfStateInterval(start, end, quark, value));
+        }
+        return ongoingState;
+    }
+
     /**
      * Return the number of attributes this system as seen so far. Note that
      * this also equals the integer value (quark) the next added attribute will
@@ -142,7 +286,7 @@ public final class AttributeTree {
      * @return The current number of attributes in the tree
      */
     public int getNbAttributes() {
-        return attributeList.size();
+        return nbAttributes;
     }
 
     /**
@@ -162,21 +306,12 @@ public final class AttributeTree {
             throws AttributeNotFoundException {
         assert (startingNodeQuark >= -1);
 
-        Attribute prevNode;
-
         /* If subPath is empty, simply return the starting quark */
         if (subPath == null || subPath.length == 0) {
             return startingNodeQuark;
         }
 
-        /* Get the "starting node" */
-        if (startingNodeQuark == -1) {
-            prevNode = attributeTreeRoot;
-        } else {
-            prevNode = attributeList.get(startingNodeQuark);
-        }
-
-        int knownQuark = prevNode.getSubAttributeQuark(subPath);
+        int knownQuark = lookup(startingNodeQuark, subPath);
         if (knownQuark == -1) {
             /*
              * The attribute doesn't exist, but we have been specified to NOT
@@ -203,46 +338,191 @@ public final class AttributeTree {
      *            The path to the attribute, relative to the starting node.
      * @return The quark of the attribute represented by the path
      */
-    public synchronized int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
-        // FIXME synchronized here is probably quite costly... maybe only locking
-        // the "for" would be enough?
+    public int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
         assert (subPath != null && subPath.length > 0);
         assert (startingNodeQuark >= -1);
 
-        Attribute nextNode = null;
-        Attribute prevNode;
+        int knownQuark = lookup(startingNodeQuark, subPath);
+        if (knownQuark != -1) {
+            return knownQuark;
+        }
+        synchronized (this) {
+            return add(startingNodeQuark, subPath);
+        }
+    }
+
+    /**
+     * Get the quarks of several attribute paths relative to the same
+     * attribute, creating the ones that do not exist. Existing attributes are
+     * resolved without locking, and the monitor is only taken once to create
+     * all the missing ones.
+     *
+     * @param startingNodeQuark
+     *            The quark of the attribute from which relative queries will
+     *            start. Use '-1' to start at the root node.
+     * @param subPaths
+     *            The paths to the attributes, relative to the starting node.
+     * @return The quarks of the attributes, in the same order as the paths
+     */
+    public int[] getQuarksAndAdd(int startingNodeQuark, String[]... subPaths) {
+        assert (startingNodeQuark >= -1);
 
-        /* Get the "starting node" */
+        int[] quarks = new int[subPaths.length];
+        boolean missing = false;
+        for (int i = 0; i < subPaths.length; i++) {
+            quarks[i] = lookup(startingNodeQuark, subPaths[i]);
+            missing |= (quarks[i] == -1);
+        }
+        if (missing) {
+            synchronized (this) {
+                for (int i = 0; i < subPaths.length; i++) {
+                    if (quarks[i] == -1) {
+                        quarks[i] = add(startingNodeQuark, subPaths[i]);
+                    }
+                }
+            }
+        }
+        return quarks;
+    }
+
+    /**
+     * Find the quark of a path in the index.
+     *
+     * @return The quark, or -1 if the attribute does not exist
+     */
+    private int lookup(int startingNodeQuark, String[] subPath) {
+        /* The number of attributes must be read before the arrays */
+        final int nb = nbAttributes;
+        Attribute[] array = attributes;
+        int[] index = pathIndex;
+
+        Attribute start;
         if (startingNodeQuark == -1) {
-            prevNode = attributeTreeRoot;
+            start = attributeTreeRoot;
+        } else if (startingNodeQuark >= 0 && startingNodeQuark < nb) {
+            start = array[startingNodeQuark];
         } else {
-            prevNode = attributeList.get(startingNodeQuark);
+            throw new IndexOutOfBoundsException("Quark: " + startingNodeQuark + ", Size: " + nb); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        int hash = start.getPathHash();
+        for (String element : subPath) {
+            hash = Attribute.extendPathHash(hash, element);
         }
 
-        int knownQuark = prevNode.getSubAttributeQuark(subPath);
-        if (knownQuark == -1) {
-            /*
-             * The attribute was not in the table previously, and we want to add
-             * it
-             */
-            for (String curDirectory : subPath) {
-                nextNode = prevNode.getSubAttributeNode(curDirectory);
-                if (nextNode == null) {
-                    /* This is where we need to start adding */
-                    nextNode = new Attribute(prevNode, checkNotNull(curDirectory), attributeList.size());
-                    prevNode.addSubAttribute(nextNode);
-                    attributeList.add(nextNode);
-                    ss.addEmptyAttribute();
-                }
-                prevNode = nextNode;
+        int mask = index.length - 1;
+        for (int slot = mix(hash) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int quark = index[slot] - 1;
+            if (quark < nb && matches(array[quark], start, subPath)) {
+                return quark;
             }
-            return attributeList.size() - 1;
         }
-        /*
-         * The attribute was already existing, return the quark of that
-         * attribute
-         */
-        return knownQuark;
+        return -1;
+    }
+
+    /**
+     * Check if an attribute is at the given path below the starting attribute,
+     * by going up its parents.
+     */
+    private static boolean matches(Attribute attribute, Attribute start, String[] subPath) {
+        Attribute node = attribute;
+        for (int i = subPath.length - 1; i >= 0; i--) {
+            if (node == null || !node.getName().equals(subPath[i])) {
+                return false;
+            }
+            node = node.getParentAttribute();
+        }
+        return node == start;
+    }
+
+    /**
+     * Get the quark of a path, creating the attributes that are missing. Must
+     * be called with the monitor held.
+     */
+    private int add(int startingNodeQuark, String[] subPath) {
+        /* Another thread may have created it since the lookup */
+        int knownQuark = lookup(startingNodeQuark, subPath);
+        if (knownQuark != -1) {
+            return knownQuark;
+        }
+
+        Attribute prevNode = (startingNodeQuark == -1 ? attributeTreeRoot : getAttribute(startingNodeQuark));
+        Attribute nextNode = null;
+        for (String curDirectory : subPath) {
+            nextNode = prevNode.getSubAttributeNode(curDirectory);
+            if (nextNode == null) {
+                /* This is where we need to start adding */
+                nextNode = new Attribute(prevNode, checkNotNull(curDirectory), nbAttributes);
+                prevNode.addSubAttribute(nextNode);
+                addAttribute(nextNode);
+            }
+            prevNode = nextNode;
+        }
+        return checkNotNull(nextNode).getQuark();
+    }
+
+    /**
+     * Put a new attribute in the array and in the index, then publish it. Must
+     * be called with the monitor held.
+     */
+    private void addAttribute(Attribute attribute) {
+        final int quark = nbAttributes;
+        Attribute[] array = attributes;
+        if (quark == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+            attributes = array;
+        }
+        array[quark] = attribute;
+
+        int[] index = pathIndex;
+        if ((quark + 1) * 2 > index.length) {
+            /* Rebuild a bigger index, then publish it */
+            index = new int[index.length * 2];
+            for (int i = 0; i < quark; i++) {
+                insertInIndex(index, array[i]);
+            }
+            insertInIndex(index, attribute);
+            pathIndex = index;
+        } else {
+            insertInIndex(index, attribute);
+        }
+
+        /* The transient state must know the attribute before queries do */
+        ss.addEmptyAttribute();
+        nbAttributes = quark + 1;
+    }
+
+    private static void insertInIndex(int[] index, Attribute attribute) {
+        int mask = index.length - 1;
+        int slot = mix(attribute.getPathHash()) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = attribute.getQuark() + 1;
+    }
+
+    /* 32-bit finalizer of MurmurHash3, spreads the path hashes in the index */
+    private static int mix(int hash) {
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Get an attribute by quark.
+     *
+     * @throws IndexOutOfBoundsException
+     *             If there is no attribute with this quark
+     */
+    private Attribute getAttribute(int quark) {
+        final int nb = nbAttributes;
+        if (quark < 0 || quark >= nb) {
+            throw new IndexOutOfBoundsException("Quark: " + quark + ", Size: " + nb); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return attributes[quark];
     }
 
     /**
@@ -265,7 +545,7 @@ public final class AttributeTree {
         Attribute startingAttribute;
 
         /* Check if the quark is valid */
-        if (attributeQuark < -1 || attributeQuark >= attributeList.size()) {
+        if (attributeQuark < -1 || attributeQuark >= nbAttributes) {
             throw new AttributeNotFoundException(ss.getSSID() + " Quark:" + attributeQuark); //$NON-NLS-1$
         }
 
@@ -273,7 +553,7 @@ public final class AttributeTree {
         if (attributeQuark == -1) {
             startingAttribute = attributeTreeRoot;
         } else {
-            startingAttribute = attributeList.get(attributeQuark);
+            startingAttribute = getAttribute(attributeQuark);
         }
 
         /* Iterate through the sub-attributes and add them to the list */
@@ -295,7 +575,7 @@ public final class AttributeTree {
         if (quark == -1) {
             return quark;
         }
-        return attributeList.get(quark).getParentAttributeQuark();
+        return getAttribute(quark).getParentAttributeQuark();
     }
 
     private void addSubAttributes(List<Integer> list, Attribute curAttribute,
@@ -316,7 +596,7 @@ public final class AttributeTree {
      * @return The (base) name of the attribute
      */
     public @NonNull String getAttributeName(int quark) {
-        return attributeList.get(quark).getName();
+        return getAttribute(quark).getName();
     }
 
     /**
@@ -327,7 +607,7 @@ public final class AttributeTree {
      * @return The full path name of the attribute
      */
     public @NonNull String getFullAttributeName(int quark) {
-        return attributeList.get(quark).getFullAttributeName();
+        return getAttribute(quark).getFullAttributeName();
     }
 
     /**
@@ -339,7 +619,7 @@ public final class AttributeTree {
      * @return The path elements of the full path
      */
     public @NonNull String[] getFullAttributePathArray(int quark) {
-        return attributeList.get(quark).getFullAttribute();
+        return getAttribute(quark).getFullAttribute();
     }
 
     /**
@@ -19,14 +19,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ResolutionGrid;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
@@ -60,7 +65,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
     private final CountDownLatch finishedLatch = new CountDownLatch(1);
 
     private boolean buildCancelled = false;
-    private boolean isDisposed = false;
+    private volatile boolean isDisposed = false;
 
     /**
      * New-file constructor. For when you build a state system with a new file,
@@ -88,6 +93,29 @@ public class StateSystem implements ITmfStateSystemBuilder {
      */
     public StateSystem(@NonNull IStateHistoryBackend backend, boolean newFile)
             throws IOException {
+        this(backend, newFile, false);
+    }
+
+    /**
+     * General constructor, which can also resume the building of an existing
+     * history.
+     *
+     * @param backend
+     *            The "state history storage" back-end to use. To resume a
+     *            history, it must have been opened for appending.
+     * @param newFile
+     *            Put true if this is a new history started from scratch. It is
+     *            used to tell the state system where to get its attribute tree.
+     * @param resume
+     *            For an existing file, put true to continue building the
+     *            history after its end time, from the ongoing state that was
+     *            saved when it was closed.
+     * @throws IOException
+     *             If there was a problem creating the new history file, or if
+     *             the existing history cannot be resumed
+     */
+    public StateSystem(@NonNull IStateHistoryBackend backend, boolean newFile, boolean resume)
+            throws IOException {
         this.backend = backend;
         this.transState = new TransientState(backend);
 
@@ -96,8 +124,16 @@ public class StateSystem implements ITmfStateSystemBuilder {
         } else {
             /* We're opening an existing file */
             this.attributeTree = new AttributeTree(this, backend.supplyAttributeTreeReader());
-            transState.setInactive();
-            finishedLatch.countDown(); /* The history is already built */
+            if (resume) {
+                List<ITmfStateInterval> ongoingState = attributeTree.getSavedOngoingState();
+                if (ongoingState == null || ongoingState.size() != attributeTree.getNbAttributes()) {
+                    throw new IOException("The history was not saved with its ongoing state, it cannot be resumed"); //$NON-NLS-1$
+                }
+                transState.resumeOngoingState(ongoingState, backend.getEndTime());
+            } else {
+                transState.setInactive();
+                finishedLatch.countDown(); /* The history is already built */
+            }
         }
     }
 
@@ -212,6 +248,8 @@ public class StateSystem implements ITmfStateSystemBuilder {
              */
             realEndTime = backend.getEndTime();
         }
+        /* Keep the ongoing state, so that the history can be resumed */
+        List<ITmfStateInterval> ongoingState = transState.getOngoingState(realEndTime);
         transState.closeTransientState(realEndTime);
         backend.finishedBuilding(realEndTime);
 
@@ -222,7 +260,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
              * If null was returned, we simply won't save the attribute tree,
              * too bad!
              */
-            getAttributeTree().writeSelf(attributeTreeFile, attributeTreeFilePos);
+            getAttributeTree().writeSelf(attributeTreeFile, attributeTreeFilePos, ongoingState);
         }
         finishedLatch.countDown(); /* Mark the history as finished building */
     }
@@ -253,6 +291,11 @@ public class StateSystem implements ITmfStateSystemBuilder {
         return getAttributeTree().getQuarkAndAdd(startingNodeQuark, subPath);
     }
 
+    @Override
+    public int[] getQuarksRelativeAndAdd(int startingNodeQuark, String[]... subPaths) {
+        return getAttributeTree().getQuarksAndAdd(startingNodeQuark, subPaths);
+    }
+
     @Override
     public List<Integer> getSubAttributes(int quark, boolean recursive)
             throws AttributeNotFoundException {
@@ -553,40 +596,58 @@ public class StateSystem implements ITmfStateSystemBuilder {
     //--------------------------------------------------------------------------
 
     @Override
-    public synchronized List<ITmfStateInterval> queryFullState(long t)
+    public List<ITmfStateInterval> queryFullState(long t)
+            throws TimeRangeException, StateSystemDisposedException {
+        return queryFullState(t, new ArrayList<ITmfStateInterval>(getNbAttributes()));
+    }
+
+    @Override
+    public List<ITmfStateInterval> queryFullState(long t, @NonNull List<ITmfStateInterval> reuse)
             throws TimeRangeException, StateSystemDisposedException {
         if (isDisposed) {
             throw new StateSystemDisposedException();
         }
 
+        /*
+         * Bring the size of the list to the current number of attributes, and
+         * clear the results of any previous query.
+         */
         final int nbAttr = getNbAttributes();
-        List<ITmfStateInterval> stateInfo = new ArrayList<>(nbAttr);
-
-        /* Bring the size of the array to the current number of attributes */
-        for (int i = 0; i < nbAttr; i++) {
-            stateInfo.add(null);
+        final int previousSize = reuse.size();
+        if (previousSize > nbAttr) {
+            reuse.subList(nbAttr, previousSize).clear();
+        }
+        for (int i = 0; i < Math.min(previousSize, nbAttr); i++) {
+            reuse.set(i, null);
+        }
+        for (int i = previousSize; i < nbAttr; i++) {
+            reuse.add(null);
         }
 
         /*
          * If we are currently building the history, also query the "ongoing"
          * states for stuff that might not yet be written to the history.
+         * Intervals are inserted in the backend before being removed from the
+         * transient state, so doing the transient state first means none can
+         * be missed. This does not need the monitor, both are safe to query
+         * from multiple threads.
          */
         if (transState.isActive()) {
-            transState.doQuery(stateInfo, t);
+            transState.doQuery(reuse, t);
         }
 
         /* Query the storage backend */
-        backend.doQuery(stateInfo, t);
+        backend.doQuery(reuse, t);
 
         /*
          * We should have previously inserted an interval for every attribute.
          */
-        for (ITmfStateInterval interval : stateInfo) {
+        for (ITmfStateInterval interval : reuse) {
             if (interval == null) {
                 throw new IllegalStateException("Incoherent interval storage"); //$NON-NLS-1$
             }
         }
-        return stateInfo;
+        return reuse;
     }
 
     @Override
@@ -616,6 +677,91 @@ public class StateSystem implements ITmfStateSystemBuilder {
         return ret;
     }
 
+    @Override
+    public Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, long start, long end)
+            throws TimeRangeException, StateSystemDisposedException {
+        return query2D(quarks, start, end, 1);
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, long start, long end, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+        if (start > end || resolution <= 0) {
+            throw new TimeRangeException(getSSID() + " Start:" + start + ", End:" + end + ", Resolution:" + resolution); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        /* The end of the range is a sampling point, so clamp it to the history */
+        long gridEnd = Math.max(start, Math.min(end, getCurrentEndTime()));
+        ResolutionGrid grid = new ResolutionGrid(start, gridEnd, resolution);
+
+        /*
+         * If we are currently building the history, the ongoing states are not
+         * in the backend yet. Look at them first, so that an interval being
+         * committed during the query is not missed.
+         */
+        Map<Integer, ITmfStateInterval> ongoingIntervals = new HashMap<>();
+        if (transState.isActive()) {
+            for (Integer quark : quarks) {
+                ITmfStateInterval ongoing = transState.getIntervalAt(end, quark);
+                if (ongoing != null && grid.intersects(ongoing.getStartTime(), ongoing.getEndTime())) {
+                    ongoingIntervals.put(quark, ongoing);
+                }
+            }
+        }
+
+        Iterable<ITmfStateInterval> committed;
+        if (backend instanceof IStateHistoryBackend2D) {
+            committed = ((IStateHistoryBackend2D) backend).doQuery2D(quarks, start, gridEnd, resolution);
+        } else {
+            committed = querySingleStates(quarks, grid);
+        }
+
+        List<ITmfStateInterval> intervals = new ArrayList<>();
+        for (ITmfStateInterval interval : committed) {
+            intervals.add(interval);
+            /* The ongoing interval may have been committed since */
+            ITmfStateInterval ongoing = ongoingIntervals.get(interval.getAttribute());
+            if (ongoing != null && ongoing.getStartTime() == interval.getStartTime()) {
+                ongoingIntervals.remove(interval.getAttribute());
+            }
+        }
+        intervals.addAll(ongoingIntervals.values());
+        return intervals;
+    }
+
+    /*
+     * Two-dimensional query for the backends which cannot do it: for each
+     * attribute, one singular query per interval, at the first sampling point
+     * after the end of the previous one.
+     */
+    private List<ITmfStateInterval> querySingleStates(Collection<Integer> quarks, ResolutionGrid grid)
+            throws StateSystemDisposedException {
+        List<ITmfStateInterval> intervals = new ArrayList<>();
+        long firstPoint = grid.getNextPoint(Math.max(grid.getStart(), backend.getStartTime()));
+        for (Integer quark : quarks) {
+            long t = firstPoint;
+            try {
+                while (t != -1) {
+                    ITmfStateInterval interval = backend.doSingularQuery(t, quark);
+                    if (interval == null) {
+                        /* The rest is in the transient state */
+                        break;
+                    }
+                    intervals.add(interval);
+                    if (interval.getEndTime() >= grid.getEnd()) {
+                        break;
+                    }
+                    t = grid.getNextPoint(interval.getEndTime() + 1);
+                }
+            } catch (TimeRangeException | AttributeNotFoundException e) {
+                /* Past the end of the backend, or not an attribute of it */
+            }
+        }
+        return intervals;
+    }
+
     //--------------------------------------------------------------------------
     //        Debug methods
     //--------------------------------------------------------------------------
@@ -18,7 +18,9 @@ package org.eclipse.tracecompass.internal.statesystem.core;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -42,23 +44,62 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
  * of the interval will be the recorded time we have here, and the "end time"
  * will be the timestamp of the new state-changing event we just read.
  *
+ * The ongoing states are stored in arrays indexed by quark, which grow with
+ * the attribute tree. Only one thread, the one building the state system, may
+ * modify the transient state. It does so without taking any lock: every
+ * attribute has a sequence number, which is odd while its start time and value
+ * are being modified. Readers retry when they see an odd or changed sequence
+ * number, so they always get a consistent start time and value, yielding
+ * between two tries so that they do not keep a processor from the writer.
+ *
  * @author Alexandre Montplaisir
  */
 @NonNullByDefault
 public class TransientState {
 
+    /**
+     * The arrays of ongoing states. They are replaced by bigger copies when
+     * attributes are added. The types are only used by the writer.
+     */
+    private static final class OngoingStates {
+        final AtomicIntegerArray fSequences;
+        final AtomicLongArray fStartTimes;
+        final AtomicReferenceArray<ITmfStateValue> fValues;
+        final Type[] fTypes;
+
+        OngoingStates(int capacity) {
+            fSequences = new AtomicIntegerArray(capacity);
+            fStartTimes = new AtomicLongArray(capacity);
+            fValues = new AtomicReferenceArray<>(capacity);
+            fTypes = new Type[capacity];
+        }
+
+        OngoingStates copyOf(int size, int capacity) {
+            OngoingStates copy = new OngoingStates(capacity);
+            for (int i = 0; i < size; i++) {
+                copy.fSequences.lazySet(i, fSequences.get(i));
+                copy.fStartTimes.lazySet(i, fStartTimes.get(i));
+                copy.fValues.lazySet(i, fValues.get(i));
+            }
+            System.arraycopy(fTypes, 0, copy.fTypes, 0, size);
+            return copy;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
     /* Indicates where to insert state changes that we generate */
     private final IStateHistoryBackend fBackend;
 
-    private final ReentrantReadWriteLock fRWLock = new ReentrantReadWriteLock(false);
-
     private volatile boolean fIsActive;
     private volatile long fLatestTime;
 
-    /* A method accessing these arrays will have to go through the lock */
-    private List<ITmfStateValue> fOngoingStateInfo;
-    private List<Long> fOngoingStateStartTimes;
-    private List<Type> fStateValueTypes;
+    /*
+     * The states are published before the size is increased, so readers must
+     * read the size first.
+     */
+    private volatile OngoingStates fStates;
+    private volatile int fSize;
 
     /**
      * Constructor
@@ -69,9 +110,8 @@ public class TransientState {
     public TransientState(IStateHistoryBackend backend) {
         fBackend = backend;
         fIsActive = true;
-        fOngoingStateInfo = new ArrayList<>();
-        fOngoingStateStartTimes = new ArrayList<>();
-        fStateValueTypes = new ArrayList<>();
+        fStates = new OngoingStates(INITIAL_CAPACITY);
+        fSize = 0;
 
         fLatestTime = backend.getStartTime();
     }
@@ -95,17 +135,12 @@ public class TransientState {
      *             If the quark is invalid
      */
     public ITmfStateValue getOngoingStateValue(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            ITmfStateValue ret = fOngoingStateInfo.get(quark);
-            if (ret == null) {
-                throw new IllegalStateException("Null interval stored in transient state"); //$NON-NLS-1$
-            }
-            return ret;
-        } finally {
-            fRWLock.readLock().unlock();
+        checkValidAttribute(quark);
+        ITmfStateValue ret = fStates.fValues.get(quark);
+        if (ret == null) {
+            throw new IllegalStateException("Null interval stored in transient state"); //$NON-NLS-1$
         }
+        return ret;
     }
 
     /**
@@ -118,13 +153,8 @@ public class TransientState {
      *             If the quark is invalid
      */
     public long getOngoingStartTime(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            return fOngoingStateStartTimes.get(quark);
-        } finally {
-            fRWLock.readLock().unlock();
-        }
+        checkValidAttribute(quark);
+        return fStates.fStartTimes.get(quark);
     }
 
     /**
@@ -140,13 +170,9 @@ public class TransientState {
      */
     public void changeOngoingStateValue(int quark, ITmfStateValue newValue)
             throws AttributeNotFoundException {
-        fRWLock.writeLock().lock();
-        try {
-            checkValidAttribute(quark);
-            fOngoingStateInfo.set(quark, newValue);
-        } finally {
-            fRWLock.writeLock().unlock();
-        }
+        checkValidAttribute(quark);
+        OngoingStates states = fStates;
+        writeState(states, quark, states.fStartTimes.get(quark), newValue);
     }
 
     /**
@@ -161,14 +187,13 @@ public class TransientState {
      *             If the quark is invalid
      */
     public ITmfStateInterval getOngoingInterval(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            return new TmfStateInterval(fOngoingStateStartTimes.get(quark), fLatestTime,
-                    quark, fOngoingStateInfo.get(quark));
-        } finally {
-            fRWLock.readLock().unlock();
+        checkValidAttribute(quark);
+        ITmfStateInterval interval = readInterval(fStates, quark, Long.MAX_VALUE);
+        if (interval == null) {
+            /* Cannot happen, every start time is before Long.MAX_VALUE */
+            throw new IllegalStateException();
         }
+        return interval;
     }
 
     /**
@@ -184,23 +209,52 @@ public class TransientState {
      *         this transient state, or null if we couldn't.
      */
     public @Nullable ITmfStateInterval getIntervalAt(long time, int quark) {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            if (!isActive() || time < fOngoingStateStartTimes.get(quark)) {
-                return null;
-            }
-            return new TmfStateInterval(fOngoingStateStartTimes.get(quark),
-                    fLatestTime, quark, fOngoingStateInfo.get(quark));
-        } catch (AttributeNotFoundException e) {
+        if (!isActive() || quark < 0 || quark >= fSize) {
             return null;
-        } finally {
-            fRWLock.readLock().unlock();
+        }
+        return readInterval(fStates, quark, time);
+    }
+
+    /**
+     * Read the ongoing state of an attribute, retrying if the writer modifies
+     * it at the same time.
+     *
+     * @return The ongoing interval, or null if it starts after 'time' (or if
+     *         the attribute was removed by {@link #replaceOngoingState})
+     */
+    private @Nullable ITmfStateInterval readInterval(OngoingStates states, int quark, long time) {
+        while (true) {
+            int sequence = states.fSequences.get(quark);
+            if ((sequence & 1) == 0) {
+                long start = states.fStartTimes.get(quark);
+                ITmfStateValue value = states.fValues.get(quark);
+                if (states.fSequences.get(quark) == sequence) {
+                    if (value == null || time < start) {
+                        return null;
+                    }
+                    return new TmfStateInterval(start, fLatestTime, quark, value);
+                }
+            }
+            /* Let the writer finish, if it was preempted in the middle */
+            Thread.yield();
         }
     }
 
+    /**
+     * Modify the ongoing state of an attribute. The sequence number is odd
+     * while the start time and value are modified. The ordered writes make
+     * sure readers cannot see the new values before the odd number.
+     */
+    private static void writeState(OngoingStates states, int quark, long start, ITmfStateValue value) {
+        int sequence = states.fSequences.get(quark);
+        states.fSequences.lazySet(quark, sequence + 1);
+        states.fStartTimes.lazySet(quark, start);
+        states.fValues.lazySet(quark, value);
+        states.fSequences.lazySet(quark, sequence + 2);
+    }
+
     private void checkValidAttribute(int quark) throws AttributeNotFoundException {
-        if (quark > fOngoingStateInfo.size() - 1 || quark < 0) {
+        if (quark > fSize - 1 || quark < 0) {
             throw new AttributeNotFoundException(fBackend.getSSID() + " Quark:" + quark); //$NON-NLS-1$
         }
     }
@@ -218,21 +272,71 @@ public class TransientState {
      */
     public void replaceOngoingState(List<ITmfStateInterval> newStateIntervals) {
         final int size = newStateIntervals.size();
+        /*
+         * Readers may still use the previous size with the new arrays, so they
+         * cannot be smaller than the previous ones.
+         */
+        OngoingStates states = new OngoingStates(Math.max(size, fStates.fTypes.length));
+
+        for (int i = 0; i < size; i++) {
+            ITmfStateInterval interval = newStateIntervals.get(i);
+            states.fStartTimes.lazySet(i, interval.getStartTime());
+            states.fValues.lazySet(i, interval.getStateValue());
+            states.fTypes[i] = interval.getStateValue().getType();
+        }
+        fStates = states;
+        fSize = size;
+    }
 
-        fRWLock.writeLock().lock();
-        try {
-            fOngoingStateInfo = new ArrayList<>(size);
-            fOngoingStateStartTimes = new ArrayList<>(size);
-            fStateValueTypes = new ArrayList<>(size);
-
-            for (ITmfStateInterval interval : newStateIntervals) {
-                fOngoingStateInfo.add(interval.getStateValue());
-                fOngoingStateStartTimes.add(interval.getStartTime());
-                fStateValueTypes.add(interval.getStateValue().getType());
+    /**
+     * Get the ongoing state of every attribute, as it is when the history is
+     * closed at the given time. This is saved with the history, so that its
+     * building can be resumed later with {@link #resumeOngoingState}.
+     *
+     * @param endTime
+     *            The end time of the history. The intervals end at this time,
+     *            unless they start after it.
+     * @return The ongoing intervals, indexed by quark, or null if this
+     *         transient state is not active anymore
+     */
+    public @Nullable List<ITmfStateInterval> getOngoingState(long endTime) {
+        if (!fIsActive) {
+            return null;
+        }
+        final int size = fSize;
+        OngoingStates states = fStates;
+        List<ITmfStateInterval> ongoingState = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            long startTime = states.fStartTimes.get(i);
+            ITmfStateValue value = states.fValues.get(i);
+            if (value == null) {
+                throw new IllegalStateException("Null interval stored in transient state"); //$NON-NLS-1$
             }
-        } finally {
-            fRWLock.writeLock().unlock();
+            ongoingState.add(new TmfStateInterval(startTime, Math.max(startTime, endTime), i, value));
+        }
+        return ongoingState;
+    }
+
+    /**
+     * Restore the ongoing state of a history that was closed at the given
+     * time, to continue building it. The intervals that were ongoing were
+     * closed with the history, so their state starts again right after it.
+     *
+     * @param ongoingState
+     *            The ongoing intervals, as returned by
+     *            {@link #getOngoingState} when the history was closed
+     * @param endTime
+     *            The end time of the history
+     */
+    public void resumeOngoingState(List<ITmfStateInterval> ongoingState, long endTime) {
+        List<ITmfStateInterval> resumed = new ArrayList<>(ongoingState.size());
+        for (ITmfStateInterval interval : ongoingState) {
+            long startTime = Math.max(interval.getStartTime(), endTime + 1);
+            resumed.add(new TmfStateInterval(startTime, startTime, interval.getAttribute(), interval.getStateValue()));
         }
+        replaceOngoingState(resumed);
+        fLatestTime = endTime;
+        fIsActive = true;
     }
 
     /**
@@ -241,21 +345,25 @@ public class TransientState {
      * attribute tree, namely when we add sub-path attributes.
      */
     public void addEmptyEntry() {
-        fRWLock.writeLock().lock();
-        try {
-            /*
-             * Since this is a new attribute, we suppose it was in the
-             * "null state" since the beginning (so we can have intervals
-             * covering for all timestamps). A null interval will then get added
-             * at the first state change.
-             */
-            fOngoingStateInfo.add(TmfStateValue.nullValue());
-            fStateValueTypes.add(Type.NULL);
-
-            fOngoingStateStartTimes.add(fBackend.getStartTime());
-        } finally {
-            fRWLock.writeLock().unlock();
+        final int size = fSize;
+        OngoingStates states = fStates;
+        if (size == states.fTypes.length) {
+            states = states.copyOf(size, size * 2);
+            fStates = states;
         }
+
+        /*
+         * Since this is a new attribute, we suppose it was in the "null state"
+         * since the beginning (so we can have intervals covering for all
+         * timestamps). A null interval will then get added at the first state
+         * change.
+         */
+        states.fStartTimes.lazySet(size, fBackend.getStartTime());
+        states.fValues.lazySet(size, TmfStateValue.nullValue());
+        states.fTypes[size] = Type.NULL;
+
+        /* Publish the new entry */
+        fSize = size + 1;
     }
 
     /**
@@ -281,60 +389,57 @@ public class TransientState {
             return;
         }
 
-        fRWLock.writeLock().lock();
-        try {
-            Type expectedSvType = fStateValueTypes.get(quark);
-            checkValidAttribute(quark);
+        checkValidAttribute(quark);
+        OngoingStates states = fStates;
+        Type expectedSvType = states.fTypes[quark];
 
+        /*
+         * Make sure the state value type we're inserting is the same as the
+         * one registered for this attribute.
+         */
+        if (expectedSvType == Type.NULL) {
             /*
-             * Make sure the state value type we're inserting is the same as the
-             * one registered for this attribute.
+             * The value hasn't been used yet, set it to the value we're
+             * currently inserting (which might be null/-1 again).
              */
-            if (expectedSvType == Type.NULL) {
-                /*
-                 * The value hasn't been used yet, set it to the value we're
-                 * currently inserting (which might be null/-1 again).
-                 */
-                fStateValueTypes.set(quark, value.getType());
-            } else if ((value.getType() != Type.NULL) && (value.getType() != expectedSvType)) {
-                /*
-                 * We authorize inserting null values in any type of attribute,
-                 * but for every other types, it needs to match our
-                 * expectations!
-                 */
-                throw new StateValueTypeException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getType() + ", Expected:" + expectedSvType); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-            }
-
-            if (fOngoingStateInfo.get(quark).equals(value)) {
-                /*
-                 * This is the case where the new value and the one already
-                 * present in the Builder are the same. We do not need to create
-                 * an interval, we'll just keep the current one going.
-                 */
-                return;
-            }
-
-            if (fOngoingStateStartTimes.get(quark) < eventTime) {
-                /*
-                 * These two conditions are necessary to create an interval and
-                 * update ongoingStateInfo.
-                 */
-                fBackend.insertPastState(fOngoingStateStartTimes.get(quark),
-                        eventTime - 1, /* End Time */
-                        quark, /* attribute quark */
-                        fOngoingStateInfo.get(quark)); /* StateValue */
+            states.fTypes[quark] = value.getType();
+        } else if ((value.getType() != Type.NULL) && (value.getType() != expectedSvType)) {
+            /*
+             * We authorize inserting null values in any type of attribute, but
+             * for every other types, it needs to match our expectations!
+             */
+            throw new StateValueTypeException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getType() + ", Expected:" + expectedSvType); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
 
-                fOngoingStateStartTimes.set(quark, eventTime);
-            }
-            fOngoingStateInfo.set(quark, value);
+        ITmfStateValue ongoingValue = states.fValues.get(quark);
+        if (value.equals(ongoingValue)) {
+            /*
+             * This is the case where the new value and the one already present
+             * in the Builder are the same. We do not need to create an
+             * interval, we'll just keep the current one going.
+             */
+            return;
+        }
 
-            /* Update the Transient State's lastestTime, if needed */
-            if (fLatestTime < eventTime) {
-                fLatestTime = eventTime;
-            }
+        long startTime = states.fStartTimes.get(quark);
+        if (startTime < eventTime) {
+            /*
+             * These two conditions are necessary to create an interval and
+             * update ongoingStateInfo. The interval is in the backend before
+             * it is replaced here, so queries always find it in one or the
+             * other.
+             */
+            fBackend.insertPastState(startTime,
+                    eventTime - 1, /* End Time */
+                    quark, /* attribute quark */
+                    ongoingValue); /* StateValue */
+            startTime = eventTime;
+        }
+        writeState(states, quark, startTime, value);
 
-        } finally {
-            fRWLock.writeLock().unlock();
+        /* Update the Transient State's lastestTime, if needed */
+        if (fLatestTime < eventTime) {
+            fLatestTime = eventTime;
         }
     }
 
@@ -348,28 +453,25 @@ public class TransientState {
      *            The requested timestamp
      */
     public void doQuery(List<ITmfStateInterval> stateInfo, long t) {
-        fRWLock.readLock().lock();
-        try {
-            if (!this.fIsActive) {
-                return;
-            }
-            if (stateInfo.size() > fOngoingStateInfo.size()) {
-                throw new IllegalArgumentException();
-            }
+        if (!this.fIsActive) {
+            return;
+        }
+        final int size = fSize;
+        OngoingStates states = fStates;
+        if (stateInfo.size() > size) {
+            throw new IllegalArgumentException();
+        }
 
-            for (int i = 0; i < stateInfo.size(); i++) {
-                /*
-                 * We build a dummy interval whose end time =
-                 * "current transient state end time" to put in the answer to
-                 * the query.
-                 */
-                final ITmfStateInterval interval = getIntervalAt(t, i);
-                if (interval != null) {
-                    stateInfo.set(i, interval);
-                }
+        for (int i = 0; i < stateInfo.size(); i++) {
+            /*
+             * We build a dummy interval whose end time =
+             * "current transient state end time" to put in the answer to the
+             * query.
+             */
+            final ITmfStateInterval interval = readInterval(states, i, t);
+            if (interval != null) {
+                stateInfo.set(i, interval);
             }
-        } finally {
-            fRWLock.readLock().unlock();
         }
     }
 
@@ -388,39 +490,38 @@ public class TransientState {
             return;
         }
 
-        fRWLock.writeLock().lock();
-        try {
-            for (int i = 0; i < fOngoingStateInfo.size(); i++) {
-                if (fOngoingStateStartTimes.get(i) > endTime) {
-                    /*
-                     * Handle the cases where trace end > timestamp of last
-                     * state change. This can happen when inserting "future"
-                     * changes.
-                     */
-                    continue;
-                }
-                try {
-                    fBackend.insertPastState(fOngoingStateStartTimes.get(i),
-                            endTime, /* End Time */
-                            i, /* attribute quark */
-                            fOngoingStateInfo.get(i)); /* StateValue */
-
-                } catch (TimeRangeException e) {
-                    /*
-                     * This shouldn't happen, since we control where the
-                     * interval's start time comes from
-                     */
-                    throw new IllegalStateException(e);
-                }
+        final int size = fSize;
+        OngoingStates states = fStates;
+        for (int i = 0; i < size; i++) {
+            long startTime = states.fStartTimes.get(i);
+            if (startTime > endTime) {
+                /*
+                 * Handle the cases where trace end > timestamp of last state
+                 * change. This can happen when inserting "future" changes.
+                 */
+                continue;
             }
+            ITmfStateValue value = states.fValues.get(i);
+            if (value == null) {
+                throw new IllegalStateException("Null interval stored in transient state"); //$NON-NLS-1$
+            }
+            try {
+                fBackend.insertPastState(startTime,
+                        endTime, /* End Time */
+                        i, /* attribute quark */
+                        value); /* StateValue */
 
-            fOngoingStateInfo.clear();
-            fOngoingStateStartTimes.clear();
-            this.fIsActive = false;
-
-        } finally {
-            fRWLock.writeLock().unlock();
+            } catch (TimeRangeException e) {
+                /*
+                 * This shouldn't happen, since we control where the interval's
+                 * start time comes from
+                 */
+                throw new IllegalStateException(e);
+            }
         }
+
+        this.fIsActive = false;
+        fSize = 0;
     }
 
     /**
@@ -455,10 +556,12 @@ public class TransientState {
             return;
         }
         writer.println("\nAttribute\tStateValue\tValid since time"); //$NON-NLS-1$
-        for (int i = 0; i < fOngoingStateInfo.size(); i++) {
+        final int size = fSize;
+        OngoingStates states = fStates;
+        for (int i = 0; i < size; i++) {
             writer.format("%d\t\t", i); //$NON-NLS-1$
-            writer.print(fOngoingStateInfo.get(i).toString() + "\t\t"); //$NON-NLS-1$
-            writer.println(fOngoingStateStartTimes.get(i).toString());
+            writer.print(String.valueOf(states.fValues.get(i)) + "\t\t"); //$NON-NLS-1$
+            writer.println(states.fStartTimes.get(i));
         }
         writer.println('\n');
         return;
@@ -17,6 +17,9 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -24,7 +27,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.eclipse.jdt.annotation.NonNull;
-import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
@@ -43,7 +46,7 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
  *
  * @author Alexandre Montplaisir
  */
-public class InMemoryBackend implements IStateHistoryBackend {
+public class InMemoryBackend implements IStateHistoryBackend2D {
 
     /**
      * We need to compare the end time and the attribute, because we can have 2
@@ -183,6 +186,42 @@ public class InMemoryBackend implements IStateHistoryBackend {
         throw new AttributeNotFoundException(ssid + " Quark:" + attributeQuark); //$NON-NLS-1$
     }
 
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2)
+            throws TimeRangeException {
+        return doQuery2D(quarks, t1, t2, 1);
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2, long resolution)
+            throws TimeRangeException {
+        if (t1 > t2 || resolution <= 0) {
+            throw new TimeRangeException(ssid + " Start:" + t1 + ", End:" + t2 + ", Resolution:" + resolution); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        ResolutionGrid grid = new ResolutionGrid(t1, t2, resolution);
+        BitSet quarkSet = new BitSet();
+        for (Integer quark : quarks) {
+            quarkSet.set(quark);
+        }
+
+        /*
+         * Every interval ending after t1 is a candidate, we then only have to
+         * check their attributes and if they contain a sampling point.
+         */
+        List<ITmfStateInterval> results = new ArrayList<>();
+        synchronized (intervals) {
+            Iterator<ITmfStateInterval> iter = serachforEndTime(intervals, t1);
+            while (iter.hasNext()) {
+                ITmfStateInterval entry = iter.next();
+                if (quarkSet.get(entry.getAttribute()) &&
+                        grid.intersects(entry.getStartTime(), entry.getEndTime())) {
+                    results.add(entry);
+                }
+            }
+        }
+        return results;
+    }
+
     private boolean checkValidTime(long t) {
         if (t >= startTime && t <= latestTime) {
             return true;
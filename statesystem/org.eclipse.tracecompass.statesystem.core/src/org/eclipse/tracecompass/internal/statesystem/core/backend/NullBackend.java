@@ -15,10 +15,12 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
-import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 
@@ -30,7 +32,7 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
  *
  * @author Alexandre Montplaisir
  */
-public class NullBackend implements IStateHistoryBackend {
+public class NullBackend implements IStateHistoryBackend2D {
 
     private final @NonNull String ssid;
 
@@ -118,6 +120,28 @@ public class NullBackend implements IStateHistoryBackend {
         return null;
     }
 
+    /**
+     * Null back-ends cannot run queries. An empty collection will be returned.
+     *
+     * @return Always returns an empty collection.
+     */
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2) {
+        /* Cannot do past queries */
+        return Collections.emptyList();
+    }
+
+    /**
+     * Null back-ends cannot run queries. An empty collection will be returned.
+     *
+     * @return Always returns an empty collection.
+     */
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2, long resolution) {
+        /* Cannot do past queries */
+        return Collections.emptyList();
+    }
+
     @Override
     public void debugPrint(PrintWriter writer) {
         writer.println("Null history backend"); //$NON-NLS-1$
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+
+/**
+ * State history back-end that stores its intervals in RAM, but outside of the
+ * Java heap.
+ *
+ * Each attribute has its own {@link OffHeapIntervalSeries}, in which the
+ * intervals are stored as fixed-size records sorted by time. A singular query
+ * is then a binary search in the series of one attribute, and a full query is
+ * one binary search per attribute, instead of a scan of the intervals of all
+ * the attributes. Interval objects are only created for query results, so
+ * large histories do not fill the heap, nor slow down the garbage collector.
+ *
+ * Queries do not take any lock, and can run while intervals are inserted.
+ *
+ * Like {@link InMemoryBackend}, it cannot be saved to disk and has to be
+ * rebuilt every time the trace is opened.
+ */
+public class OffHeapInMemoryBackend implements IStateHistoryBackend2D {
+
+    private final @NonNull String ssid;
+    private final long startTime;
+    private final OffHeapStorage storage = new OffHeapStorage();
+
+    /** Interval series, indexed by quark. Only grown by the writer. */
+    private volatile OffHeapIntervalSeries[] series = new OffHeapIntervalSeries[0];
+
+    private volatile long latestTime;
+
+    /**
+     * Constructor
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param startTime
+     *            The start time of this interval store
+     */
+    public OffHeapInMemoryBackend(@NonNull String ssid, long startTime) {
+        this.ssid = ssid;
+        this.startTime = startTime;
+        this.latestTime = startTime;
+    }
+
+    @Override
+    public String getSSID() {
+        return ssid;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public long getEndTime() {
+        return latestTime;
+    }
+
+    @Override
+    public void insertPastState(long stateStartTime, long stateEndTime,
+            int quark, ITmfStateValue value) throws TimeRangeException {
+        /* Make sure the passed start/end times make sense */
+        if (stateStartTime > stateEndTime || stateStartTime < startTime) {
+            throw new TimeRangeException(ssid + " Interval Start:" + stateStartTime + ", Interval End:" + stateEndTime + ", Backend Start:" + startTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        getOrCreateSeries(quark).append(stateStartTime, stateEndTime, value);
+
+        /* Update the "latest seen time" */
+        if (stateEndTime > latestTime) {
+            latestTime = stateEndTime;
+        }
+    }
+
+    private OffHeapIntervalSeries getOrCreateSeries(int quark) {
+        OffHeapIntervalSeries[] array = series;
+        if (quark < array.length && array[quark] != null) {
+            return array[quark];
+        }
+        synchronized (storage) {
+            array = series;
+            if (quark >= array.length) {
+                OffHeapIntervalSeries[] newArray = new OffHeapIntervalSeries[Math.max(quark + 1, array.length * 2)];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                array = newArray;
+            }
+            OffHeapIntervalSeries quarkSeries = array[quark];
+            if (quarkSeries == null) {
+                quarkSeries = new OffHeapIntervalSeries(quark, storage);
+                array[quark] = quarkSeries;
+            }
+            series = array;
+            return quarkSeries;
+        }
+    }
+
+    private OffHeapIntervalSeries getSeries(int quark) {
+        OffHeapIntervalSeries[] array = series;
+        if (quark < 0 || quark >= array.length) {
+            return null;
+        }
+        return array[quark];
+    }
+
+    @Override
+    public void doQuery(List<ITmfStateInterval> currentStateInfo, long t)
+            throws TimeRangeException {
+        if (!checkValidTime(t)) {
+            throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        OffHeapIntervalSeries[] array = series;
+        int nbQuarks = Math.min(array.length, currentStateInfo.size());
+        for (int quark = 0; quark < nbQuarks; quark++) {
+            OffHeapIntervalSeries quarkSeries = array[quark];
+            if (quarkSeries != null) {
+                ITmfStateInterval interval = quarkSeries.query(t);
+                if (interval != null) {
+                    currentStateInfo.set(quark, interval);
+                }
+            }
+        }
+    }
+
+    @Override
+    public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException {
+        if (!checkValidTime(t)) {
+            throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        OffHeapIntervalSeries quarkSeries = getSeries(attributeQuark);
+        ITmfStateInterval interval = (quarkSeries == null ? null : quarkSeries.query(t));
+        if (interval == null) {
+            throw new AttributeNotFoundException(ssid + " Quark:" + attributeQuark); //$NON-NLS-1$
+        }
+        return interval;
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2)
+            throws TimeRangeException {
+        return doQuery2D(quarks, t1, t2, 1);
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2, long resolution)
+            throws TimeRangeException {
+        if (t1 > t2 || resolution <= 0) {
+            throw new TimeRangeException(ssid + " Start:" + t1 + ", End:" + t2 + ", Resolution:" + resolution); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        ResolutionGrid grid = new ResolutionGrid(t1, t2, resolution);
+        BitSet quarkSet = new BitSet();
+        for (Integer quark : quarks) {
+            quarkSet.set(quark);
+        }
+
+        List<ITmfStateInterval> results = new ArrayList<>();
+        for (int quark = quarkSet.nextSetBit(0); quark >= 0; quark = quarkSet.nextSetBit(quark + 1)) {
+            OffHeapIntervalSeries quarkSeries = getSeries(quark);
+            if (quarkSeries != null) {
+                quarkSeries.query2D(results, grid);
+            }
+        }
+        return results;
+    }
+
+    private boolean checkValidTime(long t) {
+        if (t >= startTime && t <= latestTime) {
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void finishedBuilding(long endTime) throws TimeRangeException {
+        /* Nothing to do */
+    }
+
+    @Override
+    public FileInputStream supplyAttributeTreeReader() {
+        /* Saving to disk not supported */
+        return null;
+    }
+
+    @Override
+    public File supplyAttributeTreeWriterFile() {
+        /* Saving to disk not supported */
+        return null;
+    }
+
+    @Override
+    public long supplyAttributeTreeWriterFilePosition() {
+        /* Saving to disk not supported */
+        return -1;
+    }
+
+    @Override
+    public void removeFiles() {
+        /* Nothing to do */
+    }
+
+    @Override
+    public void dispose() {
+        /*
+         * Drop the series, so that the off-heap memory can be released even if
+         * something still holds a reference to this backend.
+         */
+        series = new OffHeapIntervalSeries[0];
+    }
+
+    @Override
+    public void debugPrint(PrintWriter writer) {
+        for (OffHeapIntervalSeries quarkSeries : series) {
+            if (quarkSeries != null) {
+                quarkSeries.debugPrint(writer);
+            }
+        }
+    }
+
+}
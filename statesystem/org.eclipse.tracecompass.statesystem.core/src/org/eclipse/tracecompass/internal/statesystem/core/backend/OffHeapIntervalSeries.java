@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * The intervals of one attribute in an {@link OffHeapInMemoryBackend}.
+ *
+ * The intervals of an attribute do not overlap, and the state system inserts
+ * them in order, so they are simply appended as fixed-size records in
+ * off-heap pages. Sorted by end time, they are also sorted by start time, and
+ * the interval at a given time is found with a binary search.
+ *
+ * The first page holds a few records, and every following page is twice as
+ * big as the previous one, up to {@link #MAX_PAGE_RECORDS}. Attributes with
+ * only a few intervals then do not waste much memory.
+ *
+ * There can be one writer and any number of readers. Records are completely
+ * written before the record count is incremented, and readers only look at
+ * the records below the count they read. Intervals that are not inserted in
+ * order, which the state system does not do, are kept in a separate sorted
+ * map instead.
+ */
+final class OffHeapIntervalSeries {
+
+    /* Record layout: start, end, value payload, value type */
+    private static final int START_OFFSET = 0;
+    private static final int END_OFFSET = 8;
+    private static final int PAYLOAD_OFFSET = 16;
+    private static final int TYPE_OFFSET = 24;
+    private static final int RECORD_SIZE = 25;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_STRING = 4;
+
+    private static final int FIRST_PAGE_BITS = 3;
+    private static final int MAX_PAGE_BITS = 12;
+    private static final int MAX_PAGE_RECORDS = 1 << MAX_PAGE_BITS;
+    /** Number of records in all the pages smaller than the maximum size */
+    private static final int GROWING_RECORDS = (1 << MAX_PAGE_BITS) - (1 << FIRST_PAGE_BITS);
+    private static final int NB_GROWING_PAGES = MAX_PAGE_BITS - FIRST_PAGE_BITS;
+
+    private final int fQuark;
+    private final OffHeapStorage fStorage;
+
+    private volatile ByteBuffer[] fPages = new ByteBuffer[0];
+    private volatile int fCount = 0;
+    private long fLastEnd = Long.MIN_VALUE;
+
+    private volatile ConcurrentNavigableMap<Long, ITmfStateInterval> fUnordered = null;
+
+    /**
+     * Constructor
+     *
+     * @param quark
+     *            The attribute of the intervals of this series
+     * @param storage
+     *            The memory in which the records are stored
+     */
+    public OffHeapIntervalSeries(int quark, OffHeapStorage storage) {
+        fQuark = quark;
+        fStorage = storage;
+    }
+
+    // ------------------------------------------------------------------------
+    // Writing
+    // ------------------------------------------------------------------------
+
+    /**
+     * Add an interval to this series.
+     *
+     * @param start
+     *            Start time of the interval
+     * @param end
+     *            End time of the interval
+     * @param value
+     *            State value of the interval
+     */
+    public synchronized void append(long start, long end, ITmfStateValue value) {
+        if (end <= fLastEnd) {
+            addUnordered(start, end, value);
+            return;
+        }
+
+        byte type;
+        long payload;
+        switch (value.getType()) {
+        case INTEGER:
+            type = TYPE_INTEGER;
+            payload = value.unboxInt();
+            break;
+        case LONG:
+            type = TYPE_LONG;
+            payload = value.unboxLong();
+            break;
+        case DOUBLE:
+            type = TYPE_DOUBLE;
+            payload = Double.doubleToRawLongBits(value.unboxDouble());
+            break;
+        case STRING:
+            type = TYPE_STRING;
+            payload = fStorage.intern(value.unboxStr());
+            break;
+        case NULL:
+        default:
+            type = TYPE_NULL;
+            payload = 0;
+            break;
+        }
+
+        int index = fCount;
+        int page = getPage(index);
+        ByteBuffer[] pages = fPages;
+        if (page == pages.length) {
+            ByteBuffer[] newPages = new ByteBuffer[page + 1];
+            System.arraycopy(pages, 0, newPages, 0, pages.length);
+            newPages[page] = fStorage.allocate(getPageRecords(page) * RECORD_SIZE);
+            fPages = newPages;
+            pages = newPages;
+        }
+        ByteBuffer buffer = pages[page];
+        int offset = getOffsetInPage(index, page) * RECORD_SIZE;
+        buffer.putLong(offset + START_OFFSET, start);
+        buffer.putLong(offset + END_OFFSET, end);
+        buffer.putLong(offset + PAYLOAD_OFFSET, payload);
+        buffer.put(offset + TYPE_OFFSET, type);
+
+        fLastEnd = end;
+        /* Publish the record */
+        fCount = index + 1;
+    }
+
+    private void addUnordered(long start, long end, ITmfStateValue value) {
+        ConcurrentNavigableMap<Long, ITmfStateInterval> unordered = fUnordered;
+        if (unordered == null) {
+            unordered = new ConcurrentSkipListMap<>();
+            fUnordered = unordered;
+        }
+        unordered.putIfAbsent(end, new TmfStateInterval(start, end, fQuark, value));
+    }
+
+    // ------------------------------------------------------------------------
+    // Reading
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the interval of this series that contains a given time.
+     *
+     * @param t
+     *            The timestamp
+     * @return The interval, or null if there is none at this time
+     */
+    public ITmfStateInterval query(long t) {
+        int count = fCount;
+        ByteBuffer[] pages = getPagesFor(count);
+        int index = searchEnd(pages, count, t);
+        if (index < count && getLong(pages, index, START_OFFSET) <= t) {
+            return getInterval(pages, index);
+        }
+
+        ConcurrentNavigableMap<Long, ITmfStateInterval> unordered = fUnordered;
+        if (unordered != null) {
+            Map.Entry<Long, ITmfStateInterval> entry = unordered.ceilingEntry(t);
+            if (entry != null && entry.getValue().getStartTime() <= t) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add to a list the intervals of this series that contain at least one
+     * sampling point of a grid.
+     *
+     * @param results
+     *            The list to which the intervals are added
+     * @param grid
+     *            The sampling points
+     */
+    public void query2D(List<ITmfStateInterval> results, ResolutionGrid grid) {
+        int count = fCount;
+        ByteBuffer[] pages = getPagesFor(count);
+        long gridStart = grid.getStart();
+        long gridEnd = grid.getEnd();
+
+        int index = searchEnd(pages, count, gridStart);
+        while (index < count) {
+            long start = getLong(pages, index, START_OFFSET);
+            if (start > gridEnd) {
+                break;
+            }
+            long end = getLong(pages, index, END_OFFSET);
+            if (grid.intersects(start, end)) {
+                results.add(getInterval(pages, index));
+                index++;
+            } else {
+                /*
+                 * The interval falls between two sampling points, skip
+                 * directly to the one containing the next point. It ends
+                 * before the end of the grid, which is a point.
+                 */
+                index = searchEnd(pages, count, grid.getNextPoint(end + 1));
+            }
+        }
+
+        ConcurrentNavigableMap<Long, ITmfStateInterval> unordered = fUnordered;
+        if (unordered != null) {
+            for (ITmfStateInterval interval : unordered.tailMap(gridStart).values()) {
+                if (grid.intersects(interval.getStartTime(), interval.getEndTime())) {
+                    results.add(interval);
+                }
+            }
+        }
+    }
+
+    /**
+     * Print all the intervals of this series.
+     *
+     * @param writer
+     *            The writer to which the intervals are printed
+     */
+    public void debugPrint(PrintWriter writer) {
+        int count = fCount;
+        ByteBuffer[] pages = getPagesFor(count);
+        for (int i = 0; i < count; i++) {
+            writer.println(getInterval(pages, i).toString());
+        }
+        ConcurrentNavigableMap<Long, ITmfStateInterval> unordered = fUnordered;
+        if (unordered != null) {
+            for (ITmfStateInterval interval : unordered.values()) {
+                writer.println(interval.toString());
+            }
+        }
+    }
+
+    /**
+     * Get the page array containing at least 'count' records. The count must
+     * be read before calling this, so that the array is at least as recent.
+     */
+    private ByteBuffer[] getPagesFor(int count) {
+        ByteBuffer[] pages = fPages;
+        if (count > 0 && getPage(count - 1) >= pages.length) {
+            /* Cannot happen, the pages are published before the count */
+            throw new IllegalStateException();
+        }
+        return pages;
+    }
+
+    /**
+     * Find the index of the first record whose end time is greater or equal to
+     * 't', or 'count' if there is none. The page is found first by looking at
+     * the last record of the pages, then the record within the page.
+     */
+    private static int searchEnd(ByteBuffer[] pages, int count, long t) {
+        if (count == 0) {
+            return 0;
+        }
+        int lastPage = getPage(count - 1);
+        int low = 0;
+        int high = lastPage;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int lastOfPage = getPageRecords(mid) - 1;
+            if (pages[mid].getLong(lastOfPage * RECORD_SIZE + END_OFFSET) < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int page = low;
+        ByteBuffer buffer = pages[page];
+        int first = getPageFirstRecord(page);
+        int lowRecord = 0;
+        int highRecord = Math.min(getPageRecords(page), count - first);
+        while (lowRecord < highRecord) {
+            int mid = (lowRecord + highRecord) >>> 1;
+            if (buffer.getLong(mid * RECORD_SIZE + END_OFFSET) < t) {
+                lowRecord = mid + 1;
+            } else {
+                highRecord = mid;
+            }
+        }
+        return first + lowRecord;
+    }
+
+    private ITmfStateInterval getInterval(ByteBuffer[] pages, int index) {
+        int page = getPage(index);
+        ByteBuffer buffer = pages[page];
+        int offset = getOffsetInPage(index, page) * RECORD_SIZE;
+        long start = buffer.getLong(offset + START_OFFSET);
+        long end = buffer.getLong(offset + END_OFFSET);
+        long payload = buffer.getLong(offset + PAYLOAD_OFFSET);
+
+        ITmfStateValue value;
+        switch (buffer.get(offset + TYPE_OFFSET)) {
+        case TYPE_INTEGER:
+            value = TmfStateValue.newValueInt((int) payload);
+            break;
+        case TYPE_LONG:
+            value = TmfStateValue.newValueLong(payload);
+            break;
+        case TYPE_DOUBLE:
+            value = TmfStateValue.newValueDouble(Double.longBitsToDouble(payload));
+            break;
+        case TYPE_STRING:
+            value = TmfStateValue.newValueString(fStorage.getString((int) payload));
+            break;
+        case TYPE_NULL:
+        default:
+            value = TmfStateValue.nullValue();
+            break;
+        }
+        return new TmfStateInterval(start, end, fQuark, value);
+    }
+
+    private static long getLong(ByteBuffer[] pages, int index, int field) {
+        int page = getPage(index);
+        return pages[page].getLong(getOffsetInPage(index, page) * RECORD_SIZE + field);
+    }
+
+    // ------------------------------------------------------------------------
+    // Page arithmetic
+    // ------------------------------------------------------------------------
+
+    private static int getPage(int index) {
+        if (index < GROWING_RECORDS) {
+            /* Pages 0, 1, 2... start at 0, 8, 24, 56... */
+            return 31 - Integer.numberOfLeadingZeros((index >>> FIRST_PAGE_BITS) + 1);
+        }
+        return NB_GROWING_PAGES + ((index - GROWING_RECORDS) >>> MAX_PAGE_BITS);
+    }
+
+    private static int getPageRecords(int page) {
+        if (page < NB_GROWING_PAGES) {
+            return 1 << (FIRST_PAGE_BITS + page);
+        }
+        return MAX_PAGE_RECORDS;
+    }
+
+    private static int getPageFirstRecord(int page) {
+        if (page < NB_GROWING_PAGES) {
+            return (1 << (FIRST_PAGE_BITS + page)) - (1 << FIRST_PAGE_BITS);
+        }
+        return GROWING_RECORDS + ((page - NB_GROWING_PAGES) << MAX_PAGE_BITS);
+    }
+
+    private static int getOffsetInPage(int index, int page) {
+        return index - getPageFirstRecord(page);
+    }
+}
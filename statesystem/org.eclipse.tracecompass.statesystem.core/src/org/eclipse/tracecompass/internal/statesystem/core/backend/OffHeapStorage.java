@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory shared by all the interval series of an
+ * {@link OffHeapInMemoryBackend}.
+ *
+ * Pages of interval records are cut out of large direct buffers, so that
+ * the intervals themselves are not on the Java heap and the garbage collector
+ * never has to look at them. String state values cannot be stored that way,
+ * so they are kept once each in a string table, and records only hold their
+ * index in the table.
+ *
+ * Allocations and string insertions are synchronized. Strings can be read
+ * from any thread without locking, as long as their index was obtained
+ * through a record that was properly published.
+ */
+final class OffHeapStorage {
+
+    /** Size of the direct buffers from which the pages are allocated */
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    /** Number of strings per chunk of the string table */
+    private static final int STRING_CHUNK_SIZE = 1024;
+
+    private ByteBuffer fCurrentSlab = ByteBuffer.allocateDirect(0);
+
+    private final Map<String, Integer> fStringIndexes = new HashMap<>();
+    private volatile String[][] fStrings = new String[0][];
+    private int fNbStrings = 0;
+
+    /**
+     * Allocate a zero-filled off-heap buffer, in native byte order.
+     *
+     * @param size
+     *            The size of the buffer, in bytes
+     * @return The new buffer
+     */
+    public synchronized ByteBuffer allocate(int size) {
+        if (fCurrentSlab.remaining() < size) {
+            fCurrentSlab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, size));
+        }
+        ByteBuffer slab = fCurrentSlab;
+        int position = slab.position();
+        slab.limit(position + size);
+        ByteBuffer page = slab.slice().order(ByteOrder.nativeOrder());
+        slab.limit(slab.capacity());
+        slab.position(position + size);
+        return page;
+    }
+
+    /**
+     * Get the index of a string in the string table, adding it if it is not
+     * there yet.
+     *
+     * @param str
+     *            The string
+     * @return Its index in the table
+     */
+    public synchronized int intern(String str) {
+        Integer index = fStringIndexes.get(str);
+        if (index != null) {
+            return index;
+        }
+        int newIndex = fNbStrings;
+        String[][] chunks = fStrings;
+        int chunk = newIndex / STRING_CHUNK_SIZE;
+        if (chunk == chunks.length) {
+            String[][] newChunks = new String[chunk + 1][];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            newChunks[chunk] = new String[STRING_CHUNK_SIZE];
+            chunks = newChunks;
+        }
+        chunks[chunk][newIndex % STRING_CHUNK_SIZE] = str;
+        fStrings = chunks;
+        fStringIndexes.put(str, newIndex);
+        fNbStrings++;
+        return newIndex;
+    }
+
+    /**
+     * Get a string from the string table.
+     *
+     * @param index
+     *            The index returned by {@link #intern}
+     * @return The string
+     */
+    public String getString(int index) {
+        return fStrings[index / STRING_CHUNK_SIZE][index % STRING_CHUNK_SIZE];
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+/**
+ * The sampling points of a range query done at a given resolution.
+ *
+ * The points are start, start + resolution, start + 2 * resolution, etc. up to
+ * end, and end itself is always a point. Querying the intervals containing
+ * those points gives the same result as calling querySingleState() at every
+ * point, which is what views do to get at most one state per pixel.
+ *
+ * A resolution of 1 means every timestamp of the range is a point.
+ */
+public final class ResolutionGrid {
+
+    private final long fStart;
+    private final long fEnd;
+    private final long fResolution;
+
+    /**
+     * Constructor
+     *
+     * @param start
+     *            The first sampling point
+     * @param end
+     *            The last sampling point, must be greater or equal to start
+     * @param resolution
+     *            The distance between two sampling points, must be positive
+     */
+    public ResolutionGrid(long start, long end, long resolution) {
+        if (end < start || resolution <= 0) {
+            throw new IllegalArgumentException("Start:" + start + ", End:" + end + ", Resolution:" + resolution); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        fStart = start;
+        fEnd = end;
+        fResolution = resolution;
+    }
+
+    /**
+     * @return The first sampling point
+     */
+    public long getStart() {
+        return fStart;
+    }
+
+    /**
+     * @return The last sampling point
+     */
+    public long getEnd() {
+        return fEnd;
+    }
+
+    /**
+     * @return The distance between two sampling points
+     */
+    public long getResolution() {
+        return fResolution;
+    }
+
+    /**
+     * Check if the time range [start, end] (inclusive) contains at least one
+     * sampling point. Intervals or tree nodes for which this returns false do
+     * not need to be looked at.
+     *
+     * @param start
+     *            The start of the time range
+     * @param end
+     *            The end of the time range
+     * @return If the range contains a sampling point
+     */
+    public boolean intersects(long start, long end) {
+        long s = Math.max(start, fStart);
+        long e = Math.min(end, fEnd);
+        if (s > e) {
+            return false;
+        }
+        if (e == fEnd) {
+            /* The end of the grid is always a sampling point */
+            return true;
+        }
+        /*
+         * Compare the index of the first sampling point at or after s with the
+         * index of the last one at or before e.
+         */
+        long firstIndex = (s - fStart) / fResolution;
+        if ((s - fStart) % fResolution != 0) {
+            firstIndex++;
+        }
+        long lastIndex = (e - fStart) / fResolution;
+        return firstIndex <= lastIndex;
+    }
+
+    /**
+     * Get the first sampling point at or after a timestamp
+     *
+     * @param t
+     *            The timestamp
+     * @return The sampling point, or -1 if t is after the end of the grid
+     */
+    public long getNextPoint(long t) {
+        if (t > fEnd) {
+            return -1;
+        }
+        if (t <= fStart) {
+            return fStart;
+        }
+        long index = (t - fStart) / fResolution;
+        if ((t - fStart) % fResolution != 0) {
+            index++;
+        }
+        /* The end of the grid is a point even if it is not on the grid */
+        return Math.min(fStart + index * fResolution, fEnd);
+    }
+}
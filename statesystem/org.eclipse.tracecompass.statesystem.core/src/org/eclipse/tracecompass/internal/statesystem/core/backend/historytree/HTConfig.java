@@ -24,11 +24,16 @@ public final class HTConfig {
     private static final int DEFAULT_BLOCKSIZE = 64 * 1024;
     private static final int DEFAULT_MAXCHILDREN = 50;
 
+    /** Default number of nodes kept in the node cache */
+    public static final int DEFAULT_NODE_CACHE_SIZE = 256;
+
     private final File stateFile;
     private final int blockSize;
     private final int maxChildren;
     private final int providerVersion;
     private final long treeStart;
+    private final int nodeCacheSize;
+    private final int fileVersion;
 
     /**
      * Full constructor.
@@ -47,14 +52,74 @@ public final class HTConfig {
      *            uselessly.
      * @param startTime
      *            The start time of the history
+     * @param nodeCacheSize
+     *            The maximum number of nodes kept in memory after being read
+     *            from disk
+     * @param fileVersion
+     *            The version of the file format, which defines how the nodes
+     *            are encoded. New files should use the current version, older
+     *            ones are only supported for reading existing files.
      */
     public HTConfig(File newStateFile, int blockSize, int maxChildren,
-            int providerVersion, long startTime) {
+            int providerVersion, long startTime, int nodeCacheSize,
+            int fileVersion) {
         this.stateFile = newStateFile;
         this.blockSize = blockSize;
         this.maxChildren = maxChildren;
         this.providerVersion = providerVersion;
         this.treeStart = startTime;
+        this.nodeCacheSize = nodeCacheSize;
+        this.fileVersion = fileVersion;
+    }
+
+    /**
+     * Version of the constructor using the current file format.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param blockSize
+     *            The size of each "block" on disk. One node will always fit in
+     *            one block.
+     * @param maxChildren
+     *            The maximum number of children allowed per core (non-leaf)
+     *            node.
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     * @param nodeCacheSize
+     *            The maximum number of nodes kept in memory after being read
+     *            from disk
+     */
+    public HTConfig(File newStateFile, int blockSize, int maxChildren,
+            int providerVersion, long startTime, int nodeCacheSize) {
+        this(newStateFile, blockSize, maxChildren, providerVersion, startTime, nodeCacheSize, HistoryTree.FILE_VERSION);
+    }
+
+    /**
+     * Version of the constructor using the default value for
+     * 'nodeCacheSize'.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param blockSize
+     *            The size of each "block" on disk. One node will always fit in
+     *            one block.
+     * @param maxChildren
+     *            The maximum number of children allowed per core (non-leaf)
+     *            node.
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     */
+    public HTConfig(File newStateFile, int blockSize, int maxChildren,
+            int providerVersion, long startTime) {
+        this(newStateFile, blockSize, maxChildren, providerVersion, startTime, DEFAULT_NODE_CACHE_SIZE);
     }
 
     /**
@@ -122,4 +187,34 @@ public final class HTConfig {
     public long getTreeStart() {
         return treeStart;
     }
+
+    /**
+     * Get the maximum number of nodes to keep in the node cache
+     *
+     * @return The node cache size
+     */
+    public int getNodeCacheSize() {
+        return nodeCacheSize;
+    }
+
+    /**
+     * Get the version of the file format
+     *
+     * @return The file format version
+     */
+    public int getFileVersion() {
+        return fileVersion;
+    }
+
+    /**
+     * Get if the nodes use the compact format of the current file version:
+     * a filter of their quarks and a string table in their header, followed
+     * by the compact encoding of the intervals. The nodes of the legacy
+     * version have none of them.
+     *
+     * @return If the nodes use the compact format
+     */
+    public boolean hasCompactNodes() {
+        return fileVersion != HistoryTree.LEGACY_FILE_VERSION;
+    }
 }
@@ -17,6 +17,7 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
@@ -59,15 +60,19 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     private static final int DOUBLE_ENTRY_SIZE = 8;
     // sizes of string values depend on the string itself
 
+    private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
     private final long start;
     private final long end;
     private final int attribute;
     private final TmfStateValue sv;
 
     /*
-     * Size of the strings section entry used by this interval (= 0 if not used)
+     * Size of the strings section entry used by this interval (= 0 if not
+     * used). It is only needed when writing the legacy format, so it is
+     * computed on first use (-1 until then).
      */
-    private final int stringsEntrySize;
+    private int stringsEntrySize;
 
     /**
      * Standard constructor
@@ -94,14 +99,14 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         this.end = intervalEnd;
         this.attribute = attribute;
         this.sv = value;
-        this.stringsEntrySize = computeStringsEntrySize();
+        this.stringsEntrySize = -1;
     }
 
     /**
      * "Faster" constructor for inner use only. When we build an interval when
      * reading it from disk (with {@link #readFrom}), we already know the size
      * of the strings entry, so there is no need to call
-     * {@link #computeStringsEntrySize()} and do an extra copy.
+     * {@link #computeStringsEntrySize()} later and do an extra copy.
      */
     private HTInterval(long intervalStart, long intervalEnd, int attribute,
             TmfStateValue value, int size) throws TimeRangeException {
@@ -228,6 +233,162 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         return interval;
     }
 
+    /**
+     * Reader method for the compact encoding, see {@link #writeCompact}. The
+     * interval is decoded directly into the columns of its node, no interval
+     * object is created.
+     *
+     * @param buffer
+     *            The ByteBuffer from which to read the information, positioned
+     *            at the start of the entry
+     * @param nodeStart
+     *            The start time of the node containing this interval
+     * @param strings
+     *            The string table of the node, or null if the strings are
+     *            stored in the entries
+     * @param columns
+     *            The columns to which the interval is added
+     * @throws IOException
+     *             If there was an error reading from the buffer
+     */
+    public static void readCompactInto(ByteBuffer buffer, long nodeStart, HTStringTable strings, HTIntervalColumns columns) throws IOException {
+        long intervalStart = nodeStart + zigZagDecode(readVarLong(buffer));
+        long duration = readVarLong(buffer);
+        if (duration < 0) {
+            throw new IOException(errMsg);
+        }
+        int attribute = (int) readVarLong(buffer);
+
+        TmfStateValue value;
+        byte valueType = buffer.get();
+        switch (valueType) {
+        case TYPE_NULL:
+            value = TmfStateValue.nullValue();
+            break;
+        case TYPE_INTEGER:
+            value = TmfStateValue.newValueInt((int) zigZagDecode(readVarLong(buffer)));
+            break;
+        case TYPE_LONG:
+            value = TmfStateValue.newValueLong(zigZagDecode(readVarLong(buffer)));
+            break;
+        case TYPE_DOUBLE:
+            value = TmfStateValue.newValueDouble(buffer.getDouble());
+            break;
+        case TYPE_STRING:
+            if (strings != null) {
+                value = strings.getValue((int) readVarLong(buffer));
+            } else {
+                byte[] array = new byte[(int) readVarLong(buffer)];
+                buffer.get(array);
+                value = TmfStateValue.newValueString(new String(array, UTF8));
+            }
+            break;
+        default:
+            /* Unknown data, better to not make anything up... */
+            throw new IOException(errMsg);
+        }
+        columns.add(intervalStart, intervalStart + duration, attribute, value);
+    }
+
+    /**
+     * Write this interval in the compact encoding, used by history files of
+     * version 6 and later. The whole entry is written at the current position
+     * of the buffer, there is no Strings section:
+     *
+     * <pre>
+     *   varint  start - nodeStart (zig-zag encoded)
+     *   varint  end - start
+     *   varint  attribute
+     *   1 byte  type
+     *   value:  nothing for null, zig-zag varint for int and long, 8 bytes
+     *           for double, varint length + UTF-8 bytes for strings, or
+     *           varint index in the node's string table if it has one
+     * </pre>
+     *
+     * @param buffer
+     *            The buffer corresponding to a SHT Node
+     * @param nodeStart
+     *            The start time of the node containing this interval
+     * @param strings
+     *            The string table of the node, which must contain the value
+     *            if it is a string, or null to write strings in the entry
+     */
+    public void writeCompact(ByteBuffer buffer, long nodeStart, HTStringTable strings) {
+        writeVarLong(buffer, zigZagEncode(start - nodeStart));
+        writeVarLong(buffer, end - start);
+        writeVarLong(buffer, attribute & 0xFFFFFFFFL);
+        byte type = getByteFromType(sv.getType());
+        buffer.put(type);
+        try {
+            switch (type) {
+            case TYPE_INTEGER:
+                writeVarLong(buffer, zigZagEncode(sv.unboxInt()));
+                break;
+            case TYPE_LONG:
+                writeVarLong(buffer, zigZagEncode(sv.unboxLong()));
+                break;
+            case TYPE_DOUBLE:
+                buffer.putDouble(sv.unboxDouble());
+                break;
+            case TYPE_STRING:
+                if (strings != null) {
+                    writeVarLong(buffer, strings.indexOf(sv.unboxStr()));
+                } else {
+                    byte[] bytes = sv.unboxStr().getBytes(UTF8);
+                    writeVarLong(buffer, bytes.length);
+                    buffer.put(bytes);
+                }
+                break;
+            case TYPE_NULL:
+            default:
+                break;
+            }
+        } catch (StateValueTypeException e) {
+            /* We're in a switch/case on the value's own type, can't happen */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Size of this interval once written with {@link #writeCompact}.
+     *
+     * @param nodeStart
+     *            The start time of the node containing this interval
+     * @param strings
+     *            The string table of the node, or null if strings are written
+     *            in the entry. If the value is a string that is not in the
+     *            table yet, the size of its table entry is included.
+     * @return The size of the entry, in bytes
+     */
+    public int getCompactSize(long nodeStart, HTStringTable strings) {
+        int size = varLongSize(zigZagEncode(start - nodeStart))
+                + varLongSize(end - start)
+                + varLongSize(attribute & 0xFFFFFFFFL)
+                + 1;
+        try {
+            switch (sv.getType()) {
+            case INTEGER:
+                return size + varLongSize(zigZagEncode(sv.unboxInt()));
+            case LONG:
+                return size + varLongSize(zigZagEncode(sv.unboxLong()));
+            case DOUBLE:
+                return size + DOUBLE_ENTRY_SIZE;
+            case STRING:
+                if (strings != null) {
+                    return size + strings.getReferenceSize(sv.unboxStr());
+                }
+                int length = sv.unboxStr().getBytes(UTF8).length;
+                return size + varLongSize(length) + length;
+            case NULL:
+            default:
+                return size;
+            }
+        } catch (StateValueTypeException e) {
+            /* We're in a switch/case on the value's own type, can't happen */
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Antagonist of the previous constructor, write the Data entry
      * corresponding to this interval in a ByteBuffer (mapped to a block in the
@@ -243,6 +404,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
      * @return The size of the Strings Entry that was written, if any.
      */
     public int writeInterval(ByteBuffer buffer, int endPosOfStringEntry) {
+        final int stringsEntrySize = getStringsEntrySize();
         buffer.putLong(start);
         buffer.putLong(end);
         buffer.putInt(attribute);
@@ -374,16 +536,25 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     }
 
     int getStringsEntrySize() {
-        return stringsEntrySize;
+        /*
+         * Racy but harmless, every thread would compute the same value, and
+         * int writes are atomic
+         */
+        int size = stringsEntrySize;
+        if (size < 0) {
+            size = computeStringsEntrySize();
+            stringsEntrySize = size;
+        }
+        return size;
     }
 
     /**
-     * Total serialized size of this interval
+     * Total serialized size of this interval, in the legacy format
      *
      * @return The interval size
      */
     public int getIntervalSize() {
-        return stringsEntrySize + DATA_ENTRY_SIZE;
+        return getStringsEntrySize() + DATA_ENTRY_SIZE;
     }
 
     private int computeStringsEntrySize() {
@@ -461,6 +632,51 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         return sb.toString();
     }
 
+    // ------------------------------------------------------------------------
+    // Variable-length encoding of integers, for the compact format
+    // ------------------------------------------------------------------------
+
+    /* Map signed values to unsigned ones, so that small negatives stay small */
+    private static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* Unsigned LEB128: 7 bits per byte, high bit set on all but the last one */
+    static void writeVarLong(ByteBuffer buffer, long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    static long readVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException(errMsg);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            size++;
+            v >>>= 7;
+        }
+        return size;
+    }
+
     /**
      * Here we determine how state values "types" are written in the 8-bit
      * field that indicates the value type in the file.
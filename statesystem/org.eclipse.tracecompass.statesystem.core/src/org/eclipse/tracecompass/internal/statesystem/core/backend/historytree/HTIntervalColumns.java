@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.util.List;
+
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * Storage of the intervals of a closed {@link HTNode}, as parallel arrays
+ * sorted by end time.
+ *
+ * This takes a lot less memory than a list of {@link HTInterval} objects, and
+ * lookups only go through primitive arrays. Interval objects are only created
+ * for the intervals that are actually returned by a query.
+ *
+ * The columns are filled once with {@link #add}, then never modified, so they
+ * can be read by many threads without locking once the node is published.
+ */
+public final class HTIntervalColumns {
+
+    private final long[] fStarts;
+    private final long[] fEnds;
+    private final int[] fQuarks;
+    private final TmfStateValue[] fValues;
+    private int fSize = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            The number of intervals that will be added
+     */
+    public HTIntervalColumns(int capacity) {
+        fStarts = new long[capacity];
+        fEnds = new long[capacity];
+        fQuarks = new int[capacity];
+        fValues = new TmfStateValue[capacity];
+    }
+
+    /**
+     * Build the columns from a list of intervals, which must be sorted by end
+     * time.
+     *
+     * @param intervals
+     *            The intervals
+     * @return The columns containing the intervals
+     */
+    public static HTIntervalColumns copyOf(List<HTInterval> intervals) {
+        HTIntervalColumns columns = new HTIntervalColumns(intervals.size());
+        for (HTInterval interval : intervals) {
+            columns.add(interval.getStartTime(), interval.getEndTime(),
+                    interval.getAttribute(), (TmfStateValue) interval.getStateValue());
+        }
+        return columns;
+    }
+
+    /**
+     * Append an interval. Intervals must be added in end time order, and only
+     * before the columns are shared with other threads.
+     *
+     * @param start
+     *            Start time of the interval
+     * @param end
+     *            End time of the interval
+     * @param quark
+     *            Attribute of the interval
+     * @param value
+     *            State value of the interval
+     */
+    public void add(long start, long end, int quark, TmfStateValue value) {
+        fStarts[fSize] = start;
+        fEnds[fSize] = end;
+        fQuarks[fSize] = quark;
+        fValues[fSize] = value;
+        fSize++;
+    }
+
+    /**
+     * @return The number of intervals
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * @param index
+     *            Index of the interval
+     * @return Its start time
+     */
+    public long getStart(int index) {
+        return fStarts[index];
+    }
+
+    /**
+     * @param index
+     *            Index of the interval
+     * @return Its end time
+     */
+    public long getEnd(int index) {
+        return fEnds[index];
+    }
+
+    /**
+     * @param index
+     *            Index of the interval
+     * @return Its attribute quark
+     */
+    public int getQuark(int index) {
+        return fQuarks[index];
+    }
+
+    /**
+     * Build the interval object at the given index.
+     *
+     * @param index
+     *            Index of the interval
+     * @return A new interval object
+     */
+    public HTInterval getInterval(int index) {
+        try {
+            return new HTInterval(fStarts[index], fEnds[index], fQuarks[index], fValues[index]);
+        } catch (TimeRangeException e) {
+            /* The interval was valid when it was added */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Find the index of the first interval whose end time is greater or equal
+     * to 't'. All the intervals before it end before 't'.
+     *
+     * @param t
+     *            The timestamp
+     * @return The index, which is {@link #size()} if all intervals end before
+     *         't'
+     */
+    public int getStartIndexFor(long t) {
+        int low = 0;
+        int high = fSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fEnds[mid] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
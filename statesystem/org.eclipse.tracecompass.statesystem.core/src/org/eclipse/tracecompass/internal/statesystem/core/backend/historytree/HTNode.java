@@ -20,12 +20,15 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ResolutionGrid;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
 /**
@@ -116,8 +119,37 @@ public abstract class HTNode {
     /* True if this node was read from disk (meaning its end time is now fixed) */
     private volatile boolean isOnDisk;
 
-    /* Vector containing all the intervals contained in this node */
-    private final List<HTInterval> intervals;
+    /* Vector containing all the intervals of this node, while it is open */
+    private final ArrayList<HTInterval> intervals;
+
+    /*
+     * Once the node is closed, it can never change again. Its intervals are
+     * then moved to these columns, which queries read without taking the
+     * lock. null as long as the node is still open.
+     */
+    private volatile HTIntervalColumns sealedIntervals = null;
+
+    /*
+     * Filter of the quarks present in this node, if the file format has one.
+     * Set once the node is closed.
+     */
+    private volatile HTQuarkFilter quarkFilter = null;
+
+    /*
+     * Nodes read from a file with quark filters are only decoded when a query
+     * may find something in them. Until then, this is the part of the block
+     * containing the intervals. Guarded by decodeLock.
+     */
+    private ByteBuffer encodedIntervals = null;
+    private int encodedCount = 0;
+    private int encodedStringCount = 0;
+
+    /*
+     * Table of the string values of this node, if the file format has one.
+     * Only modified while the node is open, with the write lock held.
+     */
+    private HTStringTable stringTable = null;
+    private final Object decodeLock = new Object();
 
     /* Lock used to protect the accesses to intervals, nodeEnd and such */
     private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock(false);
@@ -144,6 +176,9 @@ public abstract class HTNode {
         this.sizeOfIntervalSection = 0;
         this.isOnDisk = false;
         this.intervals = new ArrayList<>();
+        if (config.hasCompactNodes()) {
+            this.stringTable = new HTStringTable();
+        }
     }
 
     /**
@@ -161,8 +196,7 @@ public abstract class HTNode {
      */
     public static final HTNode readNode(HTConfig config, FileChannel fc)
             throws IOException {
-        HTNode newNode = null;
-        int res, i;
+        int res;
 
         ByteBuffer buffer = ByteBuffer.allocate(config.getBlockSize());
         buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -171,6 +205,29 @@ public abstract class HTNode {
         assert (res == config.getBlockSize());
         buffer.flip();
 
+        return readNode(config, buffer);
+    }
+
+    /**
+     * Reader factory method. Build a Node object (of the right type) from a
+     * buffer containing exactly one block of the file. This is used to decode
+     * nodes directly from a memory-mapped view of the history file.
+     *
+     * @param config
+     *            Configuration of the History Tree
+     * @param buffer
+     *            Little-endian buffer whose position 0 is the start of the
+     *            node. It should not be shared with other threads, since its
+     *            position will be modified.
+     * @return The node object
+     * @throws IOException
+     *             If the contents of the buffer are not a valid node
+     */
+    public static final HTNode readNode(HTConfig config, ByteBuffer buffer)
+            throws IOException {
+        HTNode newNode = null;
+        int i;
+
         /* Read the common header part */
         byte typeByte = buffer.get();
         NodeType type = NodeType.fromByte(typeByte);
@@ -201,24 +258,77 @@ public abstract class HTNode {
             throw new IOException();
         }
 
+        /* Assign the node's other information we have read previously */
+        newNode.nodeEnd = end;
+        newNode.stringSectionOffset = stringSectionOffset;
+        newNode.isOnDisk = true;
+
+        if (config.hasCompactNodes()) {
+            /*
+             * Read the filter, but leave the intervals for later, queries will
+             * often not need them.
+             */
+            newNode.quarkFilter = HTQuarkFilter.readFrom(config, buffer);
+            newNode.encodedStringCount = buffer.getInt();
+            ByteBuffer encoded = buffer.slice();
+            encoded.order(ByteOrder.LITTLE_ENDIAN);
+            newNode.encodedIntervals = encoded;
+            newNode.encodedCount = intervalCount;
+            return newNode;
+        }
+
         /*
          * At this point, we should be done reading the header and 'buffer'
          * should only have the intervals left
          */
+        HTIntervalColumns columns = new HTIntervalColumns(intervalCount);
         for (i = 0; i < intervalCount; i++) {
             HTInterval interval = HTInterval.readFrom(buffer);
-            newNode.intervals.add(interval);
+            columns.add(interval.getStartTime(), interval.getEndTime(),
+                    interval.getAttribute(), (TmfStateValue) interval.getStateValue());
             newNode.sizeOfIntervalSection += interval.getIntervalSize();
         }
 
-        /* Assign the node's other information we have read previously */
-        newNode.nodeEnd = end;
-        newNode.stringSectionOffset = stringSectionOffset;
-        newNode.isOnDisk = true;
-
+        newNode.sealedIntervals = columns;
         return newNode;
     }
 
+    /**
+     * Get the intervals of this node if it is closed, decoding them first if
+     * needed.
+     *
+     * @return The columns of intervals, or null if the node is still open
+     */
+    private HTIntervalColumns getColumns() {
+        HTIntervalColumns columns = sealedIntervals;
+        if (columns != null) {
+            return columns;
+        }
+        synchronized (decodeLock) {
+            columns = sealedIntervals;
+            ByteBuffer encoded = encodedIntervals;
+            if (columns != null || encoded == null) {
+                return columns;
+            }
+            columns = new HTIntervalColumns(encodedCount);
+            try {
+                HTStringTable strings = HTStringTable.readFrom(encoded, encodedStringCount);
+                stringTable = strings;
+                for (int i = 0; i < encodedCount; i++) {
+                    HTInterval.readCompactInto(encoded, nodeStart, strings, columns);
+                }
+            } catch (IOException | RuntimeException e) {
+                /* The node was already read, so this is a corrupt file */
+                Activator.getDefault().logError("Invalid intervals in history tree node " + sequenceNumber, e); //$NON-NLS-1$
+                columns = new HTIntervalColumns(0);
+            }
+            sizeOfIntervalSection = encoded.position();
+            sealedIntervals = columns;
+            encodedIntervals = null;
+            return columns;
+        }
+    }
+
     /**
      * Write this node to the given file channel.
      *
@@ -229,18 +339,41 @@ public abstract class HTNode {
      *             If there was an error writing
      */
     public final void writeSelf(FileChannel fc) throws IOException {
+        final int blockSize = config.getBlockSize();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        serialize(buffer);
+        int res = fc.write(buffer);
+        assert (res == blockSize);
+        isOnDisk = true;
+    }
+
+    /**
+     * Serialize this node into the given buffer, which must have room for at
+     * least one block. The buffer is cleared first, and is flipped once the
+     * node is written, so it is ready to be written to disk.
+     *
+     * This does not mark the node as being on disk, see {@link #setOnDisk()}.
+     *
+     * @param buffer
+     *            The buffer to write to. Its byte order will be set to little
+     *            endian.
+     */
+    public final void serialize(ByteBuffer buffer) {
+        final HTIntervalColumns columns = getColumns();
         /*
          * Yes, we are taking the *read* lock here, because we are reading the
          * information in the node to write it to disk.
          */
         rwl.readLock().lock();
         try {
+            final HTIntervalColumns sealed = (columns != null ? columns : sealedIntervals);
+            final int nbIntervals = (sealed == null ? intervals.size() : sealed.size());
             final int blockSize = config.getBlockSize();
             int curStringsEntryEndPos = blockSize;
 
-            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
             buffer.clear();
+            buffer.limit(blockSize);
 
             /* Write the common header part */
             buffer.put(this.getNodeType().toByte());
@@ -248,17 +381,36 @@ public abstract class HTNode {
             buffer.putLong(nodeEnd);
             buffer.putInt(sequenceNumber);
             buffer.putInt(parentSequenceNumber);
-            buffer.putInt(intervals.size());
+            buffer.putInt(nbIntervals);
             buffer.putInt(stringSectionOffset);
             buffer.put((byte) 1); // TODO Used to be "isDone", to be removed from header
 
             /* Now call the inner method to write the specific header part */
             this.writeSpecificHeader(buffer);
 
+            if (config.hasCompactNodes()) {
+                HTQuarkFilter filter = quarkFilter;
+                if (filter == null) {
+                    filter = buildQuarkFilter(sealed);
+                }
+                filter.writeTo(buffer);
+            }
+
+            /* The string table ends the header, its strings start the data */
+            HTStringTable strings = stringTable;
+            if (strings != null) {
+                strings.writeTo(buffer);
+            }
+
             /* Back to us, we write the intervals */
-            for (HTInterval interval : intervals) {
-                int size = interval.writeInterval(buffer, curStringsEntryEndPos);
-                curStringsEntryEndPos -= size;
+            for (int i = 0; i < nbIntervals; i++) {
+                HTInterval interval = (sealed == null ? intervals.get(i) : sealed.getInterval(i));
+                if (config.hasCompactNodes()) {
+                    interval.writeCompact(buffer, nodeStart, strings);
+                } else {
+                    int size = interval.writeInterval(buffer, curStringsEntryEndPos);
+                    curStringsEntryEndPos -= size;
+                }
             }
 
             /*
@@ -276,18 +428,22 @@ public abstract class HTNode {
              */
             assert (curStringsEntryEndPos == stringSectionOffset);
 
-            /* Finally, write everything in the Buffer to disk */
-
             // if we don't do this, flip() will lose what's after.
             buffer.position(blockSize);
 
             buffer.flip();
-            int res = fc.write(buffer);
-            assert (res == blockSize);
-
         } finally {
             rwl.readLock().unlock();
         }
+    }
+
+    /**
+     * Mark this node as being on disk. This is used when the node is handed
+     * to an asynchronous writer: from then on, the node is complete and
+     * readers must go through the I/O layer to get it, which will return this
+     * same object until it is actually written.
+     */
+    public void setOnDisk() {
         isOnDisk = true;
     }
 
@@ -372,8 +528,12 @@ public abstract class HTNode {
     public void addInterval(HTInterval newInterval) {
         rwl.writeLock().lock();
         try {
+            /* Closed nodes cannot be modified */
+            assert (sealedIntervals == null);
+
             /* Just in case, should be checked before even calling this function */
-            assert (newInterval.getIntervalSize() <= this.getNodeFreeSpace());
+            int size = getSizeInNode(newInterval);
+            assert (size <= this.getNodeFreeSpace());
 
             /* Find the insert position to keep the list sorted */
             int index = intervals.size();
@@ -382,15 +542,41 @@ public abstract class HTNode {
             }
 
             intervals.add(index, newInterval);
-            sizeOfIntervalSection += newInterval.getIntervalSize();
+            sizeOfIntervalSection += size;
+
+            /* The size included the string's table entry, if it is new */
+            if (stringTable != null && newInterval.getStateValue().getType() == ITmfStateValue.Type.STRING) {
+                stringTable.add(newInterval.getStateValue().unboxStr());
+            }
 
-            /* Update the in-node offset "pointer" */
-            stringSectionOffset -= (newInterval.getStringsEntrySize());
+            /*
+             * Update the in-node offset "pointer". The compact encoding does
+             * not use the Strings section, the values are in the entries.
+             */
+            if (!config.hasCompactNodes()) {
+                stringSectionOffset -= (newInterval.getStringsEntrySize());
+            }
         } finally {
             rwl.writeLock().unlock();
         }
     }
 
+    /**
+     * Get the number of bytes the given interval would use in this node. With
+     * the compact encoding, this depends on the start time of the node, and on
+     * whether its string value is already in the node's string table.
+     *
+     * @param interval
+     *            The interval
+     * @return The size of the interval in this node, in bytes
+     */
+    public int getSizeInNode(HTInterval interval) {
+        if (config.hasCompactNodes()) {
+            return interval.getCompactSize(nodeStart, stringTable);
+        }
+        return interval.getIntervalSize();
+    }
+
     /**
      * We've received word from the containerTree that newest nodes now exist to
      * our right. (Puts isDone = true and sets the endtime)
@@ -413,11 +599,75 @@ public abstract class HTNode {
             }
 
             this.nodeEnd = endtime;
+            seal();
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reopen a node of the latest branch of a tree that was closed, so that
+     * intervals can be added to it again when the building of the tree is
+     * resumed. It gets its new end time when it is closed again.
+     */
+    public void reopen() {
+        final HTIntervalColumns columns = getColumns();
+        rwl.writeLock().lock();
+        try {
+            sealedIntervals = null;
+            quarkFilter = null;
+            isOnDisk = false;
+            intervals.clear();
+            sizeOfIntervalSection = 0;
+            stringSectionOffset = config.getBlockSize();
+            if (config.hasCompactNodes()) {
+                stringTable = new HTStringTable();
+            }
+
+            /* Add the intervals back, which rebuilds the sizes and the strings */
+            if (columns != null) {
+                for (int i = 0; i < columns.size(); i++) {
+                    addInterval(columns.getInterval(i));
+                }
+            }
         } finally {
             rwl.writeLock().unlock();
         }
     }
 
+    /**
+     * Move the intervals of this node to their final columns, after which
+     * they can be read without locking. Must be called with the write lock
+     * held.
+     */
+    private void seal() {
+        HTIntervalColumns columns = HTIntervalColumns.copyOf(intervals);
+        if (config.hasCompactNodes()) {
+            quarkFilter = buildQuarkFilter(columns);
+        }
+        sealedIntervals = columns;
+        intervals.clear();
+        intervals.trimToSize();
+    }
+
+    /**
+     * Build the filter of the quarks of this node, from its columns if it is
+     * sealed, or from the open intervals (with the lock held).
+     */
+    private HTQuarkFilter buildQuarkFilter(HTIntervalColumns columns) {
+        HTQuarkFilter filter = new HTQuarkFilter(config);
+        if (columns == null) {
+            for (HTInterval interval : intervals) {
+                filter.add(interval.getAttribute());
+            }
+        } else {
+            for (int i = 0; i < columns.size(); i++) {
+                filter.add(columns.getQuark(i));
+            }
+        }
+        return filter;
+    }
+
     /**
      * The method to fill up the stateInfo (passed on from the Current State
      * Tree when it does a query on the SHT). We'll replace the data in that
@@ -434,25 +684,109 @@ public abstract class HTNode {
     public void writeInfoFromNode(List<ITmfStateInterval> stateInfo, long t)
             throws TimeRangeException {
         /* This is from a state system query, we are "reading" this node */
-        rwl.readLock().lock();
-        try {
-            for (int i = getStartIndexFor(t); i < intervals.size(); i++) {
-                /*
-                 * Now we only have to compare the Start times, since we now the
-                 * End times necessarily fit.
-                 *
-                 * Second condition is to ignore new attributes that might have
-                 * been created after stateInfo was instantiated (they would be
-                 * null anyway).
-                 */
-                ITmfStateInterval interval = intervals.get(i);
-                if (interval.getStartTime() <= t &&
-                        interval.getAttribute() < stateInfo.size()) {
-                    stateInfo.set(interval.getAttribute(), interval);
+        HTIntervalColumns sealed = getColumns();
+        if (sealed == null) {
+            rwl.readLock().lock();
+            try {
+                /* The node may have been closed while we were waiting */
+                sealed = sealedIntervals;
+                if (sealed == null) {
+                    writeInfoFromIntervals(intervals, stateInfo, t);
+                    return;
                 }
+            } finally {
+                rwl.readLock().unlock();
+            }
+        }
+
+        for (int i = sealed.getStartIndexFor(t); i < sealed.size(); i++) {
+            /* Same as below, only create the objects we return */
+            int quark = sealed.getQuark(i);
+            if (sealed.getStart(i) <= t && quark < stateInfo.size()) {
+                stateInfo.set(quark, sealed.getInterval(i));
+            }
+        }
+    }
+
+    private static void writeInfoFromIntervals(List<HTInterval> nodeIntervals,
+            List<ITmfStateInterval> stateInfo, long t) {
+        for (int i = getStartIndexFor(nodeIntervals, t); i < nodeIntervals.size(); i++) {
+            /*
+             * Now we only have to compare the Start times, since we now the End
+             * times necessarily fit.
+             *
+             * Second condition is to ignore new attributes that might have been
+             * created after stateInfo was instantiated (they would be null
+             * anyway).
+             */
+            ITmfStateInterval interval = nodeIntervals.get(i);
+            if (interval.getStartTime() <= t &&
+                    interval.getAttribute() < stateInfo.size()) {
+                stateInfo.set(interval.getAttribute(), interval);
+            }
+        }
+    }
+
+    /**
+     * Add to the given list all the intervals of this node whose attribute is
+     * part of the given set and that contain at least one sampling point of
+     * the grid. This is used for two-dimensional (time range x attributes)
+     * queries. With a resolution of 1, this means all the intervals that
+     * intersect the time range of the grid.
+     *
+     * @param results
+     *            The list to which the matching intervals are added
+     * @param quarks
+     *            The set of requested attribute quarks
+     * @param grid
+     *            The sampling points of the query
+     * @throws TimeRangeException
+     *             If the start of the grid is invalid
+     */
+    public void writeIntervalsFromNode(List<ITmfStateInterval> results, BitSet quarks,
+            ResolutionGrid grid) throws TimeRangeException {
+        HTQuarkFilter filter = quarkFilter;
+        if (filter != null && quarks.cardinality() <= getNbIntervals() &&
+                !filter.mightContainAny(quarks)) {
+            /* None of the requested attributes is in this node */
+            return;
+        }
+        long from = Math.max(grid.getStart(), nodeStart);
+        HTIntervalColumns sealed = getColumns();
+        if (sealed == null) {
+            rwl.readLock().lock();
+            try {
+                /* The node may have been closed while we were waiting */
+                sealed = sealedIntervals;
+                if (sealed == null) {
+                    writeIntervalsFromIntervals(intervals, results, quarks, grid);
+                    return;
+                }
+            } finally {
+                rwl.readLock().unlock();
+            }
+        }
+
+        for (int i = sealed.getStartIndexFor(from); i < sealed.size(); i++) {
+            if (quarks.get(sealed.getQuark(i)) &&
+                    grid.intersects(sealed.getStart(i), sealed.getEnd(i))) {
+                results.add(sealed.getInterval(i));
+            }
+        }
+    }
+
+    private void writeIntervalsFromIntervals(List<HTInterval> nodeIntervals,
+            List<ITmfStateInterval> results, BitSet quarks, ResolutionGrid grid) {
+        /*
+         * Intervals are sorted by end time, so the ones before the start index
+         * all end before the start of the grid.
+         */
+        for (int i = getStartIndexFor(nodeIntervals, Math.max(grid.getStart(), nodeStart)); i < nodeIntervals.size(); i++) {
+            HTInterval interval = nodeIntervals.get(i);
+            if (quarks.get(interval.getAttribute()) &&
+                    grid.intersects(interval.getStartTime(), interval.getEndTime())) {
+                results.add(interval);
             }
-        } finally {
-            rwl.readLock().unlock();
         }
     }
 
@@ -470,69 +804,69 @@ public abstract class HTNode {
      *             If 't' is invalid
      */
     public HTInterval getRelevantInterval(int key, long t) throws TimeRangeException {
-        rwl.readLock().lock();
-        try {
-            for (int i = getStartIndexFor(t); i < intervals.size(); i++) {
-                HTInterval curInterval = intervals.get(i);
-                if (curInterval.getAttribute() == key
-                        && curInterval.getStartTime() <= t
-                        && curInterval.getEndTime() >= t) {
-                    return curInterval;
+        HTQuarkFilter filter = quarkFilter;
+        if (filter != null && !filter.mightContain(key)) {
+            /* This attribute has no interval in this node */
+            return null;
+        }
+        HTIntervalColumns sealed = getColumns();
+        if (sealed == null) {
+            rwl.readLock().lock();
+            try {
+                /* The node may have been closed while we were waiting */
+                sealed = sealedIntervals;
+                if (sealed == null) {
+                    return getRelevantInterval(intervals, key, t);
                 }
+            } finally {
+                rwl.readLock().unlock();
             }
-
-            /* We didn't find the relevant information in this node */
-            return null;
-
-        } finally {
-            rwl.readLock().unlock();
         }
-    }
 
-    private int getStartIndexFor(long t) throws TimeRangeException {
-        /* Should only be called by methods with the readLock taken */
-
-        if (intervals.isEmpty()) {
-            return 0;
+        for (int i = sealed.getStartIndexFor(t); i < sealed.size(); i++) {
+            if (sealed.getQuark(i) == key
+                    && sealed.getStart(i) <= t
+                    && sealed.getEnd(i) >= t) {
+                return sealed.getInterval(i);
+            }
         }
-        /*
-         * Since the intervals are sorted by end time, we can skip all the ones
-         * at the beginning whose end times are smaller than 't'. Java does
-         * provides a .binarySearch method, but its API is quite weird...
-         */
-        HTInterval dummy = new HTInterval(0, t, 0, TmfStateValue.nullValue());
-        int index = Collections.binarySearch(intervals, dummy);
+        /* We didn't find the relevant information in this node */
+        return null;
+    }
 
-        if (index < 0) {
-            /*
-             * .binarySearch returns a negative number if the exact value was
-             * not found. Here we just want to know where to start searching, we
-             * don't care if the value is exact or not.
-             */
-            index = -index - 1;
 
+    private static HTInterval getRelevantInterval(List<HTInterval> nodeIntervals, int key, long t) {
+        for (int i = getStartIndexFor(nodeIntervals, t); i < nodeIntervals.size(); i++) {
+            HTInterval curInterval = nodeIntervals.get(i);
+            if (curInterval.getAttribute() == key
+                    && curInterval.getStartTime() <= t
+                    && curInterval.getEndTime() >= t) {
+                return curInterval;
+            }
         }
 
-        /* Sometimes binarySearch yields weird stuff... */
-        if (index < 0) {
-            index = 0;
-        }
-        if (index >= intervals.size()) {
-            index = intervals.size() - 1;
-        }
+        /* We didn't find the relevant information in this node */
+        return null;
+    }
 
-        /*
-         * Another API quirkiness, the returned index is the one of the *last*
-         * element of a series of equal endtimes, which happens sometimes. We
-         * want the *first* element of such a series, to read through them
-         * again.
-         */
-        while (index > 0
-                && intervals.get(index - 1).compareTo(intervals.get(index)) == 0) {
-            index--;
+    /**
+     * Find the index of the first interval whose end time is greater or equal
+     * to 't'. Since the intervals are sorted by end time, all the ones before
+     * it can be skipped. The list must not be modified during the call (so it
+     * must be sealed, or the read lock must be held).
+     */
+    private static int getStartIndexFor(List<HTInterval> nodeIntervals, long t) {
+        int low = 0;
+        int high = nodeIntervals.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (nodeIntervals.get(mid).getEndTime() < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-
-        return index;
+        return low;
     }
 
     /**
@@ -552,7 +886,35 @@ public abstract class HTNode {
      * @return The total header size
      */
     public final int getTotalHeaderSize() {
-        return COMMON_HEADER_SIZE + getSpecificHeaderSize();
+        int size = COMMON_HEADER_SIZE + getSpecificHeaderSize();
+        if (config.hasCompactNodes()) {
+            size += HTQuarkFilter.getSize(config) + HTStringTable.HEADER_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of intervals in this node.
+     *
+     * @return The number of intervals
+     */
+    public int getNbIntervals() {
+        HTIntervalColumns sealed = sealedIntervals;
+        if (sealed != null) {
+            return sealed.size();
+        }
+        synchronized (decodeLock) {
+            if (encodedIntervals != null) {
+                return encodedCount;
+            }
+        }
+        rwl.readLock().lock();
+        try {
+            sealed = sealedIntervals;
+            return (sealed == null ? intervals.size() : sealed.size());
+        } finally {
+            rwl.readLock().unlock();
+        }
     }
 
     /**
@@ -569,6 +931,8 @@ public abstract class HTNode {
      * @return The amount of free space in the node (in bytes)
      */
     public int getNodeFreeSpace() {
+        /* The size of the intervals is only known once they are decoded */
+        getColumns();
         rwl.readLock().lock();
         int ret = stringSectionOffset - this.getDataSectionEndOffset();
         rwl.readLock().unlock();
@@ -607,7 +971,7 @@ public abstract class HTNode {
         /* Only used for debugging, shouldn't be externalized */
         StringBuffer buf = new StringBuffer("Node #" + sequenceNumber + ", ");
         buf.append(this.toStringSpecific());
-        buf.append(intervals.size() + " intervals (" + this.getNodeUsagePercent()
+        buf.append(getNbIntervals() + " intervals (" + this.getNodeUsagePercent()
                 + "% used), ");
 
         buf.append("[" + this.nodeStart + " - ");
@@ -646,8 +1010,15 @@ public abstract class HTNode {
 
         /* List of intervals in the node */
         writer.println("  Intervals contained:");
-        for (int i = 0; i < intervals.size(); i++) {
-            writer.println(intervals.get(i).toString());
+        HTIntervalColumns sealed = getColumns();
+        if (sealed == null) {
+            for (int i = 0; i < intervals.size(); i++) {
+                writer.println(intervals.get(i).toString());
+            }
+        } else {
+            for (int i = 0; i < sealed.size(); i++) {
+                writer.println(sealed.getInterval(i).toString());
+            }
         }
         writer.println('\n');
     }
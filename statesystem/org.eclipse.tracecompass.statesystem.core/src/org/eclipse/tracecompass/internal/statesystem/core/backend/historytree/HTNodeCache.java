@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least-recently-used cache of history tree nodes, used by {@link HT_IO}.
+ *
+ * The cache is split in a number of stripes, each with its own lock and its
+ * own share of the total capacity, so that concurrent queries reading
+ * different nodes do not contend on a single lock. A node always goes to the
+ * stripe given by the low bits of its sequence number.
+ *
+ * Hit, miss and eviction counters are kept for the whole cache.
+ */
+public final class HTNodeCache {
+
+    /** Maximum number of stripes, must be a power of 2 */
+    private static final int MAX_STRIPES = 16;
+
+    private final Stripe[] fStripes;
+    private final int fStripeMask;
+    private final int fCapacity;
+
+    private final AtomicLong fHits = new AtomicLong();
+    private final AtomicLong fMisses = new AtomicLong();
+    private final AtomicLong fEvictions = new AtomicLong();
+
+    /**
+     * One independently-locked LRU segment of the cache. The map is in
+     * access-order, so its eldest entry is the least recently used one.
+     */
+    private final class Stripe extends LinkedHashMap<Integer, HTNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int fStripeCapacity;
+
+        public Stripe(int capacity) {
+            super(capacity + 1, 1.0f, true);
+            fStripeCapacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HTNode> eldest) {
+            if (size() > fStripeCapacity) {
+                fEvictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            The maximum number of nodes to keep in the cache. Must be
+     *            positive.
+     */
+    public HTNodeCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid node cache size: " + capacity); //$NON-NLS-1$
+        }
+        /* Use as many stripes as possible, while keeping at least 1 node each */
+        int nbStripes = MAX_STRIPES;
+        while (nbStripes > capacity) {
+            nbStripes >>= 1;
+        }
+        fCapacity = capacity;
+        fStripeMask = nbStripes - 1;
+        fStripes = new Stripe[nbStripes];
+        for (int i = 0; i < nbStripes; i++) {
+            /* Spread the remainder over the first stripes */
+            int stripeCapacity = capacity / nbStripes + (i < capacity % nbStripes ? 1 : 0);
+            fStripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Look up a node in the cache. This counts as a hit or a miss in the
+     * statistics.
+     *
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The cached node, or null if it is not in the cache
+     */
+    public HTNode get(int seqNumber) {
+        Stripe stripe = fStripes[seqNumber & fStripeMask];
+        HTNode node;
+        synchronized (stripe) {
+            node = stripe.get(seqNumber);
+        }
+        if (node == null) {
+            fMisses.incrementAndGet();
+        } else {
+            fHits.incrementAndGet();
+        }
+        return node;
+    }
+
+    /**
+     * Insert a node in the cache, possibly evicting the least recently used
+     * node of its stripe.
+     *
+     * @param node
+     *            The node to insert
+     */
+    public void put(HTNode node) {
+        Stripe stripe = fStripes[node.getSequenceNumber() & fStripeMask];
+        synchronized (stripe) {
+            stripe.put(node.getSequenceNumber(), node);
+        }
+    }
+
+    /**
+     * Remove all the nodes from the cache. The statistics are kept.
+     */
+    public void clear() {
+        for (Stripe stripe : fStripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The maximum number of nodes kept in this cache
+     */
+    public int getCapacity() {
+        return fCapacity;
+    }
+
+    /**
+     * @return The number of lookups that found their node in the cache
+     */
+    public long getHits() {
+        return fHits.get();
+    }
+
+    /**
+     * @return The number of lookups that did not find their node in the cache
+     */
+    public long getMisses() {
+        return fMisses.get();
+    }
+
+    /**
+     * @return The number of nodes that were evicted to make room for others
+     */
+    public long getEvictions() {
+        return fEvictions.get();
+    }
+}
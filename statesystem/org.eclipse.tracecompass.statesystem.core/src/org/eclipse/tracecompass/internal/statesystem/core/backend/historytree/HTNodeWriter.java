@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+
+/**
+ * Write stage of the history tree construction, used by {@link HT_IO} when
+ * building a new tree.
+ *
+ * Closed nodes are handed to this writer, which serializes and writes them to
+ * the file from its own thread, so that the thread inserting intervals in the
+ * tree never waits on the disk. Nodes are taken from the queue in batches,
+ * serialized into direct buffers that are allocated once, and written with
+ * positional writes, which do not depend on (or modify) the position of the
+ * channel.
+ *
+ * Until a node is completely written, it can still be obtained with
+ * {@link #getPendingNode(int)}, so readers never see a block of the file that
+ * is not written yet.
+ *
+ * If a node cannot be written, the writer thread stops, and the error is
+ * thrown back to the thread building the tree by the next call to
+ * {@link #writeNode} or {@link #finish}.
+ */
+public final class HTNodeWriter implements Runnable {
+
+    /** Maximum number of nodes serialized and written at once */
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * Maximum number of nodes waiting to be written. If the disk cannot keep
+     * up, {@link #writeNode} will block once this many nodes are waiting,
+     * instead of using an unbounded amount of memory.
+     */
+    private static final int QUEUE_SIZE = 256;
+
+    /** Sequence number used to tell the writer thread to stop */
+    private static final int STOP = -1;
+
+    /**
+     * Time after which a thread waiting for room in the queue checks if the
+     * writer thread is still running
+     */
+    private static final long QUEUE_TIMEOUT = 100;
+
+    private final HTConfig fConfig;
+    private final FileChannel fFileChannel;
+    private final BlockingQueue<Integer> fQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final ConcurrentMap<Integer, HTNode> fPendingNodes = new ConcurrentHashMap<>();
+    private final ByteBuffer[] fBuffers = new ByteBuffer[BATCH_SIZE];
+    private final Thread fThread;
+
+    private volatile boolean fFinished = false;
+    private volatile IOException fError = null;
+
+    /**
+     * Constructor. This starts the writer thread.
+     *
+     * @param config
+     *            The configuration of the history tree
+     * @param fc
+     *            The channel to which the nodes are written
+     */
+    public HTNodeWriter(HTConfig config, FileChannel fc) {
+        fConfig = config;
+        fFileChannel = fc;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            fBuffers[i] = ByteBuffer.allocateDirect(config.getBlockSize());
+        }
+        fThread = new Thread(this, "History Tree Writer Thread"); //$NON-NLS-1$
+        /* An abandoned tree should not keep the application alive */
+        fThread.setDaemon(true);
+        fThread.start();
+    }
+
+    /**
+     * Queue a node to be written. The node must be closed, it should not be
+     * modified afterwards.
+     *
+     * @param node
+     *            The node to write
+     * @throws IllegalStateException
+     *             If the writer is finished, or if a previous node could not
+     *             be written
+     */
+    public void writeNode(HTNode node) {
+        if (fFinished) {
+            throw new IllegalStateException("The history tree writer is finished"); //$NON-NLS-1$
+        }
+        checkError();
+        int seqNumber = node.getSequenceNumber();
+        fPendingNodes.put(seqNumber, node);
+        try {
+            if (!enqueue(seqNumber)) {
+                /* The writer thread stopped before taking the node */
+                checkError();
+                throw new IllegalStateException("The history tree writer is stopped"); //$NON-NLS-1$
+            }
+        } catch (InterruptedException e) {
+            Activator.getDefault().logError("Interrupted while queuing node " + seqNumber, e); //$NON-NLS-1$
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get a node that was queued but is not completely written to disk yet.
+     *
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The node, or null if it is not waiting to be written
+     */
+    public HTNode getPendingNode(int seqNumber) {
+        return fPendingNodes.get(seqNumber);
+    }
+
+    /**
+     * Write all the queued nodes and stop the writer thread. This returns once
+     * everything is on disk. No node can be written after this.
+     *
+     * @throws IllegalStateException
+     *             The first time this is called, if a node could not be
+     *             written
+     */
+    public void finish() {
+        if (fFinished) {
+            return;
+        }
+        fFinished = true;
+        try {
+            if (enqueue(STOP)) {
+                fThread.join();
+            }
+        } catch (InterruptedException e) {
+            Activator.getDefault().logError("Interrupted while writing the history tree", e); //$NON-NLS-1$
+            Thread.currentThread().interrupt();
+        }
+        checkError();
+    }
+
+    /**
+     * Put a sequence number in the queue, waiting for room as long as the
+     * writer thread is running.
+     *
+     * @return False if the writer thread stopped before there was room
+     */
+    private boolean enqueue(int seqNumber) throws InterruptedException {
+        while (!fQueue.offer(seqNumber, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            if (!fThread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkError() {
+        IOException error = fError;
+        if (error != null) {
+            throw new IllegalStateException("Could not write the history tree", error); //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Integer> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (true) {
+                /* Wait for at least one node, then take what is available */
+                batch.add(fQueue.take());
+                fQueue.drainTo(batch, BATCH_SIZE - 1);
+
+                boolean stop = writeBatch(batch);
+                batch.clear();
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Activator.getDefault().logError("History tree writer was interrupted", e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Serialize and write a batch of nodes.
+     *
+     * @return If the batch contained the stop request, or if a node could not
+     *         be written
+     */
+    private boolean writeBatch(List<Integer> batch) {
+        final int blockSize = fConfig.getBlockSize();
+        boolean stop = false;
+        HTNode[] nodes = new HTNode[batch.size()];
+
+        /* Serialize the whole batch first, then write it */
+        for (int i = 0; i < batch.size(); i++) {
+            int seqNumber = batch.get(i);
+            if (seqNumber == STOP) {
+                stop = true;
+                continue;
+            }
+            nodes[i] = fPendingNodes.get(seqNumber);
+            if (nodes[i] != null) {
+                nodes[i].serialize(fBuffers[i]);
+            }
+        }
+
+        for (int i = 0; i < nodes.length; i++) {
+            HTNode node = nodes[i];
+            if (node == null) {
+                continue;
+            }
+            ByteBuffer buffer = fBuffers[i];
+            long position = HistoryTree.TREE_HEADER_SIZE + ((long) node.getSequenceNumber()) * blockSize;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += fFileChannel.write(buffer, position);
+                }
+            } catch (IOException e) {
+                /*
+                 * Keep the node, and the ones after it, in memory for the
+                 * readers, and report the error to the builder
+                 */
+                fError = e;
+                Activator.getDefault().logError(e.getMessage(), e);
+                return true;
+            }
+            /* Readers can now get this node from the file */
+            fPendingNodes.remove(node.getSequenceNumber(), node);
+        }
+        return stop;
+    }
+}
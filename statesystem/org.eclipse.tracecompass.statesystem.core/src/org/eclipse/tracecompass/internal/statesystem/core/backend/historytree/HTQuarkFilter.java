@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Bloom filter of the attribute quarks that have intervals in a history tree
+ * node. It is stored in the header of the node, so that queries can tell
+ * whether a node may contain intervals of an attribute without decoding the
+ * intervals themselves.
+ *
+ * A negative answer is always right, a positive one may be wrong.
+ */
+public final class HTQuarkFilter {
+
+    /** Number of bits set for each quark */
+    private static final int NB_HASHES = 3;
+
+    /** Fraction of the block size used by the filter */
+    private static final int BLOCK_SIZE_RATIO = 32;
+
+    private final long[] fBits;
+    private final int fNbBits;
+
+    private HTQuarkFilter(long[] bits) {
+        fBits = bits;
+        fNbBits = bits.length * Long.SIZE;
+    }
+
+    /**
+     * Create an empty filter for nodes of the given configuration
+     *
+     * @param config
+     *            The configuration of the history tree
+     */
+    public HTQuarkFilter(HTConfig config) {
+        this(new long[getSize(config) / (Long.SIZE / Byte.SIZE)]);
+    }
+
+    /**
+     * Get the number of bytes the filter takes in the node header.
+     *
+     * @param config
+     *            The configuration of the history tree
+     * @return The size of the filter, in bytes, a multiple of 8
+     */
+    public static int getSize(HTConfig config) {
+        return Math.max(8, (config.getBlockSize() / BLOCK_SIZE_RATIO) & ~7);
+    }
+
+    /**
+     * Read a filter from the header of a node.
+     *
+     * @param config
+     *            The configuration of the history tree
+     * @param buffer
+     *            The buffer, positioned at the start of the filter
+     * @return The filter
+     */
+    public static HTQuarkFilter readFrom(HTConfig config, ByteBuffer buffer) {
+        long[] bits = new long[getSize(config) / (Long.SIZE / Byte.SIZE)];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = buffer.getLong();
+        }
+        return new HTQuarkFilter(bits);
+    }
+
+    /**
+     * Write this filter in the header of a node.
+     *
+     * @param buffer
+     *            The buffer, positioned where the filter goes
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (long word : fBits) {
+            buffer.putLong(word);
+        }
+    }
+
+    /**
+     * Add a quark to the filter. Only to be used before the filter is shared.
+     *
+     * @param quark
+     *            The quark
+     */
+    public void add(int quark) {
+        long hash = mix(quark);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < NB_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % fNbBits;
+            fBits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Check if the node may contain intervals of the given quark.
+     *
+     * @param quark
+     *            The quark
+     * @return false if the node has no interval for this quark for sure
+     */
+    public boolean mightContain(int quark) {
+        long hash = mix(quark);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < NB_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % fNbBits;
+            if ((fBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the node may contain intervals of any of the given quarks.
+     *
+     * @param quarks
+     *            The set of quarks
+     * @return false if the node has no interval for any of these quarks for
+     *         sure
+     */
+    public boolean mightContainAny(BitSet quarks) {
+        for (int quark = quarks.nextSetBit(0); quark >= 0; quark = quarks.nextSetBit(quark + 1)) {
+            if (mightContain(quark)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* 64-bit finalizer of MurmurHash3, spreads consecutive quarks */
+    private static long mix(int quark) {
+        long h = quark;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * Table of the distinct string values used by the intervals of a history tree
+ * node. Each string is written once in the node, and intervals only refer to
+ * its index in the table.
+ *
+ * On disk, the number of strings is the last field of the node header, and
+ * the strings themselves (varint length + UTF-8 bytes) come right before the
+ * intervals. When a node is read, each string is decoded only once, into a
+ * state value shared by all the intervals using it.
+ *
+ * A table is only modified by the thread building the node, with the node's
+ * write lock held, and is read-only once the node is closed. The index of the
+ * strings of a table read from disk is only built if the node is written
+ * again, as most nodes that are read are only queried.
+ */
+public final class HTStringTable {
+
+    /** Size of the string count, in the node header */
+    public static final int HEADER_SIZE = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    private final List<String> fStrings;
+    private volatile Map<String, Integer> fIndexes;
+    private final TmfStateValue[] fValues;
+
+    /**
+     * Create an empty table, for a new node
+     */
+    public HTStringTable() {
+        fStrings = new ArrayList<>();
+        fIndexes = new HashMap<>();
+        fValues = null;
+    }
+
+    private HTStringTable(List<String> strings, TmfStateValue[] values) {
+        fStrings = strings;
+        fIndexes = null;
+        fValues = values;
+    }
+
+    /*
+     * Get the index of the strings, building it for a table read from disk.
+     * Threads serializing the same closed node may both build it, which gives
+     * the same map.
+     */
+    private Map<String, Integer> getIndexes() {
+        Map<String, Integer> indexes = fIndexes;
+        if (indexes == null) {
+            indexes = new HashMap<>();
+            for (int i = 0; i < fStrings.size(); i++) {
+                indexes.put(fStrings.get(i), i);
+            }
+            fIndexes = indexes;
+        }
+        return indexes;
+    }
+
+    /**
+     * Read the strings of a table. The count was read from the node header
+     * beforehand.
+     *
+     * @param buffer
+     *            The buffer, positioned at the first string
+     * @param count
+     *            The number of strings in the table
+     * @return The table
+     * @throws IOException
+     *             If the strings are not valid
+     */
+    public static HTStringTable readFrom(ByteBuffer buffer, int count) throws IOException {
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException("Invalid string table size " + count); //$NON-NLS-1$
+        }
+        List<String> strings = new ArrayList<>(count);
+        TmfStateValue[] values = new TmfStateValue[count];
+        for (int i = 0; i < count; i++) {
+            int length = (int) HTInterval.readVarLong(buffer);
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Invalid string length " + length); //$NON-NLS-1$
+            }
+            String str;
+            if (buffer.hasArray()) {
+                str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+                buffer.position(buffer.position() + length);
+            } else {
+                /* Memory-mapped node */
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                str = new String(bytes, UTF8);
+            }
+            values[i] = TmfStateValue.newValueString(str);
+            /* Keep the instance of the shared value */
+            strings.add(values[i].unboxStr());
+        }
+        return new HTStringTable(strings, values);
+    }
+
+    /**
+     * Write the string count, which goes at the end of the node header, and
+     * then the strings.
+     *
+     * @param buffer
+     *            The buffer, positioned at the end of the node header
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(fStrings.size());
+        for (String str : fStrings) {
+            byte[] bytes = str.getBytes(UTF8);
+            HTInterval.writeVarLong(buffer, bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Get the number of strings in the table
+     *
+     * @return The number of strings
+     */
+    public int size() {
+        return fStrings.size();
+    }
+
+    /**
+     * Add a string to the table, if it is not there yet.
+     *
+     * @param str
+     *            The string
+     * @return The index of the string
+     */
+    public int add(String str) {
+        Map<String, Integer> indexes = getIndexes();
+        Integer index = indexes.get(str);
+        if (index != null) {
+            return index;
+        }
+        int newIndex = fStrings.size();
+        fStrings.add(str);
+        indexes.put(str, newIndex);
+        return newIndex;
+    }
+
+    /**
+     * Get the index of a string of the table.
+     *
+     * @param str
+     *            The string
+     * @return Its index, or -1 if it is not in the table
+     */
+    public int indexOf(String str) {
+        Integer index = getIndexes().get(str);
+        return (index == null ? -1 : index);
+    }
+
+    /**
+     * Get the number of bytes an interval reference to this string would add
+     * to the node, including the string itself if it is not in the table yet.
+     *
+     * @param str
+     *            The string
+     * @return The size, in bytes
+     */
+    public int getReferenceSize(String str) {
+        Integer index = getIndexes().get(str);
+        if (index != null) {
+            return HTInterval.varLongSize(index);
+        }
+        int length = utf8Length(str);
+        return HTInterval.varLongSize(fStrings.size()) + HTInterval.varLongSize(length) + length;
+    }
+
+    /**
+     * Get the state value of a string of a table that was read from disk.
+     *
+     * @param index
+     *            The index of the string
+     * @return The string state value
+     * @throws IOException
+     *             If the index is not in the table
+     */
+    public TmfStateValue getValue(int index) throws IOException {
+        if (fValues == null || index < 0 || index >= fValues.length) {
+            throw new IOException("Invalid string index " + index); //$NON-NLS-1$
+        }
+        return fValues[index];
+    }
+
+    /*
+     * Length of the UTF-8 encoding of a string, without encoding it. Lone
+     * surrogates are encoded as '?' by String.getBytes().
+     */
+    private static int utf8Length(String str) {
+        int length = 0;
+        int nbChars = str.length();
+        for (int i = 0; i < nbChars; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < nbChars && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -12,12 +12,18 @@
 
 package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 
@@ -39,13 +45,27 @@ class HT_IO {
 
     /* Fields related to the file I/O */
     private final FileInputStream fis;
-    private final FileOutputStream fos;
+    private final Closeable fos;
     private final FileChannel fcIn;
     private final FileChannel fcOut;
 
-    // TODO test/benchmark optimal cache size
-    private static final int CACHE_SIZE = 256;
-    private final HTNode fNodeCache[] = new HTNode[CACHE_SIZE];
+    private final HTNodeCache fNodeCache;
+
+    /**
+     * Writer stage used when building a tree, so that nodes are written
+     * asynchronously. null when opening an existing file to read it.
+     */
+    private final HTNodeWriter fWriter;
+
+    /**
+     * Read-only mappings of the node section of the file, once the tree is
+     * complete. A single MappedByteBuffer cannot be larger than 2 GB, so big
+     * files are split in several segments, each holding a whole number of
+     * blocks. null if the file is not mapped (reads go through fcIn).
+     */
+    private volatile MappedByteBuffer[] fMappedSegments = null;
+    private int fBlocksPerSegment;
+    private volatile boolean fIsClosed = false;
 
     /**
      * Standard constructor
@@ -59,7 +79,26 @@ class HT_IO {
      *             An exception can be thrown when file cannot be accessed
      */
     public HT_IO(HTConfig config, boolean newFile) throws IOException {
+        this(config, newFile, false);
+    }
+
+    /**
+     * Constructor which can also open an existing file to append nodes to it
+     *
+     * @param config
+     *            The configuration object for the StateHistoryTree
+     * @param newFile
+     *            Flag indicating that the file must be created from scratch
+     * @param append
+     *            For an existing file, flag indicating that nodes will be
+     *            written to it
+     *
+     * @throws IOException
+     *             An exception can be thrown when file cannot be accessed
+     */
+    public HT_IO(HTConfig config, boolean newFile, boolean append) throws IOException {
         fConfig = config;
+        fNodeCache = new HTNodeCache(config.getNodeCacheSize());
 
         File historyTreeFile = config.getStateFile();
         if (newFile) {
@@ -75,17 +114,30 @@ class HT_IO {
                         historyTreeFile.getName());
             }
             fis = new FileInputStream(historyTreeFile);
-            fos = new FileOutputStream(historyTreeFile, false);
+            FileOutputStream out = new FileOutputStream(historyTreeFile, false);
+            fos = out;
+            fcOut = out.getChannel();
+        } else if (append) {
+            /*
+             * Nodes are written at their own position, which a stream in
+             * append mode would ignore.
+             */
+            fis = new FileInputStream(historyTreeFile);
+            RandomAccessFile out = new RandomAccessFile(historyTreeFile, "rw"); //$NON-NLS-1$
+            fos = out;
+            fcOut = out.getChannel();
         } else {
             /*
              * We want to open an existing file, make sure we don't squash the
              * existing content when opening the fos!
              */
             this.fis = new FileInputStream(historyTreeFile);
-            this.fos = new FileOutputStream(historyTreeFile, true);
+            FileOutputStream out = new FileOutputStream(historyTreeFile, true);
+            this.fos = out;
+            this.fcOut = out.getChannel();
         }
         this.fcIn = fis.getChannel();
-        this.fcOut = fos.getChannel();
+        fWriter = (newFile || append ? new HTNodeWriter(config, fcOut) : null);
     }
 
     /**
@@ -99,21 +151,61 @@ class HT_IO {
      *             reading. Instead of using a big reader-writer lock, we'll
      *             just catch this exception.
      */
-    public synchronized HTNode readNode(int seqNumber) throws ClosedChannelException {
+    public HTNode readNode(int seqNumber) throws ClosedChannelException {
         /* Do a cache lookup */
-        int offset = seqNumber & (CACHE_SIZE - 1);
-        HTNode readNode = fNodeCache[offset];
-        if (readNode != null && readNode.getSequenceNumber() == seqNumber) {
+        HTNode readNode = fNodeCache.get(seqNumber);
+        if (readNode != null) {
             return readNode;
         }
 
+        /* The node may be waiting to be written */
+        HTNodeWriter writer = fWriter;
+        if (writer != null) {
+            readNode = writer.getPendingNode(seqNumber);
+            if (readNode != null) {
+                return readNode;
+            }
+        }
+
+        MappedByteBuffer[] segments = fMappedSegments;
+        if (segments == null) {
+            return readNodeFromChannel(seqNumber);
+        }
+
+        /*
+         * The file is mapped, so we can decode the node without any lock. Each
+         * reader works on its own view of the mapped segment.
+         */
+        if (fIsClosed) {
+            throw new ClosedChannelException();
+        }
+        try {
+            int blockSize = fConfig.getBlockSize();
+            int posInSegment = (seqNumber % fBlocksPerSegment) * blockSize;
+            ByteBuffer buffer = segments[seqNumber / fBlocksPerSegment].duplicate();
+            buffer.position(posInSegment);
+            buffer.limit(posInSegment + blockSize);
+            buffer = buffer.slice();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            readNode = HTNode.readNode(fConfig, buffer);
+
+            /* Put the node in the cache. */
+            fNodeCache.put(readNode);
+            return readNode;
+        } catch (IOException e) {
+            Activator.getDefault().logError(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private synchronized HTNode readNodeFromChannel(int seqNumber) throws ClosedChannelException {
         /* Lookup on disk */
         try {
             seekFCToNodePos(fcIn, seqNumber);
-            readNode = HTNode.readNode(fConfig, fcIn);
+            HTNode readNode = HTNode.readNode(fConfig, fcIn);
 
             /* Put the node in the cache. */
-            fNodeCache[offset] = readNode;
+            fNodeCache.put(readNode);
             return readNode;
         } catch (ClosedChannelException e) {
             throw e;
@@ -124,12 +216,79 @@ class HT_IO {
         }
     }
 
-    public synchronized void writeNode(HTNode node) {
+    /**
+     * Memory-map the node section of the file, so that subsequent reads can be
+     * done concurrently, without going through the shared file channel. This
+     * should only be called once the tree is complete, since nodes written
+     * after this call would not be visible in the mapping.
+     *
+     * If the mapping cannot be done (for example if there is not enough
+     * address space available), reads will keep using the file channel.
+     *
+     * @param nodeCount
+     *            The number of nodes in the tree
+     */
+    public synchronized void mapNodeSection(int nodeCount) {
+        if (fIsClosed || fMappedSegments != null || nodeCount <= 0) {
+            return;
+        }
+        final int blockSize = fConfig.getBlockSize();
+        final int blocksPerSegment = Integer.MAX_VALUE / blockSize;
+        final int nbSegments = (nodeCount + blocksPerSegment - 1) / blocksPerSegment;
+        MappedByteBuffer[] segments = new MappedByteBuffer[nbSegments];
+        try {
+            for (int i = 0; i < nbSegments; i++) {
+                int nbBlocks = Math.min(blocksPerSegment, nodeCount - i * blocksPerSegment);
+                long position = HistoryTree.TREE_HEADER_SIZE + ((long) i * blocksPerSegment) * blockSize;
+                segments[i] = fcIn.map(MapMode.READ_ONLY, position, (long) nbBlocks * blockSize);
+            }
+        } catch (IOException e) {
+            /* Not fatal, we will simply read through the channel */
+            Activator.getDefault().logError("Could not map history file " + //$NON-NLS-1$
+                    fConfig.getStateFile().getName(), e);
+            return;
+        }
+        fBlocksPerSegment = blocksPerSegment;
+        fMappedSegments = segments;
+    }
+
+    /**
+     * Check if the nodes are read from a mapping of the file, see
+     * {@link #mapNodeSection}
+     *
+     * @return If the node section of the file is mapped
+     */
+    public boolean isMapped() {
+        return (fMappedSegments != null);
+    }
+
+    /**
+     * Write a node to the file. When building a new tree, the node is only
+     * queued to be written by the writer thread, and this returns right away,
+     * unless too many nodes are already waiting. The node remains available
+     * to {@link #readNode} in the meantime.
+     *
+     * @param node
+     *            The node to write. It must be closed.
+     * @throws IllegalStateException
+     *             If the writer thread could not write a previous node
+     */
+    public void writeNode(HTNode node) {
+        HTNodeWriter writer = fWriter;
+        if (writer != null) {
+            fNodeCache.put(node);
+            writer.writeNode(node);
+            node.setOnDisk();
+            return;
+        }
+        writeNodeToChannel(node);
+    }
+
+    private synchronized void writeNodeToChannel(HTNode node) {
         try {
             /* Insert the node into the cache. */
             int seqNumber = node.getSequenceNumber();
-            int offset = seqNumber & (CACHE_SIZE - 1);
-            fNodeCache[offset] = node;
+            fNodeCache.put(node);
 
             /* Position ourselves at the start of the node and write it */
             seekFCToNodePos(fcOut, seqNumber);
@@ -140,6 +299,45 @@ class HT_IO {
         }
     }
 
+    /**
+     * Wait until all the nodes passed to {@link #writeNode} are written to the
+     * file, and stop the writer thread. No node can be written after this.
+     *
+     * @throws IllegalStateException
+     *             If the writer thread could not write a node
+     */
+    public void finishWriting() {
+        HTNodeWriter writer = fWriter;
+        if (writer != null) {
+            writer.finish();
+        }
+    }
+
+    /**
+     * Discard everything after the node section of the file, that is the
+     * attribute tree that was written after it when the tree was closed. This
+     * is done before appending nodes to the file, since the attribute tree is
+     * written again at its new end.
+     *
+     * @param nodeCount
+     *            The number of nodes in the file
+     * @throws IOException
+     *             If the file cannot be truncated
+     */
+    public synchronized void truncateAfterNodes(int nodeCount) throws IOException {
+        fcOut.truncate(HistoryTree.TREE_HEADER_SIZE + ((long) nodeCount) * fConfig.getBlockSize());
+    }
+
+    /**
+     * Get the node cache used by this reader/writer, mainly to access its
+     * statistics.
+     *
+     * @return The node cache
+     */
+    public HTNodeCache getNodeCache() {
+        return fNodeCache;
+    }
+
     public FileChannel getFcOut() {
         return this.fcOut;
     }
@@ -158,6 +356,18 @@ class HT_IO {
     }
 
     public synchronized void closeFile() {
+        try {
+            finishWriting();
+        } catch (IllegalStateException e) {
+            /* The writer already logged the error, close the file anyway */
+        }
+        /*
+         * Drop our references to the mappings, they will be released when
+         * garbage-collected.
+         */
+        fIsClosed = true;
+        fMappedSegments = null;
+        fNodeCache.clear();
         try {
             fis.close();
             fos.close();
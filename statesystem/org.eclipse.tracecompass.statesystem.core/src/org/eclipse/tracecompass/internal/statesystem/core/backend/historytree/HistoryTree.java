@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ResolutionGrid;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 
@@ -47,8 +48,15 @@ public class HistoryTree {
 
     private static final int HISTORY_FILE_MAGIC_NUMBER = 0x05FFA900;
 
-    /** File format version. Increment when breaking compatibility. */
-    private static final int FILE_VERSION = 5;
+    /**
+     * Current file format version. Increment when changing the format. This
+     * version has the compact interval encoding, the quark filter in the node
+     * headers and the string table in the nodes.
+     */
+    static final int FILE_VERSION = 6;
+
+    /** Previous file format version, which can still be read */
+    static final int LEGACY_FILE_VERSION = 5;
 
     // ------------------------------------------------------------------------
     // Tree-specific configuration
@@ -73,6 +81,13 @@ public class HistoryTree {
     /** "Cache" to keep the active nodes in memory */
     private final List<HTNode> latestBranch;
 
+    /**
+     * If the tree was reopened to append to it, and the end of its file was
+     * not discarded yet. This is done at the first write, once the attribute
+     * tree at the end of the file has been read.
+     */
+    private boolean appendPending = false;
+
     // ------------------------------------------------------------------------
     // Constructors/"Destructors"
     // ------------------------------------------------------------------------
@@ -121,6 +136,46 @@ public class HistoryTree {
      *             If an error happens reading the file
      */
     public HistoryTree(File existingStateFile, int expProviderVersion) throws IOException {
+        this(existingStateFile, expProviderVersion, HTConfig.DEFAULT_NODE_CACHE_SIZE);
+    }
+
+    /**
+     * "Reader" constructor : instantiate a SHTree from an existing tree file on
+     * disk, specifying the size of the node cache.
+     *
+     * @param existingStateFile
+     *            Path/filename of the history-file we are to open
+     * @param expProviderVersion
+     *            The expected version of the state provider
+     * @param nodeCacheSize
+     *            The maximum number of nodes to keep in memory after reading
+     *            them from disk
+     * @throws IOException
+     *             If an error happens reading the file
+     */
+    public HistoryTree(File existingStateFile, int expProviderVersion, int nodeCacheSize) throws IOException {
+        this(existingStateFile, expProviderVersion, nodeCacheSize, false);
+    }
+
+    /**
+     * "Reader" constructor, which can also reopen a complete tree to continue
+     * building it. In that case, the nodes of its latest branch are reopened,
+     * and the intervals inserted afterwards must start after its end time.
+     *
+     * @param existingStateFile
+     *            Path/filename of the history-file we are to open
+     * @param expProviderVersion
+     *            The expected version of the state provider
+     * @param nodeCacheSize
+     *            The maximum number of nodes to keep in memory after reading
+     *            them from disk
+     * @param append
+     *            True to append to the tree, false to only read it
+     * @throws IOException
+     *             If an error happens reading the file
+     */
+    public HistoryTree(File existingStateFile, int expProviderVersion, int nodeCacheSize,
+            boolean append) throws IOException {
         /*
          * Open the file ourselves, get the tree header information we need,
          * then pass on the descriptor to the TreeIO object.
@@ -156,8 +211,8 @@ public class HistoryTree {
                 throw new IOException("Wrong magic number"); //$NON-NLS-1$
             }
 
-            res = buffer.getInt(); /* File format version number */
-            if (res != FILE_VERSION) {
+            int fileVersion = buffer.getInt(); /* File format version number */
+            if (fileVersion != FILE_VERSION && fileVersion != LEGACY_FILE_VERSION) {
                 throw new IOException("Mismatching History Tree file format versions"); //$NON-NLS-1$
             }
 
@@ -181,7 +236,8 @@ public class HistoryTree {
             rootNodeSeqNb = buffer.getInt();
             startTime = buffer.getLong();
 
-            this.config = new HTConfig(existingStateFile, bs, maxc, expProviderVersion, startTime);
+            this.config = new HTConfig(existingStateFile, bs, maxc, expProviderVersion,
+                    startTime, nodeCacheSize, fileVersion);
         }
 
         /*
@@ -189,7 +245,12 @@ public class HistoryTree {
          * file, not extremely elegant. But how to pass the information here to
          * the SHT otherwise?
          */
-        this.treeIO = new HT_IO(config, false);
+        this.treeIO = new HT_IO(config, false, append);
+
+        /* The tree is complete, so its nodes can be read from a mapping */
+        if (!append) {
+            treeIO.mapNodeSection(nodeCount);
+        }
 
         this.latestBranch = buildLatestBranch(rootNodeSeqNb);
         this.treeEnd = getRootNode().getNodeEnd();
@@ -202,6 +263,32 @@ public class HistoryTree {
             throw new IOException("Inconsistent start times in the" + //$NON-NLS-1$
                     "history file, it might be corrupted."); //$NON-NLS-1$
         }
+
+        if (append) {
+            /* Continue filling the latest branch, where it was closed */
+            for (HTNode node : latestBranch) {
+                node.reopen();
+            }
+            appendPending = true;
+        }
+    }
+
+    /**
+     * Discard the end of the file of a tree opened to append to it, before the
+     * first node is written. Nodes may then be written over what was there.
+     */
+    private void startAppending() {
+        synchronized (latestBranch) {
+            if (!appendPending) {
+                return;
+            }
+            try {
+                treeIO.truncateAfterNodes(nodeCount);
+            } catch (IOException e) {
+                throw new RuntimeException("State system write error", e); //$NON-NLS-1$
+            }
+            appendPending = false;
+        }
     }
 
     /**
@@ -240,6 +327,8 @@ public class HistoryTree {
     public void closeTree(long requestedEndTime) {
         /* This is an important operation, queries can wait */
         synchronized (latestBranch) {
+            startAppending();
+
             /*
              * Work-around the "empty branches" that get created when the root
              * node becomes full. Overwrite the tree's end time with the
@@ -256,6 +345,9 @@ public class HistoryTree {
                 treeIO.writeNode(latestBranch.get(i));
             }
 
+            /* All the nodes must be on disk before we write the header */
+            treeIO.finishWriting();
+
             try (FileChannel fc = treeIO.getFcOut();) {
                 ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE);
                 buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -266,7 +358,7 @@ public class HistoryTree {
 
                 buffer.putInt(HISTORY_FILE_MAGIC_NUMBER);
 
-                buffer.putInt(FILE_VERSION);
+                buffer.putInt(config.getFileVersion());
                 buffer.putInt(config.getProviderVersion());
 
                 buffer.putInt(config.getBlockSize());
@@ -292,6 +384,9 @@ public class HistoryTree {
                  */
                 throw new RuntimeException("State system write error"); //$NON-NLS-1$
             }
+
+            /* No more nodes will be written, queries can now use the mapping */
+            treeIO.mapNodeSection(nodeCount);
         }
     }
 
@@ -326,6 +421,33 @@ public class HistoryTree {
         return nodeCount;
     }
 
+    /**
+     * Get the number of node reads that were served from the node cache.
+     *
+     * @return The number of cache hits
+     */
+    public long getNodeCacheHits() {
+        return treeIO.getNodeCache().getHits();
+    }
+
+    /**
+     * Get the number of node reads that had to go to the file.
+     *
+     * @return The number of cache misses
+     */
+    public long getNodeCacheMisses() {
+        return treeIO.getNodeCache().getMisses();
+    }
+
+    /**
+     * Get the number of nodes that were evicted from the node cache.
+     *
+     * @return The number of cache evictions
+     */
+    public long getNodeCacheEvictions() {
+        return treeIO.getNodeCache().getEvictions();
+    }
+
     /**
      * Get the current root node of this tree
      *
@@ -370,6 +492,16 @@ public class HistoryTree {
                 + ((long) getNodeCount() * config.getBlockSize());
     }
 
+    /**
+     * Check if the nodes are read from a memory mapping of the file, which is
+     * the case once the tree is complete.
+     *
+     * @return If the nodes of the file are mapped
+     */
+    public boolean isMapped() {
+        return treeIO.isMapped();
+    }
+
     /**
      * Read a node from the tree.
      *
@@ -433,6 +565,9 @@ public class HistoryTree {
         if (interval.getStartTime() < config.getTreeStart()) {
             throw new TimeRangeException("Interval Start:" + interval.getStartTime() + ", Config Start:" + config.getTreeStart()); //$NON-NLS-1$ //$NON-NLS-2$
         }
+        if (appendPending) {
+            startAppending();
+        }
         tryInsertAtNode(interval, latestBranch.size() - 1);
     }
 
@@ -449,7 +584,7 @@ public class HistoryTree {
         HTNode targetNode = latestBranch.get(indexOfNode);
 
         /* Verify if there is enough room in this node to store this interval */
-        if (interval.getIntervalSize() > targetNode.getNodeFreeSpace()) {
+        if (targetNode.getSizeInNode(interval) > targetNode.getNodeFreeSpace()) {
             /* Nope, not enough room. Insert in a new sibling instead. */
             addSiblingNode(indexOfNode);
             tryInsertAtNode(interval, latestBranch.size() - 1);
@@ -664,6 +799,45 @@ public class HistoryTree {
         return readNode(potentialNextSeqNb);
     }
 
+    /**
+     * Inner method to select all the children of the current node that contain
+     * at least one sampling point of the grid. Useful for moving down the tree
+     * when doing range queries: the sub-trees in between two sampling points
+     * do not need to be read at all.
+     *
+     * @param currentNode
+     *            The node on which the request is made
+     * @param grid
+     *            The sampling points of the query
+     * @return The selected child nodes, in time order
+     * @throws ClosedChannelException
+     *             If the file channel was closed while we were reading the tree
+     */
+    public List<HTNode> selectNextChildren(CoreNode currentNode, ResolutionGrid grid) throws ClosedChannelException {
+        List<HTNode> childrenList = new ArrayList<>();
+        int nbChildren = currentNode.getNbChildren();
+
+        for (int i = 0; i < nbChildren; i++) {
+            long childStart = currentNode.getChildStart(i);
+            if (childStart > grid.getEnd()) {
+                /* This child and the following ones start after the range */
+                break;
+            }
+            /* A child ends right before the start of the next one */
+            long childEnd = (i + 1 < nbChildren ? currentNode.getChildStart(i + 1) - 1 : Long.MAX_VALUE);
+            if (!grid.intersects(childStart, childEnd)) {
+                continue;
+            }
+            int childSeqNb = currentNode.getChild(i);
+            if (currentNode.isOnDisk()) {
+                childrenList.add(treeIO.readNode(childSeqNb));
+            } else {
+                childrenList.add(readNode(childSeqNb));
+            }
+        }
+        return childrenList;
+    }
+
     /**
      * Get the current size of the history file.
      *
@@ -779,6 +953,10 @@ public class HistoryTree {
                 + config.getMaxChildren() + "\n" + "Number of nodes: " + nodeCount
                 + "\n" + "Depth of the tree: " + latestBranch.size() + "\n"
                 + "Size of the treefile: " + this.getFileSize() + "\n"
+                + "Node cache size: " + config.getNodeCacheSize()
+                + " (hits: " + getNodeCacheHits()
+                + ", misses: " + getNodeCacheMisses()
+                + ", evictions: " + getNodeCacheEvictions() + ")\n"
                 + "Root node has sequence number: "
                 + latestBranch.get(0).getSequenceNumber() + "\n"
                 + "'Latest leaf' has sequence number: "
@@ -20,15 +20,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ResolutionGrid;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.CoreNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
-import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend2D;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
@@ -41,7 +47,7 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
  *
  * @author Alexandre Montplaisir
  */
-public class HistoryTreeBackend implements IStateHistoryBackend {
+public class HistoryTreeBackend implements IStateHistoryBackend2D {
 
     private final @NonNull String ssid;
 
@@ -148,9 +154,56 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
      */
     public HistoryTreeBackend(@NonNull String ssid, File existingStateFile, int providerVersion)
             throws IOException {
+        this(ssid, existingStateFile, providerVersion, HTConfig.DEFAULT_NODE_CACHE_SIZE);
+    }
+
+    /**
+     * Existing history constructor, specifying how many nodes to keep in
+     * memory once read from the file.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param existingStateFile
+     *            Filename/location of the history we want to load
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param nodeCacheSize
+     *            The maximum number of nodes kept in the node cache
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
+     */
+    public HistoryTreeBackend(@NonNull String ssid, File existingStateFile, int providerVersion,
+            int nodeCacheSize) throws IOException {
+        this(ssid, existingStateFile, providerVersion, nodeCacheSize, false);
+    }
+
+    /**
+     * Existing history constructor, which can also reopen the history to
+     * continue building it after its end time. The state system must then
+     * resume from the ongoing state saved with the history.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param existingStateFile
+     *            Filename/location of the history we want to load
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param nodeCacheSize
+     *            The maximum number of nodes kept in the node cache
+     * @param append
+     *            True to continue building the history, false to only read it
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
+     */
+    public HistoryTreeBackend(@NonNull String ssid, File existingStateFile, int providerVersion,
+            int nodeCacheSize, boolean append) throws IOException {
         this.ssid = ssid;
-        sht = new HistoryTree(existingStateFile, providerVersion);
-        fFinishedBuilding = true;
+        sht = new HistoryTree(existingStateFile, providerVersion, nodeCacheSize, append);
+        fFinishedBuilding = !append;
     }
 
     /**
@@ -259,6 +312,53 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return getRelevantInterval(t, attributeQuark);
     }
 
+    @Override
+    public final Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2)
+            throws TimeRangeException, StateSystemDisposedException {
+        /* Every timestamp of the range is a sampling point */
+        return doQuery2D(quarks, t1, t2, 1);
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (t1 > t2 || resolution <= 0) {
+            throw new TimeRangeException(ssid + " Start:" + t1 + ", End:" + t2 + ", Resolution:" + resolution); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        List<ITmfStateInterval> results = new ArrayList<>();
+        long start = Math.max(t1, sht.getTreeStart());
+        long end = Math.min(t2, sht.getTreeEnd());
+        if (quarks.isEmpty() || start > end) {
+            return results;
+        }
+        /* The sampling points stay aligned on the requested start time */
+        ResolutionGrid grid = new ResolutionGrid(t1, end, resolution);
+
+        BitSet quarkSet = new BitSet();
+        for (Integer quark : quarks) {
+            quarkSet.set(quark);
+        }
+
+        /*
+         * Visit every node containing a sampling point only once, collecting
+         * the intervals of all the requested attributes at the same time.
+         */
+        Deque<HTNode> queue = new ArrayDeque<>();
+        queue.add(sht.getRootNode());
+        try {
+            while (!queue.isEmpty()) {
+                HTNode currentNode = queue.removeFirst();
+                currentNode.writeIntervalsFromNode(results, quarkSet, grid);
+                if (currentNode.getNodeType() == HTNode.NodeType.CORE) {
+                    queue.addAll(sht.selectNextChildren((CoreNode) currentNode, grid));
+                }
+            }
+        } catch (ClosedChannelException e) {
+            throw new StateSystemDisposedException(e);
+        }
+        return results;
+    }
+
     private void checkValidTime(long t) {
         long treeStart = sht.getTreeStart();
         long treeEnd = sht.getTreeEnd();
@@ -302,6 +402,35 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return sht.getFileSize();
     }
 
+    /**
+     * Return the number of node reads of this state system's history that
+     * were served from the node cache
+     *
+     * @return The number of node cache hits
+     */
+    public long getNodeCacheHits() {
+        return sht.getNodeCacheHits();
+    }
+
+    /**
+     * Return the number of node reads of this state system's history that had
+     * to decode the node from the file
+     *
+     * @return The number of node cache misses
+     */
+    public long getNodeCacheMisses() {
+        return sht.getNodeCacheMisses();
+    }
+
+    /**
+     * Return the number of nodes evicted from this state system's node cache
+     *
+     * @return The number of node cache evictions
+     */
+    public long getNodeCacheEvictions() {
+        return sht.getNodeCacheEvictions();
+    }
+
     /**
      * Return the average node usage as a percentage (between 0 and 100)
      *
@@ -16,10 +16,17 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.common.core.collect.BufferedBlockingQueue;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ResolutionGrid;
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
@@ -116,13 +123,37 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
         shtThread.start();
     }
 
-    /*
-     * The Threaded version does not specify an "existing file" constructor,
-     * since the history is already built (and we only use the other thread
-     * during building). Just use a plain HistoryTreeProvider in this case.
+    /**
+     * Existing history constructor, to continue building a history that was
+     * closed, for example because its trace has grown since. To only read an
+     * existing history, use a plain {@link HistoryTreeBackend} instead, since
+     * the other thread is only used during building.
      *
-     * TODO but what about streaming??
+     * @param ssid
+     *            The state system's id
+     * @param existingStateFile
+     *            Filename/location of the history to continue
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param queueSize
+     *            The size of the interval insertion queue. 2000 - 10000 usually
+     *            works well
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
      */
+    public ThreadedHistoryTreeBackend(@NonNull String ssid,
+            File existingStateFile,
+            int providerVersion,
+            int queueSize)
+                    throws IOException {
+        super(ssid, existingStateFile, providerVersion, HTConfig.DEFAULT_NODE_CACHE_SIZE, true);
+
+        intervalQueue = new BufferedBlockingQueue<>(queueSize / CHUNK_SIZE, CHUNK_SIZE);
+        shtThread = new Thread(this, "History Tree Thread"); //$NON-NLS-1$
+        shtThread.start();
+    }
 
     @Override
     public void insertPastState(long stateStartTime, long stateEndTime,
@@ -275,4 +306,47 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
         return super.doSingularQuery(t, attributeQuark);
     }
 
+    @Override
+    public Iterable<ITmfStateInterval> doQuery2D(Collection<Integer> quarks, long t1, long t2, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (isFinishedBuilding()) {
+            return super.doQuery2D(quarks, t1, t2, resolution);
+        }
+        if (t1 > t2 || resolution <= 0) {
+            throw new TimeRangeException(getSSID() + " Start:" + t1 + ", End:" + t2 + ", Resolution:" + resolution); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        ResolutionGrid grid = new ResolutionGrid(t1, t2, resolution);
+
+        /*
+         * Look in the queue first, then in the tree. Any interval that left
+         * the queue after we looked at it will then be found in the tree, so
+         * we only have to make sure not to return it twice. An attribute
+         * cannot have two intervals with the same start time.
+         */
+        Set<Integer> quarkSet = new HashSet<>(quarks);
+        Map<Integer, Set<Long>> queuedStarts = new HashMap<>();
+        List<ITmfStateInterval> results = new ArrayList<>();
+        for (ITmfStateInterval interval : intervalQueue) {
+            Integer quark = interval.getAttribute();
+            if (quarkSet.contains(quark) &&
+                    grid.intersects(interval.getStartTime(), interval.getEndTime())) {
+                results.add(interval);
+                Set<Long> starts = queuedStarts.get(quark);
+                if (starts == null) {
+                    starts = new HashSet<>();
+                    queuedStarts.put(quark, starts);
+                }
+                starts.add(interval.getStartTime());
+            }
+        }
+
+        for (ITmfStateInterval interval : super.doQuery2D(quarks, t1, t2, resolution)) {
+            Set<Long> starts = queuedStarts.get(interval.getAttribute());
+            if (starts == null || !starts.contains(interval.getStartTime())) {
+                results.add(interval);
+            }
+        }
+        return results;
+    }
+
 }
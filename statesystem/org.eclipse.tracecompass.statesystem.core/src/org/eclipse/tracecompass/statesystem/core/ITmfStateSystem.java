@@ -12,6 +12,7 @@
 
 package org.eclipse.tracecompass.statesystem.core;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -330,6 +331,32 @@ public interface ITmfStateSystem {
     @NonNull List<ITmfStateInterval> queryFullState(long t)
             throws StateSystemDisposedException;
 
+    /**
+     * Load the complete state information at time 't' into a list provided by
+     * the caller, instead of a new one. Callers doing many full queries can
+     * use the same list for all of them, and avoid allocating a list of the
+     * size of the attribute tree each time.
+     *
+     * The previous contents of the list are discarded, and its size is set to
+     * the current number of attributes. Full queries can be run from many
+     * threads at the same time, as long as each one uses its own list.
+     *
+     * @param t
+     *            We will recreate the state information to what it was at time
+     *            t.
+     * @param reuse
+     *            The list in which to put the intervals
+     * @return The 'reuse' list, where the offset = the quark
+     * @throws TimeRangeException
+     *             If the 't' parameter is outside of the range of the state
+     *             history.
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been disposed
+     * @since 1.1
+     */
+    @NonNull List<ITmfStateInterval> queryFullState(long t, @NonNull List<ITmfStateInterval> reuse)
+            throws StateSystemDisposedException;
+
     /**
      * Singular query method. This one does not update the whole stateInfo
      * vector, like queryFullState() does. It only searches for one specific
@@ -354,4 +381,70 @@ public interface ITmfStateSystem {
      */
     @NonNull ITmfStateInterval querySingleState(long t, int attributeQuark)
             throws AttributeNotFoundException, StateSystemDisposedException;
+
+    /**
+     * Two-dimensional query method. It returns all the state intervals of the
+     * given attributes that intersect the time range [start, end].
+     *
+     * This is much faster than calling
+     * {@link StateSystemUtils#queryHistoryRange} once per attribute, since the
+     * state history is only walked through once for all the attributes.
+     *
+     * The returned intervals are not sorted. If you need them in time order,
+     * sort them afterwards, for example by attribute, then by start time.
+     *
+     * @param quarks
+     *            The quarks of the attributes we want the history of
+     * @param start
+     *            The start of the time range. It will be clamped to the start
+     *            time of the state system.
+     * @param end
+     *            The end of the time range. It will be clamped to the current
+     *            end time of the state system.
+     * @return The state intervals intersecting the time range, for all the
+     *         requested attributes
+     * @throws TimeRangeException
+     *             If 'start' is greater than 'end'
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been disposed
+     * @since 1.1
+     */
+    @NonNull Iterable<ITmfStateInterval> query2D(@NonNull Collection<Integer> quarks, long start, long end)
+            throws StateSystemDisposedException;
+
+    /**
+     * Sampled two-dimensional query method, for views that cannot display
+     * more than one state per pixel. It returns the state intervals of the
+     * given attributes that contain at least one of the timestamps start,
+     * start + resolution, start + 2 * resolution, etc., up to end, with end
+     * always included.
+     *
+     * The result is the same as doing a
+     * {@link #querySingleState(long, int)} at each of those timestamps, but
+     * the parts of the history that fall in between two of them are not read
+     * at all. When zoomed out on a large trace, this is a lot faster than
+     * {@link #query2D(Collection, long, long)}.
+     *
+     * @param quarks
+     *            The quarks of the attributes we want the history of
+     * @param start
+     *            The start of the time range, which is also the first sampling
+     *            point
+     * @param end
+     *            The end of the time range. It will be clamped to the current
+     *            end time of the state system.
+     * @param resolution
+     *            The distance between two sampling points, typically the
+     *            duration represented by one pixel. Must be positive.
+     * @return The state intervals containing a sampling point, for all the
+     *         requested attributes
+     * @throws TimeRangeException
+     *             If 'start' is greater than 'end', or if the resolution is
+     *             not positive
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been disposed
+     * @since 1.1
+     */
+    @NonNull Iterable<ITmfStateInterval> query2D(@NonNull Collection<Integer> quarks, long start, long end, long resolution)
+            throws StateSystemDisposedException;
 }
\ No newline at end of file
@@ -82,6 +82,22 @@ public interface ITmfStateSystemBuilder extends ITmfStateSystem {
      */
     int getQuarkRelativeAndAdd(int startingNodeQuark, String... subPath);
 
+    /**
+     * Batched version of {@link #getQuarkRelativeAndAdd(int, String...)}, to
+     * resolve several paths relative to the same attribute in one call. The
+     * attributes that do not exist yet are created in the order of the paths,
+     * as if {@link #getQuarkRelativeAndAdd(int, String...)} was called for each
+     * path.
+     *
+     * @param startingNodeQuark
+     *            The quark of the attribute from which the paths originate.
+     * @param subPaths
+     *            The paths to the attributes, relative to the starting node
+     * @return The matching quarks, in the same order as the paths
+     * @since 1.1
+     */
+    int[] getQuarksRelativeAndAdd(int startingNodeQuark, String[]... subPaths);
+
     /**
      * @name State-changing methods
      */
@@ -64,4 +64,23 @@ public final class StateSystemFactory {
         return new StateSystem(backend, newFile);
     }
 
+    /**
+     * Resume factory method. Continue building an existing history after its
+     * end time, from the state it was in when it was closed. Only histories
+     * saved with their ongoing state can be resumed.
+     *
+     * @param backend
+     *            The back-end of the existing history, opened to continue
+     *            building it, for example with
+     *            {@link org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory#createHistoryTreeBackendResumeFile}
+     * @return The state system, which has to be closed again once the new
+     *         states are inserted
+     * @throws IOException
+     *             If the history cannot be read or resumed
+     * @since 1.1
+     */
+    public static ITmfStateSystemBuilder resumeStateSystem(IStateHistoryBackend backend) throws IOException {
+        return new StateSystem(backend, false, true);
+    }
+
 }
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.backend;
+
+import java.util.Collection;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+
+/**
+ * State history back-end which can run two-dimensional queries, returning the
+ * intervals of several attributes over a time range in a single pass over its
+ * storage.
+ *
+ * The state system runs two-dimensional queries on other back-ends with one
+ * singular query per attribute and per interval.
+ *
+ * @since 1.1
+ */
+public interface IStateHistoryBackend2D extends IStateHistoryBackend {
+
+    /**
+     * Two-dimensional query: get all the intervals of the given attributes
+     * that intersect the time range [t1, t2]. Back-ends should try to do this
+     * in a single pass over their storage, instead of one pass per attribute.
+     *
+     * The returned intervals are not sorted in any particular order. The time
+     * range is clamped to the range of the history.
+     *
+     * @param quarks
+     *            The quarks of the attributes to query
+     * @param t1
+     *            The start of the time range
+     * @param t2
+     *            The end of the time range
+     * @return The intervals intersecting the range, for all the requested
+     *         attributes
+     * @throws TimeRangeException
+     *             If t1 is greater than t2
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed while a request is ongoing.
+     */
+    @NonNull Iterable<ITmfStateInterval> doQuery2D(@NonNull Collection<Integer> quarks, long t1, long t2)
+            throws TimeRangeException, StateSystemDisposedException;
+
+    /**
+     * Sampled two-dimensional query: get the intervals of the given attributes
+     * that contain at least one of the sampling points t1, t1 + resolution, t1
+     * + 2 * resolution, ..., up to t2, where t2 itself is always a sampling
+     * point. This returns the same intervals as doing a singular query at each
+     * of those points, so at most one interval per attribute per sampling
+     * step, but back-ends should avoid reading the parts of their storage that
+     * lie entirely in between two sampling points.
+     *
+     * A resolution of 1 is equivalent to
+     * {@link #doQuery2D(Collection, long, long)}.
+     *
+     * @param quarks
+     *            The quarks of the attributes to query
+     * @param t1
+     *            The start of the time range, and first sampling point
+     * @param t2
+     *            The end of the time range
+     * @param resolution
+     *            The distance between two sampling points, must be positive
+     * @return The intervals containing a sampling point, for all the requested
+     *         attributes
+     * @throws TimeRangeException
+     *             If t1 is greater than t2, or if the resolution is not
+     *             positive
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed while a request is ongoing.
+     */
+    @NonNull Iterable<ITmfStateInterval> doQuery2D(@NonNull Collection<Integer> quarks, long t1, long t2, long resolution)
+            throws TimeRangeException, StateSystemDisposedException;
+}
@@ -18,6 +18,8 @@ import java.io.IOException;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.InMemoryBackend;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.NullBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.OffHeapInMemoryBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
 
@@ -59,6 +61,23 @@ public final class StateHistoryBackendFactory {
         return new InMemoryBackend(ssid, startTime);
     }
 
+    /**
+     * Create a new in-memory backend that stores its intervals outside of the
+     * Java heap, indexed by attribute. Unlike
+     * {@link #createInMemoryBackend(String, long)}, it can hold large histories,
+     * and its queries do not get slower with the number of attributes.
+     *
+     * @param ssid
+     *            The ID for this state system
+     * @param startTime
+     *            The start time of the state system and backend
+     * @return The state system backend
+     * @since 1.1
+     */
+    public static IStateHistoryBackend createOffHeapInMemoryBackend(String ssid, long startTime) {
+        return new OffHeapInMemoryBackend(ssid, startTime);
+    }
+
     /**
      * Create a new backend using a History Tree. This backend stores all its
      * intervals on disk.
@@ -115,4 +134,35 @@ public final class StateHistoryBackendFactory {
             int providerVersion) throws IOException {
         return new HistoryTreeBackend(ssid, stateFile, providerVersion);
     }
+
+    /**
+     * Create a new History Tree backend, which continues building the history
+     * of an existing file, after its end time. This is used when the trace has
+     * grown since the history was built. The state system must be created with
+     * {@link org.eclipse.tracecompass.statesystem.core.StateSystemFactory#resumeStateSystem}.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            Filename/location of the history to continue
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param queueSize
+     *            The size of the interval insertion queue between the receiver
+     *            and writer threads. If 0 is specified, no queue is used and the
+     *            writes happen in the same thread.
+     * @return The state system backend
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
+     * @since 1.1
+     */
+    public static IStateHistoryBackend createHistoryTreeBackendResumeFile(String ssid, File stateFile,
+            int providerVersion, int queueSize) throws IOException {
+        if (queueSize > 0) {
+            return new ThreadedHistoryTreeBackend(ssid, stateFile, providerVersion, queueSize);
+        }
+        return new HistoryTreeBackend(ssid, stateFile, providerVersion, HTConfig.DEFAULT_NODE_CACHE_SIZE, true);
+    }
 }
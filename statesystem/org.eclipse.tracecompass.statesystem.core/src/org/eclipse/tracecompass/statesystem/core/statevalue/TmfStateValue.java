@@ -37,10 +37,27 @@ public abstract class TmfStateValue implements ITmfStateValue {
     private static final int INT_CACHE_SIZE = 128;
     private static final int LONG_CACHE_SIZE = 128;
     private static final int DOUBLE_CACHE_SIZE = 128;
+    private static final int STRING_CACHE_SIZE = 1024;
 
     private static final IntegerStateValue intCache[] = new IntegerStateValue[INT_CACHE_SIZE];
     private static final LongStateValue longCache[] = new LongStateValue[LONG_CACHE_SIZE];
     private static final DoubleStateValue doubleCache[] = new DoubleStateValue[DOUBLE_CACHE_SIZE];
+    private static final StringStateValue stringCache[] = new StringStateValue[STRING_CACHE_SIZE];
+
+    /*
+     * Small integers (statuses, CPU numbers, priorities...) are so common that
+     * they are always kept, so that other values can't evict them from the
+     * cache above.
+     */
+    private static final int SMALL_INT_MIN = -128;
+    private static final int SMALL_INT_MAX = 1023;
+    private static final IntegerStateValue smallInts[] = new IntegerStateValue[SMALL_INT_MAX - SMALL_INT_MIN + 1];
+
+    static {
+        for (int i = 0; i < smallInts.length; i++) {
+            smallInts[i] = new IntegerStateValue(i + SMALL_INT_MIN);
+        }
+    }
 
     // ------------------------------------------------------------------------
     // Factory methods to instantiate new state values
@@ -69,6 +86,10 @@ public abstract class TmfStateValue implements ITmfStateValue {
      * @return The newly-created TmfStateValue object
      */
     public static TmfStateValue newValueInt(int intValue) {
+        if (intValue >= SMALL_INT_MIN && intValue <= SMALL_INT_MAX) {
+            return smallInts[intValue - SMALL_INT_MIN];
+        }
+
         /* Lookup in cache for the existence of the same value. */
         int offset = intValue & (INT_CACHE_SIZE - 1);
         IntegerStateValue cached = intCache[offset];
@@ -140,17 +161,33 @@ public abstract class TmfStateValue implements ITmfStateValue {
         if (strValue == null) {
             return nullValue();
         }
+
+        /*
+         * The same strings (process names, system call names...) come back
+         * all the time, so share the values. Strings in the cache have already
+         * been checked.
+         */
+        int offset = strValue.hashCode() & (STRING_CACHE_SIZE - 1);
+        StringStateValue cached = stringCache[offset];
+        if (cached != null && cached.unboxStr().equals(strValue)) {
+            return cached;
+        }
+
         /*
          * Make sure the String does not contain "weird" things, like ISO
          * control characters.
          */
-        for (char c : strValue.toCharArray()) {
-            if (Character.isISOControl(c)) {
+        for (int i = 0; i < strValue.length(); i++) {
+            if (Character.isISOControl(strValue.charAt(i))) {
                 Activator.getDefault().logError("Trying to use invalid string: " + strValue); //$NON-NLS-1$
                 throw new IllegalArgumentException();
             }
         }
-        return new StringStateValue(strValue);
+
+        /* Not in cache, create a new value and cache it. */
+        StringStateValue newValue = new StringStateValue(strValue);
+        stringCache[offset] = newValue;
+        return newValue;
     }
 
     // ------------------------------------------------------------------------
@@ -21,6 +21,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     ExperimentStateSystemModuleTest.class,
+    PartialHistoryBackendTest.class,
+    PartialStateSystemTest.class,
+    ShardedHistoryBuilderTest.class,
     StateSystemAnalysisModuleTest.class
 })
 public class AllTests {
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.statesystem;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialHistoryBackend;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.statesystem.AbstractTmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.statesystem.ITmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.tests.shared.TmfTestTrace;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+/**
+ * Test the queries of a partial history, which rebuild the state from the
+ * closest checkpoint or recent query
+ */
+public class PartialHistoryBackendTest {
+
+    /** Time-out tests after 60 seconds */
+    @Rule
+    public TestRule globalTimeout = new Timeout(60, TimeUnit.SECONDS);
+
+    private static final @NonNull String SSID = "test-ss";
+    private static final long GRANULARITY = 100;
+    /* The events of the test trace are one millisecond apart */
+    private static final long MS = 1000000L;
+    private static final int NB_EVENTS = 10000;
+
+    private ITmfTrace fTrace;
+    private final AtomicInteger fNbHandled = new AtomicInteger();
+    private StateSystem fSs;
+    private int fQuark;
+
+    /**
+     * State provider which counts the events
+     */
+    private static class CountStateProvider extends AbstractTmfStateProvider {
+
+        private final AtomicInteger fNbHandled;
+
+        public CountStateProvider(@NonNull ITmfTrace trace, AtomicInteger nbHandled) {
+            super(trace, "Count State Provider");
+            fNbHandled = nbHandled;
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public ITmfStateProvider getNewInstance() {
+            return new CountStateProvider(getTrace(), fNbHandled);
+        }
+
+        @Override
+        protected void eventHandle(ITmfEvent event) {
+            ITmfStateSystemBuilder ss = checkNotNull(getStateSystemBuilder());
+            long t = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+            try {
+                int quark = ss.getQuarkAbsoluteAndAdd("Count");
+                ITmfStateValue count = ss.queryOngoingState(quark);
+                int value = (count.isNull() ? 1 : count.unboxInt() + 1);
+                ss.modifyAttribute(t, TmfStateValue.newValueInt(value), quark);
+            } catch (AttributeNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+            fNbHandled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Build the partial history of the test trace
+     *
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    @Before
+    public void setup() throws AttributeNotFoundException {
+        fTrace = TmfTestTrace.A_TEST_10K.getTrace();
+        buildHistory(PartialHistoryBackend.DEFAULT_NB_SNAPSHOTS);
+    }
+
+    private void buildHistory(int nbSnapshots) throws AttributeNotFoundException {
+        ITmfStateProvider provider = new CountStateProvider(fTrace, fNbHandled);
+
+        /* Same order of initializations as TmfStateSystemAnalysisModule */
+        IStateHistoryBackend realBackend = StateHistoryBackendFactory.createInMemoryBackend(SSID, provider.getStartTime());
+        ITmfStateProvider partialProvider = provider.getNewInstance();
+        PartialStateSystem pss = new PartialStateSystem();
+        partialProvider.assignTargetStateSystem(pss);
+        IStateHistoryBackend partialBackend = new PartialHistoryBackend(SSID + ".partial", partialProvider, pss, realBackend, GRANULARITY, nbSnapshots);
+        fSs = (StateSystem) StateSystemFactory.newStateSystem(partialBackend);
+        pss.assignUpstream(fSs);
+        provider.assignTargetStateSystem(fSs);
+
+        ITmfContext context = fTrace.seekEvent(0L);
+        ITmfEvent event = fTrace.getNext(context);
+        while (event != null) {
+            provider.processEvent(event);
+            event = fTrace.getNext(context);
+        }
+        context.dispose();
+        /* Closes the history at the time of the last event */
+        provider.dispose();
+        fSs.waitUntilBuilt();
+        fQuark = fSs.getQuarkAbsolute("Count");
+        fNbHandled.set(0);
+    }
+
+    /**
+     * Dispose the state system and the test trace
+     */
+    @After
+    public void cleanup() {
+        fSs.dispose();
+        TmfTestTrace.A_TEST_10K.dispose();
+    }
+
+    /*
+     * Query the count at a time, and return the number of events which were
+     * handled again to get it
+     */
+    private int queryCount(long t) throws StateSystemDisposedException {
+        int nbHandled = fNbHandled.get();
+        ITmfStateValue value = fSs.queryFullState(t).get(fQuark).getStateValue();
+        assertEquals(TmfStateValue.newValueInt((int) Math.min(NB_EVENTS, t / MS)), value);
+        return fNbHandled.get() - nbHandled;
+    }
+
+    /**
+     * Test that a query starts from the state of a recent query when it is
+     * closer than the checkpoint
+     *
+     * @throws StateSystemDisposedException
+     *             Should not happen
+     */
+    @Test
+    public void testSnapshots() throws StateSystemDisposedException {
+        /* From the checkpoint at the 100th event */
+        assertEquals(50, queryCount(150 * MS + MS / 2));
+        /* From the state of the previous query */
+        assertEquals(10, queryCount(160 * MS + MS / 2));
+        /* The exact state of a previous query */
+        assertEquals(0, queryCount(150 * MS + MS / 2));
+        /* Before all the previous queries, from the checkpoint */
+        assertEquals(20, queryCount(120 * MS + MS / 2));
+        /* The next checkpoint is closer than the previous queries */
+        assertEquals(50, queryCount(250 * MS + MS / 2));
+        /* The closest earlier query, not the most recent one */
+        assertEquals(5, queryCount(165 * MS + MS / 2));
+        /* At a checkpoint, nothing is replayed */
+        assertEquals(0, queryCount(300 * MS));
+    }
+
+    /**
+     * Test that only the states of the most recent queries are kept
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testSnapshotEviction() throws Exception {
+        fSs.dispose();
+        buildHistory(2);
+        assertEquals(50, queryCount(150 * MS + MS / 2));
+        assertEquals(10, queryCount(160 * MS + MS / 2));
+        /* Evicts the state of the first query, used less recently */
+        assertEquals(10, queryCount(170 * MS + MS / 2));
+        assertEquals(55, queryCount(155 * MS + MS / 2));
+        /* Which evicted the state at 160 ms, so this starts from 155 ms */
+        assertEquals(10, queryCount(165 * MS + MS / 2));
+
+        /* Without any state kept */
+        fSs.dispose();
+        buildHistory(0);
+        assertEquals(50, queryCount(150 * MS + MS / 2));
+        assertEquals(60, queryCount(160 * MS + MS / 2));
+        assertEquals(50, queryCount(150 * MS + MS / 2));
+    }
+
+    /**
+     * Test the single and the two-dimensional queries, which are done as full
+     * queries
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testQuery2D() throws Exception {
+        ITmfStateInterval interval = fSs.querySingleState(150 * MS + MS / 2, fQuark);
+        assertEquals(TmfStateValue.newValueInt(150), interval.getStateValue());
+        assertEquals(150 * MS, interval.getStartTime());
+
+        /* One interval per sampling point, which is each in another event */
+        long start = 150 * MS + MS / 2;
+        long end = 250 * MS + MS / 2;
+        List<Long> points = new ArrayList<>();
+        for (ITmfStateInterval result : fSs.query2D(Collections.singleton(fQuark), start, end, 10 * MS)) {
+            assertEquals(fQuark, result.getAttribute());
+            long count = result.getStartTime() / MS;
+            assertEquals(TmfStateValue.newValueInt((int) count), result.getStateValue());
+            assertTrue(result.getEndTime() >= result.getStartTime());
+            assertTrue(result.getEndTime() < result.getStartTime() + MS);
+            points.add(count);
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long count = 150; count <= 250; count += 10) {
+            expected.add(count);
+        }
+        assertEquals(expected, points);
+    }
+
+    /**
+     * Test queries done in parallel, which rebuild their states with several
+     * replay workers
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final Random random = new Random(i);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < 100; n++) {
+                            queryCount(MS + (long) (random.nextDouble() * NB_EVENTS * MS));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.statesystem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialStateSystem;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the partial state system resolves the attributes in the attribute
+ * tree of the real state system, without modifying it
+ */
+public class PartialStateSystemTest {
+
+    private static final @NonNull String SSID = "test-ss";
+
+    private StateSystem fRealSs;
+    private PartialStateSystem fPartialSs;
+
+    /**
+     * Create the real and partial state systems
+     */
+    @Before
+    public void setup() {
+        fRealSs = (StateSystem) StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createNullBackend(SSID));
+        fPartialSs = new PartialStateSystem();
+        fPartialSs.assignUpstream(fRealSs);
+    }
+
+    /**
+     * Dispose the state systems
+     */
+    @After
+    public void cleanup() {
+        fPartialSs.dispose();
+        fRealSs.dispose();
+    }
+
+    /**
+     * Test resolving several paths which exist in the real state system
+     */
+    @Test
+    public void testQuarksRelativeAndAdd() {
+        int threadQuark = fRealSs.getQuarkAbsoluteAndAdd("Threads", "1");
+        int[] expected = fRealSs.getQuarksRelativeAndAdd(threadQuark,
+                new String[] { "Status" },
+                new String[] { "System_call", "Name" });
+        int nbAttributes = fRealSs.getNbAttributes();
+
+        int[] quarks = fPartialSs.getQuarksRelativeAndAdd(threadQuark,
+                new String[] { "Status" },
+                new String[] { "System_call", "Name" });
+        assertArrayEquals(expected, quarks);
+        assertEquals(nbAttributes, fRealSs.getNbAttributes());
+        /* Same as resolving the paths one at a time */
+        assertEquals(expected[1], fPartialSs.getQuarkRelativeAndAdd(threadQuark, "System_call", "Name"));
+    }
+
+    /**
+     * Test that a path which does not exist in the real state system is not
+     * added to it
+     */
+    @Test
+    public void testMissingPath() {
+        int threadQuark = fRealSs.getQuarkAbsoluteAndAdd("Threads", "1");
+        fRealSs.getQuarkRelativeAndAdd(threadQuark, "Status");
+        int nbAttributes = fRealSs.getNbAttributes();
+        try {
+            fPartialSs.getQuarksRelativeAndAdd(threadQuark,
+                    new String[] { "Status" },
+                    new String[] { "Exec_name" });
+            fail();
+        } catch (RuntimeException e) {
+            /* Expected */
+        }
+        assertEquals(nbAttributes, fRealSs.getNbAttributes());
+    }
+}
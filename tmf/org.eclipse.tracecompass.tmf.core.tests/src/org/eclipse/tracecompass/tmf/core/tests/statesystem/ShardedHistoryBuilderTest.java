@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.statesystem;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.sharded.ShardedHistoryBuilder;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.statesystem.AbstractTmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.statesystem.ITmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.tests.shared.TmfTestTrace;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+/**
+ * Test that a history built in time shards is the same as one built
+ * sequentially
+ */
+public class ShardedHistoryBuilderTest {
+
+    /** Time-out tests after 60 seconds */
+    @Rule
+    public TestRule globalTimeout = new Timeout(60, TimeUnit.SECONDS);
+
+    private static final @NonNull String SSID = "test-ss";
+    private static final int NB_SHARDS = 4;
+    /* 100 events of the test trace */
+    private static final long WARMUP = 100000000L;
+
+    private ITmfTrace fTrace;
+    private File fLogPrefix;
+
+    /**
+     * State provider which only writes values taken from the events, so the
+     * warm-up of the shards rebuilds the exact state
+     */
+    private static class TypeStateProvider extends AbstractTmfStateProvider {
+
+        protected final AtomicInteger fNbInstances;
+
+        public TypeStateProvider(@NonNull ITmfTrace trace, AtomicInteger nbInstances) {
+            super(trace, "Type State Provider");
+            fNbInstances = nbInstances;
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public ITmfStateProvider getNewInstance() {
+            fNbInstances.incrementAndGet();
+            return new TypeStateProvider(getTrace(), fNbInstances);
+        }
+
+        @Override
+        protected void eventHandle(ITmfEvent event) {
+            ITmfStateSystemBuilder ss = checkNotNull(getStateSystemBuilder());
+            long t = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+            String type = event.getType().getName();
+            try {
+                int quark = ss.getQuarkAbsoluteAndAdd("Types", type);
+                ss.modifyAttribute(t, TmfStateValue.newValueLong(t), quark);
+                quark = ss.getQuarkAbsoluteAndAdd("Last");
+                ss.modifyAttribute(t, TmfStateValue.newValueString(type), quark);
+            } catch (AttributeNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * State provider which counts the events, so the state rebuilt by the
+     * warm-up of the shards is always wrong
+     */
+    private static class CountStateProvider extends TypeStateProvider {
+
+        public CountStateProvider(@NonNull ITmfTrace trace, AtomicInteger nbInstances) {
+            super(trace, nbInstances);
+        }
+
+        @Override
+        public ITmfStateProvider getNewInstance() {
+            fNbInstances.incrementAndGet();
+            return new CountStateProvider(getTrace(), fNbInstances);
+        }
+
+        @Override
+        protected void eventHandle(ITmfEvent event) {
+            super.eventHandle(event);
+            ITmfStateSystemBuilder ss = checkNotNull(getStateSystemBuilder());
+            long t = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+            try {
+                int quark = ss.getQuarkAbsoluteAndAdd("Count");
+                ITmfStateValue count = ss.queryOngoingState(quark);
+                int value = (count.isNull() ? 1 : count.unboxInt() + 1);
+                ss.modifyAttribute(t, TmfStateValue.newValueInt(value), quark);
+            } catch (AttributeNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Open the test trace
+     *
+     * @throws IOException
+     *             If the log files cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fTrace = TmfTestTrace.A_TEST_10K.getTrace();
+        fLogPrefix = File.createTempFile("sharded", ".ht");
+    }
+
+    /**
+     * Dispose the test trace
+     */
+    @After
+    public void cleanup() {
+        TmfTestTrace.A_TEST_10K.dispose();
+        fLogPrefix.delete();
+    }
+
+    private long getStartTime() {
+        return fTrace.getStartTime().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+    }
+
+    private long getEndTime() {
+        return fTrace.getEndTime().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+    }
+
+    private ITmfStateSystemBuilder buildSequential(ITmfStateProvider provider) {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, getStartTime()));
+        provider.assignTargetStateSystem(ss);
+        ITmfContext context = fTrace.seekEvent(0L);
+        ITmfEvent event = fTrace.getNext(context);
+        while (event != null) {
+            provider.processEvent(event);
+            event = fTrace.getNext(context);
+        }
+        context.dispose();
+        /* Closes the history at the time of the last event */
+        provider.dispose();
+        return ss;
+    }
+
+    private ITmfStateSystemBuilder buildSharded(ITmfStateProvider provider) throws IOException {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, getStartTime()));
+        ShardedHistoryBuilder builder = new ShardedHistoryBuilder(SSID, provider, ss,
+                fLogPrefix.getPath(), getStartTime(), getEndTime(), NB_SHARDS, WARMUP);
+        assertEquals(-1, builder.build());
+        return ss;
+    }
+
+    private static void assertSameHistory(ITmfStateSystem expected, ITmfStateSystem actual)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        assertEquals(expected.getNbAttributes(), actual.getNbAttributes());
+        assertEquals(expected.getStartTime(), actual.getStartTime());
+        assertEquals(expected.getCurrentEndTime(), actual.getCurrentEndTime());
+        for (int quark = 0; quark < expected.getNbAttributes(); quark++) {
+            /* The attributes may be created in a different order */
+            int actualQuark = actual.getQuarkAbsolute(expected.getFullAttributePathArray(quark));
+            long t = expected.getStartTime();
+            while (t <= expected.getCurrentEndTime()) {
+                ITmfStateInterval interval = expected.querySingleState(t, quark);
+                ITmfStateInterval actualInterval = actual.querySingleState(t, actualQuark);
+                String message = expected.getFullAttributePath(quark) + " at " + t;
+                assertEquals(message, interval.getStartTime(), actualInterval.getStartTime());
+                assertEquals(message, interval.getEndTime(), actualInterval.getEndTime());
+                assertEquals(message, interval.getStateValue(), actualInterval.getStateValue());
+                t = interval.getEndTime() + 1;
+            }
+        }
+    }
+
+    /**
+     * Test a provider for which the warm-up of the shards is enough
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testShardedBuild() throws Exception {
+        AtomicInteger nbInstances = new AtomicInteger();
+        ITmfStateSystemBuilder expected = buildSequential(new TypeStateProvider(fTrace, nbInstances));
+        ITmfStateSystemBuilder actual = buildSharded(new TypeStateProvider(fTrace, nbInstances));
+        /* No shard was built again */
+        assertEquals(NB_SHARDS, nbInstances.get());
+        assertSameHistory(expected, actual);
+        expected.dispose();
+        actual.dispose();
+    }
+
+    /**
+     * Test a provider which reads back a value it wrote during the warm-up,
+     * which must be found inconsistent with the real state, so the shards are
+     * built again from the real state
+     *
+     * @throws Exception
+     *             Should not happen
+     */
+    @Test
+    public void testRebuiltShards() throws Exception {
+        AtomicInteger nbInstances = new AtomicInteger();
+        ITmfStateSystemBuilder expected = buildSequential(new CountStateProvider(fTrace, nbInstances));
+        ITmfStateSystemBuilder actual = buildSharded(new CountStateProvider(fTrace, nbInstances));
+        /* All the shards but the first one were built again */
+        assertEquals(NB_SHARDS + NB_SHARDS - 1, nbInstances.get());
+        assertSameHistory(expected, actual);
+        expected.dispose();
+        actual.dispose();
+    }
+}
@@ -23,6 +23,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     TmfContextTest.class,
+    TmfExperimentContextTest.class,
     TmfExperimentTest.class,
     TmfExperimentUtilsTest.class,
     TmfMultiTraceExperimentTest.class,
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.trace;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfExperimentContext;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.event.TmfEvent;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
+import org.junit.Test;
+
+/**
+ * Test the ordering of the current events of the traces of an experiment
+ * context
+ */
+public class TmfExperimentContextTest {
+
+    private static ITmfEvent createEvent(long value, int scale) {
+        return createEvent(new TmfTimestamp(value, scale));
+    }
+
+    private static ITmfEvent createEvent(ITmfTimestamp timestamp) {
+        return new TmfEvent(null, ITmfContext.UNKNOWN_RANK, timestamp, null, null);
+    }
+
+    /* Consume the events in order and check the traces they come from */
+    private static void checkOrder(TmfExperimentContext context, int... traces) {
+        for (int trace : traces) {
+            assertEquals(trace, context.getNextTrace());
+            context.setEvent(trace, null);
+        }
+        assertEquals(TmfExperimentContext.NO_TRACE, context.getNextTrace());
+    }
+
+    /**
+     * Test that the events are ordered by their time, whatever the scale of
+     * their timestamp
+     */
+    @Test
+    public void testMixedScales() {
+        TmfExperimentContext context = new TmfExperimentContext(5);
+        assertEquals(TmfExperimentContext.NO_TRACE, context.getNextTrace());
+
+        /* 2 s */
+        context.setEvent(0, createEvent(2, ITmfTimestamp.SECOND_SCALE));
+        /* 1.5 s */
+        context.setEvent(1, createEvent(1500, ITmfTimestamp.MILLISECOND_SCALE));
+        /* 1.7 s */
+        context.setEvent(2, createEvent(1700000, ITmfTimestamp.MICROSECOND_SCALE));
+        /* 1.6 s, in picoseconds, which are truncated to the nanosecond */
+        context.setEvent(3, createEvent(1600000000999L, -12));
+        /* 1.55 s */
+        context.setEvent(4, createEvent(1550000000L, ITmfTimestamp.NANOSECOND_SCALE));
+        checkOrder(context, 1, 4, 3, 2, 0);
+    }
+
+    /**
+     * Test that an event replaced by a later one takes its new place in the
+     * order
+     */
+    @Test
+    public void testReplaceEvent() {
+        TmfExperimentContext context = new TmfExperimentContext(3);
+        context.setEvent(0, createEvent(10, ITmfTimestamp.NANOSECOND_SCALE));
+        context.setEvent(1, createEvent(20, ITmfTimestamp.NANOSECOND_SCALE));
+        context.setEvent(2, createEvent(30, ITmfTimestamp.NANOSECOND_SCALE));
+        assertEquals(0, context.getNextTrace());
+        context.setEvent(0, createEvent(25, ITmfTimestamp.NANOSECOND_SCALE));
+        assertEquals(1, context.getNextTrace());
+        context.setEvent(1, createEvent(40, ITmfTimestamp.NANOSECOND_SCALE));
+        checkOrder(context, 0, 2, 1);
+    }
+
+    /**
+     * Test that the times that do not fit in a long once converted to
+     * nanoseconds are saturated, and keep their order with the other events
+     */
+    @Test
+    public void testSaturation() {
+        TmfExperimentContext context = new TmfExperimentContext(4);
+        /* Above Long.MAX_VALUE ns */
+        context.setEvent(0, createEvent(Long.MAX_VALUE / 10, ITmfTimestamp.SECOND_SCALE));
+        context.setEvent(1, createEvent(Long.MAX_VALUE - 1, ITmfTimestamp.NANOSECOND_SCALE));
+        /* Below Long.MIN_VALUE ns */
+        context.setEvent(2, createEvent(Long.MIN_VALUE / 1000, ITmfTimestamp.MILLISECOND_SCALE));
+        context.setEvent(3, createEvent(Long.MIN_VALUE + 1, ITmfTimestamp.NANOSECOND_SCALE));
+        checkOrder(context, 2, 3, 1, 0);
+
+        /* Scales beyond the range of a long */
+        context.setEvent(0, createEvent(1, 19));
+        context.setEvent(1, createEvent(-1, 19));
+        context.setEvent(2, createEvent(Long.MAX_VALUE, -19));
+        checkOrder(context, 1, 2, 0);
+    }
+
+    /**
+     * Test that the traces without an event, or at the end, are not part of
+     * the order
+     */
+    @Test
+    public void testNoEvent() {
+        TmfExperimentContext context = new TmfExperimentContext(4);
+        context.setEvent(0, createEvent(TmfTimestamp.BIG_CRUNCH));
+        context.setEvent(1, null);
+        context.setEvent(2, createEvent(5, ITmfTimestamp.SECOND_SCALE));
+        context.setEvent(3, createEvent(TmfTimestamp.BIG_BANG));
+        assertSame(TmfTimestamp.BIG_CRUNCH, checkNotNull(context.getEvent(0)).getTimestamp());
+        assertNull(context.getEvent(1));
+        checkOrder(context, 3, 2);
+
+        /* A trace reaching its end leaves the order */
+        context.setEvent(2, createEvent(5, ITmfTimestamp.SECOND_SCALE));
+        assertEquals(2, context.getNextTrace());
+        context.setEvent(2, createEvent(TmfTimestamp.BIG_CRUNCH));
+        assertEquals(TmfExperimentContext.NO_TRACE, context.getNextTrace());
+    }
+
+    /**
+     * Test that the trace with the lowest index comes first when events are
+     * at the same time, including in different scales
+     */
+    @Test
+    public void testTies() {
+        TmfExperimentContext context = new TmfExperimentContext(4);
+        context.setEvent(3, createEvent(1, ITmfTimestamp.SECOND_SCALE));
+        context.setEvent(1, createEvent(1000000000L, ITmfTimestamp.NANOSECOND_SCALE));
+        context.setEvent(2, createEvent(1000, ITmfTimestamp.MILLISECOND_SCALE));
+        context.setEvent(0, createEvent(2, ITmfTimestamp.SECOND_SCALE));
+        checkOrder(context, 1, 2, 3, 0);
+
+        /* The order does not depend on the order of the updates */
+        context.setEvent(1, createEvent(7, ITmfTimestamp.NANOSECOND_SCALE));
+        context.setEvent(0, createEvent(7, ITmfTimestamp.NANOSECOND_SCALE));
+        context.setEvent(3, createEvent(7, ITmfTimestamp.NANOSECOND_SCALE));
+        checkOrder(context, 0, 1, 3);
+    }
+}
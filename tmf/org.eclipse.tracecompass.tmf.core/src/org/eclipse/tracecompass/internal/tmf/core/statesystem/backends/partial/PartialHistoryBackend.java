@@ -15,13 +15,18 @@ package org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.eclipse.jdt.annotation.NonNull;
-import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.internal.tmf.core.Activator;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
@@ -37,6 +42,7 @@ import org.eclipse.tracecompass.tmf.core.statesystem.ITmfStateProvider;
 import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimeRange;
 import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
 
 /**
@@ -53,10 +59,22 @@ import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
  * earlier checkpoint, and will re-feed the state-change-input with events from
  * the trace, to restore the real state at the time that was requested.
  *
+ * The states rebuilt by the most recent queries are kept, and used instead of
+ * the checkpoints when they are closer to the requested time. Each one holds
+ * an interval per attribute, so only a few of them are kept. Concurrent
+ * queries are rebuilt in parallel, each with its own copy of the state
+ * provider.
+ *
  * @author Alexandre Montplaisir
  */
 public class PartialHistoryBackend implements IStateHistoryBackend {
 
+    /** Default number of states rebuilt by queries which are kept */
+    public static final int DEFAULT_NB_SNAPSHOTS = 16;
+
+    /** Maximum number of queries that can rebuild their state in parallel */
+    private static final int MAX_REPLAY_WORKERS = Runtime.getRuntime().availableProcessors();
+
     private final @NonNull String fSSID;
 
     /**
@@ -80,8 +98,25 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
     /** Latch tracking if the initial checkpoint registration is done */
     private final @NonNull CountDownLatch fCheckpointsReady = new CountDownLatch(1);
 
+    /**
+     * States rebuilt by recent queries, <Timestamp, Full state>. Accesses are
+     * synchronized on the map itself.
+     */
+    private final @NonNull TreeMap<Long, List<ITmfStateInterval>> fSnapshots = new TreeMap<>();
+
+    /** Timestamps of fSnapshots, in least recently used order */
+    private final @NonNull LinkedHashSet<Long> fSnapshotsOrder = new LinkedHashSet<>();
+
+    /** All the replay workers, the first one using fPartialInput and fPartialSS */
+    private final @NonNull List<ReplayWorker> fWorkers = new ArrayList<>();
+
+    /** Replay workers not currently used by a query */
+    private final @NonNull BlockingQueue<ReplayWorker> fIdleWorkers = new LinkedBlockingQueue<>();
+
     private final long fGranularity;
 
+    private final int fNbSnapshots;
+
     private long fLatestTime;
 
     /**
@@ -108,7 +143,39 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
             PartialStateSystem pss,
             IStateHistoryBackend realBackend,
             long granularity) {
-        if (granularity <= 0 || partialInput == null || pss == null ||
+        this(ssid, partialInput, pss, realBackend, granularity, DEFAULT_NB_SNAPSHOTS);
+    }
+
+    /**
+     * Constructor specifying how many rebuilt states to keep
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param partialInput
+     *            The state change input object that was used to build the
+     *            upstream state system. This partial history will make its own
+     *            copy (since they have different targets).
+     * @param pss
+     *            The partial history's inner state system. It should already be
+     *            assigned to partialInput.
+     * @param realBackend
+     *            The real state history back-end to use. It's supposed to be
+     *            modular, so it should be able to be of any type.
+     * @param granularity
+     *            Configuration parameter indicating how many trace events there
+     *            should be between each checkpoint
+     * @param nbSnapshots
+     *            The number of states rebuilt by the most recent queries to
+     *            keep, each holding one interval per attribute. 0 to always
+     *            start from the checkpoints.
+     */
+    public PartialHistoryBackend(@NonNull String ssid,
+            ITmfStateProvider partialInput,
+            PartialStateSystem pss,
+            IStateHistoryBackend realBackend,
+            long granularity,
+            int nbSnapshots) {
+        if (granularity <= 0 || nbSnapshots < 0 || partialInput == null || pss == null ||
                 partialInput.getAssignedStateSystem() != pss) {
             throw new IllegalArgumentException();
         }
@@ -121,9 +188,14 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
         fInnerHistory = realBackend;
         fGranularity = granularity;
+        fNbSnapshots = nbSnapshots;
 
         fLatestTime = startTime;
 
+        ReplayWorker worker = new ReplayWorker(partialInput, pss);
+        fWorkers.add(worker);
+        fIdleWorkers.add(worker);
+
         registerCheckpoints();
     }
 
@@ -198,8 +270,15 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
     @Override
     public void dispose() {
-        fPartialInput.dispose();
-        fPartialSS.dispose();
+        synchronized (fWorkers) {
+            for (ReplayWorker worker : fWorkers) {
+                worker.dispose();
+            }
+        }
+        synchronized (fSnapshots) {
+            fSnapshots.clear();
+            fSnapshotsOrder.clear();
+        }
         fInnerHistory.dispose();
     }
 
@@ -214,65 +293,145 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(fSSID + " Time:" + t + ", Start:" + getStartTime() + ", End:" + getEndTime()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        /* Reload the previous checkpoint */
+        /*
+         * Start from the previous checkpoint, or from the state of a recent
+         * query if it is closer.
+         */
         long checkpointTime = fCheckpoints.floorKey(t);
-        fInnerHistory.doQuery(currentStateInfo, checkpointTime);
+        long startTime = checkpointTime;
+        boolean fromSnapshot = false;
+        synchronized (fSnapshots) {
+            Long snapshotTime = fSnapshots.floorKey(t);
+            if (snapshotTime != null && snapshotTime >= checkpointTime) {
+                List<ITmfStateInterval> snapshot = fSnapshots.get(snapshotTime);
+                if (snapshot.size() == currentStateInfo.size()) {
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        currentStateInfo.set(i, snapshot.get(i));
+                    }
+                    startTime = snapshotTime;
+                    fromSnapshot = true;
+                    /* Move it to the most recently used end */
+                    fSnapshotsOrder.remove(snapshotTime);
+                    fSnapshotsOrder.add(snapshotTime);
+                }
+            }
+        }
+        if (fromSnapshot && startTime == t) {
+            return;
+        }
+        if (!fromSnapshot) {
+            fInnerHistory.doQuery(currentStateInfo, checkpointTime);
+        }
+
+        ReplayWorker worker = takeWorker();
+        PartialStateSystem pss = worker.fSS;
 
         /*
          * Set the initial contents of the partial state system (which is the
          * contents of the query at the checkpoint).
          */
-        fPartialSS.takeQueryLock();
-        fPartialSS.replaceOngoingState(currentStateInfo);
-
-        /* Send an event request to update the state system to the target time. */
-        TmfTimeRange range = new TmfTimeRange(
-                /*
-                 * The state at the checkpoint already includes any state change
-                 * caused by the event(s) happening exactly at 'checkpointTime',
-                 * if any. We must not include those events in the query.
-                 */
-                new TmfTimestamp(checkpointTime + 1, ITmfTimestamp.NANOSECOND_SCALE),
-                new TmfTimestamp(t, ITmfTimestamp.NANOSECOND_SCALE));
-        ITmfEventRequest request = new PartialStateSystemRequest(fPartialInput, range);
-        fPartialInput.getTrace().sendRequest(request);
-
+        pss.takeQueryLock();
         try {
-            request.waitForCompletion();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            pss.replaceOngoingState(currentStateInfo);
+
+            /*
+             * Update the state system to the target time. The state at the
+             * checkpoint already includes any state change caused by the
+             * event(s) happening exactly at 'startTime', if any. We must not
+             * include those events in the query.
+             */
+            worker.replay(startTime + 1, t);
+
+            /*
+             * Now the partial state system should have the ongoing time we are
+             * looking for. However, the method expects a List of *state
+             * intervals*, not state values, so we'll create intervals with a
+             * dummy end time.
+             */
+            try {
+                for (int i = 0; i < currentStateInfo.size(); i++) {
+                    long start = pss.getOngoingStartTime(i);
+                    ITmfStateValue val = pss.queryOngoingState(i);
+
+                    ITmfStateInterval interval = new TmfStateInterval(start, t, i, val);
+                    currentStateInfo.set(i, interval);
+                }
+            } catch (AttributeNotFoundException e) {
+                /* Should not happen, we iterate over existing values. */
+                Activator.logError(fSSID + ": Attribute missing from the partial state system", e); //$NON-NLS-1$
+            }
+        } finally {
+            pss.releaseQueryLock();
+            fIdleWorkers.add(worker);
         }
 
-        /*
-         * Now the partial state system should have the ongoing time we are
-         * looking for. However, the method expects a List of *state intervals*,
-         * not state values, so we'll create intervals with a dummy end time.
-         */
-        try {
-            for (int i = 0; i < currentStateInfo.size(); i++) {
-                long start = 0;
-                ITmfStateValue val = null;
-                start = ((ITmfStateSystem) fPartialSS).getOngoingStartTime(i);
-                val = ((ITmfStateSystem) fPartialSS).queryOngoingState(i);
-
-                ITmfStateInterval interval = new TmfStateInterval(start, t, i, val);
-                currentStateInfo.set(i, interval);
+        putSnapshot(t, new ArrayList<>(currentStateInfo));
+    }
+
+    private void putSnapshot(long t, List<ITmfStateInterval> state) {
+        if (fNbSnapshots == 0) {
+            return;
+        }
+        synchronized (fSnapshots) {
+            fSnapshots.put(t, state);
+            fSnapshotsOrder.remove(t);
+            fSnapshotsOrder.add(t);
+            /* Evict the least recently used states */
+            Iterator<Long> iter = fSnapshotsOrder.iterator();
+            while (fSnapshotsOrder.size() > fNbSnapshots) {
+                fSnapshots.remove(iter.next());
+                iter.remove();
             }
-        } catch (AttributeNotFoundException e) {
-            /* Should not happen, we iterate over existing values. */
-            e.printStackTrace();
         }
+    }
 
-        fPartialSS.releaseQueryLock();
+    /*
+     * Get a replay worker which is not used by another query, creating a new
+     * one if the maximum is not reached yet. If the thread is interrupted while
+     * waiting, the query fails instead.
+     */
+    private ReplayWorker takeWorker() throws StateSystemDisposedException {
+        ReplayWorker worker = fIdleWorkers.poll();
+        if (worker != null) {
+            return worker;
+        }
+        synchronized (fWorkers) {
+            if (fWorkers.size() < MAX_REPLAY_WORKERS) {
+                ITmfStateProvider input = fPartialInput.getNewInstance();
+                PartialStateSystem pss = new PartialStateSystem();
+                input.assignTargetStateSystem(pss);
+                pss.assignUpstream(fPartialSS.getUpstreamSS());
+                worker = new ReplayWorker(input, pss);
+                fWorkers.add(worker);
+                return worker;
+            }
+        }
+        try {
+            return fIdleWorkers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StateSystemDisposedException(e);
+        }
     }
 
     /**
-     * Single queries are not supported in partial histories. To get the same
-     * result you can do a full query, then call fullState.get(attribute).
+     * Single queries are done as full queries, of which only the interval of
+     * the attribute is kept. Like the intervals of the full queries, its end
+     * time is the query time.
      */
     @Override
-    public ITmfStateInterval doSingularQuery(long t, int attributeQuark) {
-        throw new UnsupportedOperationException();
+    public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException, StateSystemDisposedException {
+        int nbAttributes = fPartialSS.getUpstreamSS().getNbAttributes();
+        if (attributeQuark < 0 || attributeQuark >= nbAttributes) {
+            throw new AttributeNotFoundException(fSSID + " Quark:" + attributeQuark + ", Attributes:" + nbAttributes); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        List<ITmfStateInterval> state = new ArrayList<>(nbAttributes);
+        for (int i = 0; i < nbAttributes; i++) {
+            state.add(null);
+        }
+        doQuery(state, t);
+        return state.get(attributeQuark);
     }
 
     private boolean checkValidTime(long t) {
@@ -326,7 +485,8 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
                 /* Check if we need to register a new checkpoint */
                 if (eventCount >= lastCheckpointAt + fGranularity) {
-                    checkpts.put(event.getTimestamp().getValue(), eventCount);
+                    /* In nanoseconds, like the queries */
+                    checkpts.put(event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue(), eventCount);
                     lastCheckpointAt = eventCount;
                 }
             }
@@ -339,40 +499,62 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
         }
     }
 
-    private class PartialStateSystemRequest extends TmfEventRequest {
-        private final ITmfStateProvider sci;
-        private final ITmfTrace trace;
+    // ------------------------------------------------------------------------
+    // Replay workers
+    // ------------------------------------------------------------------------
 
-        PartialStateSystemRequest(ITmfStateProvider sci, TmfTimeRange range) {
-            super(ITmfEvent.class,
-                    range,
-                    0,
-                    ITmfEventRequest.ALL_DATA,
-                    ITmfEventRequest.ExecutionType.BACKGROUND);
-            this.sci = sci;
-            this.trace = sci.getTrace();
+    /**
+     * State provider and partial state system used by a query to re-feed the
+     * events between a checkpoint and the requested time. The events are read
+     * directly from the trace, so that queries do not wait for each other in
+     * the request executor.
+     */
+    private static class ReplayWorker {
+        private final ITmfStateProvider fInput;
+        private final PartialStateSystem fSS;
+
+        public ReplayWorker(ITmfStateProvider input, PartialStateSystem pss) {
+            fInput = input;
+            fSS = pss;
         }
 
-        @Override
-        public void handleData(final ITmfEvent event) {
-            super.handleData(event);
-            if (event.getTrace() == trace) {
-                sci.processEvent(event);
+        public void replay(long start, long end) {
+            ITmfTrace trace = fInput.getTrace();
+            ITmfContext context = trace.seekEvent(new TmfTimestamp(start, ITmfTimestamp.NANOSECOND_SCALE));
+            try {
+                ITmfEvent event = trace.getNext(context);
+                while (event != null) {
+                    long ts = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+                    if (ts > end) {
+                        break;
+                    }
+                    /*
+                     * The seek can land a bit early, when the trace is less
+                     * precise than nanoseconds. These events are already in
+                     * the initial state.
+                     */
+                    if (ts >= start && event.getTrace() == trace) {
+                        fInput.processEvent(event);
+                    }
+                    event = trace.getNext(context);
+                }
+            } finally {
+                context.dispose();
             }
-        }
 
-        @Override
-        public void handleCompleted() {
             /*
              * If we're using a threaded state provider, we need to make sure
              * all events have been handled by the state system before doing
              * queries on it.
              */
-            if (fPartialInput instanceof AbstractTmfStateProvider) {
-                ((AbstractTmfStateProvider) fPartialInput).waitForEmptyQueue();
+            if (fInput instanceof AbstractTmfStateProvider) {
+                ((AbstractTmfStateProvider) fInput).waitForEmptyQueue();
             }
-            super.handleCompleted();
         }
 
+        public void dispose() {
+            fInput.dispose();
+            fSS.dispose();
+        }
     }
 }
@@ -18,7 +18,6 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.tracecompass.internal.statesystem.core.AttributeTree;
 import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
-import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
 import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
@@ -68,7 +67,7 @@ public class PartialStateSystem extends StateSystem {
         ssAssignedLatch.countDown();
     }
 
-    ITmfStateSystem getUpstreamSS() {
+    StateSystem getUpstreamSS() {
         return realStateSystem;
     }
 
@@ -151,6 +150,20 @@ public class PartialStateSystem extends StateSystem {
         }
     }
 
+    @Override
+    public int[] getQuarksRelativeAndAdd(int startingNodeQuark, String[]... subPaths) {
+        waitUntilReady();
+        int[] quarks = new int[subPaths.length];
+        try {
+            for (int i = 0; i < subPaths.length; i++) {
+                quarks[i] = realStateSystem.getQuarkRelative(startingNodeQuark, subPaths[i]);
+            }
+        } catch (AttributeNotFoundException e) {
+            throw new RuntimeException(ERR_MSG);
+        }
+        return quarks;
+    }
+
     private void waitUntilReady() {
         try {
             ssAssignedLatch.await();
@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.sharded;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * State system used to build one time shard of a history, in parallel with the
+ * other shards.
+ *
+ * The state provider of a shard starts a bit before the shard, to rebuild an
+ * approximation of the state at its start. From the start of the shard, the
+ * calls the provider makes to modify the state are saved to a log file,
+ * instead of intervals. The calls are then replayed on the real state system,
+ * once it has reached the start of the shard.
+ *
+ * Replaying the calls gives the same history as a sequential build, as long as
+ * the provider took the same decisions. So this state system also records
+ * everything the provider read from the state it did not write itself: values,
+ * existence of attributes, and so on. Before the calls are replayed, these
+ * observations are compared with the real state (see
+ * {@link #checkConsistency}).
+ *
+ * A shard state system is only used by the thread of its state provider.
+ */
+@SuppressWarnings("restriction") /* We're extending StateSystem directly */
+public class ShardStateSystem extends StateSystem {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    private static final byte MODIFY = 1;
+    private static final byte INCREMENT = 2;
+    private static final byte PUSH = 3;
+    private static final byte POP = 4;
+    private static final byte REMOVE = 5;
+    private static final byte UPDATE = 6;
+
+    private final File fLogFile;
+    private @Nullable DataOutputStream fLog = null;
+
+    private boolean fSeeded = false;
+    private boolean fRecording = false;
+    private int fNbAttributesAtStart = 0;
+
+    /*
+     * Nesting level of the calls, so that only the calls coming from the state
+     * provider are logged, and not the ones a state system method makes
+     * internally.
+     */
+    private int fDepth = 0;
+
+    /* Attributes written since the start of the shard */
+    private final BitSet fWritten = new BitSet();
+
+    /* Values read from attributes not written since the start of the shard */
+    private final Map<Integer, ITmfStateValue> fObservedValues = new HashMap<>();
+    private final Set<List<String>> fFoundPaths = new HashSet<>();
+    private final Set<List<String>> fMissingPaths = new HashSet<>();
+    private boolean fStructureDependent = false;
+    private @Nullable String fInconsistency = null;
+
+    /**
+     * Constructor
+     *
+     * @param ssid
+     *            The ID of the shard
+     * @param logFile
+     *            The file in which to log the calls of the state provider
+     */
+    public ShardStateSystem(@NonNull String ssid, File logFile) {
+        /* The intervals are not kept, only the calls are */
+        super(StateHistoryBackendFactory.createNullBackend(ssid));
+        fLogFile = logFile;
+    }
+
+    /**
+     * Initialize the state of this shard with the ongoing state of another
+     * state system, instead of rebuilding it. Must be called before the state
+     * provider is assigned.
+     *
+     * @param source
+     *            The state system to copy
+     */
+    public void seed(ITmfStateSystemBuilder source) {
+        int nbAttributes = source.getNbAttributes();
+        List<ITmfStateInterval> intervals = new ArrayList<>(nbAttributes);
+        try {
+            for (int quark = 0; quark < nbAttributes; quark++) {
+                /* Parents are created before their children */
+                super.getQuarkAbsoluteAndAdd(source.getFullAttributePathArray(quark));
+                long start = source.getOngoingStartTime(quark);
+                intervals.add(new TmfStateInterval(start, start, quark, source.queryOngoingState(quark)));
+            }
+        } catch (AttributeNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+        replaceOngoingState(intervals);
+        fSeeded = true;
+    }
+
+    /**
+     * Start logging the calls of the state provider. The provider must have
+     * processed all the events before the start of the shard, and none after.
+     */
+    public void startRecording() {
+        fNbAttributesAtStart = super.getNbAttributes();
+        fRecording = true;
+        try {
+            fLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fLogFile)));
+        } catch (IOException e) {
+            setInconsistent(e.toString());
+        }
+    }
+
+    /**
+     * Check if the calls are being logged
+     *
+     * @return If {@link #startRecording} was called
+     */
+    public boolean isRecording() {
+        return fRecording;
+    }
+
+    /**
+     * Check that what the state provider read from the state of this shard
+     * matches the state of the real state system, so that replaying the calls
+     * gives the same result as a sequential build.
+     *
+     * @param target
+     *            The real state system, at the start time of this shard
+     * @return The first difference that was found, or null if there is none
+     */
+    public @Nullable String checkConsistency(ITmfStateSystemBuilder target) {
+        if (fInconsistency != null) {
+            return fInconsistency;
+        }
+        for (Map.Entry<Integer, ITmfStateValue> entry : fObservedValues.entrySet()) {
+            String[] path = getFullAttributePathArray(entry.getKey());
+            ITmfStateValue expected = TmfStateValue.nullValue();
+            try {
+                expected = target.queryOngoingState(target.getQuarkAbsolute(path));
+            } catch (AttributeNotFoundException e) {
+                /* The attribute would be created later, with a null value */
+            }
+            if (!expected.equals(entry.getValue())) {
+                return Arrays.toString(path) + " was " + entry.getValue() + " instead of " + expected; //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        for (List<String> path : fFoundPaths) {
+            if (!exists(target, path)) {
+                return path + " was found"; //$NON-NLS-1$
+            }
+        }
+        for (List<String> path : fMissingPaths) {
+            if (exists(target, path)) {
+                return path + " was not found"; //$NON-NLS-1$
+            }
+        }
+        if (fStructureDependent) {
+            if (target.getNbAttributes() != fNbAttributesAtStart) {
+                return "Attributes were listed"; //$NON-NLS-1$
+            }
+            for (int quark = 0; quark < fNbAttributesAtStart; quark++) {
+                List<String> path = Arrays.asList(getFullAttributePathArray(quark));
+                try {
+                    if (target.getQuarkAbsolute(path.toArray(new String[path.size()])) != quark) {
+                        return "Attributes were listed"; //$NON-NLS-1$
+                    }
+                } catch (AttributeNotFoundException e) {
+                    return "Attributes were listed"; //$NON-NLS-1$
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean exists(ITmfStateSystemBuilder target, List<String> path) {
+        try {
+            target.getQuarkAbsolute(path.toArray(new String[path.size()]));
+            return true;
+        } catch (AttributeNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replay the logged calls on the real state system. The attributes are
+     * matched by their path.
+     *
+     * @param target
+     *            The real state system, at the start time of this shard
+     * @throws IOException
+     *             If the log file could not be read
+     */
+    public void replay(ITmfStateSystemBuilder target) throws IOException {
+        int nbAttributes = super.getNbAttributes();
+        int[] quarks = new int[nbAttributes];
+        Arrays.fill(quarks, -1);
+        /*
+         * Create the attributes the provider created during the shard, in the
+         * same order, even if it did not write them.
+         */
+        for (int quark = fNbAttributesAtStart; quark < nbAttributes; quark++) {
+            quarks[quark] = target.getQuarkAbsoluteAndAdd(getFullAttributePathArray(quark));
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fLogFile)));) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int quark = in.readInt();
+                if (quarks[quark] < 0) {
+                    quarks[quark] = target.getQuarkAbsoluteAndAdd(getFullAttributePathArray(quark));
+                }
+                int targetQuark = quarks[quark];
+                long t = (op == UPDATE ? 0 : in.readLong());
+                try {
+                    switch (op) {
+                    case MODIFY:
+                        target.modifyAttribute(t, readValue(in), targetQuark);
+                        break;
+                    case INCREMENT:
+                        target.incrementAttribute(t, targetQuark);
+                        break;
+                    case PUSH:
+                        target.pushAttribute(t, readValue(in), targetQuark);
+                        break;
+                    case POP:
+                        target.popAttribute(t, targetQuark);
+                        break;
+                    case REMOVE:
+                        target.removeAttribute(t, targetQuark);
+                        break;
+                    case UPDATE:
+                        target.updateOngoingState(readValue(in), targetQuark);
+                        break;
+                    default:
+                        throw new IOException("Invalid operation " + op); //$NON-NLS-1$
+                    }
+                } catch (AttributeNotFoundException | TimeRangeException | StateValueTypeException e) {
+                    /*
+                     * The call failed for the state provider too, which
+                     * already reported it.
+                     */
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the log file
+     */
+    public void deleteLog() {
+        closeLog();
+        if (fLogFile.exists() && !fLogFile.delete()) {
+            fLogFile.deleteOnExit();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Logging and observations
+    // ------------------------------------------------------------------------
+
+    private boolean isLogged() {
+        return fRecording && fDepth == 0;
+    }
+
+    private void setInconsistent(String reason) {
+        if (fInconsistency == null) {
+            fInconsistency = reason;
+        }
+        closeLog();
+    }
+
+    private void closeLog() {
+        DataOutputStream log = fLog;
+        fLog = null;
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                setInconsistent(e.toString());
+            }
+        }
+    }
+
+    private void log(byte op, int quark, long t, @Nullable ITmfStateValue value) {
+        DataOutputStream log = fLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.writeByte(op);
+            log.writeInt(quark);
+            if (op != UPDATE) {
+                log.writeLong(t);
+            }
+            if (value != null) {
+                writeValue(log, value);
+            }
+        } catch (IOException e) {
+            setInconsistent(e.toString());
+        }
+    }
+
+    /*
+     * What the provider writes during the warm-up is only a guess of the real
+     * state, so reading it back later must still be checked.
+     */
+    private void markWritten(int quark) {
+        if (fRecording) {
+            fWritten.set(quark);
+        }
+    }
+
+    private void observeValue(int quark) throws AttributeNotFoundException {
+        if (fRecording && !fWritten.get(quark) && !fObservedValues.containsKey(quark)) {
+            fObservedValues.put(quark, super.queryOngoingState(quark));
+        }
+    }
+
+    private void observeStructure() {
+        if (isLogged()) {
+            fStructureDependent = true;
+        }
+    }
+
+    private void observeHistory() {
+        if (fRecording) {
+            setInconsistent("History was queried"); //$NON-NLS-1$
+        }
+    }
+
+    private int observeLookup(int startingNodeQuark, String... subPath) throws AttributeNotFoundException {
+        if (!isLogged()) {
+            return super.getQuarkRelative(startingNodeQuark, subPath);
+        }
+        try {
+            int quark = super.getQuarkRelative(startingNodeQuark, subPath);
+            if (quark < fNbAttributesAtStart) {
+                fFoundPaths.add(Arrays.asList(getFullAttributePathArray(quark)));
+            }
+            return quark;
+        } catch (AttributeNotFoundException e) {
+            List<String> path = new ArrayList<>();
+            if (startingNodeQuark != -1) {
+                path.addAll(Arrays.asList(getFullAttributePathArray(startingNodeQuark)));
+            }
+            path.addAll(Arrays.asList(subPath));
+            fMissingPaths.add(path);
+            throw e;
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, ITmfStateValue value) throws IOException {
+        out.writeByte(value.getType().ordinal());
+        switch (value.getType()) {
+        case INTEGER:
+            out.writeInt(value.unboxInt());
+            break;
+        case LONG:
+            out.writeLong(value.unboxLong());
+            break;
+        case DOUBLE:
+            out.writeDouble(value.unboxDouble());
+            break;
+        case STRING:
+            byte[] bytes = value.unboxStr().getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            break;
+        case NULL:
+        default:
+            break;
+        }
+    }
+
+    private static ITmfStateValue readValue(DataInputStream in) throws IOException {
+        ITmfStateValue.Type[] types = ITmfStateValue.Type.values();
+        int type = in.readByte();
+        if (type < 0 || type >= types.length) {
+            throw new IOException("Invalid value type " + type); //$NON-NLS-1$
+        }
+        switch (types[type]) {
+        case INTEGER:
+            return TmfStateValue.newValueInt(in.readInt());
+        case LONG:
+            return TmfStateValue.newValueLong(in.readLong());
+        case DOUBLE:
+            return TmfStateValue.newValueDouble(in.readDouble());
+        case STRING:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return TmfStateValue.newValueString(new String(bytes, UTF8));
+        case NULL:
+        default:
+            return TmfStateValue.nullValue();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // StateSystem
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void modifyAttribute(long t, ITmfStateValue value, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException, StateValueTypeException {
+        if (isLogged()) {
+            log(MODIFY, attributeQuark, t, value);
+        }
+        fDepth++;
+        try {
+            super.modifyAttribute(t, value, attributeQuark);
+        } catch (StateValueTypeException e) {
+            /* Whether it fails depends on the previous values */
+            if (fRecording) {
+                setInconsistent(e.getMessage());
+            }
+            throw e;
+        } finally {
+            fDepth--;
+        }
+        markWritten(attributeQuark);
+    }
+
+    @Override
+    public void incrementAttribute(long t, int attributeQuark)
+            throws StateValueTypeException, TimeRangeException, AttributeNotFoundException {
+        if (isLogged()) {
+            log(INCREMENT, attributeQuark, t, null);
+        }
+        observeValue(attributeQuark);
+        fDepth++;
+        try {
+            super.incrementAttribute(t, attributeQuark);
+        } finally {
+            fDepth--;
+        }
+    }
+
+    @Override
+    public void pushAttribute(long t, ITmfStateValue value, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException, StateValueTypeException {
+        if (isLogged()) {
+            log(PUSH, attributeQuark, t, value);
+        }
+        observeValue(attributeQuark);
+        fDepth++;
+        try {
+            super.pushAttribute(t, value, attributeQuark);
+        } finally {
+            fDepth--;
+        }
+    }
+
+    @Override
+    public ITmfStateValue popAttribute(long t, int attributeQuark)
+            throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        if (isLogged()) {
+            log(POP, attributeQuark, t, null);
+        }
+        observeValue(attributeQuark);
+        fDepth++;
+        try {
+            return super.popAttribute(t, attributeQuark);
+        } finally {
+            fDepth--;
+        }
+    }
+
+    @Override
+    public void removeAttribute(long t, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException {
+        if (isLogged()) {
+            log(REMOVE, attributeQuark, t, null);
+        }
+        fDepth++;
+        try {
+            super.removeAttribute(t, attributeQuark);
+        } finally {
+            fDepth--;
+        }
+        markWritten(attributeQuark);
+    }
+
+    @Override
+    public void updateOngoingState(ITmfStateValue newValue, int attributeQuark)
+            throws AttributeNotFoundException {
+        if (isLogged()) {
+            log(UPDATE, attributeQuark, 0, newValue);
+        }
+        super.updateOngoingState(newValue, attributeQuark);
+        markWritten(attributeQuark);
+    }
+
+    @Override
+    public ITmfStateValue queryOngoingState(int attributeQuark)
+            throws AttributeNotFoundException {
+        observeValue(attributeQuark);
+        return super.queryOngoingState(attributeQuark);
+    }
+
+    @Override
+    public long getOngoingStartTime(int attribute)
+            throws AttributeNotFoundException {
+        /*
+         * Start times depend on values that were overwritten, unless they
+         * were copied from the real state.
+         */
+        if (fRecording && !(fSeeded && attribute < fNbAttributesAtStart && !fWritten.get(attribute))) {
+            setInconsistent("Start time was queried"); //$NON-NLS-1$
+        }
+        return super.getOngoingStartTime(attribute);
+    }
+
+    @Override
+    public int getQuarkAbsolute(String... attribute)
+            throws AttributeNotFoundException {
+        return observeLookup(-1, attribute);
+    }
+
+    @Override
+    public int getQuarkRelative(int startingNodeQuark, String... subPath)
+            throws AttributeNotFoundException {
+        return observeLookup(startingNodeQuark, subPath);
+    }
+
+    @Override
+    public int getNbAttributes() {
+        observeStructure();
+        return super.getNbAttributes();
+    }
+
+    @Override
+    public List<Integer> getSubAttributes(int quark, boolean recursive)
+            throws AttributeNotFoundException {
+        observeStructure();
+        return super.getSubAttributes(quark, recursive);
+    }
+
+    @Override
+    public List<Integer> getSubAttributes(int quark, boolean recursive, String pattern)
+            throws AttributeNotFoundException {
+        observeStructure();
+        fDepth++;
+        try {
+            return super.getSubAttributes(quark, recursive, pattern);
+        } finally {
+            fDepth--;
+        }
+    }
+
+    @Override
+    public List<Integer> getQuarks(String... pattern) {
+        observeStructure();
+        fDepth++;
+        try {
+            return super.getQuarks(pattern);
+        } finally {
+            fDepth--;
+        }
+    }
+
+    @Override
+    public List<ITmfStateInterval> queryFullState(long t, @NonNull List<ITmfStateInterval> reuse)
+            throws TimeRangeException, StateSystemDisposedException {
+        observeHistory();
+        return super.queryFullState(t, reuse);
+    }
+
+    @Override
+    public List<ITmfStateInterval> queryFullState(long t)
+            throws TimeRangeException, StateSystemDisposedException {
+        observeHistory();
+        return super.queryFullState(t);
+    }
+
+    @Override
+    public ITmfStateInterval querySingleState(long t, int attributeQuark)
+            throws AttributeNotFoundException, TimeRangeException, StateSystemDisposedException {
+        observeHistory();
+        return super.querySingleState(t, attributeQuark);
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, long start, long end, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        observeHistory();
+        return super.query2D(quarks, start, end, resolution);
+    }
+
+    @Override
+    public void closeHistory(long endTime) throws TimeRangeException {
+        super.closeHistory(endTime);
+        closeLog();
+    }
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.sharded;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.tmf.core.Activator;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.statesystem.AbstractTmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.statesystem.ITmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
+import org.eclipse.tracecompass.tmf.core.trace.experiment.TmfExperiment;
+
+/**
+ * Builds a state history by splitting the trace in time shards, which are
+ * processed in parallel.
+ *
+ * Each shard has its own copy of the state provider, which starts reading the
+ * trace a bit before the shard (the warm-up), and its own
+ * {@link ShardStateSystem}, which logs the state changes of the shard. The
+ * shards are then replayed in order on the target state system, which writes
+ * the history.
+ *
+ * Before a shard is replayed, what its provider read from the state is checked
+ * against the state of the target. If they do not match, the warm-up was too
+ * short for this shard, and it is built again from a copy of the target's
+ * state. Only if this is not enough either (if the provider queries the
+ * history, for example) is the rest of the trace left to be built
+ * sequentially.
+ *
+ * This is only correct for state providers which keep all their state in the
+ * state system.
+ */
+public class ShardedHistoryBuilder {
+
+    private final ITmfTrace fTrace;
+    private final ITmfStateProvider fProvider;
+    private final ITmfStateSystemBuilder fTarget;
+    private final String fId;
+    private final String fLogPrefix;
+    private final long[] fBounds;
+    private final long fWarmup;
+
+    private volatile boolean fStopped = false;
+    private volatile boolean fCancelled = false;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     *            The ID of the state system
+     * @param provider
+     *            The state provider, of which each shard will use a new
+     *            instance. It is not used itself.
+     * @param target
+     *            The state system in which to build the history
+     * @param logPrefix
+     *            The path prefix of the temporary files of the shards
+     * @param startTime
+     *            The start time of the trace, in nanoseconds
+     * @param endTime
+     *            The end time of the trace, in nanoseconds. Events after this
+     *            time are still read.
+     * @param nbShards
+     *            The number of shards
+     * @param warmup
+     *            How long before its start, in nanoseconds, the provider of a
+     *            shard starts reading the trace
+     */
+    public ShardedHistoryBuilder(String id, ITmfStateProvider provider, ITmfStateSystemBuilder target,
+            String logPrefix, long startTime, long endTime, int nbShards, long warmup) {
+        fTrace = provider.getTrace();
+        fProvider = provider;
+        fTarget = target;
+        fId = id;
+        fLogPrefix = logPrefix;
+        fWarmup = warmup;
+
+        fBounds = new long[nbShards + 1];
+        long range = endTime - startTime;
+        for (int i = 0; i < nbShards; i++) {
+            fBounds[i] = startTime + (range / nbShards) * i + (range % nbShards) * i / nbShards;
+        }
+        /* The last shard goes until the end of the trace, whatever it is */
+        fBounds[nbShards] = Long.MAX_VALUE;
+    }
+
+    /**
+     * Build the history. If it could be built completely, the target state
+     * system is closed.
+     *
+     * @return -1 if the history was built completely, or the time from which
+     *         the rest of the trace still has to be read sequentially
+     * @throws IOException
+     *             If the state changes of a shard could not be read back
+     */
+    public long build() throws IOException {
+        int nbShards = fBounds.length - 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(nbShards, Runtime.getRuntime().availableProcessors()));
+        List<Shard> shards = new ArrayList<>(nbShards);
+        List<Future<?>> futures = new ArrayList<>(nbShards);
+        for (int i = 0; i < nbShards; i++) {
+            Shard shard = new Shard(i, false);
+            shards.add(shard);
+            futures.add(executor.submit(shard));
+        }
+        executor.shutdown();
+
+        long resumeTime = -1;
+        long lastEventTime = fBounds[0];
+        try {
+            for (int i = 0; i < nbShards && !fCancelled; i++) {
+                Shard shard = shards.get(i);
+                waitFor(futures.get(i));
+                String reason = shard.checkConsistency();
+                if (reason != null && !fCancelled) {
+                    /* Build it again, starting from the exact state */
+                    Activator.logInfo(fId + ": Rebuilding shard " + i + ", " + reason); //$NON-NLS-1$ //$NON-NLS-2$
+                    shard.deleteLog();
+                    shard = new Shard(i, true);
+                    shards.set(i, shard);
+                    shard.run();
+                    reason = shard.checkConsistency();
+                }
+                if (fCancelled) {
+                    break;
+                }
+                if (reason != null) {
+                    Activator.logInfo(fId + ": Building sequentially from shard " + i + ", " + reason); //$NON-NLS-1$ //$NON-NLS-2$
+                    resumeTime = fBounds[i];
+                    break;
+                }
+                shard.replay();
+                lastEventTime = Math.max(lastEventTime, shard.fLastEventTime);
+            }
+        } finally {
+            /* Stop the shards that are not needed anymore */
+            fStopped = true;
+            for (int i = 0; i < nbShards; i++) {
+                waitFor(futures.get(i));
+                shards.get(i).deleteLog();
+            }
+        }
+
+        if (resumeTime < 0 && !fCancelled) {
+            fTarget.closeHistory(lastEventTime);
+        }
+        return resumeTime;
+    }
+
+    /**
+     * Cancel the build. The target state system is left as it is.
+     */
+    public void cancel() {
+        fCancelled = true;
+        fStopped = true;
+    }
+
+    /**
+     * Check if the build was cancelled
+     *
+     * @return If {@link #cancel} was called
+     */
+    public boolean isCancelled() {
+        return fCancelled;
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            /* Shards catch their own exceptions */
+            Activator.logError(e.getMessage(), e);
+        }
+    }
+
+    private boolean isFromTrace(ITmfEvent event) {
+        if (event.getTrace() == fTrace) {
+            return true;
+        }
+        if (fTrace instanceof TmfExperiment) {
+            for (ITmfTrace childTrace : ((TmfExperiment) fTrace).getTraces()) {
+                if (childTrace == event.getTrace()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private class Shard implements Runnable {
+
+        private final int fIndex;
+        private final long fStart;
+        private final long fEnd;
+        private final long fReadStart;
+        private final ShardStateSystem fSS;
+
+        private @Nullable String fError = null;
+        private long fLastEventTime = -1;
+
+        public Shard(int index, boolean seeded) {
+            fIndex = index;
+            fStart = fBounds[index];
+            fEnd = fBounds[index + 1];
+            fSS = new ShardStateSystem(fId + ".shard" + index, new File(fLogPrefix + ".shard" + index)); //$NON-NLS-1$ //$NON-NLS-2$
+            if (seeded) {
+                fSS.seed(fTarget);
+                fReadStart = fStart;
+            } else {
+                fReadStart = (index == 0 ? fStart : fStart - fWarmup);
+            }
+        }
+
+        @Override
+        public void run() {
+            ITmfStateProvider provider = fProvider.getNewInstance();
+            if (!(provider instanceof AbstractTmfStateProvider)) {
+                fError = "Unsupported state provider"; //$NON-NLS-1$
+                return;
+            }
+            AbstractTmfStateProvider shardProvider = (AbstractTmfStateProvider) provider;
+            shardProvider.assignTargetStateSystem(fSS);
+
+            ITmfContext context = fTrace.seekEvent(new TmfTimestamp(fReadStart, ITmfTimestamp.NANOSECOND_SCALE));
+            try {
+                ITmfEvent event = fTrace.getNext(context);
+                while (event != null && !fStopped) {
+                    long ts = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+                    if (ts >= fEnd) {
+                        break;
+                    }
+                    if (ts < fReadStart) {
+                        /*
+                         * The seek can land a bit early, when the trace is
+                         * less precise than nanoseconds. A seeded shard must
+                         * not process these events a second time.
+                         */
+                        event = fTrace.getNext(context);
+                        continue;
+                    }
+                    if (ts >= fStart && !fSS.isRecording()) {
+                        shardProvider.waitForEmptyQueue();
+                        fSS.startRecording();
+                    }
+                    if (isFromTrace(event)) {
+                        shardProvider.processEvent(event);
+                        if (fSS.isRecording()) {
+                            fLastEventTime = ts;
+                        }
+                    }
+                    event = fTrace.getNext(context);
+                }
+                if (fStopped) {
+                    fError = "Stopped"; //$NON-NLS-1$
+                } else if (!fSS.isRecording()) {
+                    /* No event in this shard */
+                    shardProvider.waitForEmptyQueue();
+                    fSS.startRecording();
+                }
+            } catch (RuntimeException e) {
+                Activator.logError(fId + ": Error in shard " + fIndex, e); //$NON-NLS-1$
+                fError = e.toString();
+            } finally {
+                context.dispose();
+                /* Stops the provider's thread, which closes the log */
+                shardProvider.dispose();
+            }
+        }
+
+        public @Nullable String checkConsistency() {
+            if (fError != null) {
+                return fError;
+            }
+            return fSS.checkConsistency(fTarget);
+        }
+
+        public void replay() throws IOException {
+            fSS.replay(fTarget);
+        }
+
+        public void deleteLog() {
+            fSS.deleteLog();
+        }
+    }
+}
@@ -18,7 +18,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.common.core.collect.LoserTree;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
 import org.eclipse.tracecompass.tmf.core.trace.TmfContext;
 
@@ -45,6 +48,13 @@ public final class TmfExperimentContext extends TmfContext {
      */
     public static final int NO_TRACE = -1;
 
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L, 10000000000L, 100000000000L,
+            1000000000000L, 10000000000000L, 100000000000000L,
+            1000000000000000L, 10000000000000000L, 100000000000000000L,
+            1000000000000000000L };
+
     // ------------------------------------------------------------------------
     // Attributes
     // ------------------------------------------------------------------------
@@ -53,6 +63,9 @@ public final class TmfExperimentContext extends TmfContext {
     private final List<ITmfEvent> fEvents;
     private int fLastTraceRead;
 
+    /* Orders the traces by the timestamp of their event, in nanoseconds */
+    private final LoserTree fMerger;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -68,6 +81,7 @@ public final class TmfExperimentContext extends TmfContext {
         fLastTraceRead = NO_TRACE;
         fContexts = new ArrayList<>(nbTraces);
         fEvents = new ArrayList<>(nbTraces);
+        fMerger = new LoserTree(nbTraces);
 
 
         /* Initialize the arrays to the requested size */
@@ -146,6 +160,45 @@ public final class TmfExperimentContext extends TmfContext {
      */
     public void setEvent(int traceIndex, ITmfEvent event) {
         fEvents.set(traceIndex, event);
+        ITmfTimestamp timestamp = (event == null ? null : event.getTimestamp());
+        if (timestamp == null || timestamp.compareTo(TmfTimestamp.BIG_CRUNCH) >= 0) {
+            fMerger.remove(traceIndex);
+        } else {
+            fMerger.set(traceIndex, toNanos(timestamp));
+        }
+    }
+
+    /**
+     * Get the trace whose current event is the next one of the experiment,
+     * which is the earliest one. Events are compared to the nanosecond, the
+     * trace with the lowest index comes first in case of a tie.
+     *
+     * @return The index of the trace, or {@link #NO_TRACE} if no trace has an
+     *         event
+     */
+    public int getNextTrace() {
+        return fMerger.getWinner();
+    }
+
+    /*
+     * Timestamp value in nanoseconds, saturated to the range of a long
+     */
+    private static long toNanos(ITmfTimestamp timestamp) {
+        long value = timestamp.getValue();
+        int scaleDiff = timestamp.getScale() - ITmfTimestamp.NANOSECOND_SCALE;
+        if (scaleDiff == 0 || value == 0) {
+            return value;
+        }
+        if (scaleDiff < 0) {
+            return (-scaleDiff < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-scaleDiff] : 0);
+        }
+        if (scaleDiff < POWERS_OF_TEN.length) {
+            long factor = POWERS_OF_TEN[scaleDiff];
+            if (Math.abs(value) <= Long.MAX_VALUE / factor) {
+                return value * factor;
+            }
+        }
+        return (value < 0 ? Long.MIN_VALUE : Long.MAX_VALUE);
     }
 
     /**
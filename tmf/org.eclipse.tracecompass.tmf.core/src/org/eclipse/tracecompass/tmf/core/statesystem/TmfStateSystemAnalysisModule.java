@@ -26,6 +26,7 @@ import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialHistoryBackend;
 import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialStateSystem;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.sharded.ShardedHistoryBuilder;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
@@ -38,7 +39,9 @@ import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.request.TmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.signal.TmfSignalHandler;
 import org.eclipse.tracecompass.tmf.core.signal.TmfTraceRangeUpdatedSignal;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimeRange;
+import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfTraceCompleteness;
 import org.eclipse.tracecompass.tmf.core.trace.TmfTraceManager;
@@ -69,6 +72,7 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
     @Nullable private IStateHistoryBackend fHtBackend;
     @Nullable private ITmfEventRequest fRequest;
     @Nullable private TmfTimeRange fTimeRange = null;
+    @Nullable private volatile ShardedHistoryBuilder fShardedBuilder = null;
 
     private int fNbRead = 0;
 
@@ -135,6 +139,53 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         return StateSystemBackendType.FULL;
     }
 
+    /**
+     * Get the number of time shards in which to split the trace, to build a
+     * full history in parallel. The default is 1, which builds it
+     * sequentially.
+     *
+     * Each shard uses its own instance of the state provider, which starts
+     * reading the trace a bit before the shard, to rebuild the state at its
+     * start. This is only correct if the state provider keeps all its state in
+     * the state system, and it has to be an {@link AbstractTmfStateProvider}.
+     *
+     * @return The number of shards
+     * @since 2.0
+     */
+    protected int getNbShards() {
+        return 1;
+    }
+
+    /**
+     * Get how long before the start of its shard the state provider of a
+     * shard starts reading the trace, when building with
+     * {@link #getNbShards()} shards. A shard whose state could not be rebuilt
+     * in that time is built again, from the end state of the previous one.
+     *
+     * @return The duration, in nanoseconds
+     * @since 2.0
+     */
+    protected long getShardWarmup() {
+        return 0;
+    }
+
+    /**
+     * Get if the full history of this analysis can be resumed, when its trace
+     * has grown since the history file was built. Only the new part of the
+     * trace is then read, starting from the state saved with the history when
+     * it was closed, instead of building the history from scratch. The
+     * default is false.
+     *
+     * This is only correct if the state provider keeps all its state in the
+     * state system.
+     *
+     * @return If the history can be resumed
+     * @since 2.0
+     */
+    protected boolean canResumeHistory() {
+        return false;
+    }
+
     /**
      * Get the supplementary file name where to save this state system. The
      * default is the ID of the analysis followed by the extension.
@@ -220,6 +271,10 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
 
     @Override
     protected void canceling() {
+        ShardedHistoryBuilder builder = fShardedBuilder;
+        if (builder != null) {
+            builder.cancel();
+        }
         ITmfEventRequest req = fRequest;
         if ((req != null) && (!req.isCompleted())) {
             req.cancel();
@@ -245,9 +300,13 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
      */
     private void createFullHistory(String id, ITmfStateProvider provider, File htFile) throws TmfTraceException {
 
+        /* Size of the blocking queue to use when building a state history */
+        final int QUEUE_SIZE = 10000;
+
         /* If the target file already exists, do not rebuild it uselessly */
-        // TODO for now we assume it's complete. Might be a good idea to check
-        // at least if its range matches the trace's range.
+        // TODO Unless the history can be resumed, we assume it's complete.
+        // Might be a good idea to check at least if its range matches the
+        // trace's range.
 
         if (htFile.exists()) {
            /* Load an existing history */
@@ -255,9 +314,18 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
             try {
                 IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(
                         id, htFile, version);
-                fHtBackend = backend;
-                fStateSystem = StateSystemFactory.newStateSystem(backend, false);
-                fInitialized.countDown();
+                ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend, false);
+                long traceEnd = provider.getTrace().getEndTime().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+                if (!canResumeHistory() || !isCompleteTrace(provider.getTrace()) || traceEnd <= ss.getCurrentEndTime()) {
+                    fHtBackend = backend;
+                    fStateSystem = ss;
+                    fInitialized.countDown();
+                    return;
+                }
+                /* The trace has grown, continue the history from its end */
+                long resumeTime = ss.getCurrentEndTime() + 1;
+                ss.dispose();
+                resumeFullHistory(id, provider, htFile, resumeTime, QUEUE_SIZE);
                 return;
             } catch (IOException e) {
                 /*
@@ -268,16 +336,17 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
             }
         }
 
-        /* Size of the blocking queue to use when building a state history */
-        final int QUEUE_SIZE = 10000;
-
         try {
             IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendNewFile(
                     id, htFile, provider.getVersion(), provider.getStartTime(), QUEUE_SIZE);
             fHtBackend = backend;
             fStateSystem = StateSystemFactory.newStateSystem(backend);
-            provider.assignTargetStateSystem(fStateSystem);
-            build(provider);
+            if (canBuildInShards(provider)) {
+                buildInShards(id, provider, htFile);
+            } else {
+                provider.assignTargetStateSystem(fStateSystem);
+                build(provider);
+            }
         } catch (IOException e) {
             /*
              * If it fails here however, it means there was a problem writing to
@@ -287,6 +356,71 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         }
     }
 
+    /*
+     * Continue building an existing history file, from the state it was in
+     * when it was closed, by reading the trace from the given time.
+     */
+    private void resumeFullHistory(String id, ITmfStateProvider provider, File htFile,
+            long resumeTime, int queueSize) throws IOException {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendResumeFile(
+                id, htFile, provider.getVersion(), queueSize);
+        ITmfStateSystemBuilder ss;
+        try {
+            ss = StateSystemFactory.resumeStateSystem(backend);
+        } catch (IOException e) {
+            backend.dispose();
+            throw e;
+        }
+        fHtBackend = backend;
+        fStateSystem = ss;
+        provider.assignTargetStateSystem(ss);
+        build(provider, new TmfTimeRange(new TmfTimestamp(resumeTime, ITmfTimestamp.NANOSECOND_SCALE), TmfTimestamp.BIG_CRUNCH));
+    }
+
+    private boolean canBuildInShards(ITmfStateProvider provider) {
+        ITmfTrace trace = provider.getTrace();
+        return getNbShards() > 1 &&
+                provider instanceof AbstractTmfStateProvider &&
+                isCompleteTrace(trace) &&
+                trace.getEndTime().compareTo(trace.getStartTime()) > 0;
+    }
+
+    /*
+     * Build the full history in time shards, in parallel. If the end of the
+     * trace cannot be built this way, it is built with the usual event request,
+     * by the provider itself.
+     */
+    private void buildInShards(String id, ITmfStateProvider provider, File htFile) throws IOException {
+        final ITmfStateSystemBuilder ss = checkNotNull(fStateSystem);
+        final ITmfTrace trace = provider.getTrace();
+        long startTime = trace.getStartTime().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+        long endTime = trace.getEndTime().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+
+        ShardedHistoryBuilder builder = new ShardedHistoryBuilder(id, provider, ss,
+                htFile.getPath(), startTime, endTime, getNbShards(), getShardWarmup());
+        fShardedBuilder = builder;
+        fInitialized.countDown();
+
+        long resumeTime;
+        try {
+            resumeTime = builder.build();
+        } catch (IOException e) {
+            ss.closeHistory(ss.getCurrentEndTime());
+            disposeProvider(true);
+            throw e;
+        } finally {
+            fShardedBuilder = null;
+        }
+
+        if (builder.isCancelled()) {
+            ss.closeHistory(ss.getCurrentEndTime());
+            disposeProvider(true);
+        } else if (resumeTime >= 0) {
+            provider.assignTargetStateSystem(ss);
+            build(provider, new TmfTimeRange(new TmfTimestamp(resumeTime, ITmfTimestamp.NANOSECOND_SCALE), TmfTimestamp.BIG_CRUNCH));
+        }
+    }
+
     /*
      * Create a new state system backed with a partial history. A partial
      * history is similar to a "full" one (which you get with
@@ -377,12 +511,12 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
     }
 
     /*
-     * Create a new state system using in-memory interval storage. This should
-     * only be done for very small state system, and will be naturally limited
-     * to 2^31 intervals.
+     * Create a new state system using in-memory interval storage. The
+     * intervals are kept outside of the Java heap, so this is only limited by
+     * the available memory, but everything is lost when the trace is closed.
      */
     private void createInMemoryHistory(String id, ITmfStateProvider provider) {
-        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend(id, provider.getStartTime());
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createOffHeapInMemoryBackend(id, provider.getStartTime());
         fHtBackend = backend;
         fStateSystem = StateSystemFactory.newStateSystem(backend);
         provider.assignTargetStateSystem(fStateSystem);
@@ -400,6 +534,10 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
     }
 
     private void build(ITmfStateProvider provider) {
+        build(provider, TmfTimeRange.ETERNITY);
+    }
+
+    private void build(ITmfStateProvider provider, TmfTimeRange timeRange) {
         if ((fStateSystem == null) || (fHtBackend == null)) {
             throw new IllegalArgumentException();
         }
@@ -409,7 +547,7 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
             request.cancel();
         }
 
-        fTimeRange = TmfTimeRange.ETERNITY;
+        fTimeRange = timeRange;
         final ITmfTrace trace = provider.getTrace();
         if (!isCompleteTrace(trace)) {
             fTimeRange = trace.getTimeRange();